@@ -67,6 +67,7 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
   private final Optional<Long> maxStoreSize;
   private final ProjectFilesystem projectFilesystem;
   private final ArtifactCacheMode mode;
+  private final Optional<AdaptiveFetchController> adaptiveFetchController;
 
   private final BlockingQueue<FetchRequest> pendingFetchRequests = new LinkedBlockingQueue<>();
 
@@ -87,6 +88,28 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
       CacheEventListener eventListener,
       Optional<Long> maxStoreSize,
       ProjectFilesystem projectFilesystem) {
+    this(
+        name,
+        mode,
+        cacheReadMode,
+        storeExecutorService,
+        fetchExecutorService,
+        eventListener,
+        maxStoreSize,
+        projectFilesystem,
+        Optional.empty());
+  }
+
+  public AbstractAsynchronousCache(
+      String name,
+      ArtifactCacheMode mode,
+      CacheReadMode cacheReadMode,
+      ListeningExecutorService storeExecutorService,
+      ListeningExecutorService fetchExecutorService,
+      CacheEventListener eventListener,
+      Optional<Long> maxStoreSize,
+      ProjectFilesystem projectFilesystem,
+      Optional<AdaptiveFetchController> adaptiveFetchController) {
     this.name = name;
     this.cacheReadMode = cacheReadMode;
     this.storeExecutorService = storeExecutorService;
@@ -95,6 +118,7 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
     this.maxStoreSize = maxStoreSize;
     this.projectFilesystem = projectFilesystem;
     this.mode = mode;
+    this.adaptiveFetchController = adaptiveFetchController;
   }
 
   protected final String getName() {
@@ -174,6 +198,8 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
 
   private void doMultiFetch(ImmutableList<ClaimedFetchRequest> requests) {
     boolean gotNonError = false;
+    long startNanos = System.nanoTime();
+    Optional<FetchResult> firstResult = Optional.empty();
     try (CacheEventListener.MultiFetchRequestEvents requestEvents =
         eventListener.multiFetchStarted(
             requests.stream()
@@ -190,6 +216,7 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
                     .map(ClaimedFetchRequest::getRequest)
                     .collect(ImmutableList.toImmutableList()));
         Preconditions.checkState(result.getResults().size() == requests.size());
+        firstResult = result.getResults().stream().findFirst();
         // MultiFetch must return a non-skipped result for at least one of the requested keys.
         Preconditions.checkState(
             result.getResults().stream()
@@ -229,6 +256,7 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
         }
       }
     } finally {
+      reportToAdaptiveFetchController(requests.size(), firstResult, gotNonError, startNanos);
       if (gotNonError) {
         consecutiveMultiFetchErrorCount.set(0);
       } else {
@@ -257,21 +285,52 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
     CacheResult result;
     CacheEventListener.FetchRequestEvents requestEvents =
         eventListener.fetchStarted(request.getBuildTarget(), request.getRuleKey());
+    long startNanos = System.nanoTime();
     try {
       FetchResult fetchResult =
           fetchImpl(request.getBuildTarget(), request.getRuleKey(), request.getOutput());
       result = fetchResult.getCacheResult();
       requestEvents.finished(fetchResult);
+      reportToAdaptiveFetchController(
+          1,
+          Optional.of(fetchResult),
+          result.getType() != CacheResultType.ERROR,
+          startNanos);
     } catch (IOException e) {
       String msg =
           String.format(
               "fetch(%s): %s: %s", request.getRuleKey(), e.getClass().getName(), e.getMessage());
       result = CacheResult.error(name, mode, msg);
       requestEvents.failed(e, msg, result);
+      reportToAdaptiveFetchController(1, Optional.empty(), false, startNanos);
     }
     request.future.set(result);
   }
 
+  private void reportToAdaptiveFetchController(
+      int keys, Optional<FetchResult> result, boolean succeeded, long startNanos) {
+    if (!adaptiveFetchController.isPresent()) {
+      return;
+    }
+    long endNanos = System.nanoTime();
+    String backend =
+        result
+            .flatMap(FetchResult::getBackend)
+            .orElse(AdaptiveFetchController.UNKNOWN_BACKEND);
+    if (succeeded) {
+      adaptiveFetchController
+          .get()
+          .onSuccess(
+              backend,
+              keys,
+              result.flatMap(FetchResult::getResponseSizeBytes).orElse(0L),
+              startNanos,
+              endNanos);
+    } else {
+      adaptiveFetchController.get().onError(backend, startNanos, endNanos);
+    }
+  }
+
   private static void skipPendingRequest(ClaimedFetchRequest request) {
     if (request != null) {
       String ruleKey = request.getRequest().getRuleKey().toString();
@@ -350,6 +409,31 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
   }
 
   private void processFetch() {
+    if (adaptiveFetchController.isPresent()) {
+      Optional<AdaptiveFetchController.Permit> permit = adaptiveFetchController.get().tryAcquire();
+      if (!permit.isPresent()) {
+        // Enough requests are in flight already; the next one to finish picks up this work.
+        return;
+      }
+      try {
+        processFetchInternal();
+      } finally {
+        adaptiveFetchController.get().release(permit.get());
+        // Fill every slot that is free now, including ones the controller has just added.
+        int tasks =
+            Math.min(
+                pendingFetchRequests.size(),
+                Math.max(1, adaptiveFetchController.get().getAvailablePermits()));
+        for (int i = 0; i < tasks; i++) {
+          fetchExecutorService.submit(this::processFetch);
+        }
+      }
+    } else {
+      processFetchInternal();
+    }
+  }
+
+  private void processFetchInternal() {
     try {
       if (markAllFetchRequestsAsSkipped) {
         // Build is finished/terminated, all pending fetch requests should be set to skipped state.
@@ -359,6 +443,9 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
 
       int multiFetchLimit =
           enableMultiFetch ? getMultiFetchBatchSize(pendingFetchRequests.size()) : 0;
+      if (multiFetchLimit > 0 && adaptiveFetchController.isPresent()) {
+        multiFetchLimit = adaptiveFetchController.get().getMultiFetchBatchSize();
+      }
       if (multiFetchLimit > 0) {
         ImmutableList.Builder<ClaimedFetchRequest> requestsBuilder = ImmutableList.builder();
         try {
@@ -734,6 +821,9 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
     Optional<String> getArtifactContentHash();
 
     CacheResult getCacheResult();
+
+    /** The scheme, host and port of the server that answered the request, if known. */
+    Optional<String> getBackend();
   }
 
   /** Return type used by the implementations of this abstract class. */
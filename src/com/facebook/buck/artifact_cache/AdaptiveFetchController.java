@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.core.util.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import java.net.URI;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Tunes how many fetch requests a cache keeps in flight and how many keys it puts into every
+ * multiFetch request.
+ *
+ * <p>Both limits follow AIMD: they start small, grow by one step for every request that completes
+ * without signs of congestion and are halved, at most once per round trip, when a request fails or
+ * takes much longer than the best latency and throughput seen so far would predict. Limits, and the
+ * permits for requests in flight, are kept separately for every backend that served requests. New
+ * requests take a permit from the backend that answered most recently, which is the one the load
+ * balancer currently prefers, and return it to that same backend when they complete.
+ */
+class AdaptiveFetchController {
+
+  private static final Logger LOG = Logger.get(AdaptiveFetchController.class);
+
+  @VisibleForTesting static final String UNKNOWN_BACKEND = "";
+  @VisibleForTesting static final int INITIAL_CONCURRENCY = 4;
+  @VisibleForTesting static final int INITIAL_MULTI_FETCH_BATCH_SIZE = 8;
+
+  // A request counts as congested when it takes this many times longer than predicted.
+  private static final double CONGESTION_FACTOR = 2.0;
+  private static final double DECREASE_FACTOR = 0.5;
+  // How quickly the latency and throughput baselines forget old samples.
+  private static final int BASELINE_DECAY = 64;
+
+  private final int maxConcurrency;
+  private final int maxMultiFetchBatchSize;
+  private final ConcurrentMap<String, Window> windows = new ConcurrentHashMap<>();
+  private volatile String currentBackend = UNKNOWN_BACKEND;
+
+  AdaptiveFetchController(int maxConcurrency, int maxMultiFetchBatchSize) {
+    this.maxConcurrency = Math.max(1, maxConcurrency);
+    this.maxMultiFetchBatchSize = Math.max(1, maxMultiFetchBatchSize);
+  }
+
+  /**
+   * @return a permit to send another request now, if the current backend has one to spare. Must be
+   *     returned with {@link #release}.
+   */
+  Optional<Permit> tryAcquire() {
+    Window window = getWindow(currentBackend);
+    return window.tryAcquire() ? Optional.of(new Permit(window)) : Optional.empty();
+  }
+
+  void release(Permit permit) {
+    permit.window.release();
+  }
+
+  int getAvailablePermits() {
+    return getWindow(currentBackend).getAvailablePermits();
+  }
+
+  int getConcurrency() {
+    return (int) getWindow(currentBackend).getConcurrency();
+  }
+
+  int getMultiFetchBatchSize() {
+    return (int) getWindow(currentBackend).getBatchSize();
+  }
+
+  /**
+   * Records a request for {@code keys} keys that completed without error.
+   *
+   * @param responseSizeBytes size of the response body, or 0 if unknown.
+   */
+  void onSuccess(
+      String backend, int keys, long responseSizeBytes, long startNanos, long endNanos) {
+    currentBackend = backend;
+    getWindow(backend).onSuccess(keys, Math.max(0, responseSizeBytes), startNanos, endNanos);
+  }
+
+  void onError(String backend, long startNanos, long endNanos) {
+    if (!backend.equals(UNKNOWN_BACKEND)) {
+      currentBackend = backend;
+    }
+    getWindow(backend.equals(UNKNOWN_BACKEND) ? currentBackend : backend)
+        .onError(startNanos, endNanos);
+  }
+
+  private Window getWindow(String backend) {
+    return windows.computeIfAbsent(backend, b -> new Window(b));
+  }
+
+  /** @return the scheme, host and port of the given request url, which identify a backend. */
+  static String getBackend(@Nullable String requestUrl) {
+    if (requestUrl == null) {
+      return UNKNOWN_BACKEND;
+    }
+    try {
+      URI uri = URI.create(requestUrl);
+      if (uri.getAuthority() == null) {
+        return UNKNOWN_BACKEND;
+      }
+      return uri.getScheme() + "://" + uri.getAuthority();
+    } catch (IllegalArgumentException e) {
+      return UNKNOWN_BACKEND;
+    }
+  }
+
+  /** Allows a single request to be in flight, counted against the backend it was taken from. */
+  static final class Permit {
+    private final Window window;
+
+    private Permit(Window window) {
+      this.window = window;
+    }
+  }
+
+  private class Window {
+    private final String backend;
+    private double concurrency = Math.min(INITIAL_CONCURRENCY, maxConcurrency);
+    private double batchSize = Math.min(INITIAL_MULTI_FETCH_BATCH_SIZE, maxMultiFetchBatchSize);
+    private long minLatencyNanos = Long.MAX_VALUE;
+    private double maxBytesPerNano = 0;
+    private long lastDecreaseNanos = Long.MIN_VALUE;
+
+    @GuardedBy("this")
+    private int inflightRequests = 0;
+
+    private Window(String backend) {
+      this.backend = backend;
+    }
+
+    private synchronized boolean tryAcquire() {
+      if (inflightRequests >= (int) concurrency) {
+        return false;
+      }
+      inflightRequests++;
+      return true;
+    }
+
+    private synchronized void release() {
+      inflightRequests--;
+    }
+
+    private synchronized int getAvailablePermits() {
+      return Math.max(0, (int) concurrency - inflightRequests);
+    }
+
+    private synchronized double getConcurrency() {
+      return concurrency;
+    }
+
+    private synchronized double getBatchSize() {
+      return batchSize;
+    }
+
+    private synchronized void onSuccess(
+        int keys, long responseSizeBytes, long startNanos, long endNanos) {
+      long latencyNanos = Math.max(1, endNanos - startNanos);
+      if (isCongested(responseSizeBytes, latencyNanos)) {
+        decrease(startNanos, endNanos);
+      } else {
+        // Grow concurrency by one per round of requests, and the batch size by one per full batch.
+        concurrency = Math.min(maxConcurrency, concurrency + 1 / concurrency);
+        if (keys >= (int) batchSize) {
+          batchSize = Math.min(maxMultiFetchBatchSize, batchSize + 1);
+        }
+      }
+      updateBaselines(responseSizeBytes, latencyNanos);
+    }
+
+    private synchronized void onError(long startNanos, long endNanos) {
+      decrease(startNanos, endNanos);
+    }
+
+    private boolean isCongested(long responseSizeBytes, long latencyNanos) {
+      if (minLatencyNanos == Long.MAX_VALUE || maxBytesPerNano == 0) {
+        return false;
+      }
+      double expectedNanos = minLatencyNanos + responseSizeBytes / maxBytesPerNano;
+      return latencyNanos > CONGESTION_FACTOR * expectedNanos;
+    }
+
+    private void updateBaselines(long responseSizeBytes, long latencyNanos) {
+      if (latencyNanos < minLatencyNanos) {
+        minLatencyNanos = latencyNanos;
+      } else {
+        // Let the baseline drift up slowly so that a route change isn't mistaken for congestion
+        // forever.
+        minLatencyNanos += (latencyNanos - minLatencyNanos) / BASELINE_DECAY;
+      }
+      double bytesPerNano = (double) responseSizeBytes / latencyNanos;
+      if (bytesPerNano > maxBytesPerNano) {
+        maxBytesPerNano = bytesPerNano;
+      } else {
+        maxBytesPerNano -= (maxBytesPerNano - bytesPerNano) / BASELINE_DECAY;
+      }
+    }
+
+    private void decrease(long startNanos, long endNanos) {
+      // Requests that were sent before the last decrease don't reflect the new limits yet.
+      if (startNanos < lastDecreaseNanos) {
+        return;
+      }
+      lastDecreaseNanos = endNanos;
+      concurrency = Math.max(1, concurrency * DECREASE_FACTOR);
+      batchSize = Math.max(1, batchSize * DECREASE_FACTOR);
+      LOG.debug(
+          "Reduced fetch limits for [%s] to %d concurrent requests of %d keys",
+          backend, (int) concurrency, (int) batchSize);
+    }
+  }
+}
@@ -25,6 +25,7 @@ import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
 import com.facebook.buck.artifact_cache.config.ArtifactCacheMode.CacheType;
 import com.facebook.buck.artifact_cache.config.DirCacheEntry;
 import com.facebook.buck.artifact_cache.config.HttpCacheEntry;
+import com.facebook.buck.artifact_cache.config.HttpProtocol;
 import com.facebook.buck.artifact_cache.config.MultiFetchType;
 import com.facebook.buck.artifact_cache.config.SQLiteCacheEntry;
 import com.facebook.buck.core.config.BuckConfig;
@@ -67,6 +68,7 @@ import okhttp3.ConnectionPool;
 import okhttp3.Dispatcher;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
@@ -97,6 +99,7 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
   private final String producerId;
   private final String producerHostname;
   private final Optional<ClientCertificateHandler> clientCertificateHandler;
+  private final Optional<MemoryArtifactStore> memoryArtifactStore;
 
   /** {@link TaskAction} implementation for {@link ArtifactCaches}. */
   static class ArtifactCachesCloseAction implements TaskAction<List<ArtifactCache>> {
@@ -143,6 +146,8 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
    * @param producerId free-form identifier of a user or machine uploading artifacts, can be used on
    *     cache server side for monitoring
    * @param clientCertificateHandler container for client certificate information
+   * @param memoryArtifactStore artifacts kept in memory between commands, used when the {@code
+   *     memory} cache mode is enabled
    */
   public ArtifactCaches(
       ArtifactCacheBuckConfig buckConfig,
@@ -157,7 +162,8 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
       TaskManagerCommandScope managerScope,
       String producerId,
       String producerHostname,
-      Optional<ClientCertificateHandler> clientCertificateHandler) {
+      Optional<ClientCertificateHandler> clientCertificateHandler,
+      Optional<MemoryArtifactStore> memoryArtifactStore) {
     this.buckConfig = buckConfig;
     this.buckEventBus = buckEventBus;
     this.unconfiguredBuildTargetFactory = unconfiguredBuildTargetFactory;
@@ -171,6 +177,7 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
     this.producerId = producerId;
     this.producerHostname = producerHostname;
     this.clientCertificateHandler = clientCertificateHandler;
+    this.memoryArtifactStore = memoryArtifactStore;
   }
 
   private static Request.Builder addHeadersToBuilder(
@@ -220,7 +227,8 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
             cacheTypeBlacklist,
             producerId,
             producerHostname,
-            clientCertificateHandler);
+            clientCertificateHandler,
+            memoryArtifactStore);
 
     artifactCaches.add(artifactCache);
 
@@ -243,7 +251,8 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
         managerScope,
         producerId,
         producerHostname,
-        clientCertificateHandler);
+        clientCertificateHandler,
+        memoryArtifactStore);
   }
 
   /**
@@ -284,7 +293,8 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
       ImmutableSet<CacheType> cacheTypeBlacklist,
       String producerId,
       String producerHostname,
-      Optional<ClientCertificateHandler> clientCertificateHandler) {
+      Optional<ClientCertificateHandler> clientCertificateHandler,
+      Optional<MemoryArtifactStore> memoryArtifactStore) {
     ImmutableSet<ArtifactCacheMode> modes = buckConfig.getArtifactCacheModes();
     if (modes.isEmpty()) {
       return new NoopArtifactCache();
@@ -298,6 +308,8 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
 
       switch (mode) {
         case unknown:
+        case memory:
+          // The in-memory cache is layered in front of all other caches below.
           break;
         case dir:
           initializeDirCaches(
@@ -375,6 +387,12 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
       result = new MultiArtifactCache(artifactCaches);
     }
 
+    if (modes.contains(ArtifactCacheMode.memory)
+        && !cacheTypeBlacklist.contains(local)
+        && memoryArtifactStore.isPresent()) {
+      result = new MemoryArtifactCache(memoryArtifactStore.get(), result);
+    }
+
     // Always support reading two-level cache stores (in case we performed any in the past).
     result =
         new TwoLevelArtifactCacheDecorator(
@@ -383,7 +401,10 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
             buckEventBus,
             buckConfig.getTwoLevelCachingEnabled(),
             buckConfig.getTwoLevelCachingMinimumSize(),
-            buckConfig.getTwoLevelCachingMaximumSize());
+            buckConfig.getTwoLevelCachingMaximumSize(),
+            buckConfig.getTwoLevelCachingChunkAverageSize(),
+            buckConfig.getTwoLevelCachingChunkStoreMaxSize(),
+            ArtifactCompression.of(buckConfig));
 
     return result;
   }
@@ -479,14 +500,26 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
       ListeningExecutorService storeExecutorService) {
     Path cacheDir = dirCacheConfig.getCacheDir();
     try {
-      DirArtifactCache dirArtifactCache =
-          new DirArtifactCache(
-              "dir",
-              projectFilesystem,
-              cacheDir,
-              dirCacheConfig.getCacheReadMode(),
-              dirCacheConfig.getMaxSizeBytes(),
-              storeExecutorService);
+      ArtifactCache dirArtifactCache;
+      if (dirCacheConfig.isContentAddressed()) {
+        dirArtifactCache =
+            new ContentAddressedDirArtifactCache(
+                "dir",
+                projectFilesystem,
+                cacheDir,
+                dirCacheConfig.getCacheReadMode(),
+                dirCacheConfig.getMaxSizeBytes(),
+                storeExecutorService);
+      } else {
+        dirArtifactCache =
+            new DirArtifactCache(
+                "dir",
+                projectFilesystem,
+                cacheDir,
+                dirCacheConfig.getCacheReadMode(),
+                dirCacheConfig.getMaxSizeBytes(),
+                storeExecutorService);
+      }
 
       if (!buckEventBus.isPresent()) {
         return dirArtifactCache;
@@ -498,7 +531,7 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
           new DirArtifactCacheEvent.DirArtifactCacheEventFactory(
               unconfiguredBuildTargetFactory, targetConfigurationSerializer));
 
-    } catch (IOException e) {
+    } catch (IOException | SQLException e) {
       throw new HumanReadableException(
           e, "Failure initializing artifact cache directory: %s", cacheDir);
     }
@@ -531,7 +564,16 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
             factory,
             cacheMode,
             clientCertificateHandler);
-    return new RetryingCacheDecorator(cacheMode, cache, config.getMaxFetchRetries(), buckEventBus);
+    cache = new RetryingCacheDecorator(cacheMode, cache, config.getMaxFetchRetries(), buckEventBus);
+    if (config.getCoalesceStoresEnabled()) {
+      cache =
+          new StoreCoalescingCacheDecorator(
+              cache,
+              buckEventBus,
+              config.getCoalescedStoreBatchSize(),
+              config.getHttpMaxConcurrentWrites());
+    }
+    return cache;
   }
 
   private static ArtifactCache createHttpArtifactCache(
@@ -579,6 +621,9 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
     dispatcher.setMaxRequestsPerHost((int) config.getThreadPoolSize());
     storeClientBuilder.dispatcher(dispatcher);
 
+    // With HTTP/2 all of those requests are multiplexed over a single connection.
+    storeClientBuilder.protocols(getProtocols(config.getHttpProtocol()));
+
     ImmutableMap<String, String> readHeaders = cacheDescription.getReadHeaders();
     ImmutableMap<String, String> writeHeaders = cacheDescription.getWriteHeaders();
 
@@ -691,9 +736,28 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
             .setErrorTextTemplate(cacheDescription.getErrorMessageFormat())
             .setErrorTextLimit(cacheDescription.getErrorMessageLimit())
             .setMaxStoreSizeBytes(cacheDescription.getMaxStoreSize())
+            .setAdaptiveFetchController(
+                config.getAdaptiveFetchEnabled()
+                    ? Optional.of(
+                        new AdaptiveFetchController(
+                            config.getHttpFetchConcurrency(), config.getMultiFetchLimit()))
+                    : Optional.empty())
             .build());
   }
 
+  private static ImmutableList<Protocol> getProtocols(HttpProtocol httpProtocol) {
+    switch (httpProtocol) {
+      case HTTP_1_1:
+        return ImmutableList.of(Protocol.HTTP_1_1);
+      case HTTP_2:
+        return ImmutableList.of(Protocol.HTTP_2, Protocol.HTTP_1_1);
+      case H2_PRIOR_KNOWLEDGE:
+        return ImmutableList.of(Protocol.H2_PRIOR_KNOWLEDGE);
+      default:
+        throw new IllegalArgumentException("Unknown HTTP protocol: " + httpProtocol);
+    }
+  }
+
   private static ArtifactCache createSQLiteArtifactCache(
       BuckEventBus buckEventBus,
       SQLiteCacheEntry cacheConfig,
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.artifact_cache.config.ArtifactCacheBuckConfig;
+import com.facebook.buck.core.exceptions.HumanReadableException;
+import com.facebook.buck.util.unarchive.Untar;
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * Settings used to compress artifacts with zstd before they are stored to the cache, and to
+ * decompress them again when they are fetched.
+ *
+ * <p>A trained dictionary noticeably improves the ratio for the many small outputs a build
+ * produces, but it must be shared by every client reading from the cache: an artifact compressed
+ * with a dictionary can only be decompressed with the same one.
+ */
+public class ArtifactCompression {
+
+  public static final ArtifactCompression DEFAULT =
+      new ArtifactCompression(3, 0, Optional.empty());
+
+  // A zstd frame header is at most 18 bytes long.
+  private static final int MAX_FRAME_HEADER_SIZE = 18;
+  private static final int FRAME_MAGIC_NUMBER = 0xFD2FB528;
+
+  private final int level;
+  private final int workers;
+  private final Optional<byte[]> dictionary;
+  private final long dictionaryId;
+  private final Optional<ZstdDictCompress> compressDictionary;
+  private final Optional<ZstdDictDecompress> decompressDictionary;
+  private final Untar unarchiver;
+
+  public ArtifactCompression(int level, int workers, Optional<byte[]> dictionary) {
+    Preconditions.checkArgument(workers >= 0, "workers must not be negative");
+    this.level = level;
+    this.workers = workers;
+    this.dictionary = dictionary;
+    this.dictionaryId = dictionary.map(Zstd::getDictIdFromDict).orElse(0L);
+    this.compressDictionary = dictionary.map(dict -> new ZstdDictCompress(dict, level));
+    this.decompressDictionary = dictionary.map(ZstdDictDecompress::new);
+    this.unarchiver =
+        decompressDictionary.map(Untar::zstdUnarchiver).orElseGet(Untar::zstdUnarchiver);
+  }
+
+  /** Creates the compression settings configured in the {@code [cache]} section. */
+  public static ArtifactCompression of(ArtifactCacheBuckConfig config) {
+    Optional<byte[]> dictionary = Optional.empty();
+    Optional<Path> dictionaryPath = config.getArtifactCompressionDictionary();
+    if (dictionaryPath.isPresent()) {
+      Path path = config.getDelegate().getFilesystem().resolve(dictionaryPath.get());
+      try {
+        dictionary = Optional.of(Files.readAllBytes(path));
+      } catch (IOException e) {
+        throw new HumanReadableException(
+            e, "Could not read cache.artifact_compression_dictionary %s", path);
+      }
+    }
+    return new ArtifactCompression(
+        config.getArtifactCompressionLevel(), config.getArtifactCompressionThreads(), dictionary);
+  }
+
+  public int getLevel() {
+    return level;
+  }
+
+  public int getWorkers() {
+    return workers;
+  }
+
+  public boolean hasDictionary() {
+    return dictionary.isPresent();
+  }
+
+  /** Wraps {@code out} in a zstd stream using these settings. */
+  public OutputStream compress(OutputStream out) throws IOException {
+    ZstdOutputStream zstd = new ZstdOutputStream(out, level);
+    if (workers > 0) {
+      zstd.setWorkers(workers);
+    }
+    if (compressDictionary.isPresent()) {
+      zstd.setDict(compressDictionary.get());
+    }
+    return zstd;
+  }
+
+  /**
+   * Compresses {@code length} bytes of {@code buffer} into a single zstd frame. Equal input always
+   * results in an equal frame, and frames concatenated together can be read back as one stream by
+   * {@link #decompress} and {@link #getUnarchiver}.
+   */
+  public byte[] compressFrame(byte[] buffer, int offset, int length) throws IOException {
+    byte[] frame = new byte[(int) Zstd.compressBound(length)];
+    long size =
+        compressDictionary.isPresent()
+            ? Zstd.compressFastDict(frame, 0, buffer, offset, length, compressDictionary.get())
+            : Zstd.compressByteArray(frame, 0, frame.length, buffer, offset, length, level);
+    if (Zstd.isError(size)) {
+      throw new IOException("Could not compress frame: " + Zstd.getErrorName(size));
+    }
+    return Arrays.copyOf(frame, (int) size);
+  }
+
+  /** Wraps {@code in}, which was written through {@link #compress}, in a zstd stream. */
+  public InputStream decompress(InputStream in) throws IOException {
+    ZstdInputStream zstd = new ZstdInputStream(in);
+    if (decompressDictionary.isPresent()) {
+      zstd.setDict(decompressDictionary.get());
+    }
+    return zstd;
+  }
+
+  /** @return an {@link Untar} that extracts archives written through {@link #compress}. */
+  public Untar getUnarchiver() {
+    return unarchiver;
+  }
+
+  /**
+   * @return whether the zstd archive at {@code archive} can be decompressed with these settings,
+   *     i.e. it either was compressed without a dictionary or with the one we have.
+   */
+  public boolean canDecompress(Path archive) throws IOException {
+    return canDecompress(readFrameHeader(archive));
+  }
+
+  /**
+   * @return whether {@code archive} is a zstd archive that can be decompressed with these settings.
+   */
+  public boolean isDecompressible(Path archive) throws IOException {
+    byte[] header = readFrameHeader(archive);
+    return header.length >= Integer.BYTES
+        && ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).getInt() == FRAME_MAGIC_NUMBER
+        && canDecompress(header);
+  }
+
+  private boolean canDecompress(byte[] header) {
+    long frameDictionaryId = Zstd.getDictIdFromFrame(header);
+    return frameDictionaryId == 0 || frameDictionaryId == dictionaryId;
+  }
+
+  private static byte[] readFrameHeader(Path archive) throws IOException {
+    byte[] header = new byte[MAX_FRAME_HEADER_SIZE];
+    int read;
+    try (InputStream in = Files.newInputStream(archive)) {
+      read = ByteStreams.read(in, header, 0, header.length);
+    }
+    if (read < header.length) {
+      byte[] truncated = new byte[read];
+      System.arraycopy(header, 0, truncated, 0, read);
+      header = truncated;
+    }
+    return header;
+  }
+}
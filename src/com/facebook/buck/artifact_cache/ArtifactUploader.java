@@ -52,7 +52,6 @@ import java.util.Collection;
 import java.util.SortedSet;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
-import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
 
 /**
  * ArtifactUploader contains the logic of how to take a list of artifact paths and metadata and
@@ -69,13 +68,19 @@ public class ArtifactUploader {
       ImmutableMap<String, String> buildMetadata,
       SortedSet<Path> pathsToIncludeInArchive,
       BuildRule buildRule,
-      long buildTimeMs) {
+      long buildTimeMs,
+      ArtifactCompression compression) {
     ProjectFilesystem projectFilesystem = buildRule.getProjectFilesystem();
     NamedTemporaryFile archive;
     try {
       archive =
           getTemporaryArtifactArchive(
-              buildRule, projectFilesystem, ruleKeys, eventBus, pathsToIncludeInArchive);
+              buildRule,
+              projectFilesystem,
+              ruleKeys,
+              eventBus,
+              pathsToIncludeInArchive,
+              compression);
     } catch (BuckUncheckedExecutionException e) {
       LOG.error(e.getMessage());
       LOG.debug(e.toString() + "\n" + Throwables.getStackTraceAsString(e));
@@ -164,7 +169,8 @@ public class ArtifactUploader {
       ProjectFilesystem projectFilesystem,
       ImmutableSet<RuleKey> ruleKeys,
       BuckEventBus eventBus,
-      SortedSet<Path> pathsToIncludeInArchive) {
+      SortedSet<Path> pathsToIncludeInArchive,
+      ArtifactCompression compression) {
     ArtifactCompressionEvent.Started started =
         ArtifactCompressionEvent.started(
             ArtifactCompressionEvent.Operation.COMPRESS, ruleKeys, buildRule);
@@ -176,7 +182,8 @@ public class ArtifactUploader {
         new CloseableHolder<>(
             new NamedTemporaryFile(
                 "buck_artifact_" + MostFiles.sanitize(buildTarget.getShortName()), ".tar.zst"))) {
-      fullSize = compress(projectFilesystem, pathsToIncludeInArchive, archive.get().get());
+      fullSize =
+          compress(projectFilesystem, pathsToIncludeInArchive, archive.get().get(), compression);
       compressedSize = Files.size(archive.get().get());
       return archive.release();
     } catch (IOException e) {
@@ -194,11 +201,14 @@ public class ArtifactUploader {
   /** Archive and compress 'pathsToIncludeInArchive' into 'out', using tar+zstandard. */
   @VisibleForTesting
   static long compress(
-      ProjectFilesystem projectFilesystem, Collection<Path> pathsToIncludeInArchive, Path out)
+      ProjectFilesystem projectFilesystem,
+      Collection<Path> pathsToIncludeInArchive,
+      Path out,
+      ArtifactCompression compression)
       throws IOException {
     long fullSize = 0L;
     try (OutputStream o = new BufferedOutputStream(Files.newOutputStream(out));
-        OutputStream z = new ZstdCompressorOutputStream(o);
+        OutputStream z = compression.compress(o);
         TarArchiveOutputStream archive = new TarArchiveOutputStream(z)) {
       archive.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
       for (Path path : pathsToIncludeInArchive) {
@@ -0,0 +1,514 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
+import com.facebook.buck.artifact_cache.config.CacheReadMode;
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.io.file.BorrowablePath;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.util.sqlite.RetryBusyHandler;
+import com.facebook.buck.util.sqlite.SQLiteUtils;
+import com.facebook.buck.util.timing.Clock;
+import com.facebook.buck.util.timing.DefaultClock;
+import com.facebook.buck.util.types.Unit;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+import org.sqlite.BusyHandler;
+
+/**
+ * Local directory cache that stores each distinct artifact once, no matter how many rule keys
+ * produce it.
+ *
+ * <p>Artifacts are stored as blobs named after the sha1 of their contents. An SQLite index next to
+ * them maps rule keys to their metadata and blob, and records when each blob was last used. Lookups
+ * and eviction only consult the index, so neither has to walk the cache directory, and the index
+ * can be shared by several buck processes using the same cache.
+ */
+public class ContentAddressedDirArtifactCache implements ArtifactCache {
+
+  private static final Logger LOG = Logger.get(ContentAddressedDirArtifactCache.class);
+
+  private static final ArtifactCacheMode CACHE_MODE = ArtifactCacheMode.dir;
+  // Ratio of bytes stored to max size that expresses how many bytes need to be stored after we
+  // attempt to evict old blobs.
+  private static final float STORED_TO_MAX_BYTES_RATIO_TRIM_TRIGGER = 0.5f;
+  // How much of the max size to leave if we decide to evict old blobs.
+  private static final float MAX_BYTES_TRIM_RATIO = 2 / 3f;
+  private static final String TMP_EXTENSION = ".tmp";
+  private static final String INDEX_FILE_NAME = "cas_index.db";
+
+  private final String name;
+  private final ProjectFilesystem filesystem;
+  private final Path cacheDir;
+  private final CacheReadMode cacheReadMode;
+  private final Optional<Long> maxCacheSizeBytes;
+  private final ListeningExecutorService storeExecutorService;
+  private final Clock clock;
+  private final AtomicLong bytesSinceLastEviction = new AtomicLong();
+
+  private final Index index;
+
+  static {
+    SQLiteUtils.initialize();
+  }
+
+  public ContentAddressedDirArtifactCache(
+      String name,
+      ProjectFilesystem filesystem,
+      Path cacheDir,
+      CacheReadMode cacheReadMode,
+      Optional<Long> maxCacheSizeBytes,
+      ListeningExecutorService storeExecutorService)
+      throws IOException, SQLException {
+    this(
+        name,
+        filesystem,
+        cacheDir,
+        cacheReadMode,
+        maxCacheSizeBytes,
+        storeExecutorService,
+        new DefaultClock());
+  }
+
+  @VisibleForTesting
+  ContentAddressedDirArtifactCache(
+      String name,
+      ProjectFilesystem filesystem,
+      Path cacheDir,
+      CacheReadMode cacheReadMode,
+      Optional<Long> maxCacheSizeBytes,
+      ListeningExecutorService storeExecutorService,
+      Clock clock)
+      throws IOException, SQLException {
+    this.name = name;
+    this.filesystem = filesystem;
+    this.cacheDir = cacheDir;
+    this.cacheReadMode = cacheReadMode;
+    this.maxCacheSizeBytes = maxCacheSizeBytes;
+    this.storeExecutorService = storeExecutorService;
+    this.clock = clock;
+
+    try {
+      Class.forName("org.sqlite.JDBC");
+    } catch (ClassNotFoundException e) {
+      throw new SQLException("could not load SQLite class", e);
+    }
+
+    // Check first, as mkdirs will fail if the path is a symlink.
+    if (!filesystem.isDirectory(cacheDir)) {
+      filesystem.mkdirs(cacheDir);
+    }
+
+    this.index = new Index(filesystem.resolve(cacheDir).resolve(INDEX_FILE_NAME));
+  }
+
+  @Override
+  public ListenableFuture<CacheResult> fetchAsync(
+      @Nullable BuildTarget target, RuleKey ruleKey, LazyPath output) {
+    return Futures.immediateFuture(fetch(ruleKey, output));
+  }
+
+  @Override
+  public void skipPendingAndFutureAsyncFetches() {
+    // Async requests are not supported by ContentAddressedDirArtifactCache, so do nothing
+  }
+
+  private CacheResult fetch(RuleKey ruleKey, LazyPath output) {
+    CacheResult result;
+    try {
+      Optional<Entry> entry = index.selectEntry(ruleKey);
+      if (!entry.isPresent()) {
+        result = CacheResult.miss();
+      } else {
+        try {
+          filesystem.copyFile(getBlobPath(entry.get().blob), output.get());
+          index.accessBlob(entry.get().blob, clock.currentTimeMillis());
+          result =
+              CacheResult.hit(
+                  name,
+                  CACHE_MODE,
+                  SQLiteArtifactCache.unmarshalMetadata(entry.get().metadata),
+                  entry.get().size);
+        } catch (NoSuchFileException e) {
+          // The blob was evicted by another process after we read the index.
+          result = CacheResult.miss();
+        }
+      }
+    } catch (IOException | SQLException e) {
+      LOG.warn(e, "Artifact fetch(%s, %s) error", ruleKey, output);
+      result =
+          CacheResult.error(
+              name, CACHE_MODE, String.format("%s: %s", e.getClass(), e.getMessage()));
+    }
+
+    LOG.verbose(
+        "Artifact fetch(%s, %s) cache %s",
+        ruleKey, output, (result.getType().isSuccess() ? "hit" : "miss"));
+    return result;
+  }
+
+  @Override
+  public ListenableFuture<Unit> store(ArtifactInfo info, BorrowablePath output) {
+    if (!getCacheReadMode().isWritable()) {
+      return Futures.immediateFuture(Unit.UNIT);
+    }
+
+    return storeExecutorService.submit(
+        () -> {
+          storeSynchronously(info, output);
+          return Unit.UNIT;
+        });
+  }
+
+  private void storeSynchronously(ArtifactInfo info, BorrowablePath output) {
+    try {
+      HashCode blob = filesystem.computeSha1(output.getPath()).asHashCode();
+      long size = filesystem.getFileSize(output.getPath());
+      long now = clock.currentTimeMillis();
+
+      // Identical outputs of different rules share a single blob.
+      if (!index.accessBlob(blob, now) || !filesystem.exists(getBlobPath(blob))) {
+        writeBlob(output, getBlobPath(blob));
+        index.storeBlob(blob, size, now);
+        bytesSinceLastEviction.addAndGet(size);
+      }
+
+      index.storeEntries(
+          info.getRuleKeys(), blob, SQLiteArtifactCache.marshalMetadata(info.getMetadata()));
+    } catch (IOException | SQLException e) {
+      LOG.warn(e, "Artifact store(%s, %s) error", info.getRuleKeys(), output);
+    }
+
+    if (maxCacheSizeBytes.isPresent()
+        && bytesSinceLastEviction.get()
+            > maxCacheSizeBytes.get() * STORED_TO_MAX_BYTES_RATIO_TRIM_TRIGGER) {
+      bytesSinceLastEviction.set(0L);
+      evictLeastRecentlyUsedBlobs();
+    }
+  }
+
+  private void writeBlob(BorrowablePath output, Path blobPath) throws IOException {
+    filesystem.mkdirs(blobPath.getParent());
+    if (output.canBorrow()) {
+      filesystem.move(output.getPath(), blobPath, StandardCopyOption.REPLACE_EXISTING);
+      return;
+    }
+
+    // Stage the blob in the cache's temp folder and move it into place atomically, so that a
+    // partially written blob can never be fetched. Hard linking the output avoids copying it when
+    // both live on the same filesystem.
+    Path tmp = filesystem.createTempFile(getPreparedTempFolder(), "blob", TMP_EXTENSION);
+    try {
+      try {
+        Files.delete(filesystem.resolve(tmp));
+        Files.createLink(filesystem.resolve(tmp), filesystem.resolve(output.getPath()));
+      } catch (IOException | UnsupportedOperationException e) {
+        LOG.verbose(e, "Could not link %s into the cache, copying it instead", output.getPath());
+        filesystem.copyFile(output.getPath(), tmp);
+      }
+      filesystem.move(tmp, blobPath, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      filesystem.deleteFileAtPathIfExists(tmp);
+    }
+  }
+
+  @Override
+  public ListenableFuture<ImmutableMap<RuleKey, CacheResult>> multiContainsAsync(
+      ImmutableSet<RuleKey> ruleKeys) {
+    ImmutableMap.Builder<RuleKey, CacheResult> results =
+        ImmutableMap.builderWithExpectedSize(ruleKeys.size());
+    for (RuleKey ruleKey : ruleKeys) {
+      CacheResult result;
+      try {
+        result =
+            index.selectEntry(ruleKey).isPresent()
+                ? CacheResult.contains(name, CACHE_MODE)
+                : CacheResult.miss();
+      } catch (SQLException e) {
+        LOG.warn(e, "Artifact contains(%s) error", ruleKey);
+        result =
+            CacheResult.error(
+                name, CACHE_MODE, String.format("%s: %s", e.getClass(), e.getMessage()));
+      }
+      results.put(ruleKey, result);
+    }
+    return Futures.immediateFuture(results.build());
+  }
+
+  @Override
+  public ListenableFuture<CacheDeleteResult> deleteAsync(List<RuleKey> ruleKeys) {
+    // Only the rule key entries are removed. Blobs they pointed to may be shared with other rule
+    // keys, and unreferenced ones are never accessed again, so eviction picks them up first.
+    try {
+      index.deleteEntries(ruleKeys);
+    } catch (SQLException e) {
+      String message =
+          String.format("Failed to delete artifacts for rule keys %s from local cache", ruleKeys);
+      LOG.warn(e, message);
+      throw new RuntimeException(message, e);
+    }
+
+    ImmutableList<String> cacheNames =
+        ImmutableList.of(ContentAddressedDirArtifactCache.class.getSimpleName());
+    return Futures.immediateFuture(CacheDeleteResult.of(cacheNames));
+  }
+
+  @Override
+  public CacheReadMode getCacheReadMode() {
+    return cacheReadMode;
+  }
+
+  @Override
+  public void close() {
+    // Do a cache clean up on exit only if cache was written to.
+    if (bytesSinceLastEviction.get() > 0) {
+      evictLeastRecentlyUsedBlobs();
+    }
+    index.close();
+  }
+
+  /** Deletes the least recently used blobs until the cache fits within its size limit again. */
+  @VisibleForTesting
+  synchronized void evictLeastRecentlyUsedBlobs() {
+    if (!maxCacheSizeBytes.isPresent()) {
+      return;
+    }
+
+    try {
+      long totalSizeBytes = index.totalBlobSize();
+      if (totalSizeBytes <= maxCacheSizeBytes.get()) {
+        return;
+      }
+
+      long bytesToDelete =
+          totalSizeBytes - (long) (maxCacheSizeBytes.get() * MAX_BYTES_TRIM_RATIO);
+      ImmutableList<HashCode> blobs = index.selectLeastRecentlyUsedBlobs(bytesToDelete);
+      for (HashCode blob : blobs) {
+        // Drop the index rows first so that no new fetch is pointed at a blob we are deleting.
+        index.deleteBlob(blob);
+        filesystem.deleteFileAtPathIfExists(getBlobPath(blob));
+      }
+      LOG.verbose("Evicted %d blobs from %s", blobs.size(), cacheDir);
+    } catch (IOException | SQLException e) {
+      LOG.error(e, "Failed to evict blobs from [%s].", filesystem.resolve(cacheDir));
+    }
+  }
+
+  @VisibleForTesting
+  Path getBlobPath(HashCode blob) {
+    String hash = blob.toString();
+    return cacheDir
+        .resolve("blobs")
+        .resolve(hash.substring(0, 2))
+        .resolve(hash.substring(2, 4))
+        .resolve(hash);
+  }
+
+  @VisibleForTesting
+  long getTotalBlobSize() throws SQLException {
+    return index.totalBlobSize();
+  }
+
+  private Path getPreparedTempFolder() throws IOException {
+    Path tmp = cacheDir.resolve("tmp");
+    if (!filesystem.exists(tmp)) {
+      filesystem.mkdirs(tmp);
+    }
+    return tmp;
+  }
+
+  private static class Entry {
+    private final HashCode blob;
+    private final byte[] metadata;
+    private final long size;
+
+    Entry(HashCode blob, byte[] metadata, long size) {
+      this.blob = blob;
+      this.metadata = metadata;
+      this.size = size;
+    }
+  }
+
+  /** SQLite index mapping rule keys to blobs, and blobs to their size and last access time. */
+  private static class Index {
+    private final Connection connection;
+
+    private final PreparedStatement selectEntry;
+    private final PreparedStatement storeEntry;
+    private final PreparedStatement deleteEntry;
+    private final PreparedStatement accessBlob;
+    private final PreparedStatement storeBlob;
+    private final PreparedStatement selectBlobsByAccessTime;
+    private final PreparedStatement deleteEntriesForBlob;
+    private final PreparedStatement deleteBlob;
+    private final PreparedStatement blobSize;
+
+    private Index(Path path) throws SQLException {
+      connection = DriverManager.getConnection("jdbc:sqlite:" + path);
+      connection.createStatement().executeUpdate("PRAGMA SYNCHRONOUS = OFF");
+      connection.createStatement().executeUpdate("PRAGMA JOURNAL_MODE = WAL");
+
+      connection
+          .createStatement()
+          .executeUpdate(
+              "CREATE TABLE IF NOT EXISTS blobs "
+                  + "(sha1 BLOB PRIMARY KEY NOT NULL, "
+                  + "size INTEGER NOT NULL, "
+                  + "accessed INTEGER NOT NULL) "
+                  + "WITHOUT ROWID");
+      connection
+          .createStatement()
+          .executeUpdate("CREATE INDEX IF NOT EXISTS blobs_by_access ON blobs (accessed)");
+      connection
+          .createStatement()
+          .executeUpdate(
+              "CREATE TABLE IF NOT EXISTS entries "
+                  + "(rulekey BLOB PRIMARY KEY NOT NULL, "
+                  + "sha1 BLOB NOT NULL, "
+                  + "metadata BLOB NOT NULL) "
+                  + "WITHOUT ROWID");
+      connection
+          .createStatement()
+          .executeUpdate("CREATE INDEX IF NOT EXISTS entries_by_blob ON entries (sha1)");
+
+      selectEntry =
+          connection.prepareStatement(
+              "SELECT entries.sha1, metadata, size FROM entries "
+                  + "JOIN blobs ON entries.sha1 = blobs.sha1 WHERE rulekey = ?");
+      storeEntry =
+          connection.prepareStatement(
+              "REPLACE INTO entries (rulekey, sha1, metadata) VALUES (?, ?, ?)");
+      deleteEntry = connection.prepareStatement("DELETE FROM entries WHERE rulekey = ?");
+      accessBlob = connection.prepareStatement("UPDATE blobs SET accessed = ? WHERE sha1 = ?");
+      storeBlob =
+          connection.prepareStatement("REPLACE INTO blobs (sha1, size, accessed) VALUES (?, ?, ?)");
+      selectBlobsByAccessTime =
+          connection.prepareStatement("SELECT sha1, size FROM blobs ORDER BY accessed ASC");
+      deleteEntriesForBlob = connection.prepareStatement("DELETE FROM entries WHERE sha1 = ?");
+      deleteBlob = connection.prepareStatement("DELETE FROM blobs WHERE sha1 = ?");
+      blobSize = connection.prepareStatement("SELECT sum(size) FROM blobs");
+
+      BusyHandler.setHandler(connection, new RetryBusyHandler());
+    }
+
+    private synchronized Optional<Entry> selectEntry(RuleKey ruleKey) throws SQLException {
+      selectEntry.setBytes(1, ruleKey.getHashCode().asBytes());
+      try (ResultSet rs = selectEntry.executeQuery()) {
+        return rs.next()
+            ? Optional.of(
+                new Entry(HashCode.fromBytes(rs.getBytes(1)), rs.getBytes(2), rs.getLong(3)))
+            : Optional.empty();
+      }
+    }
+
+    private synchronized void storeEntries(
+        ImmutableSet<RuleKey> ruleKeys, HashCode blob, byte[] metadata) throws SQLException {
+      for (RuleKey ruleKey : ruleKeys) {
+        storeEntry.setBytes(1, ruleKey.getHashCode().asBytes());
+        storeEntry.setBytes(2, blob.asBytes());
+        storeEntry.setBytes(3, metadata);
+        storeEntry.addBatch();
+      }
+      storeEntry.executeBatch();
+    }
+
+    private synchronized void deleteEntries(List<RuleKey> ruleKeys) throws SQLException {
+      for (RuleKey ruleKey : ruleKeys) {
+        deleteEntry.setBytes(1, ruleKey.getHashCode().asBytes());
+        deleteEntry.addBatch();
+      }
+      deleteEntry.executeBatch();
+    }
+
+    /** @return whether the blob is in the index. */
+    private synchronized boolean accessBlob(HashCode blob, long accessedMillis)
+        throws SQLException {
+      accessBlob.setLong(1, accessedMillis);
+      accessBlob.setBytes(2, blob.asBytes());
+      return accessBlob.executeUpdate() > 0;
+    }
+
+    private synchronized void storeBlob(HashCode blob, long size, long accessedMillis)
+        throws SQLException {
+      storeBlob.setBytes(1, blob.asBytes());
+      storeBlob.setLong(2, size);
+      storeBlob.setLong(3, accessedMillis);
+      storeBlob.executeUpdate();
+    }
+
+    private synchronized ImmutableList<HashCode> selectLeastRecentlyUsedBlobs(long minToDelete)
+        throws SQLException {
+      ImmutableList.Builder<HashCode> blobs = ImmutableList.builder();
+      long selected = 0;
+      try (ResultSet rs = selectBlobsByAccessTime.executeQuery()) {
+        while (selected < minToDelete && rs.next()) {
+          blobs.add(HashCode.fromBytes(rs.getBytes(1)));
+          selected += rs.getLong(2);
+        }
+      }
+      return blobs.build();
+    }
+
+    private synchronized void deleteBlob(HashCode blob) throws SQLException {
+      deleteEntriesForBlob.setBytes(1, blob.asBytes());
+      deleteEntriesForBlob.executeUpdate();
+      deleteBlob.setBytes(1, blob.asBytes());
+      deleteBlob.executeUpdate();
+    }
+
+    private synchronized long totalBlobSize() throws SQLException {
+      try (ResultSet rs = blobSize.executeQuery()) {
+        if (!rs.next()) {
+          throw new SQLException("Query failed: total size of blobs");
+        }
+        return rs.getLong(1);
+      }
+    }
+
+    private void close() {
+      try {
+        connection.close();
+      } catch (SQLException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+}
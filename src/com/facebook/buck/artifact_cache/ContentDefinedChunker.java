@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Splits a stream into chunks whose boundaries depend on the content rather than on offsets, so
+ * that an edit in the middle of a file only changes the chunks around the edit.
+ *
+ * <p>This is the FastCDC algorithm: a gear hash is rolled over the input and a boundary is
+ * declared when its top bits are all zero. Up to the average chunk size a stricter mask is used
+ * and past it a looser one, which keeps chunk sizes close to the average. Chunks are never smaller
+ * than the minimum or larger than the maximum size.
+ *
+ * <p>Readers and writers of the same cache must agree on the chunk sizes and on {@link #GEAR}, or
+ * they will cut the same file differently and share no chunks.
+ */
+final class ContentDefinedChunker {
+
+  /** Receives chunks in the order they appear in the input. */
+  interface ChunkConsumer {
+    void accept(byte[] buffer, int offset, int length) throws IOException;
+  }
+
+  private static final long[] GEAR = newGearTable();
+
+  private final int minSize;
+  private final int averageSize;
+  private final int maxSize;
+  private final long strictMask;
+  private final long looseMask;
+
+  ContentDefinedChunker(int minSize, int averageSize, int maxSize) {
+    Preconditions.checkArgument(
+        0 < minSize && minSize <= averageSize && averageSize <= maxSize,
+        "Chunk sizes must satisfy 0 < min <= average <= max.");
+    this.minSize = minSize;
+    this.averageSize = averageSize;
+    this.maxSize = maxSize;
+    int bits = 31 - Integer.numberOfLeadingZeros(averageSize);
+    this.strictMask = topBits(bits + 1);
+    this.looseMask = topBits(Math.max(1, bits - 1));
+  }
+
+  /** Chunker using the size ratios recommended by the FastCDC paper. */
+  static ContentDefinedChunker withAverageSize(int averageSize) {
+    return new ContentDefinedChunker(
+        Math.max(1, averageSize / 4), averageSize, Math.multiplyExact(averageSize, 8));
+  }
+
+  int getMaxSize() {
+    return maxSize;
+  }
+
+  /** Feeds every chunk of {@code input} to {@code consumer}. */
+  void split(InputStream input, ChunkConsumer consumer) throws IOException {
+    byte[] buffer = new byte[maxSize];
+    int length = ByteStreams.read(input, buffer, 0, buffer.length);
+    while (length > 0) {
+      int chunkLength = nextChunkLength(buffer, 0, length);
+      consumer.accept(buffer, 0, chunkLength);
+      System.arraycopy(buffer, chunkLength, buffer, 0, length - chunkLength);
+      length -= chunkLength;
+      length += ByteStreams.read(input, buffer, length, buffer.length - length);
+    }
+  }
+
+  /**
+   * Returns the length of the chunk starting at {@code offset}. {@code length} must cover either
+   * the rest of the input or at least the maximum chunk size.
+   */
+  int nextChunkLength(byte[] buffer, int offset, int length) {
+    if (length <= minSize) {
+      return length;
+    }
+    int end = Math.min(length, maxSize);
+    int normal = Math.min(end, averageSize);
+    long hash = 0;
+    int i = minSize;
+    for (; i < normal; i++) {
+      hash = (hash << 1) + GEAR[buffer[offset + i] & 0xff];
+      if ((hash & strictMask) == 0) {
+        return i + 1;
+      }
+    }
+    for (; i < end; i++) {
+      hash = (hash << 1) + GEAR[buffer[offset + i] & 0xff];
+      if ((hash & looseMask) == 0) {
+        return i + 1;
+      }
+    }
+    return end;
+  }
+
+  private static long topBits(int count) {
+    return -1L << (Long.SIZE - count);
+  }
+
+  private static long[] newGearTable() {
+    // java.util.Random's sequence is specified, so every client builds the same table.
+    Random random = new Random(0x2c01);
+    long[] gear = new long[256];
+    for (int i = 0; i < gear.length; i++) {
+      gear[i] = random.nextLong();
+    }
+    return gear;
+  }
+}
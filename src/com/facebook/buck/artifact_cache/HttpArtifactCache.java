@@ -75,7 +75,9 @@ public final class HttpArtifactCache extends AbstractNetworkCache {
 
     try (HttpResponse response =
         fetchClient.makeRequest("/artifacts/key/" + ruleKey + getParams, requestBuilder)) {
-      resultBuilder.setResponseSizeBytes(response.contentLength());
+      resultBuilder
+          .setResponseSizeBytes(response.contentLength())
+          .setBackend(AdaptiveFetchController.getBackend(response.requestUrl()));
 
       try (DataInputStream input =
           new DataInputStream(new FullyReadOnCloseInputStream(response.getBody()))) {
@@ -103,7 +105,9 @@ public final class HttpArtifactCache extends AbstractNetworkCache {
                 .createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
 
         HttpArtifactCacheBinaryProtocol.FetchResponseReadResult fetchedData;
-        try (OutputStream tempFileOutputStream = getProjectFilesystem().newFileOutputStream(temp)) {
+        try (OutputStream tempFileOutputStream =
+            StreamingLazyPath.teeIfStreaming(
+                output, getProjectFilesystem().newFileOutputStream(temp))) {
           fetchedData =
               HttpArtifactCacheBinaryProtocol.readFetchResponse(input, tempFileOutputStream);
         }
@@ -135,6 +139,7 @@ public final class HttpArtifactCache extends AbstractNetworkCache {
 
         // Finally, move the temp file into it's final place.
         getProjectFilesystem().move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        StreamingLazyPath.markVerifiedIfStreaming(output);
 
         LOG.info("fetch(%s, %s): cache hit", response.requestUrl(), ruleKey);
         return resultBuilder
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.util.timing.Clock;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Chunks of two-level artifacts that this machine has already stored or fetched, named after the
+ * sha1 of their contents. Artifacts that share most of their bytes with an earlier version only
+ * need to download the chunks that are missing here.
+ *
+ * <p>Every chunk is written to a temporary file and moved into place, so readers only ever see
+ * complete chunks. The modification time of a chunk is bumped whenever it is used, and {@link
+ * #trim()} deletes the least recently used chunks once the store grows past its maximum size.
+ *
+ * <p>The total size of the store is kept in a file next to the chunks and bumped by the bytes added
+ * in this process, so {@link #trim()} only lists the chunks when they need to be evicted. Builds
+ * that add chunks concurrently may lose each other's updates; the next eviction recounts the size
+ * from the chunks themselves.
+ */
+final class LocalChunkStore {
+
+  private static final Logger LOG = Logger.get(LocalChunkStore.class);
+
+  private static final String TMP_DIR = "tmp";
+  private static final String SIZE_FILE = "size";
+
+  /** Evicting down to this fraction of the maximum size leaves room for the next few builds. */
+  private static final double TRIM_TARGET_RATIO = 0.75;
+
+  private final Path root;
+  private final long maxSizeBytes;
+  private final Clock clock;
+  private final AtomicLong addedBytes = new AtomicLong();
+
+  LocalChunkStore(Path root, long maxSizeBytes, Clock clock) {
+    this.root = root;
+    this.maxSizeBytes = maxSizeBytes;
+    this.clock = clock;
+  }
+
+  /** Returns the path of the chunk with the given hash, if it is stored. */
+  Optional<Path> get(String hash) {
+    Path path = getPath(hash);
+    try {
+      Files.setLastModifiedTime(path, FileTime.fromMillis(clock.currentTimeMillis()));
+      return Optional.of(path);
+    } catch (NoSuchFileException e) {
+      return Optional.empty();
+    } catch (IOException e) {
+      LOG.debug(e, "Could not touch chunk %s.", path);
+      return Files.isRegularFile(path) ? Optional.of(path) : Optional.empty();
+    }
+  }
+
+  /** Stores a chunk produced locally and returns its path. */
+  Path put(String hash, byte[] buffer, int offset, int length) throws IOException {
+    Optional<Path> existing = get(hash);
+    if (existing.isPresent()) {
+      return existing.get();
+    }
+    Path tmp = newTempFile();
+    try (OutputStream output = Files.newOutputStream(tmp)) {
+      output.write(buffer, offset, length);
+    }
+    return commit(tmp, hash);
+  }
+
+  /** Returns a fresh file that a chunk can be downloaded into before calling {@link #commit}. */
+  Path newTempFile() throws IOException {
+    Path tmpDir = root.resolve(TMP_DIR);
+    Files.createDirectories(tmpDir);
+    return Files.createTempFile(tmpDir, "chunk", ".tmp");
+  }
+
+  /**
+   * Moves a downloaded chunk into the store after checking that its contents match {@code hash}.
+   *
+   * @throws IOException if the contents do not match, in which case the file is deleted.
+   */
+  Path commitVerified(Path tmp, String hash) throws IOException {
+    verify(tmp, hash);
+    return commit(tmp, hash);
+  }
+
+  /**
+   * Checks that the contents of a downloaded chunk match {@code hash}.
+   *
+   * @throws IOException if the contents do not match, in which case the file is deleted.
+   */
+  static void verify(Path chunk, String hash) throws IOException {
+    HashCode actual = com.google.common.io.Files.asByteSource(chunk.toFile()).hash(Hashing.sha1());
+    if (!actual.toString().equals(hash)) {
+      Files.deleteIfExists(chunk);
+      throw new IOException(
+          String.format("Chunk %s was corrupted in transit, its hash is %s.", hash, actual));
+    }
+  }
+
+  private Path commit(Path tmp, String hash) throws IOException {
+    Path path = getPath(hash);
+    Files.createDirectories(path.getParent());
+    long size = Files.size(tmp);
+    try {
+      Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+      addedBytes.addAndGet(size);
+    } catch (FileAlreadyExistsException e) {
+      // Another build stored the same chunk first.
+      Files.deleteIfExists(tmp);
+    }
+    Files.setLastModifiedTime(path, FileTime.fromMillis(clock.currentTimeMillis()));
+    return path;
+  }
+
+  /** Deletes the least recently used chunks until the store fits in its maximum size. */
+  void trim() {
+    long added = addedBytes.getAndSet(0);
+    if (added == 0) {
+      return;
+    }
+    Optional<Long> storedSize = readStoredSize();
+    if (storedSize.isPresent() && storedSize.get() + added <= maxSizeBytes) {
+      writeStoredSize(storedSize.get() + added);
+      return;
+    }
+    evict((long) (maxSizeBytes * TRIM_TARGET_RATIO)).ifPresent(this::writeStoredSize);
+  }
+
+  /** Deletes the least recently used chunks down to {@code targetSize} and returns the new size. */
+  private Optional<Long> evict(long targetSize) {
+    List<Chunk> chunks = new ArrayList<>();
+    long totalSize = 0;
+    try (Stream<Path> paths = Files.walk(root)) {
+      for (Path path : (Iterable<Path>) paths::iterator) {
+        if (path.getParent().equals(root) || path.getParent().endsWith(TMP_DIR)) {
+          continue;
+        }
+        BasicFileAttributes attributes;
+        try {
+          attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+          // Deleted by a concurrent build.
+          continue;
+        }
+        if (attributes.isRegularFile()) {
+          chunks.add(new Chunk(path, attributes.size(), attributes.lastModifiedTime().toMillis()));
+          totalSize += attributes.size();
+        }
+      }
+    } catch (IOException | UncheckedIOException e) {
+      LOG.warn(e, "Could not list chunks in %s.", root);
+      return Optional.empty();
+    }
+    if (totalSize <= maxSizeBytes) {
+      return Optional.of(totalSize);
+    }
+    chunks.sort(Comparator.comparingLong(chunk -> chunk.lastUsedMillis));
+    for (Chunk chunk : chunks) {
+      if (totalSize <= targetSize) {
+        break;
+      }
+      try {
+        Files.deleteIfExists(chunk.path);
+        totalSize -= chunk.size;
+      } catch (IOException e) {
+        LOG.debug(e, "Could not evict chunk %s.", chunk.path);
+      }
+    }
+    return Optional.of(totalSize);
+  }
+
+  private Optional<Long> readStoredSize() {
+    try {
+      return Optional.of(
+          Long.parseLong(
+              new String(Files.readAllBytes(root.resolve(SIZE_FILE)), StandardCharsets.UTF_8)
+                  .trim()));
+    } catch (NoSuchFileException e) {
+      return Optional.empty();
+    } catch (IOException | NumberFormatException e) {
+      LOG.debug(e, "Could not read the size of %s.", root);
+      return Optional.empty();
+    }
+  }
+
+  private void writeStoredSize(long size) {
+    Path tmp;
+    try {
+      tmp = newTempFile();
+    } catch (IOException e) {
+      LOG.debug(e, "Could not record the size of %s.", root);
+      return;
+    }
+    try {
+      Files.write(tmp, Long.toString(size).getBytes(StandardCharsets.UTF_8));
+      Files.move(
+          tmp,
+          root.resolve(SIZE_FILE),
+          StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      LOG.debug(e, "Could not record the size of %s.", root);
+      try {
+        Files.deleteIfExists(tmp);
+      } catch (IOException deleteException) {
+        LOG.debug(deleteException, "Could not delete %s.", tmp);
+      }
+    }
+  }
+
+  private Path getPath(String hash) {
+    return root.resolve(hash.substring(0, 2)).resolve(hash);
+  }
+
+  private static class Chunk {
+    private final Path path;
+    private final long size;
+    private final long lastUsedMillis;
+
+    private Chunk(Path path, long size, long lastUsedMillis) {
+      this.path = path;
+      this.size = size;
+      this.lastUsedMillis = lastUsedMillis;
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
+import com.facebook.buck.artifact_cache.config.CacheReadMode;
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.io.file.BorrowablePath;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.util.types.Unit;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import javax.annotation.Nullable;
+
+/**
+ * Level zero cache that serves small artifacts from a {@link MemoryArtifactStore} kept in the
+ * daemon, and only asks the wrapped caches for the rest.
+ *
+ * <p>Artifacts fetched from the wrapped caches and artifacts stored by the build are added to the
+ * store when they are small enough. Hits are reported with {@link ArtifactCacheMode#memory}, so
+ * they are counted separately in the cache statistics.
+ */
+public class MemoryArtifactCache implements ArtifactCache, CacheDecorator {
+
+  private static final Logger LOG = Logger.get(MemoryArtifactCache.class);
+
+  private static final String CACHE_SOURCE = "memory";
+
+  private final MemoryArtifactStore store;
+  private final ArtifactCache delegate;
+
+  public MemoryArtifactCache(MemoryArtifactStore store, ArtifactCache delegate) {
+    this.store = store;
+    this.delegate = delegate;
+  }
+
+  @Override
+  public ListenableFuture<CacheResult> fetchAsync(
+      @Nullable BuildTarget target, RuleKey ruleKey, LazyPath output) {
+    Optional<MemoryArtifactStore.Artifact> artifact = store.get(ruleKey);
+    if (artifact.isPresent()) {
+      try {
+        Files.write(output.get(), artifact.get().getData());
+        return Futures.immediateFuture(
+            CacheResult.hit(
+                CACHE_SOURCE,
+                ArtifactCacheMode.memory,
+                artifact.get().getMetadata(),
+                artifact.get().getData().length));
+      } catch (IOException e) {
+        LOG.debug(e, "Could not write in-memory artifact for %s, fetching it instead.", ruleKey);
+      }
+    }
+    // Fetched artifacts are read back from the file to be remembered.
+    StreamingLazyPath.requirePayloadFile(output, true);
+    return Futures.transform(
+        delegate.fetchAsync(target, ruleKey, output),
+        result -> {
+          if (result.getType() == CacheResultType.HIT) {
+            remember(ImmutableSet.of(ruleKey), result.getMetadata(), output);
+          }
+          return result;
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  @Override
+  public void skipPendingAndFutureAsyncFetches() {
+    delegate.skipPendingAndFutureAsyncFetches();
+  }
+
+  @Override
+  public ListenableFuture<Unit> store(ArtifactInfo info, BorrowablePath output) {
+    // Read the artifact before the wrapped caches get a chance to borrow it.
+    remember(info.getRuleKeys(), info.getMetadata(), output.getPath());
+    return delegate.store(info, output);
+  }
+
+  @Override
+  public ListenableFuture<ImmutableMap<RuleKey, CacheResult>> multiContainsAsync(
+      ImmutableSet<RuleKey> ruleKeys) {
+    // Only the wrapped caches know whether an artifact has been shared with others.
+    return delegate.multiContainsAsync(ruleKeys);
+  }
+
+  @Override
+  public ListenableFuture<CacheDeleteResult> deleteAsync(List<RuleKey> ruleKeys) {
+    store.invalidate(ruleKeys);
+    return delegate.deleteAsync(ruleKeys);
+  }
+
+  @Override
+  public CacheReadMode getCacheReadMode() {
+    return delegate.getCacheReadMode();
+  }
+
+  @Override
+  public void close() {
+    LOG.debug("In-memory artifact cache: %s, %d rule keys.", store.getStats(), store.size());
+    delegate.close();
+  }
+
+  @Override
+  public ArtifactCache getDelegate() {
+    return delegate;
+  }
+
+  private void remember(
+      ImmutableSet<RuleKey> ruleKeys, ImmutableMap<String, String> metadata, LazyPath output) {
+    Path path;
+    try {
+      path = output.get();
+    } catch (IOException e) {
+      LOG.debug(e, "Could not get fetched artifact for %s.", ruleKeys);
+      return;
+    }
+    remember(ruleKeys, metadata, path);
+  }
+
+  private void remember(
+      ImmutableSet<RuleKey> ruleKeys, ImmutableMap<String, String> metadata, Path path) {
+    try {
+      if (Files.size(path) > store.getMaxArtifactSize()) {
+        return;
+      }
+      store.put(ruleKeys, new MemoryArtifactStore.Artifact(metadata, Files.readAllBytes(path)));
+    } catch (IOException e) {
+      LOG.debug(e, "Could not keep artifact for %s in memory.", ruleKeys);
+    }
+  }
+}
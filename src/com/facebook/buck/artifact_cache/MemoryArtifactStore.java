@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.artifact_cache.config.ArtifactCacheBuckConfig;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Bounded, byte-weighted store of small artifacts that is kept in the daemon between commands, so
+ * that artifacts fetched or built by one command can be served to the next one without going to
+ * the dir cache or the network.
+ *
+ * <p>Artifacts larger than {@link #getMaxArtifactSize()} are never kept, which stops a single
+ * large artifact from evicting many small ones. Once the store is full, the least recently used
+ * artifacts are evicted first.
+ */
+public class MemoryArtifactStore {
+
+  // Rough per-entry bookkeeping cost on top of the artifact bytes.
+  private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+  private final long maxArtifactSize;
+  private final Cache<RuleKey, Artifact> artifacts;
+
+  public MemoryArtifactStore(long maxSize, long maxArtifactSize) {
+    Preconditions.checkArgument(maxSize >= 0, "maxSize must not be negative");
+    this.maxArtifactSize = Math.min(maxArtifactSize, maxSize);
+    this.artifacts =
+        CacheBuilder.newBuilder()
+            .maximumWeight(maxSize)
+            .weigher((RuleKey ruleKey, Artifact artifact) -> artifact.getWeight())
+            .recordStats()
+            .build();
+  }
+
+  /** Creates a store sized as configured in the {@code [cache]} section. */
+  public static MemoryArtifactStore of(ArtifactCacheBuckConfig config) {
+    return new MemoryArtifactStore(
+        config.getMemoryCacheMaxSize(), config.getMemoryCacheMaxArtifactSize());
+  }
+
+  public long getMaxArtifactSize() {
+    return maxArtifactSize;
+  }
+
+  Optional<Artifact> get(RuleKey ruleKey) {
+    return Optional.ofNullable(artifacts.getIfPresent(ruleKey));
+  }
+
+  void put(Iterable<RuleKey> ruleKeys, Artifact artifact) {
+    if (artifact.getData().length > maxArtifactSize) {
+      return;
+    }
+    for (RuleKey ruleKey : ruleKeys) {
+      artifacts.put(ruleKey, artifact);
+    }
+  }
+
+  void invalidate(Iterable<RuleKey> ruleKeys) {
+    artifacts.invalidateAll(ruleKeys);
+  }
+
+  /** @return hit, miss and eviction counts since the store was created. */
+  public CacheStats getStats() {
+    return artifacts.stats();
+  }
+
+  /** @return the number of rule keys that currently have an artifact in the store. */
+  public long size() {
+    return artifacts.size();
+  }
+
+  /** An artifact and its metadata, as they would be returned by any other cache. */
+  static class Artifact {
+    private final ImmutableMap<String, String> metadata;
+    private final byte[] data;
+
+    Artifact(ImmutableMap<String, String> metadata, byte[] data) {
+      this.metadata = metadata;
+      this.data = data;
+    }
+
+    ImmutableMap<String, String> getMetadata() {
+      return metadata;
+    }
+
+    byte[] getData() {
+      return data;
+    }
+
+    private int getWeight() {
+      int weight = ENTRY_OVERHEAD_BYTES + data.length;
+      for (Map.Entry<String, String> entry : metadata.entrySet()) {
+        weight += 2 * (entry.getKey().length() + entry.getValue().length());
+      }
+      return weight;
+    }
+  }
+}
@@ -71,8 +71,11 @@ public class MultiArtifactCache implements ArtifactCache {
       @Nullable BuildTarget target, RuleKey ruleKey, LazyPath output) {
     ListenableFuture<CacheResult> cacheResult = Futures.immediateFuture(CacheResult.miss());
     AtomicReference<ArtifactCache> lastCache = new AtomicReference<>();
+    boolean payloadFileRequired = StreamingLazyPath.isPayloadFileRequired(output);
 
     for (ArtifactCache artifactCache : artifactCaches) {
+      // A hit is stored to the writable caches before this one, which need the fetched file.
+      boolean storedToPreviousCaches = payloadFileRequired;
       cacheResult =
           Futures.transformAsync(
               cacheResult,
@@ -82,9 +85,11 @@ public class MultiArtifactCache implements ArtifactCache {
                 }
 
                 lastCache.set(artifactCache);
+                StreamingLazyPath.requirePayloadFile(output, storedToPreviousCaches);
                 return artifactCache.fetchAsync(target, ruleKey, output);
               },
               MoreExecutors.directExecutor());
+      payloadFileRequired |= artifactCache.getCacheReadMode().isWritable();
     }
 
     // Propagate the artifact to previous writable caches.
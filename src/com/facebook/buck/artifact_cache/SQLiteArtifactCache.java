@@ -275,7 +275,8 @@ public class SQLiteArtifactCache implements ArtifactCache {
     // verify that all metadata keys are valid
     for (String key : metadata.keySet()) {
       if (!BuildInfo.METADATA_KEYS.contains(key)
-          && !key.equals(TwoLevelArtifactCacheDecorator.METADATA_KEY)) {
+          && !key.equals(TwoLevelArtifactCacheDecorator.METADATA_KEY)
+          && !key.equals(TwoLevelArtifactCacheDecorator.CHUNKS_METADATA_KEY)) {
         throw new HumanReadableException("Metadata contained unexpected key: [%s]", key);
       }
     }
@@ -343,7 +344,6 @@ public class SQLiteArtifactCache implements ArtifactCache {
     return builder.build();
   }
 
-  @VisibleForTesting
   static byte[] marshalMetadata(ImmutableMap<String, String> metadata) throws IOException {
     ByteArrayOutputStream metadataStream = new ByteArrayOutputStream();
     try (DataOutputStream out = new DataOutputStream(metadataStream)) {
@@ -358,7 +358,6 @@ public class SQLiteArtifactCache implements ArtifactCache {
     return metadataStream.toByteArray();
   }
 
-  @VisibleForTesting
   static ImmutableMap<String, String> unmarshalMetadata(byte[] metadata) throws IOException {
     ImmutableMap.Builder<String, String> builder = ImmutableMap.builder();
     try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(metadata))) {
@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.artifact_cache.config.CacheReadMode;
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.counters.CounterRegistry;
+import com.facebook.buck.counters.IntegerCounter;
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.io.file.BorrowablePath;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.util.types.Pair;
+import com.facebook.buck.util.types.Unit;
+import com.google.common.base.Functions;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Avoids uploading artifacts that a remote cache does not need.
+ *
+ * <p>Artifacts stored under the same rule keys are only uploaded once per build, whether the
+ * stores overlap or not. Two-level stores benefit most, as every rule that produces the same output
+ * stores it under the same content hash. Stores are queued while the number of batches in flight
+ * is at its limit, and each batch is checked with a single multiContains request so that artifacts
+ * the cache already has are skipped. Artifacts that are stored together, such as the two halves of
+ * a two-level store, are still stored together and in order.
+ *
+ * <p>Stores are deduplicated by their rule keys rather than by a digest of their payload. The
+ * remote caches map keys to payloads, so artifacts with equal payloads but different keys each need
+ * their own upload, and hashing every payload here would only find the duplicates the keys already
+ * do. Deduplication by content comes from two-level stores instead: their second-level key is the
+ * sha1 of the payload, computed once by {@link TwoLevelArtifactCacheDecorator}, so rules with
+ * identical outputs upload the payload only once.
+ */
+public class StoreCoalescingCacheDecorator implements ArtifactCache, CacheDecorator {
+
+  private static final Logger LOG = Logger.get(StoreCoalescingCacheDecorator.class);
+  private static final String COUNTER_CATEGORY = "buck_store_coalescing_stats";
+
+  private final ArtifactCache delegate;
+  private final int maxBatchSize;
+  private final int maxConcurrentBatches;
+
+  private final IntegerCounter deduplicatedStores;
+  private final IntegerCounter containedStores;
+
+  private final Object lock = new Object();
+
+  @GuardedBy("lock")
+  private final Map<ImmutableSet<RuleKey>, ListenableFuture<Unit>> inFlightStores =
+      new HashMap<>();
+
+  @GuardedBy("lock")
+  private final Set<ImmutableSet<RuleKey>> completedStores = new HashSet<>();
+
+  @GuardedBy("lock")
+  private final Deque<PendingStore> pendingStores = new ArrayDeque<>();
+
+  @GuardedBy("lock")
+  private int batchesInFlight = 0;
+
+  private volatile boolean multiContainsSupported = true;
+
+  public StoreCoalescingCacheDecorator(
+      ArtifactCache delegate,
+      BuckEventBus buckEventBus,
+      int maxBatchSize,
+      int maxConcurrentBatches) {
+    Preconditions.checkArgument(maxBatchSize > 0);
+    Preconditions.checkArgument(maxConcurrentBatches > 0);
+    this.delegate = delegate;
+    this.maxBatchSize = maxBatchSize;
+    this.maxConcurrentBatches = maxConcurrentBatches;
+
+    deduplicatedStores =
+        new IntegerCounter(COUNTER_CATEGORY, "deduplicated_stores", ImmutableMap.of());
+    containedStores = new IntegerCounter(COUNTER_CATEGORY, "contained_stores", ImmutableMap.of());
+    buckEventBus.post(
+        new CounterRegistry.AsyncCounterRegistrationEvent(
+            ImmutableList.of(deduplicatedStores, containedStores)));
+  }
+
+  @Override
+  public ListenableFuture<CacheResult> fetchAsync(
+      @Nullable BuildTarget target, RuleKey ruleKey, LazyPath output) {
+    return delegate.fetchAsync(target, ruleKey, output);
+  }
+
+  @Override
+  public void skipPendingAndFutureAsyncFetches() {
+    delegate.skipPendingAndFutureAsyncFetches();
+  }
+
+  @Override
+  public ListenableFuture<Unit> store(ArtifactInfo info, BorrowablePath output) {
+    return store(ImmutableList.of(new Pair<>(info, output)));
+  }
+
+  @Override
+  public ListenableFuture<Unit> store(ImmutableList<Pair<ArtifactInfo, BorrowablePath>> artifacts) {
+    if (!getCacheReadMode().isWritable()) {
+      return delegate.store(artifacts);
+    }
+
+    SettableFuture<Unit> result = SettableFuture.create();
+    List<ListenableFuture<Unit>> overlappingStores = new ArrayList<>();
+    ImmutableList.Builder<Pair<ArtifactInfo, BorrowablePath>> toStore = ImmutableList.builder();
+    ImmutableList.Builder<ImmutableSet<RuleKey>> claimedKeys = ImmutableList.builder();
+    synchronized (lock) {
+      for (Pair<ArtifactInfo, BorrowablePath> artifact : artifacts) {
+        ImmutableSet<RuleKey> ruleKeys = artifact.getFirst().getRuleKeys();
+        ListenableFuture<Unit> inFlight = inFlightStores.get(ruleKeys);
+        if (completedStores.contains(ruleKeys)) {
+          deduplicatedStores.inc();
+        } else if (inFlight != null) {
+          deduplicatedStores.inc();
+          overlappingStores.add(inFlight);
+        } else {
+          inFlightStores.put(ruleKeys, result);
+          claimedKeys.add(ruleKeys);
+          toStore.add(artifact);
+        }
+      }
+    }
+
+    ImmutableList<ImmutableSet<RuleKey>> claimed = claimedKeys.build();
+    if (claimed.isEmpty()) {
+      return Futures.transform(
+          Futures.successfulAsList(overlappingStores),
+          Functions.constant(Unit.UNIT),
+          MoreExecutors.directExecutor());
+    }
+
+    result.addListener(
+        () -> {
+          boolean succeeded = isSuccessful(result);
+          synchronized (lock) {
+            for (ImmutableSet<RuleKey> ruleKeys : claimed) {
+              inFlightStores.remove(ruleKeys);
+              if (succeeded) {
+                completedStores.add(ruleKeys);
+              }
+            }
+          }
+        },
+        MoreExecutors.directExecutor());
+
+    // Artifacts of a single store are stored in order, so anything after an artifact that another
+    // store is already uploading has to wait for that upload to finish.
+    PendingStore pendingStore = new PendingStore(toStore.build(), result);
+    Futures.successfulAsList(overlappingStores)
+        .addListener(() -> enqueue(pendingStore), MoreExecutors.directExecutor());
+    return result;
+  }
+
+  private void enqueue(PendingStore pendingStore) {
+    synchronized (lock) {
+      pendingStores.add(pendingStore);
+    }
+    startBatches();
+  }
+
+  private void startBatches() {
+    while (true) {
+      List<PendingStore> batch = new ArrayList<>();
+      synchronized (lock) {
+        if (batchesInFlight >= maxConcurrentBatches || pendingStores.isEmpty()) {
+          return;
+        }
+        batchesInFlight++;
+        int batchSize = 0;
+        while (!pendingStores.isEmpty()
+            && (batch.isEmpty()
+                || batchSize + pendingStores.peek().artifacts.size() <= maxBatchSize)) {
+          PendingStore pendingStore = pendingStores.poll();
+          batch.add(pendingStore);
+          batchSize += pendingStore.artifacts.size();
+        }
+      }
+
+      ListenableFuture<Unit> batchFuture =
+          Futures.transformAsync(
+              checkContained(batch),
+              contained -> storeBatch(batch, contained),
+              MoreExecutors.directExecutor());
+      batchFuture.addListener(
+          () -> {
+            synchronized (lock) {
+              batchesInFlight--;
+            }
+            startBatches();
+          },
+          MoreExecutors.directExecutor());
+    }
+  }
+
+  private ListenableFuture<ImmutableMap<RuleKey, CacheResult>> checkContained(
+      List<PendingStore> batch) {
+    if (!multiContainsSupported) {
+      return Futures.immediateFuture(ImmutableMap.of());
+    }
+    ImmutableSet<RuleKey> ruleKeys =
+        batch.stream()
+            .flatMap(pendingStore -> pendingStore.artifacts.stream())
+            .flatMap(artifact -> artifact.getFirst().getRuleKeys().stream())
+            .collect(ImmutableSet.toImmutableSet());
+    try {
+      return Futures.catching(
+          delegate.multiContainsAsync(ruleKeys),
+          Exception.class,
+          e -> onMultiContainsFailure(e),
+          MoreExecutors.directExecutor());
+    } catch (RuntimeException e) {
+      return Futures.immediateFuture(onMultiContainsFailure(e));
+    }
+  }
+
+  private ImmutableMap<RuleKey, CacheResult> onMultiContainsFailure(Exception e) {
+    if (e instanceof UnsupportedOperationException) {
+      // Not every cache can answer contains requests, don't keep asking.
+      multiContainsSupported = false;
+    }
+    LOG.debug(e, "multiContains failed, storing every artifact.");
+    return ImmutableMap.of();
+  }
+
+  private ListenableFuture<Unit> storeBatch(
+      List<PendingStore> batch, ImmutableMap<RuleKey, CacheResult> contained) {
+    List<ListenableFuture<Unit>> stores = new ArrayList<>();
+    for (PendingStore pendingStore : batch) {
+      ImmutableList<Pair<ArtifactInfo, BorrowablePath>> remaining =
+          pendingStore.artifacts.stream()
+              .filter(artifact -> !isContained(artifact.getFirst(), contained))
+              .collect(ImmutableList.toImmutableList());
+      containedStores.inc(pendingStore.artifacts.size() - remaining.size());
+      if (remaining.isEmpty()) {
+        pendingStore.result.set(Unit.UNIT);
+        continue;
+      }
+
+      ListenableFuture<Unit> store;
+      try {
+        store =
+            remaining.size() == 1
+                ? delegate.store(remaining.get(0).getFirst(), remaining.get(0).getSecond())
+                : delegate.store(remaining);
+      } catch (RuntimeException e) {
+        store = Futures.immediateFailedFuture(e);
+      }
+      pendingStore.result.setFuture(store);
+      stores.add(store);
+    }
+    return Futures.transform(
+        Futures.successfulAsList(stores),
+        Functions.constant(Unit.UNIT),
+        MoreExecutors.directExecutor());
+  }
+
+  private static boolean isContained(
+      ArtifactInfo info, ImmutableMap<RuleKey, CacheResult> contained) {
+    for (RuleKey ruleKey : info.getRuleKeys()) {
+      CacheResult result = contained.get(ruleKey);
+      if (result == null || result.getType() != CacheResultType.CONTAINS) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isSuccessful(ListenableFuture<Unit> future) {
+    try {
+      Futures.getDone(future);
+      return true;
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+  @Override
+  public ListenableFuture<ImmutableMap<RuleKey, CacheResult>> multiContainsAsync(
+      ImmutableSet<RuleKey> ruleKeys) {
+    return delegate.multiContainsAsync(ruleKeys);
+  }
+
+  @Override
+  public ListenableFuture<CacheDeleteResult> deleteAsync(List<RuleKey> ruleKeys) {
+    synchronized (lock) {
+      completedStores.removeIf(keys -> ruleKeys.stream().anyMatch(keys::contains));
+    }
+    return delegate.deleteAsync(ruleKeys);
+  }
+
+  @Override
+  public CacheReadMode getCacheReadMode() {
+    return delegate.getCacheReadMode();
+  }
+
+  @Override
+  public ArtifactCache getDelegate() {
+    return delegate;
+  }
+
+  @Override
+  public void close() {
+    delegate.close();
+  }
+
+  private static class PendingStore {
+    private final ImmutableList<Pair<ArtifactInfo, BorrowablePath>> artifacts;
+    private final SettableFuture<Unit> result;
+
+    private PendingStore(
+        ImmutableList<Pair<ArtifactInfo, BorrowablePath>> artifacts, SettableFuture<Unit> result) {
+      this.artifacts = artifacts;
+      this.result = result;
+    }
+  }
+}
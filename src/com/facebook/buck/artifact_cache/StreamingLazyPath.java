@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.io.file.LazyPath;
+import java.io.OutputStream;
+
+/**
+ * A {@link LazyPath} that also wants to see the artifact payload while it is being downloaded, so
+ * that it can be consumed (e.g. unpacked) before the fetch completes.
+ *
+ * <p>Caches that download payloads call {@link #teePayload} with the stream they write the payload
+ * to, and {@link #payloadVerified} once that payload has passed their integrity checks and has been
+ * moved to {@link #getUnchecked()}. A single fetch may tee several payloads (retries, multiple
+ * cache levels, or two-level caching), only the last verified one is the artifact.
+ *
+ * <p>A path that consumes the payload itself does not need it to be written to {@link
+ * #getUnchecked()} as well, unless a cache stores the fetched file somewhere else afterwards. Such
+ * caches call {@link #requirePayloadFile} before fetching.
+ */
+public abstract class StreamingLazyPath extends LazyPath {
+
+  private volatile boolean payloadFileRequired = false;
+
+  /**
+   * Starts a new payload, discarding whatever was seen of the previous one.
+   *
+   * @param payloadSink The stream the cache writes the payload to.
+   * @return A stream that writes to {@code payloadSink} and also forwards the payload to this path.
+   */
+  protected abstract OutputStream teePayload(OutputStream payloadSink);
+
+  /** Marks the payload most recently passed to {@link #teePayload} as verified. */
+  protected abstract void payloadVerified();
+
+  /** Wraps {@code payloadSink} with {@link #teePayload} if {@code output} wants the payload. */
+  public static OutputStream teeIfStreaming(LazyPath output, OutputStream payloadSink) {
+    if (output instanceof StreamingLazyPath) {
+      return ((StreamingLazyPath) output).teePayload(payloadSink);
+    }
+    return payloadSink;
+  }
+
+  /** Whether the payload must be written to {@link #getUnchecked()} in full. */
+  protected boolean isPayloadFileRequired() {
+    return payloadFileRequired;
+  }
+
+  /** Returns whether {@code output} must receive the full payload, e.g. to store it elsewhere. */
+  public static boolean isPayloadFileRequired(LazyPath output) {
+    return !(output instanceof StreamingLazyPath)
+        || ((StreamingLazyPath) output).isPayloadFileRequired();
+  }
+
+  /**
+   * Sets whether the payload must be written to {@code output} in full, because the fetched file is
+   * used after the fetch completes.
+   */
+  public static void requirePayloadFile(LazyPath output, boolean required) {
+    if (output instanceof StreamingLazyPath) {
+      ((StreamingLazyPath) output).payloadFileRequired = required;
+    }
+  }
+
+  /** Calls {@link #payloadVerified} if {@code output} wants the payload. */
+  public static void markVerifiedIfStreaming(LazyPath output) {
+    if (output instanceof StreamingLazyPath) {
+      ((StreamingLazyPath) output).payloadVerified();
+    }
+  }
+}
@@ -140,6 +140,7 @@ public class ThriftArtifactCache extends AbstractNetworkCache {
         ThriftArtifactCacheProtocol.createRequest(PROTOCOL, cacheRequest);
     Request.Builder builder = toOkHttpRequest(request);
     try (HttpResponse httpResponse = fetchClient.makeRequest(hybridThriftEndpoint, builder)) {
+      resultBuilder.setBackend(AdaptiveFetchController.getBackend(httpResponse.requestUrl()));
       if (httpResponse.statusCode() != 200) {
         String message =
             String.format(
@@ -185,7 +186,9 @@ public class ThriftArtifactCache extends AbstractNetworkCache {
         LOG.verbose("Got artifact.  Attempting to read payload.");
         Path tmp = createTempFileForDownload();
         ThriftArtifactCacheProtocol.Response.ReadPayloadInfo readResult;
-        try (OutputStream tmpFile = getProjectFilesystem().newFileOutputStream(tmp)) {
+        try (OutputStream tmpFile =
+            StreamingLazyPath.teeIfStreaming(
+                output, getProjectFilesystem().newFileOutputStream(tmp))) {
           try {
             readResult = response.readPayload(tmpFile);
           } catch (IOException e) {
@@ -259,6 +262,7 @@ public class ThriftArtifactCache extends AbstractNetworkCache {
 
         // This makes sure we don't have 'half downloaded files' in the dir cache.
         getProjectFilesystem().move(tmp, output.get(), StandardCopyOption.REPLACE_EXISTING);
+        StreamingLazyPath.markVerifiedIfStreaming(output);
         return resultBuilder
             .setCacheResult(
                 CacheResult.hit(
@@ -478,8 +482,14 @@ public class ThriftArtifactCache extends AbstractNetworkCache {
               joinedKeys);
       LOG.warn(message);
       CacheResult cacheResult = CacheResult.error(getName(), getMode(), message);
+      String backend = AdaptiveFetchController.getBackend(httpResponse.requestUrl());
       return keys.stream()
-              .map(k -> ImmutableFetchResult.builder().setCacheResult(cacheResult).build())
+              .map(
+                  k ->
+                      ImmutableFetchResult.builder()
+                          .setCacheResult(cacheResult)
+                          .setBackend(backend)
+                          .build())
           ::iterator;
     }
 
@@ -507,7 +517,8 @@ public class ThriftArtifactCache extends AbstractNetworkCache {
             .collect(ImmutableList.toImmutableList());
 
     BuckCacheResponse cacheResponse = response.getThriftData();
-    resultsBuilders.forEach(b -> b.setResponseSizeBytes(responseSizeBytes));
+    String backend = AdaptiveFetchController.getBackend(httpResponse.requestUrl());
+    resultsBuilders.forEach(b -> b.setResponseSizeBytes(responseSizeBytes).setBackend(backend));
 
     if (!cacheResponse.isWasSuccessful()) {
       String message = cacheResponse.getErrorMessage();
@@ -600,7 +611,7 @@ public class ThriftArtifactCache extends AbstractNetworkCache {
     // with the correct result.
     @SuppressWarnings("PMD.PrematureDeclaration")
     ThriftArtifactCacheProtocol.Response.ReadPayloadInfo readResult =
-        payloadReader.readNextPayload(tmp, ruleKey);
+        payloadReader.readNextPayload(tmp, ruleKey, output);
 
     if (!fetchResponse.isSetMetadata()) {
       String msg =
@@ -674,6 +685,7 @@ public class ThriftArtifactCache extends AbstractNetworkCache {
 
     // This makes sure we don't have 'half downloaded files' in the dir cache.
     getProjectFilesystem().move(tmp, output.get(), StandardCopyOption.REPLACE_EXISTING);
+    StreamingLazyPath.markVerifiedIfStreaming(output);
     builder.setCacheResult(
         CacheResult.hit(
             getName(),
@@ -931,9 +943,11 @@ public class ThriftArtifactCache extends AbstractNetworkCache {
       this.response = response;
     }
 
-    ThriftArtifactCacheProtocol.Response.ReadPayloadInfo readNextPayload(Path path, RuleKey ruleKey)
-        throws IOException {
-      try (OutputStream tmpFile = getProjectFilesystem().newFileOutputStream(path)) {
+    ThriftArtifactCacheProtocol.Response.ReadPayloadInfo readNextPayload(
+        Path path, RuleKey ruleKey, LazyPath output) throws IOException {
+      try (OutputStream tmpFile =
+          StreamingLazyPath.teeIfStreaming(
+              output, getProjectFilesystem().newFileOutputStream(path))) {
         ThriftArtifactCacheProtocol.Response.ReadPayloadInfo result;
         try {
           result = response.readPayload(tmpFile);
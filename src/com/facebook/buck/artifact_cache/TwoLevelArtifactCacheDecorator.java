@@ -16,6 +16,7 @@
 
 package com.facebook.buck.artifact_cache;
 
+import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
 import com.facebook.buck.artifact_cache.config.CacheReadMode;
 import com.facebook.buck.core.exceptions.HumanReadableException;
 import com.facebook.buck.core.model.BuildTarget;
@@ -30,21 +31,35 @@ import com.facebook.buck.io.file.BorrowablePath;
 import com.facebook.buck.io.file.LazyPath;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.util.stream.RichStream;
+import com.facebook.buck.util.timing.DefaultClock;
 import com.facebook.buck.util.types.Pair;
 import com.facebook.buck.util.types.Unit;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Functions;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -58,10 +73,32 @@ import javax.annotation.Nullable;
  * the artifact when its contents change. This means that rules with different keys but identical
  * outputs require less network bandwidth at the expense of doubling latency for downloading rules
  * whose outputs we had not yet seen.
+ *
+ * <p>When chunking is enabled the second level is further split into content-defined chunks:
+ * rulekey -> (metadata, content hash, chunk list), chunk hash -> chunk. Chunks are kept in a {@link
+ * LocalChunkStore} after they are stored or fetched, so an artifact that differs from an earlier
+ * version by a few bytes only uploads and downloads the chunks around the change. Clients that do
+ * not understand chunk lists see a second-level miss for such entries, and clients that have
+ * chunking disabled fetch every chunk of them.
+ *
+ * <p>Artifacts are stored zstd compressed, and an edit changes every compressed byte after it, so
+ * chunking them as is would not find any chunk to reuse past the edit. Compressed artifacts are
+ * instead decompressed, the uncompressed tar is split into chunks, and each chunk is compressed
+ * into a zstd frame of its own which is what gets stored. The concatenated frames form a valid zstd
+ * stream which decompresses to the original tar.
  */
 public class TwoLevelArtifactCacheDecorator implements ArtifactCache, CacheDecorator {
 
   @VisibleForTesting static final String METADATA_KEY = "TWO_LEVEL_CACHE_CONTENT_HASH";
+  @VisibleForTesting static final String CHUNKS_METADATA_KEY = "TWO_LEVEL_CACHE_CHUNKS";
+  @VisibleForTesting static final String CHUNK_STORE_DIR_NAME = "two_level_chunks";
+  @VisibleForTesting static final long DEFAULT_CHUNK_STORE_MAX_SIZE = 1024L * 1024 * 1024;
+  /**
+   * Appended to the sha1 of a chunk to form its cache key, like "2c00" is appended to the sha1 of a
+   * whole second-level artifact. This keeps chunk keys apart from artifact keys, and from rule keys
+   * which are never 44 hex digits long.
+   */
+  private static final String CHUNK_KEY_SUFFIX = "2c01";
   private static final String COUNTER_CATEGORY = "buck_two_level_cache_stats";
 
   private static final Logger LOG = Logger.get(TwoLevelArtifactCacheDecorator.class);
@@ -72,11 +109,16 @@ public class TwoLevelArtifactCacheDecorator implements ArtifactCache, CacheDecor
   private final boolean performTwoLevelStores;
   private final long minimumTwoLevelStoredArtifactSize;
   private final Optional<Long> maximumTwoLevelStoredArtifactSize;
+  private final Optional<ContentDefinedChunker> chunker;
+  private final Optional<LocalChunkStore> chunkStore;
+  private final ArtifactCompression compression;
 
   private final TagSetCounter secondLevelCacheHitTypes;
   private final SamplingCounter secondLevelCacheHitBytes;
   private final IntegerCounter secondLevelCacheMisses;
   private final SamplingCounter secondLevelHashComputationTimeMs;
+  private final IntegerCounter secondLevelReusedChunkBytes;
+  private final IntegerCounter secondLevelFetchedChunkBytes;
 
   public TwoLevelArtifactCacheDecorator(
       ArtifactCache delegate,
@@ -85,11 +127,48 @@ public class TwoLevelArtifactCacheDecorator implements ArtifactCache, CacheDecor
       boolean performTwoLevelStores,
       long minimumTwoLevelStoredArtifactSize,
       Optional<Long> maximumTwoLevelStoredArtifactSize) {
+    this(
+        delegate,
+        projectFilesystem,
+        buckEventBus,
+        performTwoLevelStores,
+        minimumTwoLevelStoredArtifactSize,
+        maximumTwoLevelStoredArtifactSize,
+        Optional.empty(),
+        DEFAULT_CHUNK_STORE_MAX_SIZE,
+        ArtifactCompression.DEFAULT);
+  }
+
+  /**
+   * @param chunkAverageSize if present, second-level stores are split into content-defined chunks
+   *     of about this size. Chunked entries are read regardless.
+   * @param chunkStoreMaxSize how many bytes of chunks to keep locally for reuse.
+   * @param compression the settings artifacts are compressed with, used to chunk their
+   *     uncompressed contents.
+   */
+  public TwoLevelArtifactCacheDecorator(
+      ArtifactCache delegate,
+      ProjectFilesystem projectFilesystem,
+      BuckEventBus buckEventBus,
+      boolean performTwoLevelStores,
+      long minimumTwoLevelStoredArtifactSize,
+      Optional<Long> maximumTwoLevelStoredArtifactSize,
+      Optional<Integer> chunkAverageSize,
+      long chunkStoreMaxSize,
+      ArtifactCompression compression) {
     this.delegate = delegate;
     this.projectFilesystem = projectFilesystem;
     this.performTwoLevelStores = performTwoLevelStores;
     this.minimumTwoLevelStoredArtifactSize = minimumTwoLevelStoredArtifactSize;
     this.maximumTwoLevelStoredArtifactSize = maximumTwoLevelStoredArtifactSize;
+    this.chunker = chunkAverageSize.map(ContentDefinedChunker::withAverageSize);
+    this.compression = compression;
+    Path chunkStoreRoot =
+        projectFilesystem.resolve(
+            projectFilesystem.getBuckPaths().getBuckOut().resolve(CHUNK_STORE_DIR_NAME));
+    this.chunkStore =
+        chunker.map(
+            unused -> new LocalChunkStore(chunkStoreRoot, chunkStoreMaxSize, new DefaultClock()));
 
     Path tmpDir = projectFilesystem.getBuckPaths().getTmpDir();
     try {
@@ -111,13 +190,19 @@ public class TwoLevelArtifactCacheDecorator implements ArtifactCache, CacheDecor
     secondLevelHashComputationTimeMs =
         new SamplingCounter(
             COUNTER_CATEGORY, "second_level_hash_computation_time_ms", ImmutableMap.of());
+    secondLevelReusedChunkBytes =
+        new IntegerCounter(COUNTER_CATEGORY, "second_level_reused_chunk_bytes", ImmutableMap.of());
+    secondLevelFetchedChunkBytes =
+        new IntegerCounter(COUNTER_CATEGORY, "second_level_fetched_chunk_bytes", ImmutableMap.of());
     buckEventBus.post(
         new CounterRegistry.AsyncCounterRegistrationEvent(
             ImmutableList.of(
                 secondLevelCacheHitTypes,
                 secondLevelCacheHitBytes,
                 secondLevelCacheMisses,
-                secondLevelHashComputationTimeMs)));
+                secondLevelHashComputationTimeMs,
+                secondLevelReusedChunkBytes,
+                secondLevelFetchedChunkBytes)));
   }
 
   @Override
@@ -137,7 +222,13 @@ public class TwoLevelArtifactCacheDecorator implements ArtifactCache, CacheDecor
 
           String contentHashKey = fetchResult.getMetadata().get(METADATA_KEY);
           ListenableFuture<CacheResult> outputFileFetchResultFuture =
-              delegate.fetchAsync(target, new RuleKey(contentHashKey), output);
+              fetchResult.getMetadata().containsKey(CHUNKS_METADATA_KEY)
+                  ? fetchChunks(
+                      target,
+                      fetchResult,
+                      fetchResult.getMetadata().get(CHUNKS_METADATA_KEY),
+                      output)
+                  : delegate.fetchAsync(target, new RuleKey(contentHashKey), output);
 
           return Futures.transformAsync(
               outputFileFetchResultFuture,
@@ -178,7 +269,11 @@ public class TwoLevelArtifactCacheDecorator implements ArtifactCache, CacheDecor
                         Optional.of(
                             ImmutableMap.copyOf(
                                 RichStream.from(finalResult.getMetadata().entrySet())
-                                    .filter(e -> !Objects.equals(e.getKey(), METADATA_KEY))
+                                    .filter(
+                                        e ->
+                                            !Objects.equals(e.getKey(), METADATA_KEY)
+                                                && !Objects.equals(
+                                                    e.getKey(), CHUNKS_METADATA_KEY))
                                     .toOnceIterable())));
                 return Futures.immediateFuture(finalResult);
               },
@@ -187,6 +282,128 @@ public class TwoLevelArtifactCacheDecorator implements ArtifactCache, CacheDecor
         MoreExecutors.directExecutor());
   }
 
+  /**
+   * Assembles an artifact from the chunks in {@code chunkList}, reusing local chunks and fetching
+   * the others. Results in a miss if any chunk cannot be fetched.
+   *
+   * <p>The result is attributed to the cache that served the fetched chunks, or to the cache that
+   * served {@code firstLevelResult} if every chunk was already stored locally.
+   */
+  private ListenableFuture<CacheResult> fetchChunks(
+      @Nullable BuildTarget target,
+      CacheResult firstLevelResult,
+      String chunkList,
+      LazyPath output) {
+    List<String> chunkHashes = new ArrayList<>();
+    Map<String, ListenableFuture<Optional<Path>>> chunkPaths = new HashMap<>();
+    Queue<CacheResult> chunkHits = new ConcurrentLinkedQueue<>();
+    for (String chunk : Splitter.on(',').omitEmptyStrings().split(chunkList)) {
+      String chunkHash = chunk.substring(0, chunk.indexOf(':'));
+      chunkHashes.add(chunkHash);
+      chunkPaths.computeIfAbsent(chunkHash, hash -> fetchChunk(target, hash, chunkHits));
+    }
+
+    return Futures.transform(
+        Futures.allAsList(chunkPaths.values()),
+        paths -> {
+          CacheResult servedBy = Optional.ofNullable(chunkHits.peek()).orElse(firstLevelResult);
+          String cacheSource = servedBy.getCacheSource();
+          ArtifactCacheMode cacheMode = servedBy.cacheMode().get();
+          try {
+            if (paths.stream().anyMatch(path -> !path.isPresent())) {
+              LOG.verbose("Missed a chunk of a second-level artifact.");
+              return CacheResult.miss();
+            }
+            try (OutputStream outputStream =
+                projectFilesystem.newFileOutputStream(output.get())) {
+              long size = 0;
+              for (String chunkHash : chunkHashes) {
+                size +=
+                    Files.copy(Futures.getDone(chunkPaths.get(chunkHash)).get(), outputStream);
+              }
+              return CacheResult.hit(cacheSource, cacheMode, ImmutableMap.of(), size);
+            } catch (IOException | ExecutionException e) {
+              LOG.warn(e, "Could not assemble a second-level artifact from its chunks.");
+              return CacheResult.error(
+                  cacheSource, cacheMode, String.format("%s: %s", e.getClass(), e.getMessage()));
+            }
+          } finally {
+            if (!chunkStore.isPresent()) {
+              paths.forEach(path -> path.ifPresent(this::deleteChunkQuietly));
+            }
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Fetches a single chunk, adding the result to {@code chunkHits} if it had to be downloaded. The
+   * chunk is kept in the local chunk store if there is one, and in a temporary file otherwise.
+   */
+  private ListenableFuture<Optional<Path>> fetchChunk(
+      @Nullable BuildTarget target, String chunkHash, Queue<CacheResult> chunkHits) {
+    Optional<Path> localChunk = chunkStore.flatMap(store -> store.get(chunkHash));
+    if (localChunk.isPresent()) {
+      secondLevelReusedChunkBytes.inc(getFileSizeOrZero(localChunk.get()));
+      return Futures.immediateFuture(localChunk);
+    }
+
+    Path tmp;
+    try {
+      tmp = chunkStore.isPresent() ? chunkStore.get().newTempFile() : newTempChunkFile();
+    } catch (IOException e) {
+      LOG.warn(e, "Could not create a file to fetch chunk %s into.", chunkHash);
+      return Futures.immediateFuture(Optional.empty());
+    }
+    return Futures.transform(
+        delegate.fetchAsync(target, getChunkKey(chunkHash), LazyPath.ofInstance(tmp)),
+        (CacheResult result) -> {
+          try {
+            if (!result.getType().isSuccess()) {
+              Files.deleteIfExists(tmp);
+              return Optional.empty();
+            }
+            chunkHits.add(result);
+            secondLevelFetchedChunkBytes.inc(getFileSizeOrZero(tmp));
+            if (!chunkStore.isPresent()) {
+              LocalChunkStore.verify(tmp, chunkHash);
+              return Optional.of(tmp);
+            }
+            return Optional.of(chunkStore.get().commitVerified(tmp, chunkHash));
+          } catch (IOException e) {
+            LOG.warn(e, "Could not fetch chunk %s.", chunkHash);
+            return Optional.empty();
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  private Path newTempChunkFile() throws IOException {
+    Path tmpDir = projectFilesystem.getBuckPaths().getTmpDir();
+    projectFilesystem.mkdirs(tmpDir);
+    return projectFilesystem.resolve(projectFilesystem.createTempFile(tmpDir, "chunk", ".tmp"));
+  }
+
+  private void deleteChunkQuietly(Path chunk) {
+    try {
+      Files.deleteIfExists(chunk);
+    } catch (IOException e) {
+      LOG.debug(e, "Could not delete chunk %s.", chunk);
+    }
+  }
+
+  private static RuleKey getChunkKey(String chunkHash) {
+    return new RuleKey(chunkHash + CHUNK_KEY_SUFFIX);
+  }
+
+  private static long getFileSizeOrZero(Path path) {
+    try {
+      return Files.size(path);
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
   @Override
   public void skipPendingAndFutureAsyncFetches() {
     delegate.skipPendingAndFutureAsyncFetches();
@@ -248,6 +465,10 @@ public class TwoLevelArtifactCacheDecorator implements ArtifactCache, CacheDecor
       throw new RuntimeException("Cannot compute SHA1 of " + output.getPath());
     }
 
+    if (chunker.isPresent() && chunkStore.isPresent()) {
+      return storeChunks(info, output, hashCode, chunker.get(), chunkStore.get());
+    }
+
     ImmutableMap<String, String> metadataWithCacheKey =
         ImmutableMap.<String, String>builder()
             .putAll(info.getMetadata())
@@ -286,6 +507,105 @@ public class TwoLevelArtifactCacheDecorator implements ArtifactCache, CacheDecor
         MoreExecutors.directExecutor());
   }
 
+  private ListenableFuture<Boolean> storeChunks(
+      ArtifactInfo info,
+      BorrowablePath output,
+      String hashCode,
+      ContentDefinedChunker chunker,
+      LocalChunkStore store) {
+    List<String> chunkList = new ArrayList<>();
+    Map<String, Path> chunkPaths = new LinkedHashMap<>();
+    ContentDefinedChunker.ChunkConsumer storeChunk =
+        (buffer, offset, length) -> {
+          String chunkHash = Hashing.sha1().hashBytes(buffer, offset, length).toString();
+          chunkList.add(chunkHash + ":" + length);
+          if (!chunkPaths.containsKey(chunkHash)) {
+            chunkPaths.put(chunkHash, store.put(chunkHash, buffer, offset, length));
+          }
+        };
+    try {
+      if (compression.isDecompressible(output.getPath())) {
+        try (InputStream input =
+            compression.decompress(projectFilesystem.newFileInputStream(output.getPath()))) {
+          chunker.split(
+              input,
+              (buffer, offset, length) -> {
+                byte[] frame = compression.compressFrame(buffer, offset, length);
+                storeChunk.accept(frame, 0, frame.length);
+              });
+        }
+      } else {
+        try (InputStream input = projectFilesystem.newFileInputStream(output.getPath())) {
+          chunker.split(input, storeChunk);
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Cannot split " + output.getPath() + " into chunks", e);
+    }
+
+    // Only upload the chunks the cache does not already have. Not every cache can answer this, in
+    // which case all of them are uploaded.
+    ImmutableSet<RuleKey> chunkKeys =
+        chunkPaths.keySet().stream()
+            .map(TwoLevelArtifactCacheDecorator::getChunkKey)
+            .collect(ImmutableSet.toImmutableSet());
+    ListenableFuture<ImmutableMap<RuleKey, CacheResult>> containedChunks;
+    try {
+      containedChunks =
+          Futures.catching(
+              delegate.multiContainsAsync(chunkKeys),
+              Exception.class,
+              e -> ImmutableMap.of(),
+              MoreExecutors.directExecutor());
+    } catch (RuntimeException e) {
+      containedChunks = Futures.immediateFuture(ImmutableMap.of());
+    }
+
+    ImmutableMap<String, String> metadataWithChunks =
+        ImmutableMap.<String, String>builder()
+            .putAll(info.getMetadata())
+            .put(METADATA_KEY, hashCode)
+            .put(CHUNKS_METADATA_KEY, Joiner.on(',').join(chunkList))
+            .build();
+    return Futures.transformAsync(
+        containedChunks,
+        contained -> {
+          // As with unchunked stores, the chunks have to be stored before the entry that refers
+          // to them.
+          ImmutableList.Builder<Pair<ArtifactInfo, BorrowablePath>> artifacts =
+              ImmutableList.builder();
+          for (Map.Entry<String, Path> chunk : chunkPaths.entrySet()) {
+            RuleKey chunkKey = getChunkKey(chunk.getKey());
+            CacheResult result = contained.get(chunkKey);
+            if (result != null && result.getType() == CacheResultType.CONTAINS) {
+              continue;
+            }
+            artifacts.add(
+                new Pair<>(
+                    ArtifactInfo.builder()
+                        .addRuleKeys(chunkKey)
+                        .setBuildTarget(info.getBuildTarget())
+                        .setBuildTimeMs(info.getBuildTimeMs())
+                        .build(),
+                    BorrowablePath.notBorrowablePath(chunk.getValue())));
+          }
+          artifacts.add(
+              new Pair<>(
+                  ArtifactInfo.builder()
+                      .setRuleKeys(info.getRuleKeys())
+                      .setMetadata(metadataWithChunks)
+                      .setBuildTarget(info.getBuildTarget())
+                      .setBuildTimeMs(info.getBuildTimeMs())
+                      .build(),
+                  BorrowablePath.notBorrowablePath(emptyFilePath)));
+          return Futures.transform(
+              delegate.store(artifacts.build()),
+              Functions.constant(true),
+              MoreExecutors.directExecutor());
+        },
+        MoreExecutors.directExecutor());
+  }
+
   @Nonnull
   private String computeSha1(BorrowablePath output) throws IOException {
     long hashComputationStart = System.currentTimeMillis();
@@ -303,6 +623,7 @@ public class TwoLevelArtifactCacheDecorator implements ArtifactCache, CacheDecor
   @Override
   public void close() {
     delegate.close();
+    chunkStore.ifPresent(LocalChunkStore::trim);
     try {
       projectFilesystem.deleteFileAtPath(emptyFilePath);
     } catch (IOException e) {
@@ -85,9 +85,10 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
   private static final String DIR_FIELD = "dir";
   private static final String DIR_MODE_FIELD = "dir_mode";
   private static final String DIR_MAX_SIZE_FIELD = "dir_max_size";
+  private static final String DIR_CONTENT_ADDRESSED_FIELD = "dir_content_addressed";
   private static final String DIR_CACHE_NAMES_FIELD_NAME = "dir_cache_names";
   private static final ImmutableSet<String> DIR_CACHE_DESCRIPTION_FIELDS =
-      ImmutableSet.of(DIR_FIELD, DIR_MODE_FIELD, DIR_MAX_SIZE_FIELD);
+      ImmutableSet.of(DIR_FIELD, DIR_MODE_FIELD, DIR_MAX_SIZE_FIELD, DIR_CONTENT_ADDRESSED_FIELD);
 
   private static final URI DEFAULT_HTTP_URL = URI.create("http://localhost:8080/");
   private static final String DEFAULT_HTTP_CACHE_MODE = CacheReadMode.READWRITE.name();
@@ -125,6 +126,14 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
   private static final String TWO_LEVEL_CACHING_MAX_SIZE_FIELD_NAME =
       "two_level_cache_maximum_size";
   private static final long TWO_LEVEL_CACHING_MIN_SIZE_DEFAULT = 20 * 1024L;
+  private static final String TWO_LEVEL_CACHING_CHUNKING_ENABLED_FIELD_NAME =
+      "two_level_cache_chunking_enabled";
+  private static final String TWO_LEVEL_CACHING_CHUNK_AVERAGE_SIZE_FIELD_NAME =
+      "two_level_cache_chunk_average_size";
+  private static final int TWO_LEVEL_CACHING_CHUNK_AVERAGE_SIZE_DEFAULT = 64 * 1024;
+  private static final String TWO_LEVEL_CACHING_CHUNK_STORE_MAX_SIZE_FIELD_NAME =
+      "two_level_cache_chunk_store_max_size";
+  private static final long TWO_LEVEL_CACHING_CHUNK_STORE_MAX_SIZE_DEFAULT = 1024L * 1024 * 1024;
 
   private static final String HYBRID_THRIFT_ENDPOINT = "hybrid_thrift_endpoint";
   private static final String REPOSITORY = "repository";
@@ -144,6 +153,19 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
   private static final String MULTI_FETCH_LIMIT = "multi_fetch_limit";
   public static final String MULTI_CHECK = "multi_check";
   private static final int DEFAULT_MULTI_FETCH_LIMIT = 100;
+  private static final String ADAPTIVE_FETCH = "adaptive_fetch";
+  private static final String HTTP_PROTOCOL = "http_protocol";
+  private static final String COALESCE_STORES = "coalesce_stores";
+  private static final String COALESCED_STORE_BATCH_SIZE = "coalesced_store_batch_size";
+  private static final int DEFAULT_COALESCED_STORE_BATCH_SIZE = 64;
+  private static final String ARTIFACT_COMPRESSION_LEVEL = "artifact_compression_level";
+  private static final int DEFAULT_ARTIFACT_COMPRESSION_LEVEL = 3;
+  private static final String ARTIFACT_COMPRESSION_THREADS = "artifact_compression_threads";
+  private static final String ARTIFACT_COMPRESSION_DICTIONARY = "artifact_compression_dictionary";
+  private static final String MEMORY_MAX_SIZE = "memory_max_size";
+  private static final long DEFAULT_MEMORY_MAX_SIZE = 64 * 1024 * 1024L;
+  private static final String MEMORY_MAX_ARTIFACT_SIZE = "memory_max_artifact_size";
+  private static final long DEFAULT_MEMORY_MAX_ARTIFACT_SIZE = 256 * 1024L;
 
   private static final String ENV_VAR_SUFFIX = "_env_var";
 
@@ -189,6 +211,75 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
         .orElse(DEFAULT_MULTI_FETCH_LIMIT);
   }
 
+  /**
+   * @return whether fetch concurrency and multiFetch batch sizes adapt to the latency, throughput
+   *     and error rate observed for every cache backend, with {@link #getHttpFetchConcurrency()}
+   *     and {@link #getMultiFetchLimit()} as upper bounds.
+   */
+  public boolean getAdaptiveFetchEnabled() {
+    return buckConfig.getBooleanValue(CACHE_SECTION_NAME, ADAPTIVE_FETCH, false);
+  }
+
+  /**
+   * @return whether stores to remote caches skip artifacts that were already stored during this
+   *     build or that the cache reports it contains.
+   */
+  public boolean getCoalesceStoresEnabled() {
+    return buckConfig.getBooleanValue(CACHE_SECTION_NAME, COALESCE_STORES, false);
+  }
+
+  /** @return the maximum number of artifacts checked with a single multiContains request. */
+  public int getCoalescedStoreBatchSize() {
+    return buckConfig
+        .getInteger(CACHE_SECTION_NAME, COALESCED_STORE_BATCH_SIZE)
+        .orElse(DEFAULT_COALESCED_STORE_BATCH_SIZE);
+  }
+
+  /** @return the zstd level artifacts are compressed with before being stored to the cache. */
+  public int getArtifactCompressionLevel() {
+    return buckConfig
+        .getInteger(CACHE_SECTION_NAME, ARTIFACT_COMPRESSION_LEVEL)
+        .orElse(DEFAULT_ARTIFACT_COMPRESSION_LEVEL);
+  }
+
+  /**
+   * @return the number of zstd worker threads used to compress a single artifact, or 0 to compress
+   *     on the thread that builds the archive.
+   */
+  public int getArtifactCompressionThreads() {
+    return buckConfig.getInteger(CACHE_SECTION_NAME, ARTIFACT_COMPRESSION_THREADS).orElse(0);
+  }
+
+  /**
+   * @return the zstd dictionary, as produced by {@code zstd --train}, that artifacts are
+   *     compressed and decompressed with.
+   */
+  public Optional<Path> getArtifactCompressionDictionary() {
+    return buckConfig.getPath(CACHE_SECTION_NAME, ARTIFACT_COMPRESSION_DICTIONARY);
+  }
+
+  /** @return the number of bytes the in-memory cache may hold across commands. */
+  public long getMemoryCacheMaxSize() {
+    return buckConfig
+        .getValue(CACHE_SECTION_NAME, MEMORY_MAX_SIZE)
+        .map(SizeUnit::parseBytes)
+        .orElse(DEFAULT_MEMORY_MAX_SIZE);
+  }
+
+  /** @return the size of the largest artifact that is kept in the in-memory cache. */
+  public long getMemoryCacheMaxArtifactSize() {
+    return buckConfig
+        .getValue(CACHE_SECTION_NAME, MEMORY_MAX_ARTIFACT_SIZE)
+        .map(SizeUnit::parseBytes)
+        .orElse(DEFAULT_MEMORY_MAX_ARTIFACT_SIZE);
+  }
+
+  public HttpProtocol getHttpProtocol() {
+    return buckConfig
+        .getEnum(CACHE_SECTION_NAME, HTTP_PROTOCOL, HttpProtocol.class)
+        .orElse(HttpProtocol.DEFAULT);
+  }
+
   public String getRepository() {
     return buckConfig.getValue(CACHE_SECTION_NAME, REPOSITORY).orElse(DEFAULT_REPOSITORY);
   }
@@ -406,6 +497,29 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
         .map(SizeUnit::parseBytes);
   }
 
+  /**
+   * The average size of the content-defined chunks that second-level artifacts are split into, or
+   * empty if they are stored whole.
+   */
+  public Optional<Integer> getTwoLevelCachingChunkAverageSize() {
+    if (!buckConfig.getBooleanValue(
+        CACHE_SECTION_NAME, TWO_LEVEL_CACHING_CHUNKING_ENABLED_FIELD_NAME, false)) {
+      return Optional.empty();
+    }
+    return Optional.of(
+        buckConfig
+            .getValue(CACHE_SECTION_NAME, TWO_LEVEL_CACHING_CHUNK_AVERAGE_SIZE_FIELD_NAME)
+            .map(value -> Math.toIntExact(SizeUnit.parseBytes(value)))
+            .orElse(TWO_LEVEL_CACHING_CHUNK_AVERAGE_SIZE_DEFAULT));
+  }
+
+  public long getTwoLevelCachingChunkStoreMaxSize() {
+    return buckConfig
+        .getValue(CACHE_SECTION_NAME, TWO_LEVEL_CACHING_CHUNK_STORE_MAX_SIZE_FIELD_NAME)
+        .map(SizeUnit::parseBytes)
+        .orElse(TWO_LEVEL_CACHING_CHUNK_STORE_MAX_SIZE_DEFAULT);
+  }
+
   /**
    * If true, fail if client TLS certificate or key paths are unspecified, don't exist, are not the
    * right format or have expired
@@ -538,7 +652,10 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
     Optional<Long> maxSizeBytes =
         buckConfig.getValue(section, DIR_MAX_SIZE_FIELD).map(SizeUnit::parseBytes);
 
-    return DirCacheEntry.of(cacheName, pathToCacheDir, maxSizeBytes, readMode);
+    boolean contentAddressed =
+        buckConfig.getBooleanValue(section, DIR_CONTENT_ADDRESSED_FIELD, false);
+
+    return DirCacheEntry.of(cacheName, pathToCacheDir, maxSizeBytes, readMode, contentAddressed);
   }
 
   private HttpCacheEntry obtainHttpEntry() {
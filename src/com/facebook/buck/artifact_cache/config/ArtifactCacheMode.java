@@ -22,7 +22,8 @@ public enum ArtifactCacheMode {
   http(CacheType.remote),
   sqlite(CacheType.local),
   thrift_over_http(CacheType.remote),
-  hybrid_thrift_grpc(CacheType.remote);
+  hybrid_thrift_grpc(CacheType.remote),
+  memory(CacheType.local);
 
   private final CacheType type;
 
@@ -30,23 +30,32 @@ public abstract class DirCacheEntry {
 
   public abstract CacheReadMode getCacheReadMode();
 
+  /**
+   * Whether artifacts are stored once per distinct content, with an index mapping rule keys to
+   * them, instead of once per rule key.
+   */
+  public abstract boolean isContentAddressed();
+
   public static DirCacheEntry of(
       Path cacheDir, Optional<Long> maxSizeBytes, CacheReadMode cacheReadMode) {
-    return of(Optional.empty(), cacheDir, maxSizeBytes, cacheReadMode);
+    return of(Optional.empty(), cacheDir, maxSizeBytes, cacheReadMode, false);
   }
 
   public static DirCacheEntry of(
       Optional<String> name,
       Path cacheDir,
       Optional<Long> maxSizeBytes,
-      CacheReadMode cacheReadMode) {
-    return ImmutableDirCacheEntry.of(name, cacheDir, maxSizeBytes, cacheReadMode);
+      CacheReadMode cacheReadMode,
+      boolean contentAddressed) {
+    return ImmutableDirCacheEntry.of(
+        name, cacheDir, maxSizeBytes, cacheReadMode, contentAddressed);
   }
 
   public DirCacheEntry withCacheReadMode(CacheReadMode cacheReadMode) {
     if (getCacheReadMode().equals(cacheReadMode)) {
       return this;
     }
-    return ImmutableDirCacheEntry.of(getName(), getCacheDir(), getMaxSizeBytes(), cacheReadMode);
+    return ImmutableDirCacheEntry.of(
+        getName(), getCacheDir(), getMaxSizeBytes(), cacheReadMode, isContentAddressed());
   }
 }
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache.config;
+
+/** Protocols the HTTP cache clients may use to talk to the cache servers. */
+public enum HttpProtocol {
+  /** One request per connection at a time. */
+  HTTP_1_1,
+  /** HTTP/2 where the server offers it during the TLS handshake, HTTP/1.1 otherwise. */
+  HTTP_2,
+  /** HTTP/2 without TLS, for servers that are known to accept it. */
+  H2_PRIOR_KNOWLEDGE;
+
+  public static final HttpProtocol DEFAULT = HTTP_2;
+}
@@ -34,6 +34,7 @@ import com.facebook.buck.parser.config.ParserConfig;
 import com.facebook.buck.parser.exceptions.BuildFileParseException;
 import com.facebook.buck.parser.syntax.ListWithSelects;
 import com.facebook.buck.parser.syntax.SelectorValue;
+import com.facebook.buck.query.ProfilingQueryEvaluator;
 import com.facebook.buck.query.QueryBuildTarget;
 import com.facebook.buck.query.QueryException;
 import com.facebook.buck.query.QueryExpression;
@@ -209,6 +210,13 @@ public abstract class AbstractQueryCommand extends AbstractCommand {
   @VisibleForTesting
   Supplier<ImmutableSet<String>> outputAttributesSane = Suppliers.ofInstance(ImmutableSet.of());
 
+  @Option(
+      name = "--profile",
+      usage =
+          "Print the time spent in and the number of targets produced by each query function "
+              + "and set operator to stderr.")
+  private boolean profile;
+
   /** Which of *query commands was invoked */
   protected enum WhichQueryCommand {
     QUERY,
@@ -239,7 +247,29 @@ public abstract class AbstractQueryCommand extends AbstractCommand {
   @VisibleForTesting
   void formatAndRunQuery(CommandRunnerParams params, BuckQueryEnvironment env)
       throws IOException, InterruptedException, QueryException {
+    if (!profile) {
+      formatAndRunQueryWithoutProfile(params, env);
+      return;
+    }
 
+    ProfilingQueryEvaluator<QueryBuildTarget> profiler = new ProfilingQueryEvaluator<>();
+    env.setQueryEvaluator(profiler);
+    formatAndRunQueryWithoutProfile(params, env);
+
+    PrintStream stdErr = params.getConsole().getStdErr();
+    stdErr.println("Query profile (times include nested expressions):");
+    for (ProfilingQueryEvaluator.OperatorProfile operatorProfile : profiler.getProfiles()) {
+      stdErr.printf(
+          "  %-20s %6d calls %10d ms %12d targets%n",
+          operatorProfile.getOperator(),
+          operatorProfile.getInvocations(),
+          operatorProfile.getTotalMillis(),
+          operatorProfile.getTotalTargets());
+    }
+  }
+
+  private void formatAndRunQueryWithoutProfile(CommandRunnerParams params, BuckQueryEnvironment env)
+      throws IOException, InterruptedException, QueryException {
     if (generateJsonOutput) {
       outputFormat = OutputFormat.JSON;
     } else if (generateDotOutput) {
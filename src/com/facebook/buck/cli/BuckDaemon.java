@@ -109,6 +109,7 @@ public final class BuckDaemon {
     instance = new BuckDaemon(server, Paths.get(socketPath));
     try {
       server.run();
+      MainRunner.closeBuckGlobalState();
     } catch (RuntimeException e) {
       // server.run() might throw (for example, if this process loses the race with another
       // process to become the daemon for a given Buck root). Letting the exception go would
@@ -34,10 +34,14 @@ import com.facebook.buck.core.sourcepath.PathSourcePath;
 import com.facebook.buck.core.sourcepath.SourcePath;
 import com.facebook.buck.core.util.graph.AbstractBreadthFirstTraversal;
 import com.facebook.buck.core.util.graph.AcyclicDepthFirstPostOrderTraversalWithPayload;
+import com.facebook.buck.core.util.graph.CompactDirectedGraph;
+import com.facebook.buck.core.util.graph.CompactGraphTraversals;
+import com.facebook.buck.core.util.graph.CompactGraphTraversals.Direction;
 import com.facebook.buck.core.util.graph.CycleException;
 import com.facebook.buck.core.util.graph.DirectedAcyclicGraph;
 import com.facebook.buck.core.util.graph.GraphTraversableWithPayload;
 import com.facebook.buck.core.util.graph.MutableDirectedGraph;
+import com.facebook.buck.core.util.graph.TraversableGraph;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.ConsoleEvent;
 import com.facebook.buck.io.file.MorePaths;
@@ -63,6 +67,7 @@ import com.facebook.buck.query.NoopQueryEvaluator;
 import com.facebook.buck.query.OwnerFunction;
 import com.facebook.buck.query.QueryBuildTarget;
 import com.facebook.buck.query.QueryEnvironment;
+import com.facebook.buck.query.QueryEvaluator;
 import com.facebook.buck.query.QueryException;
 import com.facebook.buck.query.QueryExpression;
 import com.facebook.buck.query.QueryFileTarget;
@@ -88,7 +93,10 @@ import com.google.common.util.concurrent.SettableFuture;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
@@ -100,6 +108,7 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.function.Function;
+import java.util.function.IntPredicate;
 import java.util.function.Predicate;
 
 /**
@@ -143,6 +152,12 @@ public class BuckQueryEnvironment implements QueryEnvironment<QueryBuildTarget>
   // traverses the graph in parallel.
   private MutableDirectedGraph<TargetNode<?>> graph = MutableDirectedGraph.createConcurrent();
   private Map<BuildTarget, TargetNode<?>> targetsToNodes = new ConcurrentHashMap<>();
+  // Copy of `graph` used by transitive traversals, extended by every buildTransitiveClosure that
+  // adds nodes. Node ids follow label order; compactGraphLabels holds the label of every id.
+  private CompactDirectedGraph<TargetNode<?>> compactGraph =
+      CompactDirectedGraph.copyOf(new MutableDirectedGraph<>());
+  private ImmutableList<String> compactGraphLabels = ImmutableList.of();
+  private QueryEvaluator<QueryBuildTarget> queryEvaluator = new NoopQueryEvaluator<>();
   private TemporaryUnconfiguredTargetToTargetUniquenessChecker checker;
 
   @VisibleForTesting
@@ -251,7 +266,12 @@ public class BuckQueryEnvironment implements QueryEnvironment<QueryBuildTarget>
     Set<String> targetLiterals = new HashSet<>();
     expr.collectTargetPatterns(targetLiterals);
     preloadTargetPatterns(targetLiterals);
-    return new NoopQueryEvaluator<QueryBuildTarget>().eval(expr, this);
+    return queryEvaluator.eval(expr, this);
+  }
+
+  /** Sets the evaluator used by {@link #evaluateQuery} for subsequent queries. */
+  public void setQueryEvaluator(QueryEvaluator<QueryBuildTarget> queryEvaluator) {
+    this.queryEvaluator = queryEvaluator;
   }
 
   public Set<QueryTarget> evaluateQuery(String query) throws QueryException, InterruptedException {
@@ -331,6 +351,170 @@ public class BuckQueryEnvironment implements QueryEnvironment<QueryBuildTarget>
     return result;
   }
 
+  @Override
+  public Set<QueryBuildTarget> getTransitiveFwdDeps(Set<QueryBuildTarget> targets, int maxDepth)
+      throws QueryException {
+    Set<QueryBuildTarget> result = new LinkedHashSet<>(targets);
+    result.addAll(traverseInParallel(targets, Direction.OUTGOING, maxDepth, id -> true));
+    return result;
+  }
+
+  @Override
+  public Set<QueryBuildTarget> getTransitiveReverseDeps(
+      Set<QueryBuildTarget> targets, int maxDepth, Set<QueryBuildTarget> universe)
+      throws QueryException {
+    CompactDirectedGraph<TargetNode<?>> compact = compactGraph;
+    BitSet universeIds = new BitSet(compact.getNodeCount());
+    for (QueryBuildTarget target : universe) {
+      int id = compact.getNodeId(getNode(target));
+      if (id >= 0) {
+        universeIds.set(id);
+      }
+    }
+    return new LinkedHashSet<>(
+        traverseInParallel(targets, Direction.INCOMING, maxDepth, universeIds::get));
+  }
+
+  @Override
+  public Set<QueryBuildTarget> getRootsThatMayReach(
+      Set<QueryBuildTarget> roots, Set<QueryBuildTarget> targets) {
+    ImmutableSet<BuildTarget> mayReach =
+        parser
+            .getPermState()
+            .getDependencyIndex()
+            .getTargetsThatMayReach(
+                Iterables.transform(roots, QueryBuildTarget::getBuildTarget),
+                Iterables.transform(targets, QueryBuildTarget::getBuildTarget),
+                rootCell.getBuckConfig().getEnvironment());
+    if (mayReach.size() == roots.size()) {
+      return roots;
+    }
+    Set<QueryBuildTarget> result = new LinkedHashSet<>();
+    for (QueryBuildTarget root : roots) {
+      if (mayReach.contains(root.getBuildTarget())) {
+        result.add(root);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Runs a level-synchronous breadth-first traversal of the target graph from {@code targets} on
+   * the parser's executor.
+   */
+  private List<QueryBuildTarget> traverseInParallel(
+      Set<QueryBuildTarget> targets, Direction direction, int maxDepth, IntPredicate filter)
+      throws QueryException {
+    CompactDirectedGraph<TargetNode<?>> compact = compactGraph;
+    int[] roots = new int[targets.size()];
+    int rootCount = 0;
+    for (QueryBuildTarget target : targets) {
+      int id = compact.getNodeId(getNode(target));
+      if (id >= 0) {
+        roots[rootCount++] = id;
+      }
+    }
+
+    int[] visited;
+    try {
+      visited =
+          CompactGraphTraversals.parallelBreadthFirst(
+              compact,
+              Arrays.copyOf(roots, rootCount),
+              direction,
+              maxDepth,
+              filter,
+              parserState.getParsingContext().getExecutor(),
+              Runtime.getRuntime().availableProcessors());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new QueryException(e, "Interrupted while traversing the target graph");
+    }
+
+    List<QueryBuildTarget> result = new ArrayList<>(visited.length);
+    for (int id : visited) {
+      result.add(getOrCreateQueryBuildTarget(compact.getNode(id).getBuildTarget()));
+    }
+    return result;
+  }
+
+  /**
+   * Adds nodes that were just added to {@code graph} to {@link #compactGraph}. Nodes are numbered
+   * in label order and outgoing edges are sorted the same way, so traversals over it have a
+   * deterministic order. Only the new nodes are sorted and merged into the existing order; existing
+   * nodes never gain outgoing edges, so their edge order is kept as is.
+   */
+  private void extendCompactGraph(List<TargetNode<?>> addedNodes) {
+    CompactDirectedGraph<TargetNode<?>> previous = compactGraph;
+    ImmutableList<String> previousLabels = compactGraphLabels;
+    Map<TargetNode<?>, String> addedLabels = new HashMap<>(addedNodes.size());
+    for (TargetNode<?> node : addedNodes) {
+      addedLabels.put(node, node.getBuildTarget().toString());
+    }
+    ImmutableList<TargetNode<?>> sortedAddedNodes =
+        ImmutableList.sortedCopyOf(Comparator.comparing(addedLabels::get), addedLabels.keySet());
+
+    int nodeCount = previous.getNodeCount() + sortedAddedNodes.size();
+    ImmutableList.Builder<TargetNode<?>> nodes = ImmutableList.builderWithExpectedSize(nodeCount);
+    ImmutableList.Builder<String> labels = ImmutableList.builderWithExpectedSize(nodeCount);
+    Map<TargetNode<?>, Integer> ids = new HashMap<>(nodeCount);
+    int previousIndex = 0;
+    int addedIndex = 0;
+    while (ids.size() < nodeCount) {
+      TargetNode<?> node;
+      String label;
+      if (addedIndex == sortedAddedNodes.size()
+          || (previousIndex < previous.getNodeCount()
+              && previousLabels
+                      .get(previousIndex)
+                      .compareTo(addedLabels.get(sortedAddedNodes.get(addedIndex)))
+                  < 0)) {
+        node = previous.getNode(previousIndex);
+        label = previousLabels.get(previousIndex++);
+      } else {
+        node = sortedAddedNodes.get(addedIndex++);
+        label = addedLabels.get(node);
+      }
+      ids.put(node, ids.size());
+      nodes.add(node);
+      labels.add(label);
+    }
+    ImmutableList<TargetNode<?>> sortedNodes = nodes.build();
+    Comparator<TargetNode<?>> byId = Comparator.comparing(ids::get);
+
+    compactGraph =
+        CompactDirectedGraph.copyOf(
+            new TraversableGraph<TargetNode<?>>() {
+              @Override
+              public Iterable<TargetNode<?>> getNodesWithNoIncomingEdges() {
+                return graph.getNodesWithNoIncomingEdges();
+              }
+
+              @Override
+              public Iterable<TargetNode<?>> getNodesWithNoOutgoingEdges() {
+                return graph.getNodesWithNoOutgoingEdges();
+              }
+
+              @Override
+              public Iterable<TargetNode<?>> getIncomingNodesFor(TargetNode<?> sink) {
+                return graph.getIncomingNodesFor(sink);
+              }
+
+              @Override
+              public Iterable<TargetNode<?>> getOutgoingNodesFor(TargetNode<?> source) {
+                return addedLabels.containsKey(source)
+                    ? ImmutableList.sortedCopyOf(byId, graph.getOutgoingNodesFor(source))
+                    : previous.getOutgoingNodesFor(source);
+              }
+
+              @Override
+              public Iterable<TargetNode<?>> getNodes() {
+                return sortedNodes;
+              }
+            });
+    compactGraphLabels = labels.build();
+  }
+
   @Override
   public Set<QueryFileTarget> getInputs(QueryBuildTarget target) throws QueryException {
     TargetNode<?> node = getNode(target);
@@ -429,10 +613,13 @@ public class BuckQueryEnvironment implements QueryEnvironment<QueryBuildTarget>
 
     AcyclicDepthFirstPostOrderTraversalWithPayload<BuildTarget, TargetNode<?>> targetNodeTraversal =
         new AcyclicDepthFirstPostOrderTraversalWithPayload<>(traversable);
+    List<TargetNode<?>> addedNodes = new ArrayList<>();
     try {
       for (Pair<BuildTarget, TargetNode<?>> entry : targetNodeTraversal.traverse(newBuildTargets)) {
         TargetNode<?> node = entry.getSecond();
-        graph.addNode(node);
+        if (graph.addNode(node)) {
+          addedNodes.add(node);
+        }
         for (BuildTarget dep : node.getParseDeps()) {
           graph.addEdge(
               node,
@@ -442,6 +629,12 @@ public class BuckQueryEnvironment implements QueryEnvironment<QueryBuildTarget>
       }
     } catch (CycleException e) {
       throw new QueryException(e, e.getMessage());
+    } finally {
+      // Nodes are added in post-order, so even a partial traversal leaves a graph that is closed
+      // under dependencies.
+      if (!addedNodes.isEmpty()) {
+        extendCompactGraph(addedNodes);
+      }
     }
 
     jobsCache.keySet().forEach(this::getOrCreateQueryBuildTarget);
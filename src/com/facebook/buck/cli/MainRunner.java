@@ -1180,7 +1180,8 @@ public final class MainRunner {
                     managerScope,
                     getArtifactProducerId(executionEnvironment),
                     executionEnvironment.getHostname(),
-                    ClientCertificateHandler.fromConfiguration(cacheBuckConfig));
+                    ClientCertificateHandler.fromConfiguration(cacheBuckConfig),
+                    Optional.of(buckGlobalState.getMemoryArtifactStore()));
 
             // Once command completes it should be safe to not wait for executors and other stateful
             // objects to terminate and release semaphore right away. It will help to retry
@@ -2514,6 +2515,11 @@ public final class MainRunner {
         });
   }
 
+  /** Closes the {@link BuckGlobalState} when the daemon shuts down, letting it persist caches. */
+  static void closeBuckGlobalState() {
+    buckGlobalStateLifecycleManager.resetBuckGlobalState();
+  }
+
   /**
    * Used to clean up the {@link BuckGlobalState} after running integration tests that exercise it.
    */
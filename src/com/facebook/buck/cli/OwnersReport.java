@@ -120,6 +120,30 @@ final class OwnersReport {
   static OwnersReport generateOwnersReport(
       Cell rootCell, TargetNode<?> targetNode, String filePath) {
     Path file = rootCell.getFilesystem().getPathForRelativePath(filePath);
+    if (!Files.isRegularFile(file)) {
+      return generateNoOwnersReport(rootCell, filePath);
+    }
+    Path commandInput = rootCell.getFilesystem().getPath(filePath);
+    ImmutableSet<ForwardRelativePath> ruleInputs = targetNode.getInputs();
+    ImmutableSet<Path> ruleInputPaths =
+        ruleInputs.stream()
+            .map(p -> p.toPath(commandInput.getFileSystem()))
+            .collect(ImmutableSet.toImmutableSet());
+    Predicate<Path> startsWith =
+        input -> !commandInput.equals(input) && commandInput.startsWith(input);
+    if (ruleInputPaths.contains(commandInput) || ruleInputPaths.stream().anyMatch(startsWith)) {
+      return new OwnersReport(
+          ImmutableSetMultimap.of(targetNode, commandInput),
+          ImmutableSet.of(),
+          ImmutableSet.of(),
+          ImmutableSet.of());
+    }
+    return generateNoOwnersReport(rootCell, filePath);
+  }
+
+  /** @return the report for a file that is not owned by a target of some package. */
+  private static OwnersReport generateNoOwnersReport(Cell rootCell, String filePath) {
+    Path file = rootCell.getFilesystem().getPathForRelativePath(filePath);
     if (!Files.exists(file)) {
       return new OwnersReport(
           ImmutableSetMultimap.of(),
@@ -133,27 +157,11 @@ final class OwnersReport {
           ImmutableSet.of(),
           ImmutableSet.of(filePath));
     } else {
-      Path commandInput = rootCell.getFilesystem().getPath(filePath);
-      ImmutableSet<ForwardRelativePath> ruleInputs = targetNode.getInputs();
-      ImmutableSet<Path> ruleInputPaths =
-          ruleInputs.stream()
-              .map(p -> p.toPath(commandInput.getFileSystem()))
-              .collect(ImmutableSet.toImmutableSet());
-      Predicate<Path> startsWith =
-          input -> !commandInput.equals(input) && commandInput.startsWith(input);
-      if (ruleInputPaths.contains(commandInput) || ruleInputPaths.stream().anyMatch(startsWith)) {
-        return new OwnersReport(
-            ImmutableSetMultimap.of(targetNode, commandInput),
-            ImmutableSet.of(),
-            ImmutableSet.of(),
-            ImmutableSet.of());
-      } else {
-        return new OwnersReport(
-            ImmutableSetMultimap.of(),
-            ImmutableSet.of(commandInput),
-            ImmutableSet.of(),
-            ImmutableSet.of());
-      }
+      return new OwnersReport(
+          ImmutableSetMultimap.of(),
+          ImmutableSet.of(rootCell.getFilesystem().getPath(filePath)),
+          ImmutableSet.of(),
+          ImmutableSet.of());
     }
   }
 
@@ -195,6 +203,21 @@ final class OwnersReport {
           cell.getFilesystem()
               .resolve(basePath)
               .resolve(cell.getBuckConfigView(ParserConfig.class).getBuildFileName());
+      if (!map.containsKey(buckFile)) {
+        Optional<ImmutableSet<String>> indexedOwners =
+            parser
+                .getPermState()
+                .getDependencyIndex()
+                .getOwners(
+                    cell,
+                    buckFile,
+                    targetConfiguration,
+                    ForwardRelativePath.ofPath(cellRelativePath.getPath()));
+        if (indexedOwners.isPresent() && indexedOwners.get().isEmpty()) {
+          // None of the targets of the package own the file, so there is no need to load them.
+          return generateNoOwnersReport(cell, cellRelativePath.toString());
+        }
+      }
       ImmutableList<TargetNode<?>> targetNodes =
           map.computeIfAbsent(
               buckFile,
@@ -32,6 +32,7 @@ public class PerfCommand extends AbstractContainerCommand {
     @SubCommand(name = "action-graph", impl = PerfActionGraphCommand.class),
     @SubCommand(name = "cas", impl = PerfCasCommand.class),
     @SubCommand(name = "rk", impl = PerfRuleKeyCommand.class),
+    @SubCommand(name = "rule-history", impl = PerfRuleHistoryCommand.class),
     @SubCommand(name = "manifest", impl = PerfManifestCommand.class),
     @SubCommand(name = "mbr", impl = PerfMbrCommand.class),
     @SubCommand(name = "stat", impl = PerfStatCommand.class),
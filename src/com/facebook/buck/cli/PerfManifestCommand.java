@@ -220,7 +220,7 @@ public class PerfManifestCommand extends AbstractPerfCommand<Context> {
 
   @Override
   protected String getComputationName() {
-    return "manifest parse and manipulate";
+    return "manifest parse, manipulate and lookup";
   }
 
   @Override
@@ -238,8 +238,9 @@ public class PerfManifestCommand extends AbstractPerfCommand<Context> {
           context.graphBuilder.getSourcePathResolver(),
           entry.getValue().getInputs(),
           context.usedInputs.getOrDefault(entry.getKey(), ImmutableSet.of()));
+      FileHashLoader lastFileHashLoader = getFileHashLoader(random.nextInt());
       manifest.addEntry(
-          getFileHashLoader(random.nextInt()),
+          lastFileHashLoader,
           entry.getValue().getRuleKey(),
           context.graphBuilder.getSourcePathResolver(),
           entry.getValue().getInputs(),
@@ -252,10 +253,17 @@ public class PerfManifestCommand extends AbstractPerfCommand<Context> {
             entry.getKey().getProjectFilesystem().newFileOutputStream(temporaryFile.get())) {
           manifest.serialize(output);
         }
+        Manifest deserialized;
         try (InputStream input =
             entry.getKey().getProjectFilesystem().newFileInputStream(temporaryFile.get())) {
-          new Manifest(input);
+          deserialized = new Manifest(input);
         }
+
+        // Look up the entry we added last, the way a build would after fetching the manifest.
+        deserialized.lookup(
+            lastFileHashLoader,
+            context.graphBuilder.getSourcePathResolver(),
+            entry.getValue().getInputs());
       }
     }
   }
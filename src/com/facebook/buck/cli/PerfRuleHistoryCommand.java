@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.cli;
+
+import com.facebook.buck.core.build.stats.BuildRuleHistoryStore;
+import com.facebook.buck.core.build.stats.RuleHistoryEntry;
+import com.facebook.buck.core.build.stats.RuleResourceUsage;
+import com.facebook.buck.util.DirtyPrintStreamDecorator;
+import com.facebook.buck.util.ExitCode;
+import org.kohsuke.args4j.Option;
+
+/** Prints the resources consumed by build rules in previous local builds. */
+public class PerfRuleHistoryCommand extends AbstractCommand {
+
+  @Option(
+      name = "--sort-by",
+      usage = "the metric to rank by: WALL_TIME, CPU_TIME, PEAK_MEMORY or OUTPUT_SIZE.")
+  private BuildRuleHistoryStore.Metric sortBy = BuildRuleHistoryStore.Metric.WALL_TIME;
+
+  @Option(name = "--limit", usage = "the number of entries to print.")
+  private int limit = 20;
+
+  @Option(name = "--by-type", usage = "print averages per rule type instead of per target.")
+  private boolean byType = false;
+
+  @Override
+  public ExitCode runWithoutHelp(CommandRunnerParams params) throws Exception {
+    DirtyPrintStreamDecorator out = params.getConsole().getStdOut();
+    try (BuildRuleHistoryStore store =
+        BuildRuleHistoryStore.open(params.getCells().getRootCell().getFilesystem())) {
+      out.println(
+          String.format(
+              "%10s %10s %10s %10s %8s  %s",
+              "wall(ms)", "cpu(ms)", "rss(MB)", "out(MB)", "samples", byType ? "type" : "target"));
+      for (RuleHistoryEntry entry :
+          byType ? store.getTopTypes(sortBy, limit) : store.getTopTargets(sortBy, limit)) {
+        RuleResourceUsage usage = entry.getUsage();
+        out.println(
+            String.format(
+                "%10d %10d %10d %10d %8d  %s",
+                usage.getWallTimeMillis(),
+                usage.getCpuTimeMillis(),
+                usage.getPeakMemoryBytes() >> 20,
+                usage.getOutputSizeBytes() >> 20,
+                entry.getSampleCount(),
+                entry.getName()));
+      }
+    }
+    return ExitCode.SUCCESS;
+  }
+
+  @Override
+  public boolean isReadOnly() {
+    return true;
+  }
+
+  @Override
+  public String getShortDescription() {
+    return "Print the resources consumed by rules built locally, as recorded with "
+        + "build.record_rule_history";
+  }
+}
@@ -19,13 +19,19 @@ package com.facebook.buck.cli;
 import com.facebook.buck.android.device.TargetDevice;
 import com.facebook.buck.android.device.TargetDeviceOptions;
 import com.facebook.buck.android.exopackage.AndroidDevicesHelperFactory;
+import com.facebook.buck.artifact_cache.ArtifactCompression;
+import com.facebook.buck.artifact_cache.config.ArtifactCacheBuckConfig;
 import com.facebook.buck.command.Build;
 import com.facebook.buck.command.config.BuildBuckConfig;
 import com.facebook.buck.core.build.context.BuildContext;
 import com.facebook.buck.core.build.engine.BuildEngine;
 import com.facebook.buck.core.build.engine.config.CachingBuildEngineBuckConfig;
 import com.facebook.buck.core.build.engine.delegate.LocalCachingBuildEngineDelegate;
+import com.facebook.buck.core.build.engine.impl.ArtifactPrefetcher;
+import com.facebook.buck.core.build.engine.impl.BuildRuleHistoryRecorder;
 import com.facebook.buck.core.build.engine.impl.CachingBuildEngine;
+import com.facebook.buck.core.build.engine.impl.CriticalPathScheduler;
+import com.facebook.buck.core.build.engine.impl.MemoryAdmissionController;
 import com.facebook.buck.core.build.event.BuildEvent;
 import com.facebook.buck.core.build.execution.context.ExecutionContext;
 import com.facebook.buck.core.config.BuckConfig;
@@ -595,6 +601,11 @@ public class TestCommand extends BuildCommand {
                     params.getBuildEnvironmentDescription().getUser(), getArguments());
         LocalCachingBuildEngineDelegate localCachingBuildEngineDelegate =
             new LocalCachingBuildEngineDelegate(params.getFileHashCache());
+        Optional<BuildRuleHistoryRecorder> ruleHistoryRecorder =
+            BuildRuleHistoryRecorder.create(
+                cachingBuildEngineBuckConfig,
+                params.getCells().getRootCell().getFilesystem(),
+                params.getBuckEventBus());
         try (CachingBuildEngine cachingBuildEngine =
                 new CachingBuildEngine(
                     localCachingBuildEngineDelegate,
@@ -619,6 +630,20 @@ public class TestCommand extends BuildCommand {
                     params.getTargetConfigurationSerializer(),
                     params.getBuildInfoStoreManager(),
                     cachingBuildEngineBuckConfig.getResourceAwareSchedulingInfo(),
+                    CriticalPathScheduler.create(
+                        cachingBuildEngineBuckConfig,
+                        ruleHistoryRecorder.map(BuildRuleHistoryRecorder::getStore)),
+                    ruleHistoryRecorder,
+                    MemoryAdmissionController.create(
+                        cachingBuildEngineBuckConfig,
+                        ruleHistoryRecorder.map(BuildRuleHistoryRecorder::getStore)),
+                    ArtifactPrefetcher.create(
+                        cachingBuildEngineBuckConfig,
+                        getBuildEngineMode()
+                            .orElse(cachingBuildEngineBuckConfig.getBuildEngineMode()),
+                        params.getBuckEventBus()),
+                    ArtifactCompression.of(
+                        params.getBuckConfig().getView(ArtifactCacheBuckConfig.class)),
                     cachingBuildEngineBuckConfig.getConsoleLogBuildRuleFailuresInline(),
                     RuleKeyFactories.of(
                         params.getRuleKeyConfiguration(),
@@ -16,10 +16,16 @@
 
 package com.facebook.buck.command;
 
+import com.facebook.buck.artifact_cache.ArtifactCompression;
+import com.facebook.buck.artifact_cache.config.ArtifactCacheBuckConfig;
 import com.facebook.buck.command.config.BuildBuckConfig;
 import com.facebook.buck.core.build.engine.config.CachingBuildEngineBuckConfig;
 import com.facebook.buck.core.build.engine.delegate.CachingBuildEngineDelegate;
+import com.facebook.buck.core.build.engine.impl.ArtifactPrefetcher;
+import com.facebook.buck.core.build.engine.impl.BuildRuleHistoryRecorder;
 import com.facebook.buck.core.build.engine.impl.CachingBuildEngine;
+import com.facebook.buck.core.build.engine.impl.CriticalPathScheduler;
+import com.facebook.buck.core.build.engine.impl.MemoryAdmissionController;
 import com.facebook.buck.core.build.engine.type.BuildType;
 import com.facebook.buck.core.build.execution.context.ExecutionContext;
 import com.facebook.buck.core.exceptions.BuildTargetParseException;
@@ -142,6 +148,9 @@ public class BuildExecutor {
       boolean remoteExecutionAutoEnabled, boolean forceDisableRemoteExecution) {
     CachingBuildEngineBuckConfig engineConfig =
         args.getBuckConfig().getView(CachingBuildEngineBuckConfig.class);
+    Optional<BuildRuleHistoryRecorder> ruleHistoryRecorder =
+        BuildRuleHistoryRecorder.create(
+            engineConfig, args.getCells().getRootCell().getFilesystem(), args.getBuckEventBus());
 
     return new CachingBuildEngine(
         cachingBuildEngineDelegate,
@@ -166,6 +175,16 @@ public class BuildExecutor {
         targetConfigurationSerializer,
         args.getBuildInfoStoreManager(),
         engineConfig.getResourceAwareSchedulingInfo(),
+        CriticalPathScheduler.create(
+            engineConfig, ruleHistoryRecorder.map(BuildRuleHistoryRecorder::getStore)),
+        ruleHistoryRecorder,
+        MemoryAdmissionController.create(
+            engineConfig, ruleHistoryRecorder.map(BuildRuleHistoryRecorder::getStore)),
+        ArtifactPrefetcher.create(
+            engineConfig,
+            buildEngineMode.orElse(engineConfig.getBuildEngineMode()),
+            args.getBuckEventBus()),
+        ArtifactCompression.of(args.getBuckConfig().getView(ArtifactCacheBuckConfig.class)),
         engineConfig.getConsoleLogBuildRuleFailuresInline(),
         RuleKeyFactories.of(
             args.getRuleKeyConfiguration(),
@@ -251,6 +251,15 @@ public abstract class BuildBuckConfig implements ConfigView<BuckConfig> {
         .orElse(FileHashCacheMode.DEFAULT);
   }
 
+  /**
+   * @return whether the daemon keeps its file hash caches on disk when it shuts down, and restores
+   *     them on start up, invalidating whatever watchman reports as changed in between.
+   */
+  @Value.Lazy
+  public boolean shouldPersistFileHashCaches() {
+    return getDelegate().getBooleanValue(BUILD_SECTION, "persist_file_hash_cache", false);
+  }
+
   @Value.Lazy
   public boolean shouldBuckOutIncludeTargetConfigHash() {
     return getDelegate()
@@ -17,7 +17,9 @@
 package com.facebook.buck.core.build.engine.buildinfo;
 
 import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.util.log.Logger;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.util.concurrent.MostExecutors;
 import com.facebook.buck.util.sqlite.RetryBusyHandler;
 import com.facebook.buck.util.sqlite.SQLiteUtils;
 import com.google.common.collect.ImmutableMap;
@@ -27,16 +29,49 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import org.sqlite.BusyHandler;
 
+/**
+ * {@link BuildInfoStore} backed by a SQLite database in the scratch directory.
+ *
+ * <p>Updates are applied write-behind: they are recorded in memory and committed by a dedicated
+ * writer thread, which groups everything that accumulated since its last run into a single
+ * transaction. Reads consult the uncommitted updates first, so callers always observe their own
+ * writes. {@link #close()} commits everything that is still pending before closing the database.
+ *
+ * <p>Deletes are committed before {@link #deleteMetadata} returns. Updates of the target that are
+ * still pending are dropped first, so they cannot bring the deleted metadata back.
+ */
 public class SQLiteBuildInfoStore implements BuildInfoStore {
+  private static final Logger LOG = Logger.get(SQLiteBuildInfoStore.class);
+
   private final Connection connection;
   private final PreparedStatement selectStmt;
   private final PreparedStatement selectAllStmt;
   private final PreparedStatement updateStmt;
   private final PreparedStatement deleteStmt;
+  private final ExecutorService writer;
+
+  /** Held while a batch of updates is taken from {@link #pendingWrites} and committed. */
+  private final Object flushLock = new Object();
+
+  /** Updates that have not been committed yet, keyed by cell relative target name. */
+  @GuardedBy("this")
+  private final Map<String, ImmutableMap<String, String>> pendingWrites = new HashMap<>();
+
+  @GuardedBy("this")
+  private boolean flushScheduled = false;
+
+  @GuardedBy("this")
+  @Nullable
+  private SQLException writeFailure = null;
 
   public SQLiteBuildInfoStore(ProjectFilesystem filesystem) throws IOException {
     SQLiteUtils.initialize();
@@ -71,28 +106,54 @@ public class SQLiteBuildInfoStore implements BuildInfoStore {
     } catch (ClassNotFoundException | SQLException e) {
       throw new IOException(e);
     }
+    writer = MostExecutors.newSingleThreadExecutor("SQLiteBuildInfoStore");
   }
 
   @Override
   public void close() {
+    writer.shutdown();
+    try {
+      if (!writer.awaitTermination(1, TimeUnit.MINUTES)) {
+        LOG.warn("Timed out waiting for the build info writer to finish.");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
     try {
-      connection.close();
+      // Anything the writer thread did not get to, or failed to commit, is written out here.
+      flush();
+    } catch (IOException e) {
+      LOG.error(e, "Failed to commit pending build metadata.");
+    }
+    try {
+      synchronized (connection) {
+        connection.close();
+      }
     } catch (SQLException e) {
       throw new RuntimeException(e);
     }
   }
 
   @Override
-  public synchronized Optional<String> readMetadata(BuildTarget buildTarget, String key) {
+  public Optional<String> readMetadata(BuildTarget buildTarget, String key) {
+    String target = cellRelativeName(buildTarget);
+    synchronized (this) {
+      ImmutableMap<String, String> pending = pendingWrites.get(target);
+      if (pending != null && pending.containsKey(key)) {
+        return Optional.of(pending.get(key));
+      }
+    }
     try {
-      selectStmt.setString(1, cellRelativeName(buildTarget));
-      selectStmt.setString(2, key);
-      try (ResultSet rs = selectStmt.executeQuery()) {
-        if (!rs.next()) {
-          return Optional.empty();
+      synchronized (connection) {
+        selectStmt.setString(1, target);
+        selectStmt.setString(2, key);
+        try (ResultSet rs = selectStmt.executeQuery()) {
+          if (!rs.next()) {
+            return Optional.empty();
+          }
+          String value = rs.getString(1);
+          return Optional.of(value);
         }
-        String value = rs.getString(1);
-        return Optional.of(value);
       }
     } catch (SQLException e) {
       throw new RuntimeException(e);
@@ -100,44 +161,146 @@ public class SQLiteBuildInfoStore implements BuildInfoStore {
   }
 
   @Override
-  public synchronized ImmutableMap<String, String> getAllMetadata(BuildTarget buildTarget) {
+  public ImmutableMap<String, String> getAllMetadata(BuildTarget buildTarget) {
+    String target = cellRelativeName(buildTarget);
+    ImmutableMap<String, String> pending;
+    synchronized (this) {
+      pending = pendingWrites.get(target);
+    }
     try {
-      selectAllStmt.setString(1, cellRelativeName(buildTarget));
-      try (ResultSet rs = selectAllStmt.executeQuery()) {
-        ImmutableMap.Builder<String, String> result = ImmutableMap.builder();
-        while (rs.next()) {
-          result.put(rs.getString(1), rs.getString(2));
+      Map<String, String> result = new HashMap<>();
+      synchronized (connection) {
+        selectAllStmt.setString(1, target);
+        try (ResultSet rs = selectAllStmt.executeQuery()) {
+          while (rs.next()) {
+            result.put(rs.getString(1), rs.getString(2));
+          }
         }
-        return result.build();
       }
+      if (pending != null) {
+        result.putAll(pending);
+      }
+      return ImmutableMap.copyOf(result);
     } catch (SQLException e) {
       throw new RuntimeException(e);
     }
   }
 
   @Override
-  public synchronized void updateMetadata(BuildTarget buildTarget, Map<String, String> metadata)
+  public void updateMetadata(BuildTarget buildTarget, Map<String, String> metadata)
       throws IOException {
-    try {
-      for (Map.Entry<String, String> e : metadata.entrySet()) {
-        updateStmt.setString(1, cellRelativeName(buildTarget));
-        updateStmt.setString(2, e.getKey());
-        updateStmt.setString(3, e.getValue());
-        updateStmt.addBatch();
+    String target = cellRelativeName(buildTarget);
+    synchronized (this) {
+      checkNoWriteFailure();
+      ImmutableMap<String, String> pending = pendingWrites.get(target);
+      if (pending == null) {
+        pendingWrites.put(target, ImmutableMap.copyOf(metadata));
+      } else {
+        Map<String, String> merged = new HashMap<>(pending);
+        merged.putAll(metadata);
+        pendingWrites.put(target, ImmutableMap.copyOf(merged));
       }
-      updateStmt.executeBatch();
-    } catch (SQLException e) {
-      throw new IOException(e);
+      scheduleFlush();
     }
   }
 
   @Override
-  public synchronized void deleteMetadata(BuildTarget buildTarget) throws IOException {
-    try {
-      deleteStmt.setString(1, cellRelativeName(buildTarget));
-      deleteStmt.executeUpdate();
-    } catch (SQLException e) {
-      throw new IOException(e);
+  public void deleteMetadata(BuildTarget buildTarget) throws IOException {
+    String target = cellRelativeName(buildTarget);
+    // Holding the flush lock keeps a batch that already contains the target from being committed
+    // after the delete.
+    synchronized (flushLock) {
+      synchronized (this) {
+        checkNoWriteFailure();
+        pendingWrites.remove(target);
+      }
+      try {
+        synchronized (connection) {
+          deleteStmt.setString(1, target);
+          deleteStmt.executeUpdate();
+        }
+      } catch (SQLException e) {
+        throw new IOException(e);
+      }
+    }
+  }
+
+  /**
+   * Synchronously commits all updates that are pending at the time of the call in a single
+   * transaction.
+   */
+  public void flush() throws IOException {
+    synchronized (flushLock) {
+      ImmutableMap<String, ImmutableMap<String, String>> batch;
+      synchronized (this) {
+        flushScheduled = false;
+        if (pendingWrites.isEmpty()) {
+          return;
+        }
+        batch = ImmutableMap.copyOf(pendingWrites);
+      }
+      try {
+        commit(batch);
+      } catch (SQLException e) {
+        synchronized (this) {
+          if (writeFailure == null) {
+            writeFailure = e;
+          }
+        }
+        throw new IOException(e);
+      }
+      synchronized (this) {
+        // Entries that were updated again while the batch was being committed stay pending.
+        batch.forEach(pendingWrites::remove);
+      }
+    }
+  }
+
+  @GuardedBy("this")
+  private void scheduleFlush() {
+    if (flushScheduled) {
+      return;
+    }
+    flushScheduled = true;
+    writer.execute(
+        () -> {
+          try {
+            flush();
+          } catch (IOException e) {
+            LOG.warn(e, "Failed to commit build metadata, will retry on close.");
+          }
+        });
+  }
+
+  @GuardedBy("this")
+  private void checkNoWriteFailure() throws IOException {
+    if (writeFailure != null) {
+      throw new IOException(writeFailure);
+    }
+  }
+
+  private void commit(ImmutableMap<String, ImmutableMap<String, String>> batch)
+      throws SQLException {
+    synchronized (connection) {
+      connection.setAutoCommit(false);
+      try {
+        for (Map.Entry<String, ImmutableMap<String, String>> entry : batch.entrySet()) {
+          for (Map.Entry<String, String> e : entry.getValue().entrySet()) {
+            updateStmt.setString(1, entry.getKey());
+            updateStmt.setString(2, e.getKey());
+            updateStmt.setString(3, e.getValue());
+            updateStmt.addBatch();
+          }
+        }
+        updateStmt.executeBatch();
+        connection.commit();
+      } catch (SQLException e) {
+        updateStmt.clearBatch();
+        connection.rollback();
+        throw e;
+      } finally {
+        connection.setAutoCommit(true);
+      }
     }
   }
 
@@ -17,6 +17,7 @@
 package com.facebook.buck.core.build.engine.cache.manager;
 
 import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.ArtifactCompression;
 import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.artifact_cache.CacheResultType;
 import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
@@ -34,7 +35,6 @@ import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.util.Scope;
 import com.facebook.buck.util.concurrent.WeightedListeningExecutorService;
 import com.facebook.buck.util.stream.RichStream;
-import com.facebook.buck.util.unarchive.ArchiveFormat;
 import com.facebook.buck.util.unarchive.ExistingFileMode;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
@@ -46,6 +46,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 public class BuildCacheArtifactFetcher {
 
@@ -58,6 +59,8 @@ public class BuildCacheArtifactFetcher {
   private final BuckEventBus eventBus;
   private final BuildInfoStoreManager buildInfoStoreManager;
   private final OnDiskBuildInfo onDiskBuildInfo;
+  private final ArtifactCompression artifactCompression;
+  private final Executor artifactExtractionExecutor;
 
   public BuildCacheArtifactFetcher(
       BuildRule rule,
@@ -66,7 +69,9 @@ public class BuildCacheArtifactFetcher {
       OnOutputsWillChange onOutputsWillChange,
       BuckEventBus eventBus,
       BuildInfoStoreManager buildInfoStoreManager,
-      OnDiskBuildInfo onDiskBuildInfo) {
+      OnDiskBuildInfo onDiskBuildInfo,
+      ArtifactCompression artifactCompression,
+      Executor artifactExtractionExecutor) {
     this.rule = rule;
     this.buildRuleScopeManager = buildRuleScopeManager;
     this.executorService = executorService;
@@ -74,6 +79,8 @@ public class BuildCacheArtifactFetcher {
     this.eventBus = eventBus;
     this.buildInfoStoreManager = buildInfoStoreManager;
     this.onDiskBuildInfo = onDiskBuildInfo;
+    this.artifactCompression = artifactCompression;
+    this.artifactExtractionExecutor = artifactExtractionExecutor;
   }
 
   private Scope buildRuleScope() {
@@ -121,24 +128,30 @@ public class BuildCacheArtifactFetcher {
       return Futures.immediateFuture(CacheResult.ignored());
     }
 
-    // Create a temp file whose extension must be ".zip" for Filesystems.newFileSystem() to infer
-    // that we are creating a zip-based FileSystem.
-    LazyPath lazyZipPath =
-        new LazyPath() {
-          @Override
-          protected Path create() throws IOException {
-            return Files.createTempFile(
-                "buck_artifact_" + MostFiles.sanitize(rule.getBuildTarget().getShortName()),
-                ".zip");
-          }
-        };
+    // The artifact is unpacked into a staging directory while it is being downloaded. The temp
+    // file is only written as well when caches write hits back to other levels, or when the
+    // artifact cannot be unpacked while it is downloaded.
+    StreamingArtifactExtractor lazyZipPath =
+        new StreamingArtifactExtractor(
+            "buck_artifact_" + MostFiles.sanitize(rule.getBuildTarget().getShortName()),
+            filesystem,
+            artifactCompression.getUnarchiver(),
+            artifactExtractionExecutor);
 
     // TODO(mbolin): Change ArtifactCache.fetch() so that it returns a File instead of takes one.
     // Then we could download directly from the remote cache into the on-disk cache and unzip it
     // from there.
     return convertErrorToSoftError(
         Futures.transformAsync(
-            fetch(artifactCache, ruleKey, lazyZipPath),
+            Futures.catchingAsync(
+                fetch(artifactCache, ruleKey, lazyZipPath),
+                Exception.class,
+                e -> {
+                  // Remove anything that was unpacked before the fetch failed.
+                  lazyZipPath.finish(false);
+                  return Futures.immediateFailedFuture(e);
+                },
+                executorService),
             cacheResult -> {
               try (Scope ignored = buildRuleScope()) {
                 // Verify that the rule key we used to fetch the artifact is one of the rule keys
@@ -207,16 +220,18 @@ public class BuildCacheArtifactFetcher {
   }
 
   private CacheResult extractArtifactFromCacheResult(
-      RuleKey ruleKey, LazyPath lazyZipPath, ProjectFilesystem filesystem, CacheResult cacheResult)
+      RuleKey ruleKey,
+      StreamingArtifactExtractor lazyZipPath,
+      ProjectFilesystem filesystem,
+      CacheResult cacheResult)
       throws IOException {
+    boolean streamed = lazyZipPath.finish(cacheResult.getType() == CacheResultType.HIT);
 
     // We only unpack artifacts from hits.
     if (!cacheResult.getType().isSuccess()) {
       LOG.debug("Cache miss for '%s' with rulekey '%s'", rule, ruleKey);
       return cacheResult;
     }
-    onOutputsWillChange.call();
-
     Preconditions.checkState(cacheResult.metadata().isPresent());
     Preconditions.checkArgument(cacheResult.getType() == CacheResultType.HIT);
     LOG.debug("Fetched '%s' from cache with rulekey '%s'", rule, ruleKey);
@@ -224,6 +239,27 @@ public class BuildCacheArtifactFetcher {
     // It should be fine to get the path straight away, since cache already did it's job.
     Path zipPath = lazyZipPath.getUnchecked();
 
+    if (!streamed) {
+      if (!lazyZipPath.hasPayloadFile()) {
+        // The payload was only unpacked while it was downloaded, and that failed.
+        LOG.warn(
+            "%s: could not extract artifact with rule key %s while it was downloaded.",
+            rule.getBuildTarget(), ruleKey);
+        Files.deleteIfExists(zipPath);
+        return CacheResult.miss();
+      }
+      // Artifacts compressed with a dictionary we don't have can't be extracted, so treat them
+      // like any other artifact we can't use and build the rule instead.
+      if (!artifactCompression.canDecompress(zipPath)) {
+        LOG.warn(
+            "%s: artifact with rule key %s was compressed with a different zstd dictionary.",
+            rule.getBuildTarget(), ruleKey);
+        Files.delete(zipPath);
+        return CacheResult.miss();
+      }
+    }
+    onOutputsWillChange.call();
+
     // We unzip the file in the root of the project directory.
     // Ideally, the following would work:
     //
@@ -238,7 +274,8 @@ public class BuildCacheArtifactFetcher {
         ArtifactCompressionEvent.started(
             ArtifactCompressionEvent.Operation.DECOMPRESS, ImmutableSet.of(ruleKey), rule);
     eventBus.post(started);
-    long compressedSize = filesystem.getFileSize(zipPath);
+    long compressedSize =
+        streamed ? lazyZipPath.getPayloadSize() : filesystem.getFileSize(zipPath);
     long fullSize = 0L;
     try {
       // First, clear out the pre-existing metadata directory.  We have to do this *before*
@@ -252,13 +289,18 @@ public class BuildCacheArtifactFetcher {
           ruleKey,
           BuildInfo.MetadataKey.ORIGIN_BUILD_ID);
 
-      ImmutableSet<Path> extractedFiles =
-          ArchiveFormat.TAR_ZSTD
-              .getUnarchiver()
-              .extractArchive(
-                  zipPath.toAbsolutePath(),
-                  filesystem,
-                  ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES);
+      ImmutableSet<Path> extractedFiles;
+      if (streamed) {
+        extractedFiles = lazyZipPath.install();
+      } else {
+        extractedFiles =
+            artifactCompression
+                .getUnarchiver()
+                .extractArchive(
+                    zipPath.toAbsolutePath(),
+                    filesystem,
+                    ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES);
+      }
 
       onDiskBuildInfo.validateArtifact(extractedFiles);
       fullSize =
@@ -17,6 +17,7 @@
 package com.facebook.buck.core.build.engine.cache.manager;
 
 import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.ArtifactCompression;
 import com.facebook.buck.artifact_cache.ArtifactUploader;
 import com.facebook.buck.core.build.engine.BuildRuleSuccessType;
 import com.facebook.buck.core.build.engine.buildinfo.BuildInfo;
@@ -46,6 +47,7 @@ public class BuildCacheArtifactUploader {
   private final BuckEventBus eventBus;
   private final ArtifactCache artifactCache;
   private final Optional<Long> artifactCacheSizeLimit;
+  private final ArtifactCompression artifactCompression;
 
   public BuildCacheArtifactUploader(
       RuleKey defaultKey,
@@ -55,7 +57,8 @@ public class BuildCacheArtifactUploader {
       ManifestRuleKeyManager manifestRuleKeyManager,
       BuckEventBus eventBus,
       ArtifactCache artifactCache,
-      Optional<Long> artifactCacheSizeLimit) {
+      Optional<Long> artifactCacheSizeLimit,
+      ArtifactCompression artifactCompression) {
     this.defaultKey = defaultKey;
     this.inputBasedKey = inputBasedKey;
     this.onDiskBuildInfo = onDiskBuildInfo;
@@ -64,6 +67,7 @@ public class BuildCacheArtifactUploader {
     this.eventBus = eventBus;
     this.artifactCache = artifactCache;
     this.artifactCacheSizeLimit = artifactCacheSizeLimit;
+    this.artifactCompression = artifactCompression;
   }
 
   /**
@@ -119,7 +123,8 @@ public class BuildCacheArtifactUploader {
         onDiskBuildInfo.getMetadataForArtifact(),
         onDiskBuildInfo.getPathsForArtifact(),
         rule,
-        buildTimeMs);
+        buildTimeMs,
+        artifactCompression);
   }
 
   /** @return whether we should upload the given rules artifacts to cache. */
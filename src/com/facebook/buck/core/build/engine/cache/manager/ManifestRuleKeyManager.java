@@ -310,11 +310,11 @@ public class ManifestRuleKeyManager {
               rule.getBuildTarget(),
               keyAndInputs.getRuleKey(),
               manifest.getKey());
-          manifestFetchResult.setManifestStats(manifest.getStats());
 
           // Lookup the dep file rule key matching the current state of our inputs.
           Optional<RuleKey> depFileRuleKey =
               manifest.lookup(fileHashLoader, pathResolver, keyAndInputs.getInputs());
+          manifestFetchResult.setManifestStats(manifest.getStats());
           if (!depFileRuleKey.isPresent()) {
             return Futures.immediateFuture(manifestFetchResult.build());
           }
@@ -0,0 +1,458 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.buck.core.build.engine.cache.manager;
+
+import com.facebook.buck.artifact_cache.StreamingLazyPath;
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.util.unarchive.ExistingFileMode;
+import com.facebook.buck.util.unarchive.Untar;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import javax.annotation.Nullable;
+
+/**
+ * Temp file for a fetched artifact that also unpacks the artifact while it is being downloaded, so
+ * that decompression and extraction overlap the download instead of following it.
+ *
+ * <p>Files are extracted into a staging directory under buck-out. They are only moved into place
+ * by {@link #install()}, once the cache verified the payload and reported a hit. Otherwise the
+ * staging directory is deleted and the caller falls back to extracting the downloaded file.
+ *
+ * <p>The payload is only written to the temp file as well if a cache needs the file after the
+ * fetch (see {@link StreamingLazyPath#requirePayloadFile}), or if it cannot be extracted while it
+ * is downloaded because no extraction thread is free.
+ */
+class StreamingArtifactExtractor extends StreamingLazyPath {
+
+  private static final Logger LOG = Logger.get(StreamingArtifactExtractor.class);
+
+  /** Most bytes a download may be ahead of the extraction before it waits for it. */
+  private static final int BUFFER_CAPACITY_BYTES = 4 * 1024 * 1024;
+
+  private final String tempFilePrefix;
+  private final ProjectFilesystem filesystem;
+  private final Untar unarchiver;
+  private final Executor extractionExecutor;
+
+  @Nullable private Extraction current;
+  @Nullable private Extraction staged;
+  private boolean payloadFileComplete = true;
+
+  /**
+   * @param extractionExecutor Runs the extraction of each payload for as long as it is being
+   *     downloaded. It should hand tasks to a free thread or reject them, rather than queue them.
+   */
+  StreamingArtifactExtractor(
+      String tempFilePrefix,
+      ProjectFilesystem filesystem,
+      Untar unarchiver,
+      Executor extractionExecutor) {
+    this.tempFilePrefix = tempFilePrefix;
+    this.filesystem = filesystem;
+    this.unarchiver = unarchiver;
+    this.extractionExecutor = extractionExecutor;
+  }
+
+  @Override
+  protected Path create() throws IOException {
+    // The extension must be ".zip" for Filesystems.newFileSystem() to infer that we are creating a
+    // zip-based FileSystem.
+    return Files.createTempFile(tempFilePrefix, ".zip");
+  }
+
+  @Override
+  protected synchronized OutputStream teePayload(OutputStream payloadSink) {
+    if (current != null) {
+      current.discard();
+    }
+    current = new Extraction(isPayloadFileRequired());
+    return current.tee(payloadSink);
+  }
+
+  @Override
+  protected synchronized void payloadVerified() {
+    if (current != null) {
+      current.verified = true;
+    }
+  }
+
+  /**
+   * Completes the fetch.
+   *
+   * @param hit Whether the fetch returned a hit whose payload is at {@link #getUnchecked()}.
+   * @return Whether the artifact was extracted and can be moved into place with {@link #install()}.
+   *     Otherwise it has to be extracted from the downloaded file, if {@link #hasPayloadFile()}.
+   */
+  synchronized boolean finish(boolean hit) {
+    Extraction extraction = current;
+    current = null;
+    payloadFileComplete = extraction == null || !extraction.skippedPayloadFile;
+    if (extraction == null || !extraction.started) {
+      return false;
+    }
+    if (extraction.await() && hit && extraction.verified) {
+      staged = extraction;
+      return true;
+    }
+    extraction.discard();
+    return false;
+  }
+
+  /**
+   * Whether the whole payload was written to {@link #getUnchecked()}. It is not when the payload
+   * was only extracted, in which case there is nothing to fall back to if extraction failed.
+   */
+  synchronized boolean hasPayloadFile() {
+    return payloadFileComplete;
+  }
+
+  /** Size of the payload that was extracted. Only valid after {@link #finish} returned true. */
+  synchronized long getPayloadSize() {
+    Preconditions.checkState(staged != null, "No artifact was extracted.");
+    return staged.bytesForwarded;
+  }
+
+  /**
+   * Moves the extracted files into the project filesystem. Like extracting the downloaded file,
+   * this overwrites existing files and removes files that are not in the artifact from the
+   * directories it contains. Must only be called once outputs are allowed to change.
+   *
+   * @return The files that were moved into place.
+   */
+  synchronized ImmutableSet<Path> install() throws IOException {
+    Preconditions.checkState(staged != null, "No artifact was extracted.");
+    Extraction extraction = staged;
+    staged = null;
+    try {
+      return extraction.install();
+    } finally {
+      extraction.discard();
+    }
+  }
+
+  /**
+   * Unpacking of a single payload, as teed from a cache.
+   *
+   * <p>The download state is only written by the thread downloading the payload, and only read
+   * once the fetch completed.
+   */
+  private class Extraction {
+    private final boolean payloadFileRequired;
+    private final PayloadBuffer buffer = new PayloadBuffer();
+    private final Set<Path> stagedDirectories = ConcurrentHashMap.newKeySet();
+    private volatile boolean verified;
+    private boolean started;
+    private boolean failed;
+    private boolean skippedPayloadFile;
+    private long bytesForwarded;
+    @Nullable private FutureTask<ImmutableSet<Path>> result;
+    @Nullable private ImmutableSet<Path> stagedFiles;
+    @Nullable private Path stagingDirectory;
+    private boolean finished;
+    private boolean discarded;
+
+    Extraction(boolean payloadFileRequired) {
+      this.payloadFileRequired = payloadFileRequired;
+    }
+
+    OutputStream tee(OutputStream payloadSink) {
+      return new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          if (!forward(b, off, len) || payloadFileRequired) {
+            payloadSink.write(b, off, len);
+          }
+        }
+
+        @Override
+        public void flush() throws IOException {
+          payloadSink.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+          try {
+            payloadSink.close();
+          } finally {
+            buffer.closeWriter();
+          }
+        }
+      };
+    }
+
+    /**
+     * Hands bytes to the extractor, waiting while it is too far behind. Failures here never fail
+     * the download: streaming just stops.
+     *
+     * @return Whether the bytes were handed over, and may be left out of the payload file.
+     */
+    private boolean forward(byte[] b, int off, int len) {
+      if (failed || len == 0) {
+        return false;
+      }
+      if (!started) {
+        start();
+        if (failed) {
+          return false;
+        }
+      }
+      try {
+        buffer.write(b, off, len);
+        bytesForwarded += len;
+        skippedPayloadFile |= !payloadFileRequired;
+        return true;
+      } catch (IOException e) {
+        LOG.debug(e, "Stopped streaming artifact extraction.");
+        failed = true;
+        return false;
+      }
+    }
+
+    private void start() {
+      started = true;
+      FutureTask<ImmutableSet<Path>> task = new FutureTask<>(this::extract);
+      try {
+        extractionExecutor.execute(task);
+        result = task;
+      } catch (RejectedExecutionException e) {
+        LOG.debug("No thread is free to extract the artifact while it is downloaded.");
+        failed = true;
+      }
+    }
+
+    /** Runs on the extraction executor, reading the payload as it arrives. */
+    private ImmutableSet<Path> extract() throws IOException {
+      try (InputStream archive = buffer) {
+        Path tmpDir = filesystem.getBuckPaths().getTmpDir();
+        filesystem.mkdirs(tmpDir);
+        Path staging =
+            tmpDir.resolve(
+                Files.createTempDirectory(filesystem.resolve(tmpDir), tempFilePrefix)
+                    .getFileName());
+        synchronized (this) {
+          stagingDirectory = staging;
+        }
+        ImmutableSet<Path> files =
+            unarchiver.extractArchive(
+                archive, filesystem, staging, ExistingFileMode.OVERWRITE, stagedDirectories);
+        // Keep reading so that the rest of the payload (e.g. archive padding) does not block the
+        // download.
+        ByteStreams.exhaust(archive);
+        return files;
+      } finally {
+        synchronized (this) {
+          finished = true;
+          if (discarded) {
+            deleteStagingDirectory();
+          }
+        }
+      }
+    }
+
+    /** Waits for the extractor to stop, and returns whether it extracted the whole payload. */
+    boolean await() {
+      buffer.closeWriter();
+      if (result == null) {
+        return false;
+      }
+      try {
+        stagedFiles = Uninterruptibles.getUninterruptibly(result);
+        return !failed;
+      } catch (ExecutionException e) {
+        LOG.debug(e.getCause(), "Streaming artifact extraction failed.");
+        return false;
+      }
+    }
+
+    /**
+     * Stops the extractor and deletes everything it wrote. A running extractor cleans up after
+     * itself once it stopped, so this never waits for it.
+     */
+    void discard() {
+      buffer.close();
+      synchronized (this) {
+        discarded = true;
+        if (finished || result == null) {
+          deleteStagingDirectory();
+        }
+      }
+    }
+
+    private synchronized void deleteStagingDirectory() {
+      if (stagingDirectory == null) {
+        return;
+      }
+      try {
+        filesystem.deleteRecursivelyIfExists(stagingDirectory);
+      } catch (IOException e) {
+        LOG.warn(e, "Could not delete staged artifact files in %s.", stagingDirectory);
+      }
+      stagingDirectory = null;
+    }
+
+    synchronized ImmutableSet<Path> install() throws IOException {
+      Path staging = Preconditions.checkNotNull(stagingDirectory);
+
+      // Moving files out of the staged directories changes their modification times, which were
+      // set from the archive, so read them first.
+      Map<Path, FileTime> directoryTimes = new HashMap<>();
+      Set<Path> directories = new HashSet<>();
+      for (Path stagedDirectory : stagedDirectories) {
+        Path directory = staging.relativize(stagedDirectory);
+        directories.add(directory);
+        directoryTimes.put(directory, filesystem.getLastModifiedTime(stagedDirectory));
+        if (filesystem.exists(directory, LinkOption.NOFOLLOW_LINKS)
+            && !filesystem.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)) {
+          filesystem.deleteFileAtPath(directory);
+        }
+        filesystem.mkdirs(directory);
+      }
+
+      ImmutableSet.Builder<Path> installed = ImmutableSet.builder();
+      for (Path stagedFile : Preconditions.checkNotNull(stagedFiles)) {
+        Path file = staging.relativize(stagedFile);
+        if (filesystem.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) {
+          filesystem.deleteRecursivelyIfExists(file);
+        } else {
+          filesystem.createParentDirs(file);
+        }
+        filesystem.move(stagedFile, file, StandardCopyOption.REPLACE_EXISTING);
+        installed.add(file);
+      }
+      ImmutableSet<Path> installedFiles = installed.build();
+
+      // Clean out directories of files that were not in the archive.
+      for (Path directory : directories) {
+        for (Path found :
+            filesystem
+                .asView()
+                .getFilesUnderPath(directory, EnumSet.noneOf(FileVisitOption.class))) {
+          if (!installedFiles.contains(found) && !directories.contains(found)) {
+            filesystem.deleteRecursivelyIfExists(found);
+          }
+        }
+      }
+      for (Map.Entry<Path, FileTime> directoryTime : directoryTimes.entrySet()) {
+        filesystem.setLastModifiedTime(directoryTime.getKey(), directoryTime.getValue());
+      }
+      return installedFiles;
+    }
+  }
+
+  /**
+   * Bytes handed from the download to the extractor. The download waits while more than {@link
+   * #BUFFER_CAPACITY_BYTES} are buffered, and stops forwarding once the extractor closed it.
+   */
+  private static class PayloadBuffer extends InputStream {
+    private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>();
+    private long bufferedBytes;
+    private boolean writerClosed;
+    private boolean readerClosed;
+
+    synchronized void write(byte[] b, int off, int len) throws IOException {
+      while (bufferedBytes >= BUFFER_CAPACITY_BYTES && !readerClosed) {
+        waitForChange();
+      }
+      if (readerClosed) {
+        throw new IOException("Artifact extraction stopped reading the payload.");
+      }
+      chunks.add(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)));
+      bufferedBytes += len;
+      notifyAll();
+    }
+
+    synchronized void closeWriter() {
+      writerClosed = true;
+      notifyAll();
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (chunks.isEmpty()) {
+        if (writerClosed || readerClosed) {
+          return -1;
+        }
+        waitForChange();
+      }
+      ByteBuffer chunk = chunks.peek();
+      int read = Math.min(len, chunk.remaining());
+      chunk.get(b, off, read);
+      if (!chunk.hasRemaining()) {
+        chunks.poll();
+      }
+      bufferedBytes -= read;
+      notifyAll();
+      return read;
+    }
+
+    @Override
+    public synchronized void close() {
+      readerClosed = true;
+      chunks.clear();
+      bufferedBytes = 0;
+      notifyAll();
+    }
+
+    private void waitForChange() throws InterruptedIOException {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while streaming artifact extraction.");
+      }
+    }
+  }
+}
@@ -22,11 +22,21 @@ import com.facebook.buck.core.config.BuckConfig;
 import com.facebook.buck.core.config.ConfigView;
 import com.facebook.buck.core.resources.ResourcesConfig;
 import com.facebook.buck.core.util.immutables.BuckStyleValue;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import java.util.Optional;
 
 @BuckStyleValue
 public abstract class CachingBuildEngineBuckConfig implements ConfigView<BuckConfig> {
 
+  private static final ImmutableList<String> DEFAULT_MEMORY_ADMISSION_HEAVY_RULE_TYPES =
+      ImmutableList.of(
+          "cxx_link",
+          "android_binary",
+          "non_pre_dexed_dex_buildable",
+          "pre_dex_merge",
+          "pre_dex_single_dex_merge");
+
   public static CachingBuildEngineBuckConfig of(BuckConfig delegate) {
     return ImmutableCachingBuildEngineBuckConfig.of(delegate);
   }
@@ -63,6 +73,70 @@ public abstract class CachingBuildEngineBuckConfig implements ConfigView<BuckCon
     return getDelegate().getLong("build", "artifact_cache_size_limit");
   }
 
+  /**
+   * @return whether rules that are ready to be built locally should be started in order of the
+   *     estimated length of the remaining critical path through them, rather than in the order in
+   *     which they became ready.
+   */
+  public boolean isCriticalPathSchedulingEnabled() {
+    return getDelegate().getBooleanValue("build", "critical_path_scheduling", false);
+  }
+
+  /**
+   * @return whether the resources consumed by rules built locally should be recorded in the rule
+   *     history in the scratch directory. Defaults to whether a feature relying on the history is
+   *     enabled.
+   */
+  public boolean isRuleHistoryEnabled() {
+    return getDelegate()
+        .getBooleanValue(
+            "build",
+            "record_rule_history",
+            isCriticalPathSchedulingEnabled() || isMemoryAdmissionControlEnabled());
+  }
+
+  /**
+   * @return whether rules that are expected to need a lot of memory should be held back from local
+   *     execution while the machine is short of free memory.
+   */
+  public boolean isMemoryAdmissionControlEnabled() {
+    return getDelegate().getBooleanValue("build", "memory_admission_control", false);
+  }
+
+  /** @return the amount of memory that memory admission control tries to keep available. */
+  public long getMemoryAdmissionReserveBytes() {
+    return getDelegate().getLong("build", "memory_admission_reserve_mb").orElse(1024L) << 20;
+  }
+
+  /**
+   * @return the expected peak memory above which a rule is subject to memory admission control.
+   *     Rules of the heavy types that have no history are assumed to need this much.
+   */
+  public long getMemoryAdmissionHeavyRuleThresholdBytes() {
+    return getDelegate().getLong("build", "memory_admission_heavy_rule_mb").orElse(512L) << 20;
+  }
+
+  /** @return rule types that are always subject to memory admission control. */
+  public ImmutableSet<String> getMemoryAdmissionHeavyRuleTypes() {
+    return ImmutableSet.copyOf(
+        getDelegate()
+            .getOptionalListWithoutComments("build", "memory_admission_heavy_rule_types")
+            .orElse(DEFAULT_MEMORY_ADMISSION_HEAVY_RULE_TYPES));
+  }
+
+  /**
+   * @return whether artifacts should be fetched from the cache ahead of the build, walking the
+   *     build graph top down once rule keys are known.
+   */
+  public boolean isArtifactPrefetchEnabled() {
+    return getDelegate().getBooleanValue("build", "artifact_prefetch", false);
+  }
+
+  /** @return the maximum number of artifact fetches the prefetcher keeps in flight. */
+  public int getArtifactPrefetchMaxInflightFetches() {
+    return getDelegate().getInteger("build", "artifact_prefetch_max_inflight").orElse(64);
+  }
+
   public ResourceAwareSchedulingInfo getResourceAwareSchedulingInfo() {
     ResourcesConfig resourcesConfig = getDelegate().getView(ResourcesConfig.class);
     return ResourceAwareSchedulingInfo.of(
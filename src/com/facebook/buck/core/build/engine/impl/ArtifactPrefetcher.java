@@ -0,0 +1,486 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.build.engine.impl;
+
+import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.ArtifactInfo;
+import com.facebook.buck.artifact_cache.CacheDecorator;
+import com.facebook.buck.artifact_cache.CacheDeleteResult;
+import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.artifact_cache.CacheResultType;
+import com.facebook.buck.artifact_cache.config.CacheReadMode;
+import com.facebook.buck.core.build.engine.config.CachingBuildEngineBuckConfig;
+import com.facebook.buck.core.build.engine.type.BuildType;
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.counters.Counter;
+import com.facebook.buck.counters.CounterRegistry;
+import com.facebook.buck.counters.IntegerCounter;
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.io.file.BorrowablePath;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.util.types.Pair;
+import com.facebook.buck.util.types.Unit;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.LinkedListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Multimaps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
+
+/**
+ * Fetches the artifacts of a build from the cache ahead of the build engine.
+ *
+ * <p>The engine only asks the cache for a rule once the rule is needed, i.e. once its parent has
+ * missed. For a mostly cached build, cache round trips are therefore serialized along the depth of
+ * the graph. Once default rule keys are known, the prefetcher walks the graph top down instead. It
+ * asks the cache which rules it has with {@link ArtifactCache#multiContainsAsync}, and downloads
+ * those with a bounded number of fetches in flight, which caches that support it batch into
+ * multi-fetches. In shallow builds, the build deps of a rule that is fetched from the cache are
+ * never needed, so the walk does not descend into them.
+ *
+ * <p>Artifacts are handed to the engine when it fetches the same rule key through {@link
+ * #wrap(ArtifactCache)}. Artifacts the engine never asks for are deleted on {@link #close()}.
+ */
+public class ArtifactPrefetcher implements AutoCloseable {
+
+  private static final Logger LOG = Logger.get(ArtifactPrefetcher.class);
+
+  private static final String COUNTER_CATEGORY = "buck_artifact_prefetch";
+
+  /** What the prefetcher needs to know about the build graph. */
+  interface BuildGraph {
+    ListenableFuture<RuleKey> getDefaultRuleKey(BuildRule rule);
+
+    /** @return whether the outputs of the rule for the given key are already on disk. */
+    boolean isUpToDate(BuildRule rule, RuleKey defaultRuleKey);
+
+    /** @return the rules that are needed whenever the given rule is needed. */
+    Iterable<BuildRule> getRuntimeDeps(BuildRule rule);
+  }
+
+  private final boolean skipDepsOfCachedRules;
+  private final int maxInflightFetches;
+
+  private final IntegerCounter prefetchedArtifacts;
+  private final IntegerCounter usefulArtifacts;
+  private final IntegerCounter usefulBytes;
+  private final IntegerCounter wastedBytes;
+
+  private final Set<BuildTarget> visited = ConcurrentHashMap.newKeySet();
+  private final ConcurrentMap<RuleKey, Prefetch> prefetches = new ConcurrentHashMap<>();
+
+  // Guarded by this.
+  private final Queue<Prefetch> queuedFetches = new ArrayDeque<>();
+  private int inflightFetches;
+  private boolean closed;
+
+  @VisibleForTesting
+  ArtifactPrefetcher(boolean skipDepsOfCachedRules, int maxInflightFetches) {
+    this.skipDepsOfCachedRules = skipDepsOfCachedRules;
+    this.maxInflightFetches = maxInflightFetches;
+    this.prefetchedArtifacts =
+        new IntegerCounter(COUNTER_CATEGORY, "prefetched_artifacts", ImmutableMap.of());
+    this.usefulArtifacts =
+        new IntegerCounter(COUNTER_CATEGORY, "useful_artifacts", ImmutableMap.of());
+    this.usefulBytes = new IntegerCounter(COUNTER_CATEGORY, "useful_bytes", ImmutableMap.of());
+    this.wastedBytes = new IntegerCounter(COUNTER_CATEGORY, "wasted_bytes", ImmutableMap.of());
+  }
+
+  /** @return a prefetcher if enabled in the config. */
+  public static Optional<ArtifactPrefetcher> create(
+      CachingBuildEngineBuckConfig config, BuildType buildMode, BuckEventBus eventBus) {
+    if (!config.isArtifactPrefetchEnabled()) {
+      return Optional.empty();
+    }
+    ArtifactPrefetcher prefetcher =
+        new ArtifactPrefetcher(
+            buildMode == BuildType.SHALLOW, config.getArtifactPrefetchMaxInflightFetches());
+    eventBus.post(new CounterRegistry.AsyncCounterRegistrationEvent(prefetcher.getCounters()));
+    return Optional.of(prefetcher);
+  }
+
+  @VisibleForTesting
+  ImmutableList<Counter> getCounters() {
+    return ImmutableList.of(prefetchedArtifacts, usefulArtifacts, usefulBytes, wastedBytes);
+  }
+
+  /** Starts prefetching the artifacts needed to build the given top level rule. */
+  void prefetch(BuildRule rule, ArtifactCache cache, BuildGraph graph) {
+    visit(ImmutableList.of(rule), cache, graph);
+  }
+
+  /** @return a cache that serves prefetched artifacts and delegates everything else. */
+  ArtifactCache wrap(ArtifactCache cache) {
+    return new PrefetchedArtifactCache(cache);
+  }
+
+  private void visit(Iterable<BuildRule> rules, ArtifactCache cache, BuildGraph graph) {
+    List<BuildRule> batch = new ArrayList<>();
+    for (BuildRule rule : rules) {
+      if (visited.add(rule.getBuildTarget())) {
+        batch.add(rule);
+      }
+    }
+    if (batch.isEmpty() || isClosed()) {
+      return;
+    }
+    List<ListenableFuture<RuleKey>> ruleKeys = new ArrayList<>(batch.size());
+    for (BuildRule rule : batch) {
+      ruleKeys.add(graph.getDefaultRuleKey(rule));
+    }
+    onSuccess(
+        Futures.allAsList(ruleKeys), keys -> checkCache(batch, keys, cache, graph), "rule keys");
+  }
+
+  /** Checks which of the given rules are worth fetching. */
+  private void checkCache(
+      List<BuildRule> rules, List<RuleKey> ruleKeys, ArtifactCache cache, BuildGraph graph) {
+    ListMultimap<RuleKey, BuildRule> toCheck = LinkedListMultimap.create();
+    List<BuildRule> next = new ArrayList<>();
+    for (int i = 0; i < rules.size(); i++) {
+      BuildRule rule = rules.get(i);
+      RuleKey ruleKey = ruleKeys.get(i);
+      if (graph.isUpToDate(rule, ruleKey)) {
+        // The engine won't fetch it, and its deps are not needed either.
+        Iterables.addAll(next, depsToVisit(rule, true, graph));
+      } else if (!rule.isCacheable()) {
+        Iterables.addAll(next, depsToVisit(rule, false, graph));
+      } else {
+        toCheck.put(ruleKey, rule);
+      }
+    }
+    visit(next, cache, graph);
+    if (toCheck.isEmpty()) {
+      return;
+    }
+
+    ListenableFuture<ImmutableMap<RuleKey, CacheResult>> contains =
+        Futures.catching(
+            cache.multiContainsAsync(ImmutableSet.copyOf(toCheck.keySet())),
+            Exception.class,
+            e -> {
+              // Not every cache can answer this. Fetching tells us as well.
+              LOG.verbose(e, "multiContains failed, fetching unconditionally.");
+              return ImmutableMap.of();
+            },
+            MoreExecutors.directExecutor());
+    onSuccess(
+        contains,
+        results -> {
+          List<BuildRule> missed = new ArrayList<>();
+          for (Map.Entry<RuleKey, List<BuildRule>> entry : Multimaps.asMap(toCheck).entrySet()) {
+            CacheResult result = results.get(entry.getKey());
+            if (result != null && result.getType() == CacheResultType.MISS) {
+              for (BuildRule rule : entry.getValue()) {
+                Iterables.addAll(missed, depsToVisit(rule, false, graph));
+              }
+            } else {
+              enqueue(new Prefetch(entry.getKey(), entry.getValue(), cache, graph));
+            }
+          }
+          visit(missed, cache, graph);
+        },
+        "cache check");
+  }
+
+  private Iterable<BuildRule> depsToVisit(BuildRule rule, boolean isAvailable, BuildGraph graph) {
+    if (isAvailable && skipDepsOfCachedRules) {
+      return graph.getRuntimeDeps(rule);
+    }
+    return Iterables.concat(rule.getBuildDeps(), graph.getRuntimeDeps(rule));
+  }
+
+  private void enqueue(Prefetch prefetch) {
+    if (prefetches.putIfAbsent(prefetch.ruleKey, prefetch) != null) {
+      return;
+    }
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      queuedFetches.add(prefetch);
+    }
+    startQueuedFetches();
+  }
+
+  private void startQueuedFetches() {
+    while (true) {
+      Prefetch prefetch;
+      synchronized (this) {
+        if (closed || inflightFetches >= maxInflightFetches || queuedFetches.isEmpty()) {
+          return;
+        }
+        prefetch = queuedFetches.remove();
+        inflightFetches++;
+      }
+      prefetch.result.addListener(
+          () -> {
+            synchronized (this) {
+              inflightFetches--;
+            }
+            startQueuedFetches();
+          },
+          MoreExecutors.directExecutor());
+      prefetch.start();
+    }
+  }
+
+  private synchronized boolean isClosed() {
+    return closed;
+  }
+
+  /** Deletes the artifacts that the build did not use. */
+  @Override
+  public void close() {
+    synchronized (this) {
+      closed = true;
+      queuedFetches.clear();
+    }
+    for (Prefetch prefetch : prefetches.values()) {
+      prefetch.result.addListener(prefetch::discard, MoreExecutors.directExecutor());
+    }
+    prefetches.clear();
+  }
+
+  private static <T> void onSuccess(
+      ListenableFuture<T> future, Consumer<T> action, String what) {
+    Futures.addCallback(
+        future,
+        new FutureCallback<T>() {
+          @Override
+          public void onSuccess(@Nullable T result) {
+            action.accept(result);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            LOG.debug(t, "Stopped prefetching after failing to get %s.", what);
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  /** A single artifact download. */
+  private class Prefetch {
+    private final RuleKey ruleKey;
+    private final List<BuildRule> rules;
+    private final ArtifactCache cache;
+    private final BuildGraph graph;
+    private final SettableFuture<CacheResult> result = SettableFuture.create();
+    private final LazyPath output =
+        new LazyPath() {
+          @Override
+          protected Path create() throws IOException {
+            Path path = Files.createTempFile("buck_prefetch_", ".zip");
+            file = path;
+            return path;
+          }
+        };
+    @Nullable private volatile Path file;
+    private boolean started;
+    private boolean claimed;
+
+    Prefetch(RuleKey ruleKey, List<BuildRule> rules, ArtifactCache cache, BuildGraph graph) {
+      this.ruleKey = ruleKey;
+      this.rules = rules;
+      this.cache = cache;
+      this.graph = graph;
+    }
+
+    void start() {
+      synchronized (this) {
+        if (started) {
+          return;
+        }
+        started = true;
+      }
+      result.setFuture(cache.fetchAsync(rules.get(0).getBuildTarget(), ruleKey, output));
+      onSuccess(
+          result,
+          cacheResult -> {
+            boolean hit = cacheResult.getType() == CacheResultType.HIT;
+            if (hit) {
+              prefetchedArtifacts.inc();
+            }
+            List<BuildRule> next = new ArrayList<>();
+            for (BuildRule rule : rules) {
+              Iterables.addAll(next, depsToVisit(rule, hit, graph));
+            }
+            visit(next, cache, graph);
+          },
+          "artifact");
+    }
+
+    /** @return whether the caller now owns the artifact. */
+    synchronized boolean claim() {
+      if (claimed) {
+        return false;
+      }
+      claimed = true;
+      return true;
+    }
+
+    /**
+     * Moves the downloaded artifact to {@code destination}.
+     *
+     * @return the size of the artifact
+     */
+    long moveTo(LazyPath destination) throws IOException {
+      Path source = Objects.requireNonNull(file);
+      long size = Files.size(source);
+      Files.move(source, destination.get(), StandardCopyOption.REPLACE_EXISTING);
+      return size;
+    }
+
+    /** Deletes the artifact unless it has been claimed. Must only be called once it is done. */
+    void discard() {
+      synchronized (this) {
+        if (claimed) {
+          return;
+        }
+        claimed = true;
+      }
+      Path path = file;
+      if (path == null) {
+        return;
+      }
+      try {
+        if (Futures.getDone(result).getType() == CacheResultType.HIT) {
+          wastedBytes.inc(Files.size(path));
+        }
+      } catch (ExecutionException | IOException e) {
+        LOG.debug(e, "Could not size unused prefetched artifact for %s.", ruleKey);
+      }
+      try {
+        Files.deleteIfExists(path);
+      } catch (IOException e) {
+        LOG.debug(e, "Could not delete unused prefetched artifact for %s.", ruleKey);
+      }
+    }
+  }
+
+  /** Serves the default rule key fetches of the engine from the prefetched artifacts. */
+  private class PrefetchedArtifactCache implements ArtifactCache, CacheDecorator {
+    private final ArtifactCache delegate;
+
+    PrefetchedArtifactCache(ArtifactCache delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public ArtifactCache getDelegate() {
+      return delegate;
+    }
+
+    @Override
+    public ListenableFuture<CacheResult> fetchAsync(
+        @Nullable BuildTarget target, RuleKey ruleKey, LazyPath output) {
+      Prefetch prefetch = prefetches.remove(ruleKey);
+      if (prefetch == null || !prefetch.claim()) {
+        return delegate.fetchAsync(target, ruleKey, output);
+      }
+      // Don't wait for a slot if the prefetch is still queued, the engine needs it now.
+      prefetch.start();
+      return Futures.catchingAsync(
+          Futures.transformAsync(
+              prefetch.result,
+              cacheResult -> {
+                if (cacheResult.getType() == CacheResultType.HIT) {
+                  long size = prefetch.moveTo(output);
+                  usefulArtifacts.inc();
+                  usefulBytes.inc(size);
+                  return Futures.immediateFuture(cacheResult);
+                }
+                if (cacheResult.getType() == CacheResultType.MISS) {
+                  return Futures.immediateFuture(cacheResult);
+                }
+                return delegate.fetchAsync(target, ruleKey, output);
+              },
+              MoreExecutors.directExecutor()),
+          Exception.class,
+          e -> {
+            LOG.debug(e, "Prefetching %s failed, fetching it again.", ruleKey);
+            return delegate.fetchAsync(target, ruleKey, output);
+          },
+          MoreExecutors.directExecutor());
+    }
+
+    @Override
+    public void skipPendingAndFutureAsyncFetches() {
+      delegate.skipPendingAndFutureAsyncFetches();
+    }
+
+    @Override
+    public ListenableFuture<Unit> store(ArtifactInfo info, BorrowablePath output) {
+      return delegate.store(info, output);
+    }
+
+    @Override
+    public ListenableFuture<Unit> store(
+        ImmutableList<Pair<ArtifactInfo, BorrowablePath>> artifacts) {
+      return delegate.store(artifacts);
+    }
+
+    @Override
+    public ListenableFuture<ImmutableMap<RuleKey, CacheResult>> multiContainsAsync(
+        ImmutableSet<RuleKey> ruleKeys) {
+      return delegate.multiContainsAsync(ruleKeys);
+    }
+
+    @Override
+    public ListenableFuture<CacheDeleteResult> deleteAsync(List<RuleKey> ruleKeys) {
+      return delegate.deleteAsync(ruleKeys);
+    }
+
+    @Override
+    public CacheReadMode getCacheReadMode() {
+      return delegate.getCacheReadMode();
+    }
+
+    @Override
+    public void close() {
+      delegate.close();
+    }
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.build.engine.impl;
+
+import com.facebook.buck.core.build.engine.config.CachingBuildEngineBuckConfig;
+import com.facebook.buck.core.build.stats.BuildRuleHistoryStore;
+import com.facebook.buck.core.build.stats.RuleResourceUsage;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.util.ProcessResourceConsumption;
+import com.facebook.buck.util.perf.ProcessTracker.ProcessResourceConsumptionEvent;
+import com.google.common.eventbus.Subscribe;
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the resources consumed by the rules built locally and records them in a {@link
+ * BuildRuleHistoryStore} when the build engine is closed.
+ *
+ * <p>Memory and CPU time of the processes launched by build steps come from the {@link
+ * ProcessResourceConsumptionEvent}s of the process tracker, which samples processes periodically.
+ * Consumption that has not been reported by the time the engine closes is not recorded, and rules
+ * whose processes were not reported keep their previously recorded peak memory.
+ */
+public class BuildRuleHistoryRecorder {
+  private static final Logger LOG = Logger.get(BuildRuleHistoryRecorder.class);
+
+  private final BuildRuleHistoryStore store;
+  private final BuckEventBus eventBus;
+
+  private final ConcurrentMap<String, LocalBuild> localBuilds = new ConcurrentHashMap<>();
+  /** Consumption summed over the processes of each rule, for CPU time. */
+  private final ConcurrentMap<String, ProcessResourceConsumption> totalProcessConsumption =
+      new ConcurrentHashMap<>();
+  /** Consumption of the most demanding process of each rule, for peak memory. */
+  private final ConcurrentMap<String, ProcessResourceConsumption> peakProcessConsumption =
+      new ConcurrentHashMap<>();
+
+  BuildRuleHistoryRecorder(BuildRuleHistoryStore store, BuckEventBus eventBus) {
+    this.store = store;
+    this.eventBus = eventBus;
+    eventBus.register(this);
+  }
+
+  /**
+   * Creates a recorder if recording the rule history is enabled, backed by the store in the scratch
+   * directory of the given filesystem.
+   */
+  public static Optional<BuildRuleHistoryRecorder> create(
+      CachingBuildEngineBuckConfig config, ProjectFilesystem filesystem, BuckEventBus eventBus) {
+    if (!config.isRuleHistoryEnabled()) {
+      return Optional.empty();
+    }
+    try {
+      return Optional.of(
+          new BuildRuleHistoryRecorder(BuildRuleHistoryStore.open(filesystem), eventBus));
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to open the rule history, not recording it for this build.");
+      return Optional.empty();
+    }
+  }
+
+  /** @return the history as it was before this build, to estimate the cost of building rules. */
+  public BuildRuleHistoryStore getStore() {
+    return store;
+  }
+
+  /** Records the resources consumed by the build steps of the given rule. */
+  void onRuleBuiltLocally(
+      BuildRule rule, long wallTimeNanos, long threadCpuTimeNanos, long outputSizeBytes) {
+    localBuilds.put(
+        rule.getFullyQualifiedName(),
+        new LocalBuild(rule, wallTimeNanos, threadCpuTimeNanos, outputSizeBytes));
+  }
+
+  @Subscribe
+  public void onProcessResourceConsumption(ProcessResourceConsumptionEvent event) {
+    Optional<String> target =
+        event.getContext().map(context -> context.get(CachingBuildEngine.BUILD_TARGET_CONTEXT_KEY));
+    if (!target.isPresent() || !event.getResourceConsumption().isPresent()) {
+      return;
+    }
+    ProcessResourceConsumption consumption = event.getResourceConsumption().get();
+    totalProcessConsumption.merge(target.get(), consumption, ProcessResourceConsumption::getTotal);
+    peakProcessConsumption.merge(target.get(), consumption, ProcessResourceConsumption::getPeak);
+  }
+
+  /** Records the collected samples in the store and closes it. */
+  void close() {
+    eventBus.unregister(this);
+    for (LocalBuild build : localBuilds.values()) {
+      String target = build.rule.getFullyQualifiedName();
+      ProcessResourceConsumption totalConsumption = totalProcessConsumption.get(target);
+      ProcessResourceConsumption peakConsumption = peakProcessConsumption.get(target);
+      long cpuTimeMillis = TimeUnit.NANOSECONDS.toMillis(build.threadCpuTimeNanos);
+      long peakMemoryBytes;
+      if (totalConsumption != null && peakConsumption != null) {
+        cpuTimeMillis += totalConsumption.getCpuTotal();
+        peakMemoryBytes = peakConsumption.getMemResident();
+      } else {
+        peakMemoryBytes =
+            store.getTargetUsage(target).map(RuleResourceUsage::getPeakMemoryBytes).orElse(0L);
+      }
+      store.record(
+          build.rule,
+          RuleResourceUsage.of(
+              TimeUnit.NANOSECONDS.toMillis(build.wallTimeNanos),
+              cpuTimeMillis,
+              peakMemoryBytes,
+              build.outputSizeBytes));
+    }
+    try {
+      store.close();
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to save the rule history.");
+    }
+  }
+
+  private static class LocalBuild {
+    private final BuildRule rule;
+    private final long wallTimeNanos;
+    private final long threadCpuTimeNanos;
+    private final long outputSizeBytes;
+
+    private LocalBuild(
+        BuildRule rule, long wallTimeNanos, long threadCpuTimeNanos, long outputSizeBytes) {
+      this.rule = rule;
+      this.wallTimeNanos = wallTimeNanos;
+      this.threadCpuTimeNanos = threadCpuTimeNanos;
+      this.outputSizeBytes = outputSizeBytes;
+    }
+  }
+}
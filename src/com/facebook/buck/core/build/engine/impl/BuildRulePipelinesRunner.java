@@ -36,7 +36,7 @@ import java.util.Optional;
 import java.util.SortedSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
 import java.util.function.Function;
 import javax.annotation.Nullable;
 
@@ -103,7 +103,7 @@ public class BuildRulePipelinesRunner {
 
   public <T extends RulePipelineState>
       ListenableFuture<Optional<BuildResult>> runPipelineStartingAt(
-          BuildContext context, SupportsPipelining<T> rootRule, ExecutorService executor) {
+          BuildContext context, SupportsPipelining<T> rootRule, Executor executor) {
     RunnableWithFuture<Optional<BuildResult>> runner = newPipelineRunner(context, rootRule);
     executor.execute(runner);
     return runner.getFuture();
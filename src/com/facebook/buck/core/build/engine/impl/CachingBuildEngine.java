@@ -17,6 +17,7 @@
 package com.facebook.buck.core.build.engine.impl;
 
 import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.ArtifactCompression;
 import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.core.build.action.resolver.BuildEngineActionToBuildRuleResolver;
 import com.facebook.buck.core.build.buildable.context.BuildableContext;
@@ -53,6 +54,7 @@ import com.facebook.buck.rules.keys.hasher.StringRuleKeyHasher;
 import com.facebook.buck.util.cache.FileHashCache;
 import com.facebook.buck.util.collect.SortedSets;
 import com.facebook.buck.util.concurrent.MoreFutures;
+import com.facebook.buck.util.concurrent.MostExecutors;
 import com.facebook.buck.util.concurrent.ResourceAmounts;
 import com.facebook.buck.util.concurrent.WeightedListeningExecutorService;
 import com.facebook.buck.util.types.Unit;
@@ -78,6 +80,10 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import javax.annotation.Nullable;
@@ -97,6 +103,7 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
 
   static final String BUILD_RULE_TYPE_CONTEXT_KEY = "build_rule_type";
   static final String STEP_TYPE_CONTEXT_KEY = "step_type";
+  static final String BUILD_TARGET_CONTEXT_KEY = "build_target";
   private final ConcurrentLinkedQueue<ListenableFuture<Unit>> asyncCallbacks;
 
   enum StepType {
@@ -130,6 +137,12 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
   private final FileHashCache fileHashCache;
   @VisibleForTesting final RuleKeyFactories ruleKeyFactories;
   private final ResourceAwareSchedulingInfo resourceAwareSchedulingInfo;
+  private final Optional<CriticalPathScheduler> criticalPathScheduler;
+  private final Optional<BuildRuleHistoryRecorder> ruleHistoryRecorder;
+  private final Optional<MemoryAdmissionController> memoryAdmissionController;
+  private final Optional<ArtifactPrefetcher> artifactPrefetcher;
+  private final ArtifactCompression artifactCompression;
+  private final ExecutorService artifactExtractionExecutor;
 
   private final RuleDepsCache ruleDeps;
   private final Optional<UnskippedBuildEngineActionTracker> unskippedRulesTracker;
@@ -157,6 +170,11 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
       TargetConfigurationSerializer targetConfigurationSerializer,
       BuildInfoStoreManager buildInfoStoreManager,
       ResourceAwareSchedulingInfo resourceAwareSchedulingInfo,
+      Optional<CriticalPathScheduler> criticalPathScheduler,
+      Optional<BuildRuleHistoryRecorder> ruleHistoryRecorder,
+      Optional<MemoryAdmissionController> memoryAdmissionController,
+      Optional<ArtifactPrefetcher> artifactPrefetcher,
+      ArtifactCompression artifactCompression,
       boolean consoleLogBuildFailuresInline,
       RuleKeyFactories ruleKeyFactories) {
     this(
@@ -173,6 +191,11 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
         targetConfigurationSerializer,
         ruleKeyFactories,
         resourceAwareSchedulingInfo,
+        criticalPathScheduler,
+        ruleHistoryRecorder,
+        memoryAdmissionController,
+        artifactPrefetcher,
+        artifactCompression,
         new RuleKeyDiagnostics<>(
             rule ->
                 ruleKeyFactories
@@ -201,6 +224,11 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
       TargetConfigurationSerializer targetConfigurationSerializer,
       RuleKeyFactories ruleKeyFactories,
       ResourceAwareSchedulingInfo resourceAwareSchedulingInfo,
+      Optional<CriticalPathScheduler> criticalPathScheduler,
+      Optional<BuildRuleHistoryRecorder> ruleHistoryRecorder,
+      Optional<MemoryAdmissionController> memoryAdmissionController,
+      Optional<ArtifactPrefetcher> artifactPrefetcher,
+      ArtifactCompression artifactCompression,
       RuleKeyDiagnostics<RuleKey, String> defaultRuleKeyDiagnostics,
       boolean consoleLogBuildFailuresInline) {
     this.cachingBuildEngineDelegate = cachingBuildEngineDelegate;
@@ -217,6 +245,21 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     this.fileHashCache = cachingBuildEngineDelegate.getFileHashCache();
     this.ruleKeyFactories = ruleKeyFactories;
     this.resourceAwareSchedulingInfo = resourceAwareSchedulingInfo;
+    this.criticalPathScheduler = criticalPathScheduler;
+    this.ruleHistoryRecorder = ruleHistoryRecorder;
+    this.memoryAdmissionController = memoryAdmissionController;
+    this.artifactPrefetcher = artifactPrefetcher;
+    this.artifactCompression = artifactCompression;
+    // Fetched artifacts are unpacked while they are downloaded by at most one thread per core.
+    // Fetches that find no free thread are unpacked from the downloaded file instead.
+    this.artifactExtractionExecutor =
+        new ThreadPoolExecutor(
+            /* corePoolSize */ 0,
+            /* maximumPoolSize */ Runtime.getRuntime().availableProcessors(),
+            /* keepAliveTime */ 10L,
+            TimeUnit.SECONDS,
+            /* workQueue */ new SynchronousQueue<>(),
+            /* threadFactory */ new MostExecutors.NamedThreadFactory("artifact-extraction"));
     this.buildInfoStoreManager = buildInfoStoreManager;
 
     this.ruleDeps = new DefaultRuleDepsCache(resolver, actionToBuildRuleResolver);
@@ -244,11 +287,31 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
         customBuildRuleStrategy.get().close();
       }
       terminateBuildWithFailure(new CancellationException("Cancelling due to engine shutdown."));
+      memoryAdmissionController.ifPresent(MemoryAdmissionController::close);
       Futures.allAsList(asyncCallbacks).get();
     } catch (InterruptedException e) {
-      e.printStackTrace();
+      Thread.currentThread().interrupt();
     } catch (IOException | ExecutionException e) {
       throw new RuntimeException(e);
+    } finally {
+      closeResources();
+    }
+  }
+
+  /** Releases the resources owned by the engine, even if releasing one of them fails. */
+  private void closeResources() {
+    try {
+      artifactExtractionExecutor.shutdownNow();
+    } finally {
+      try {
+        artifactPrefetcher.ifPresent(ArtifactPrefetcher::close);
+      } finally {
+        try {
+          criticalPathScheduler.ifPresent(CriticalPathScheduler::close);
+        } finally {
+          ruleHistoryRecorder.ifPresent(BuildRuleHistoryRecorder::close);
+        }
+      }
     }
   }
 
@@ -444,6 +507,16 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     // Keep track of all jobs that run asynchronously with respect to the build dep chain.  We want
     // to make sure we wait for these before calling yielding the final build result.
     registerTopLevelRule(rule, buildContext.getEventBus());
+    criticalPathScheduler.ifPresent(
+        scheduler -> {
+          if (!scheduler.isPrioritized(rule)) {
+            scheduler.prioritize(ImmutableList.of(rule), ruleDeps);
+          }
+        });
+    artifactPrefetcher.ifPresent(
+        prefetcher ->
+            prefetcher.prefetch(
+                rule, buildContext.getArtifactCache(), new PrefetchBuildGraph(buildContext)));
     ListenableFuture<BuildResult> resultFuture =
         getBuildRuleResultWithRuntimeDeps(rule, buildContext, executionContext);
     return BuildEngine.BuildEngineResult.of(resultFuture);
@@ -484,6 +557,8 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
         new CachingBuildRuleBuilder(
             new DefaultBuildRuleBuilderDelegate(this, buildContext),
             artifactCacheSizeLimit,
+            artifactCompression,
+            artifactExtractionExecutor,
             buildInfoStoreManager,
             buildMode,
             buildRuleDurationTracker,
@@ -522,12 +597,49 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
           CachingBuildRuleBuilder removed = liveRuleBuilders.remove(rule.getBuildTarget());
           Preconditions.checkState(
               removed != null, "rule builder must be removed once: %s", rule.getBuildTarget());
+          criticalPathScheduler.ifPresent(scheduler -> scheduler.onRuleFinished(rule));
         },
         MoreExecutors.directExecutor());
 
     return future;
   }
 
+  private class PrefetchBuildGraph implements ArtifactPrefetcher.BuildGraph {
+    private final BuildEngineBuildContext buildContext;
+
+    PrefetchBuildGraph(BuildEngineBuildContext buildContext) {
+      this.buildContext = buildContext;
+    }
+
+    @Override
+    public ListenableFuture<RuleKey> getDefaultRuleKey(BuildRule rule) {
+      return calculateRuleKey(rule, buildContext);
+    }
+
+    @Override
+    public boolean isUpToDate(BuildRule rule, RuleKey defaultRuleKey) {
+      return buildContext
+          .createOnDiskBuildInfoFor(
+              rule.getBuildTarget(),
+              rule.getProjectFilesystem(),
+              buildInfoStoreManager.get(rule.getProjectFilesystem()))
+          .getRuleKey(BuildInfo.MetadataKey.RULE_KEY)
+          .map(defaultRuleKey::equals)
+          .orElse(false);
+    }
+
+    @Override
+    public Iterable<BuildRule> getRuntimeDeps(BuildRule rule) {
+      if (!(rule instanceof HasRuntimeDeps)) {
+        return ImmutableList.of();
+      }
+      return ((HasRuntimeDeps) rule)
+          .getRuntimeDeps(resolver)
+          .map(resolver::getRule)
+          .collect(ImmutableList.toImmutableList());
+    }
+  }
+
   public static class DefaultBuildRuleBuilderDelegate
       implements CachingBuildRuleBuilder.BuildRuleBuilderDelegate {
     private final CachingBuildEngine cachingBuildEngine;
@@ -570,5 +682,46 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     public void onRuleAboutToBeBuilt(BuildRule rule) {
       cachingBuildEngine.cachingBuildEngineDelegate.onRuleAboutToBeBuilt(rule);
     }
+
+    @Override
+    public long getSchedulingPriority(BuildRule rule) {
+      return cachingBuildEngine
+          .criticalPathScheduler
+          .map(scheduler -> scheduler.getPriority(rule))
+          .orElse(0L);
+    }
+
+    @Override
+    public ListenableFuture<Unit> admitLocalBuild(BuildRule rule) {
+      return cachingBuildEngine
+          .memoryAdmissionController
+          .map(controller -> controller.admit(rule, getSchedulingPriority(rule)))
+          .orElse(Futures.immediateFuture(Unit.UNIT));
+    }
+
+    @Override
+    public ArtifactCache getDefaultRuleKeyArtifactCache(ArtifactCache artifactCache) {
+      return cachingBuildEngine
+          .artifactPrefetcher
+          .map(prefetcher -> prefetcher.wrap(artifactCache))
+          .orElse(artifactCache);
+    }
+
+    @Override
+    public void onLocalBuildFinished(BuildRule rule) {
+      cachingBuildEngine.memoryAdmissionController.ifPresent(
+          controller -> controller.onFinished(rule));
+    }
+
+    @Override
+    public void onRuleBuiltLocally(
+        BuildRule rule, long wallTimeNanos, long threadCpuTimeNanos, long outputSizeBytes) {
+      cachingBuildEngine.criticalPathScheduler.ifPresent(
+          scheduler -> scheduler.onRuleBuiltLocally(rule, wallTimeNanos));
+      cachingBuildEngine.ruleHistoryRecorder.ifPresent(
+          recorder ->
+              recorder.onRuleBuiltLocally(
+                  rule, wallTimeNanos, threadCpuTimeNanos, outputSizeBytes));
+    }
   }
 }
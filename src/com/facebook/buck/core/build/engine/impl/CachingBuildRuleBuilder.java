@@ -17,6 +17,7 @@
 package com.facebook.buck.core.build.engine.impl;
 
 import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.ArtifactCompression;
 import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.artifact_cache.CacheResultType;
 import com.facebook.buck.artifact_cache.RuleKeyCacheResult;
@@ -111,6 +112,8 @@ import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.nio.file.Path;
 import java.util.Collections;
 import java.util.HashSet;
@@ -120,6 +123,7 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Supplier;
 import javax.annotation.Nonnull;
@@ -127,6 +131,7 @@ import javax.annotation.Nullable;
 
 class CachingBuildRuleBuilder {
   private static final Logger LOG = Logger.get(CachingBuildRuleBuilder.class);
+  private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
   private final BuildRuleBuilderDelegate buildRuleBuilderDelegate;
   private final BuildType buildMode;
   private final boolean consoleLogBuildFailuresInline;
@@ -164,6 +169,8 @@ class CachingBuildRuleBuilder {
   @Nullable private volatile Pair<Long, Long> inputRuleKeyCacheCheckTimestampsMillis = null;
   @Nullable private volatile Pair<Long, Long> manifestRuleKeyCacheCheckTimestampsMillis = null;
   @Nullable private volatile Pair<Long, Long> buildTimestampsMillis = null;
+  // Wall and build thread CPU time of executing the steps of this rule locally.
+  @Nullable private volatile Pair<Long, Long> localExecutionNanos = null;
 
   // This is used to mark that we've invalidated cached state that is no longer valid if this rule's
   // outputs change. When we finish the rule, we verify that that invalidation has happened if this
@@ -188,10 +195,13 @@ class CachingBuildRuleBuilder {
 
   private @Nullable volatile Throwable firstFailure = null;
   private @Nullable volatile StrategyBuildResult strategyResult = null;
+  private @Nullable volatile ListenableFuture<Unit> localBuildAdmission = null;
 
   public CachingBuildRuleBuilder(
       BuildRuleBuilderDelegate buildRuleBuilderDelegate,
       Optional<Long> artifactCacheSizeLimit,
+      ArtifactCompression artifactCompression,
+      Executor artifactExtractionExecutor,
       BuildInfoStoreManager buildInfoStoreManager,
       BuildType buildMode,
       BuildRuleDurationTracker buildRuleDurationTracker,
@@ -268,7 +278,9 @@ class CachingBuildRuleBuilder {
             this::onOutputsWillChange,
             eventBus,
             buildInfoStoreManager,
-            onDiskBuildInfo);
+            onDiskBuildInfo,
+            artifactCompression,
+            artifactExtractionExecutor);
     inputBasedRuleKeyManager =
         new InputBasedRuleKeyManager(
             eventBus,
@@ -305,7 +317,8 @@ class CachingBuildRuleBuilder {
             manifestRuleKeyManager,
             eventBus,
             artifactCache,
-            artifactCacheSizeLimit);
+            artifactCacheSizeLimit,
+            artifactCompression);
     this.customBuildRuleStrategy = customBuildRuleStrategy;
   }
 
@@ -746,6 +759,22 @@ class CachingBuildRuleBuilder {
       onDiskBuildInfo.calculateOutputSizeAndWriteMetadata(
           fileHashCache, getBuildInfoRecorder().getRecordedPaths(), this::shouldWriteOutputHashes);
     }
+
+    Pair<Long, Long> executionNanos = localExecutionNanos;
+    if (executionNanos != null) {
+      long outputSize =
+          onDiskBuildInfo
+              .getValue(BuildInfo.MetadataKey.OUTPUT_SIZE)
+              .transform(Long::parseLong, right -> 0L);
+      buildRuleBuilderDelegate.onRuleBuiltLocally(
+          rule, executionNanos.getFirst(), executionNanos.getSecond(), outputSize);
+    }
+  }
+
+  private static long getCurrentThreadCpuTimeNanos() {
+    return THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported()
+        ? Math.max(0, THREAD_MX_BEAN.getCurrentThreadCpuTime())
+        : 0;
   }
 
   private boolean shouldWriteOutputHashes(long outputSize) {
@@ -850,12 +879,38 @@ class CachingBuildRuleBuilder {
         new BuildStrategyContext() {
           @Override
           public ListenableFuture<Optional<BuildResult>> runWithDefaultBehavior() {
+            ListenableFuture<Unit> admission = buildRuleBuilderDelegate.admitLocalBuild(rule);
+            localBuildAdmission = admission;
             if (SupportsPipelining.isSupported(rule)
                 && ((SupportsPipelining<?>) rule).useRulePipelining()) {
-              return pipelinesRunner.runPipelineStartingAt(
-                  buildRuleBuildContext, (SupportsPipelining<?>) rule, service);
+              // The rest of the pipeline runs on the same thread right after this rule, so the
+              // admission is held until the whole pipeline is done.
+              SettableFuture<Optional<BuildResult>> pipelineFuture = SettableFuture.create();
+              admission.addListener(
+                  () ->
+                      pipelineFuture.setFuture(
+                          pipelinesRunner.runPipelineStartingAt(
+                              buildRuleBuildContext,
+                              (SupportsPipelining<?>) rule,
+                              pipeline ->
+                                  service.execute(
+                                      () -> {
+                                        try {
+                                          pipeline.run();
+                                        } finally {
+                                          buildRuleBuilderDelegate.onLocalBuildFinished(rule);
+                                        }
+                                      }))),
+                  MoreExecutors.directExecutor());
+              return pipelineFuture;
             } else {
-              service.submit(buildRuleSteps::runWithDefaultExecutor);
+              // Steps check whether the build was cancelled while the rule was held back.
+              admission.addListener(
+                  () -> service.submit(buildRuleSteps::runWithDefaultExecutor),
+                  MoreExecutors.directExecutor());
+              buildRuleSteps.future.addListener(
+                  () -> buildRuleBuilderDelegate.onLocalBuildFinished(rule),
+                  MoreExecutors.directExecutor());
               return buildRuleSteps.future;
             }
           }
@@ -1082,7 +1137,8 @@ class CachingBuildRuleBuilder {
                     service
                         // This needs to adjust the default amounts even in the non-resource-aware
                         // scheduling case so that RuleScheduleInfo works correctly.
-                        .withDefaultAmounts(getRuleResourceAmounts())));
+                        .withDefaultAmounts(getRuleResourceAmounts())
+                        .withPriority(buildRuleBuilderDelegate.getSchedulingPriority(rule))));
 
     if (SupportsPipelining.isSupported(rule)) {
       buildResultFuture.addListener(
@@ -1134,7 +1190,7 @@ class CachingBuildRuleBuilder {
         buildCacheArtifactFetcher
             .tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
                 defaultKey,
-                artifactCache,
+                buildRuleBuilderDelegate.getDefaultRuleKeyArtifactCache(artifactCache),
                 // TODO(simons): This should be a shared between all tests, not one per cell
                 rule.getProjectFilesystem()),
         cacheResult -> {
@@ -1353,6 +1409,10 @@ class CachingBuildRuleBuilder {
     if (strategyResult != null) {
       Objects.requireNonNull(strategyResult).cancel(throwable);
     }
+    ListenableFuture<Unit> admission = localBuildAdmission;
+    if (admission != null) {
+      admission.cancel(false);
+    }
   }
 
   /** Encapsulates the steps involved in building a single {@link BuildRule} locally. */
@@ -1374,7 +1434,9 @@ class CachingBuildRuleBuilder {
                       CachingBuildEngine.BUILD_RULE_TYPE_CONTEXT_KEY,
                       rule.getType(),
                       CachingBuildEngine.STEP_TYPE_CONTEXT_KEY,
-                      StepType.BUILD_STEP.toString())));
+                      StepType.BUILD_STEP.toString(),
+                      CachingBuildEngine.BUILD_TARGET_CONTEXT_KEY,
+                      rule.getFullyQualifiedName())));
     }
 
     public SettableFuture<Optional<BuildResult>> getFuture() {
@@ -1391,8 +1453,10 @@ class CachingBuildRuleBuilder {
           LOG.debug("Building locally: %s", rule);
           // Attempt to get an approximation of how long it takes to actually run the command.
           long start = System.nanoTime();
+          long cpuStart = getCurrentThreadCpuTimeNanos();
           executeCommands(ruleExecutionContext, buildRuleBuildContext, buildableContext);
           long end = System.nanoTime();
+          localExecutionNanos = new Pair<>(end - start, getCurrentThreadCpuTimeNanos() - cpuStart);
           LOG.debug(
               "Build completed: %s %s (%dns)",
               rule.getType(), rule.getFullyQualifiedName(), end - start);
@@ -1455,5 +1519,21 @@ class CachingBuildRuleBuilder {
     void addAsyncCallback(ListenableFuture<Unit> callback);
 
     void onRuleAboutToBeBuilt(BuildRule rule);
+
+    /** @return the priority with which the given rule should acquire resources to build locally. */
+    long getSchedulingPriority(BuildRule rule);
+
+    /** @return a future that completes once the given rule may start executing its steps. */
+    ListenableFuture<Unit> admitLocalBuild(BuildRule rule);
+
+    /** @return the cache to fetch the artifact for a rule's default rule key from. */
+    ArtifactCache getDefaultRuleKeyArtifactCache(ArtifactCache artifactCache);
+
+    /** Called once the steps of a rule admitted with {@link #admitLocalBuild} are done. */
+    void onLocalBuildFinished(BuildRule rule);
+
+    /** Called when finalizing a rule whose build steps were executed successfully. */
+    void onRuleBuiltLocally(
+        BuildRule rule, long wallTimeNanos, long threadCpuTimeNanos, long outputSizeBytes);
   }
 }
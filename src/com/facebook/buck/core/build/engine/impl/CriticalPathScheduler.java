@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.build.engine.impl;
+
+import com.facebook.buck.core.build.engine.RuleDepsCache;
+import com.facebook.buck.core.build.engine.config.CachingBuildEngineBuckConfig;
+import com.facebook.buck.core.build.stats.BuildRuleHistoryStore;
+import com.facebook.buck.core.build.stats.RuleResourceUsage;
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.util.types.Pair;
+import com.google.common.annotations.VisibleForTesting;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Prioritizes the local execution of build rules by the estimated length of the longest chain of
+ * work that starts with them, so that long chains such as a dex merge followed by packaging do not
+ * start late because the build threads are busy with short, independent leaves.
+ *
+ * <p>The duration of each rule is estimated from the {@link BuildRuleHistoryStore}. When there is
+ * no history at all, every rule with build steps counts as one unit of work and priorities degrade
+ * to the depth of a rule below the top level targets.
+ *
+ * <p>When closed, logs the expected critical path along with the one actually observed.
+ */
+public class CriticalPathScheduler {
+  private static final Logger LOG = Logger.get(CriticalPathScheduler.class);
+
+  /** Estimate used for rules with build steps when there is no history to estimate them from. */
+  private static final long DEFAULT_RULE_DURATION = 1;
+
+  private final Optional<BuildRuleHistoryStore> history;
+  private final long defaultRuleDuration;
+
+  /** Estimated length of the longest chain of work starting with each rule. */
+  private final ConcurrentMap<BuildTarget, Long> priorities = new ConcurrentHashMap<>();
+
+  private final ConcurrentMap<BuildTarget, Long> localExecutionMillis = new ConcurrentHashMap<>();
+  private final ConcurrentMap<BuildTarget, Long> finishedPathMillis = new ConcurrentHashMap<>();
+
+  @GuardedBy("this")
+  private long expectedCriticalPathLength = 0;
+
+  @GuardedBy("this")
+  @Nullable
+  private BuildTarget expectedCriticalPathStart = null;
+
+  @GuardedBy("this")
+  private long actualCriticalPathMillis = 0;
+
+  @GuardedBy("this")
+  @Nullable
+  private BuildTarget actualCriticalPathEnd = null;
+
+  @VisibleForTesting
+  CriticalPathScheduler(Optional<BuildRuleHistoryStore> history) {
+    this.history = history;
+    this.defaultRuleDuration =
+        history
+            .flatMap(BuildRuleHistoryStore::getAverageUsage)
+            .map(RuleResourceUsage::getWallTimeMillis)
+            .orElse(DEFAULT_RULE_DURATION);
+  }
+
+  /**
+   * Creates a scheduler if critical path scheduling is enabled, estimating rule durations from the
+   * given history if available.
+   */
+  public static Optional<CriticalPathScheduler> create(
+      CachingBuildEngineBuckConfig config, Optional<BuildRuleHistoryStore> history) {
+    if (!config.isCriticalPathSchedulingEnabled()) {
+      return Optional.empty();
+    }
+    return Optional.of(new CriticalPathScheduler(history));
+  }
+
+  /**
+   * Computes the priorities of the given top level rules and all of their transitive deps. Calling
+   * this again with other top level rules only ever raises the priorities of rules shared with
+   * them.
+   */
+  synchronized void prioritize(Iterable<BuildRule> topLevelRules, RuleDepsCache ruleDeps) {
+    List<BuildRule> rules = getRulesInTopologicalOrder(topLevelRules, ruleDeps);
+
+    // Every rule comes before its deps, so the longest chain above a rule is final when we get to
+    // it.
+    Map<BuildTarget, Long> longestChainAbove = new HashMap<>();
+    for (BuildRule rule : rules) {
+      BuildTarget target = rule.getBuildTarget();
+      long length = longestChainAbove.getOrDefault(target, 0L) + estimateDuration(rule);
+      priorities.merge(target, length, Math::max);
+      if (length > expectedCriticalPathLength) {
+        expectedCriticalPathLength = length;
+        expectedCriticalPathStart = target;
+      }
+      for (BuildRule dep : ruleDeps.get(rule)) {
+        longestChainAbove.merge(dep.getBuildTarget(), length, Math::max);
+      }
+    }
+  }
+
+  boolean isPrioritized(BuildRule rule) {
+    return priorities.containsKey(rule.getBuildTarget());
+  }
+
+  /** @return the priority with which the given rule should be scheduled for local execution. */
+  long getPriority(BuildRule rule) {
+    return priorities.getOrDefault(rule.getBuildTarget(), 0L);
+  }
+
+  /** Records how long it took to execute the build steps of the given rule. */
+  void onRuleBuiltLocally(BuildRule rule, long durationNanos) {
+    localExecutionMillis.put(rule.getBuildTarget(), TimeUnit.NANOSECONDS.toMillis(durationNanos));
+  }
+
+  /**
+   * Records that the given rule has finished, which may only happen after all of its build deps
+   * have finished.
+   */
+  void onRuleFinished(BuildRule rule) {
+    long longestDepPath = 0;
+    for (BuildRule dep : rule.getBuildDeps()) {
+      longestDepPath =
+          Math.max(longestDepPath, finishedPathMillis.getOrDefault(dep.getBuildTarget(), 0L));
+    }
+    long pathMillis =
+        longestDepPath + localExecutionMillis.getOrDefault(rule.getBuildTarget(), 0L);
+    finishedPathMillis.put(rule.getBuildTarget(), pathMillis);
+    synchronized (this) {
+      if (actualCriticalPathEnd == null || pathMillis > actualCriticalPathMillis) {
+        actualCriticalPathMillis = pathMillis;
+        actualCriticalPathEnd = rule.getBuildTarget();
+      }
+    }
+  }
+
+  /** Reports the expected and actual critical paths. */
+  synchronized void close() {
+    if (expectedCriticalPathStart != null && actualCriticalPathEnd != null) {
+      LOG.info(
+          "Expected critical path: %d%s starting at %s. Actual critical path: %dms ending at %s.",
+          expectedCriticalPathLength,
+          history.flatMap(BuildRuleHistoryStore::getAverageUsage).isPresent() ? "ms" : " rules",
+          expectedCriticalPathStart,
+          actualCriticalPathMillis,
+          actualCriticalPathEnd);
+    }
+  }
+
+  @VisibleForTesting
+  synchronized long getExpectedCriticalPathLength() {
+    return expectedCriticalPathLength;
+  }
+
+  @VisibleForTesting
+  synchronized long getActualCriticalPathMillis() {
+    return actualCriticalPathMillis;
+  }
+
+  private long estimateDuration(BuildRule rule) {
+    if (!rule.hasBuildSteps()) {
+      return 0;
+    }
+    // Never estimate zero, so that chains of quick rules still outrank single ones.
+    return Math.max(
+        1,
+        history
+            .flatMap(store -> store.getExpectedUsage(rule))
+            .map(RuleResourceUsage::getWallTimeMillis)
+            .orElse(defaultRuleDuration));
+  }
+
+  /** @return all the rules reachable from the given ones, each before all of its deps. */
+  private static List<BuildRule> getRulesInTopologicalOrder(
+      Iterable<BuildRule> topLevelRules, RuleDepsCache ruleDeps) {
+    List<BuildRule> postOrder = new ArrayList<>();
+    Set<BuildTarget> visited = new HashSet<>();
+    Deque<Pair<BuildRule, Iterator<BuildRule>>> stack = new ArrayDeque<>();
+    for (BuildRule topLevelRule : topLevelRules) {
+      if (!visited.add(topLevelRule.getBuildTarget())) {
+        continue;
+      }
+      stack.push(new Pair<>(topLevelRule, ruleDeps.get(topLevelRule).iterator()));
+      while (!stack.isEmpty()) {
+        Pair<BuildRule, Iterator<BuildRule>> top = stack.peek();
+        if (top.getSecond().hasNext()) {
+          BuildRule dep = top.getSecond().next();
+          if (visited.add(dep.getBuildTarget())) {
+            stack.push(new Pair<>(dep, ruleDeps.get(dep).iterator()));
+          }
+        } else {
+          stack.pop();
+          postOrder.add(top.getFirst());
+        }
+      }
+    }
+    Collections.reverse(postOrder);
+    return postOrder;
+  }
+}
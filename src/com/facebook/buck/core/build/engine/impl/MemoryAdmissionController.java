@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.build.engine.impl;
+
+import com.facebook.buck.core.build.engine.config.CachingBuildEngineBuckConfig;
+import com.facebook.buck.core.build.stats.BuildRuleHistoryStore;
+import com.facebook.buck.core.build.stats.RuleResourceUsage;
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.util.ProcessHelper;
+import com.facebook.buck.util.ProcessResourceConsumption;
+import com.facebook.buck.util.concurrent.MostExecutors;
+import com.facebook.buck.util.environment.Platform;
+import com.facebook.buck.util.types.Unit;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Holds back the local execution of rules that are expected to need a lot of memory, such as
+ * linking or dexing, while the machine is short of free memory, so that running many of them in
+ * parallel does not push it into swap.
+ *
+ * <p>A heavy rule is admitted when the available memory, minus a configured reserve and minus the
+ * memory that the heavy rules already running are still expected to take, can accommodate its
+ * expected peak. The memory still expected to be taken is the expected peak of the running heavy
+ * rules, less the resident memory their processes already use. A heavy rule is always admitted when
+ * no other heavy rule is running, so that the build makes progress.
+ *
+ * <p>Held back rules do not occupy a build thread, so lighter rules keep the machine busy until
+ * memory pressure drops, which is checked periodically. A pipeline of rules is admitted as a whole
+ * by the rule it starts with, and counts as running until its last rule is done.
+ *
+ * <p>Processes are not attributed to the rules that launched them, so the resident memory credited
+ * against the running heavy rules is that of every process launched by this one, including those of
+ * light rules and long lived helpers such as workers. This can only lower the memory the running
+ * heavy rules are still expected to take, never below zero, so it errs towards admitting rules
+ * early. The available memory, which is sampled and not estimated, still bounds admission.
+ */
+public class MemoryAdmissionController {
+  private static final Logger LOG = Logger.get(MemoryAdmissionController.class);
+
+  private static final long POLL_INTERVAL_MILLIS = 250;
+
+  /** Samples the memory of the machine and of the processes launched by this one. */
+  interface MemorySampler {
+    long getAvailableMemoryBytes();
+
+    long getChildProcessesResidentBytes();
+  }
+
+  private final MemorySampler sampler;
+  private final Optional<BuildRuleHistoryStore> history;
+  private final ImmutableSet<String> heavyRuleTypes;
+  private final long heavyRuleThresholdBytes;
+  private final long reserveBytes;
+
+  @GuardedBy("this")
+  private final Map<BuildTarget, Long> runningHeavyRules = new HashMap<>();
+
+  @GuardedBy("this")
+  private long runningExpectedBytes = 0;
+
+  @GuardedBy("this")
+  private final PriorityQueue<PendingRule> pendingRules =
+      new PriorityQueue<>(
+          Comparator.<PendingRule>comparingLong(pending -> -pending.priority)
+              .thenComparingLong(pending -> pending.sequenceNumber));
+
+  @GuardedBy("this")
+  private long nextSequenceNumber = 0;
+
+  @GuardedBy("this")
+  private int heldBackRules = 0;
+
+  @GuardedBy("this")
+  private long heldBackNanos = 0;
+
+  @Nullable private ScheduledExecutorService pollingService = null;
+
+  @VisibleForTesting
+  MemoryAdmissionController(
+      MemorySampler sampler,
+      Optional<BuildRuleHistoryStore> history,
+      ImmutableSet<String> heavyRuleTypes,
+      long heavyRuleThresholdBytes,
+      long reserveBytes) {
+    this.sampler = sampler;
+    this.history = history;
+    this.heavyRuleTypes = heavyRuleTypes;
+    this.heavyRuleThresholdBytes = heavyRuleThresholdBytes;
+    this.reserveBytes = reserveBytes;
+  }
+
+  /**
+   * Creates a controller if memory admission control is enabled and memory can be sampled on this
+   * platform, estimating the peak memory of rules from the given history if available.
+   */
+  public static Optional<MemoryAdmissionController> create(
+      CachingBuildEngineBuckConfig config, Optional<BuildRuleHistoryStore> history) {
+    if (!config.isMemoryAdmissionControlEnabled()) {
+      return Optional.empty();
+    }
+    if (Platform.detect() != Platform.LINUX) {
+      LOG.warn("Memory admission control is only supported on Linux, ignoring it.");
+      return Optional.empty();
+    }
+    MemoryAdmissionController controller =
+        new MemoryAdmissionController(
+            new ProcMemorySampler(ProcessHelper.getInstance()),
+            history,
+            config.getMemoryAdmissionHeavyRuleTypes(),
+            config.getMemoryAdmissionHeavyRuleThresholdBytes(),
+            config.getMemoryAdmissionReserveBytes());
+    controller.startPolling();
+    return Optional.of(controller);
+  }
+
+  private void startPolling() {
+    pollingService =
+        Executors.newSingleThreadScheduledExecutor(
+            new MostExecutors.NamedThreadFactory("memory-admission"));
+    pollingService.scheduleWithFixedDelay(
+        this::admitPendingRules, POLL_INTERVAL_MILLIS, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return a future that completes once the given rule may start executing locally. Rules with a
+   *     higher priority are admitted first.
+   */
+  ListenableFuture<Unit> admit(BuildRule rule, long priority) {
+    long expectedBytes = getExpectedPeakMemoryBytes(rule);
+    if (expectedBytes < heavyRuleThresholdBytes) {
+      return Futures.immediateFuture(Unit.UNIT);
+    }
+    synchronized (this) {
+      if (pendingRules.isEmpty() && canAdmit(expectedBytes, sampleHeadroomBytes())) {
+        markRunning(rule.getBuildTarget(), expectedBytes);
+        return Futures.immediateFuture(Unit.UNIT);
+      }
+      PendingRule pending =
+          new PendingRule(rule.getBuildTarget(), expectedBytes, priority, nextSequenceNumber++);
+      pendingRules.add(pending);
+      heldBackRules++;
+      LOG.debug("Holding back %s, which is expected to need %d MB.", rule, expectedBytes >> 20);
+      return pending.future;
+    }
+  }
+
+  /** Records that a rule admitted earlier is no longer executing. */
+  void onFinished(BuildRule rule) {
+    boolean wasRunning;
+    synchronized (this) {
+      Long expectedBytes = runningHeavyRules.remove(rule.getBuildTarget());
+      wasRunning = expectedBytes != null;
+      if (wasRunning) {
+        runningExpectedBytes -= expectedBytes;
+      }
+    }
+    if (wasRunning) {
+      admitPendingRules();
+    }
+  }
+
+  /** Stops polling and lets all the rules held back proceed. */
+  void close() {
+    if (pollingService != null) {
+      pollingService.shutdownNow();
+    }
+    List<PendingRule> released;
+    synchronized (this) {
+      released = new ArrayList<>(pendingRules);
+      pendingRules.clear();
+      if (heldBackRules > 0) {
+        LOG.info(
+            "Held back %d rules for %d ms in total because of memory pressure.",
+            heldBackRules, TimeUnit.NANOSECONDS.toMillis(heldBackNanos));
+      }
+    }
+    for (PendingRule pending : released) {
+      pending.future.set(Unit.UNIT);
+    }
+  }
+
+  @VisibleForTesting
+  void admitPendingRules() {
+    List<SettableFuture<Unit>> admitted = new ArrayList<>();
+    synchronized (this) {
+      if (pendingRules.isEmpty()) {
+        return;
+      }
+      long headroomBytes = sampleHeadroomBytes();
+      while (!pendingRules.isEmpty()) {
+        PendingRule next = pendingRules.peek();
+        if (next.future.isCancelled()) {
+          pendingRules.poll();
+          continue;
+        }
+        if (!canAdmit(next.expectedBytes, headroomBytes)) {
+          break;
+        }
+        pendingRules.poll();
+        markRunning(next.target, next.expectedBytes);
+        headroomBytes -= next.expectedBytes;
+        heldBackNanos += System.nanoTime() - next.queuedAtNanos;
+        admitted.add(next.future);
+      }
+    }
+    // Complete the futures outside of the lock, as they may start building rules synchronously.
+    for (SettableFuture<Unit> future : admitted) {
+      future.set(Unit.UNIT);
+    }
+  }
+
+  @GuardedBy("this")
+  private boolean canAdmit(long expectedBytes, long headroomBytes) {
+    return runningHeavyRules.isEmpty() || expectedBytes <= headroomBytes;
+  }
+
+  @GuardedBy("this")
+  private void markRunning(BuildTarget target, long expectedBytes) {
+    runningHeavyRules.put(target, expectedBytes);
+    runningExpectedBytes += expectedBytes;
+  }
+
+  /** @return the memory available for more heavy rules to use. */
+  @GuardedBy("this")
+  private long sampleHeadroomBytes() {
+    long stillExpectedBytes =
+        Math.max(0, runningExpectedBytes - sampler.getChildProcessesResidentBytes());
+    return sampler.getAvailableMemoryBytes() - reserveBytes - stillExpectedBytes;
+  }
+
+  private long getExpectedPeakMemoryBytes(BuildRule rule) {
+    Optional<Long> recorded =
+        history
+            .flatMap(store -> store.getExpectedUsage(rule))
+            .map(RuleResourceUsage::getPeakMemoryBytes);
+    if (recorded.isPresent()) {
+      return recorded.get();
+    }
+    return heavyRuleTypes.contains(rule.getType()) ? heavyRuleThresholdBytes : 0;
+  }
+
+  private static class PendingRule {
+    private final BuildTarget target;
+    private final long expectedBytes;
+    private final long priority;
+    private final long sequenceNumber;
+    private final long queuedAtNanos = System.nanoTime();
+    private final SettableFuture<Unit> future = SettableFuture.create();
+
+    private PendingRule(
+        BuildTarget target, long expectedBytes, long priority, long sequenceNumber) {
+      this.target = target;
+      this.expectedBytes = expectedBytes;
+      this.priority = priority;
+      this.sequenceNumber = sequenceNumber;
+    }
+  }
+
+  /**
+   * Reads the available memory from {@code /proc/meminfo} and the resident memory of the processes
+   * launched by this one from the process tree.
+   */
+  private static class ProcMemorySampler implements MemorySampler {
+    private static final Path MEMINFO = Paths.get("/proc/meminfo");
+
+    private final ProcessHelper processHelper;
+
+    private ProcMemorySampler(ProcessHelper processHelper) {
+      this.processHelper = processHelper;
+    }
+
+    @Override
+    public long getAvailableMemoryBytes() {
+      try {
+        Map<String, Long> meminfo = new HashMap<>();
+        Splitter splitter = Splitter.on(' ').omitEmptyStrings();
+        for (String line : Files.readAllLines(MEMINFO, StandardCharsets.US_ASCII)) {
+          int colon = line.indexOf(':');
+          if (colon > 0) {
+            // Values are reported in kB.
+            meminfo.put(
+                line.substring(0, colon),
+                Long.parseLong(splitter.split(line.substring(colon + 1)).iterator().next()) << 10);
+          }
+        }
+        Long available = meminfo.get("MemAvailable");
+        if (available != null) {
+          return available;
+        }
+        // Kernels older than 3.14 do not report an estimate, approximate it.
+        return meminfo.getOrDefault("MemFree", 0L)
+            + meminfo.getOrDefault("Buffers", 0L)
+            + meminfo.getOrDefault("Cached", 0L);
+      } catch (IOException | RuntimeException e) {
+        LOG.warn(e, "Failed to read %s, assuming memory is plentiful.", MEMINFO);
+        return Long.MAX_VALUE / 2;
+      }
+    }
+
+    @Override
+    public long getChildProcessesResidentBytes() {
+      Long pid = processHelper.getPid();
+      if (pid == null) {
+        return 0;
+      }
+      ProcessResourceConsumption tree = processHelper.getTotalResourceConsumption(pid);
+      ProcessResourceConsumption self = processHelper.getProcessResourceConsumption(pid);
+      if (tree == null || self == null) {
+        return 0;
+      }
+      return Math.max(0, tree.getMemResident() - self.getMemResident());
+    }
+  }
+}
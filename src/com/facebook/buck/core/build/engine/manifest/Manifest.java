@@ -40,12 +40,15 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.NoSuchFileException;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import javax.annotation.Nullable;
 
 public class Manifest {
 
@@ -63,6 +66,12 @@ public class Manifest {
 
   @VisibleForTesting final List<Pair<RuleKey, int[]>> entries;
 
+  /** Lazily built index used to prune entries during {@link #lookup}. */
+  @Nullable private LookupIndex lookupIndex;
+
+  /** Number of inputs whose on disk hash was computed by lookups on this manifest. */
+  private int lookupProbes;
+
   /** Create an empty manifest. */
   public Manifest(RuleKey key) {
     this.key = key;
@@ -179,33 +188,6 @@ public class Manifest {
         resolver.getRelativePath(archivePath.getArchiveSourcePath()), archivePath.getMemberPath());
   }
 
-  private boolean hashesMatch(
-      FileHashLoader fileHashLoader,
-      SourcePathResolverAdapter resolver,
-      ImmutableListMultimap<String, SourcePath> universe,
-      int[] hashIndices)
-      throws IOException {
-    for (int hashIndex : hashIndices) {
-      Pair<Integer, HashCode> hashEntry = hashes.get(hashIndex);
-      String input = inputs.get(hashEntry.getFirst());
-      ImmutableList<SourcePath> candidates = universe.get(input);
-      if (candidates.isEmpty()) {
-        return false;
-      }
-      HashCode onDiskHeaderHash;
-      try {
-        onDiskHeaderHash = hashSourcePathGroup(fileHashLoader, resolver, candidates);
-      } catch (NoSuchFileException e) {
-        return false;
-      }
-      HashCode inputHash = hashEntry.getSecond();
-      if (!inputHash.equals(onDiskHeaderHash)) {
-        return false;
-      }
-    }
-    return true;
-  }
-
   /**
    * @return the {@link RuleKey} of the entry that matches the on disk hashes provided by {@code
    *     fileHashLoader}.
@@ -215,29 +197,70 @@ public class Manifest {
       SourcePathResolverAdapter resolver,
       ImmutableSet<SourcePath> universe)
       throws IOException {
-    // Create a set of all paths we care about.
-    ImmutableSet.Builder<String> interestingPathsBuilder = new ImmutableSet.Builder<>();
-    for (Pair<?, int[]> entry : entries) {
-      for (int hashIndex : entry.getSecond()) {
-        interestingPathsBuilder.add(inputs.get(hashes.get(hashIndex).getFirst()));
-      }
-    }
-    ImmutableSet<String> interestingPaths = interestingPathsBuilder.build();
+    LookupIndex index = getLookupIndex();
 
     // Create a multimap from paths we care about to SourcePaths that maps to them.
     ImmutableListMultimap<String, SourcePath> mappedUniverse =
         index(
             universe,
             path -> sourcePathToManifestHeader(path, resolver),
-            interestingPaths::contains);
-
-    // Find a matching entry.
-    for (Pair<RuleKey, int[]> entry : entries) {
-      if (hashesMatch(fileHashLoader, resolver, mappedUniverse, entry.getSecond())) {
-        return Optional.of(entry.getFirst());
+            index.interestingPaths::contains);
+
+    // Hash one input at a time, most discriminating first, and drop every entry that recorded a
+    // different hash for it. Once every input used by the remaining candidates has been checked,
+    // the candidates all match, and the first one wins.
+    BitSet candidates = new BitSet(entries.size());
+    candidates.set(0, entries.size());
+    for (int inputIndex : index.inputOrder) {
+      BitSet entriesWithInput = index.entriesByInput[inputIndex];
+      if (!candidates.intersects(entriesWithInput)) {
+        continue;
+      }
+      lookupProbes++;
+      BitSet mismatching = (BitSet) entriesWithInput.clone();
+      Optional<Integer> matchingHash =
+          findMatchingHash(fileHashLoader, resolver, mappedUniverse, inputIndex);
+      if (matchingHash.isPresent() && index.entriesByHash.containsKey(matchingHash.get())) {
+        mismatching.andNot(index.entriesByHash.get(matchingHash.get()));
+      }
+      candidates.andNot(mismatching);
+      if (candidates.isEmpty()) {
+        return Optional.empty();
       }
     }
-    return Optional.empty();
+    int entryIndex = candidates.nextSetBit(0);
+    return entryIndex < 0 ? Optional.empty() : Optional.of(entries.get(entryIndex).getFirst());
+  }
+
+  /** @return the index of the recorded hash for the input that matches its on disk hash, if any. */
+  private Optional<Integer> findMatchingHash(
+      FileHashLoader fileHashLoader,
+      SourcePathResolverAdapter resolver,
+      ImmutableListMultimap<String, SourcePath> universe,
+      int inputIndex)
+      throws IOException {
+    ImmutableList<SourcePath> candidates = universe.get(inputs.get(inputIndex));
+    if (candidates.isEmpty()) {
+      return Optional.empty();
+    }
+    HashCode onDiskHeaderHash;
+    try {
+      onDiskHeaderHash = hashSourcePathGroup(fileHashLoader, resolver, candidates);
+    } catch (NoSuchFileException e) {
+      return Optional.empty();
+    }
+    Integer hashIndex = hashIndices.get(onDiskHeaderHash);
+    if (hashIndex == null || hashes.get(hashIndex).getFirst() != inputIndex) {
+      return Optional.empty();
+    }
+    return Optional.of(hashIndex);
+  }
+
+  private LookupIndex getLookupIndex() {
+    if (lookupIndex == null) {
+      lookupIndex = new LookupIndex();
+    }
+    return lookupIndex;
   }
 
   private static String sourcePathToManifestHeader(
@@ -287,6 +310,7 @@ public class Manifest {
           addHash(relativePath.toString(), hashSourcePathGroup(fileHashLoader, resolver, paths));
     }
     entries.add(new Pair<>(key, hashIndices));
+    lookupIndex = null;
   }
 
   /** Serializes the manifest to the given {@link OutputStream}. */
@@ -342,6 +366,48 @@ public class Manifest {
   }
 
   public ManifestStats getStats() {
-    return ImmutableManifestStats.of(entries.size(), hashes.size(), inputs.size());
+    return ImmutableManifestStats.of(entries.size(), hashes.size(), inputs.size(), lookupProbes);
+  }
+
+  /**
+   * Inverted index from inputs and recorded hashes to the entries that use them, so that a lookup
+   * only needs to hash the inputs that can still tell the remaining entries apart.
+   */
+  private class LookupIndex {
+    private final ImmutableSet<String> interestingPaths;
+    private final BitSet[] entriesByInput;
+    private final Map<Integer, BitSet> entriesByHash = new HashMap<>();
+
+    /** Indices of inputs used by some entry, in decreasing number of distinct recorded hashes. */
+    private final int[] inputOrder;
+
+    LookupIndex() {
+      entriesByInput = new BitSet[inputs.size()];
+      for (int inputIndex = 0; inputIndex < inputs.size(); inputIndex++) {
+        entriesByInput[inputIndex] = new BitSet(entries.size());
+      }
+      for (int entryIndex = 0; entryIndex < entries.size(); entryIndex++) {
+        for (int hashIndex : entries.get(entryIndex).getSecond()) {
+          entriesByInput[hashes.get(hashIndex).getFirst()].set(entryIndex);
+          entriesByHash.computeIfAbsent(hashIndex, i -> new BitSet()).set(entryIndex);
+        }
+      }
+
+      int[] distinctHashes = new int[inputs.size()];
+      for (int hashIndex : entriesByHash.keySet()) {
+        distinctHashes[hashes.get(hashIndex).getFirst()]++;
+      }
+      ImmutableSet.Builder<String> interestingPathsBuilder = ImmutableSet.builder();
+      List<Integer> usedInputs = new ArrayList<>();
+      for (int inputIndex = 0; inputIndex < inputs.size(); inputIndex++) {
+        if (!entriesByInput[inputIndex].isEmpty()) {
+          usedInputs.add(inputIndex);
+          interestingPathsBuilder.add(inputs.get(inputIndex));
+        }
+      }
+      usedInputs.sort(Comparator.comparingInt((Integer i) -> -distinctHashes[i]));
+      interestingPaths = interestingPathsBuilder.build();
+      inputOrder = usedInputs.stream().mapToInt(Integer::intValue).toArray();
+    }
   }
 }
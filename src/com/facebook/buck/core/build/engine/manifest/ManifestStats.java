@@ -26,4 +26,7 @@ public interface ManifestStats {
   int getNumHashes();
 
   int getNumInputs();
+
+  /** Number of inputs whose on disk hash had to be computed to look up a dep file rule key. */
+  int getNumLookupProbes();
 }
@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.build.stats;
+
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.util.sqlite.RetryBusyHandler;
+import com.facebook.buck.util.sqlite.SQLiteUtils;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import org.sqlite.BusyHandler;
+
+/**
+ * Resources consumed by build rules executed locally in previous builds, kept per build target
+ * as an exponential moving average so that a single outlier does not dominate the estimates.
+ *
+ * <p>The history of a target or rule type is read the first time it is asked for and kept, so
+ * estimates do not change over the course of a build and only the rules a build looks at are ever
+ * loaded. Recorded samples are written when the store is closed.
+ */
+public class BuildRuleHistoryStore implements AutoCloseable {
+
+  private static final Logger LOG = Logger.get(BuildRuleHistoryStore.class);
+
+  private static final String DB_FILE_NAME = "rule_history.db";
+  private static final double SMOOTHING_FACTOR = 0.3;
+
+  /** The resources tracked for each rule, with the database columns they are stored in. */
+  public enum Metric {
+    WALL_TIME("wall_time_ms"),
+    CPU_TIME("cpu_time_ms"),
+    PEAK_MEMORY("peak_memory_bytes"),
+    OUTPUT_SIZE("output_size_bytes"),
+    ;
+
+    private final String column;
+
+    Metric(String column) {
+      this.column = column;
+    }
+  }
+
+  private final Connection connection;
+
+  @GuardedBy("this")
+  private final Map<String, Optional<RuleHistoryEntry>> targets = new HashMap<>();
+
+  @GuardedBy("this")
+  private final Map<String, Optional<RuleHistoryEntry>> types = new HashMap<>();
+
+  @GuardedBy("this")
+  @Nullable
+  private Optional<RuleResourceUsage> averageUsage;
+
+  @GuardedBy("this")
+  private final Map<String, PendingEntry> pending = new HashMap<>();
+
+  private BuildRuleHistoryStore(Connection connection) {
+    this.connection = connection;
+  }
+
+  /** Opens the store kept in the scratch directory of the given filesystem. */
+  public static BuildRuleHistoryStore open(ProjectFilesystem filesystem) throws IOException {
+    return open(
+        filesystem.resolve(filesystem.getBuckPaths().getScratchDir().resolve(DB_FILE_NAME)));
+  }
+
+  /** Opens the store kept in the given database file, creating it if necessary. */
+  public static BuildRuleHistoryStore open(Path dbPath) throws IOException {
+    SQLiteUtils.initialize();
+    Files.createDirectories(dbPath.getParent());
+    try {
+      Class.forName("org.sqlite.JDBC");
+      Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+      try (Statement statement = connection.createStatement()) {
+        statement.executeUpdate("PRAGMA SYNCHRONOUS = OFF");
+        statement.executeUpdate("PRAGMA JOURNAL_MODE = WAL");
+        statement.executeUpdate(
+            "CREATE TABLE IF NOT EXISTS rule_history "
+                + "(target TEXT PRIMARY KEY, type TEXT, samples INTEGER, "
+                + "wall_time_ms INTEGER, cpu_time_ms INTEGER, "
+                + "peak_memory_bytes INTEGER, output_size_bytes INTEGER) "
+                + "WITHOUT ROWID");
+        statement.executeUpdate(
+            "CREATE INDEX IF NOT EXISTS rule_history_type ON rule_history (type)");
+      }
+      BusyHandler.setHandler(connection, new RetryBusyHandler());
+      return new BuildRuleHistoryStore(connection);
+    } catch (ClassNotFoundException | SQLException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /** @return the usage recorded for the target with the given fully qualified name. */
+  public Optional<RuleResourceUsage> getTargetUsage(String fullyQualifiedName) {
+    return getTarget(fullyQualifiedName).map(RuleHistoryEntry::getUsage);
+  }
+
+  /** @return the average usage of all the recorded targets of the given rule type. */
+  public synchronized Optional<RuleResourceUsage> getTypeUsage(String type) {
+    return types
+        .computeIfAbsent(
+            type,
+            name ->
+                queryQuietly(
+                    "SELECT type, SUM(samples), %s FROM rule_history WHERE type = ? GROUP BY type",
+                    "AVG",
+                    name))
+        .map(RuleHistoryEntry::getUsage);
+  }
+
+  /**
+   * @return the usage expected when executing the given rule locally: what was recorded for its
+   *     target if it has been built before, otherwise the average of the rules of the same type.
+   */
+  public Optional<RuleResourceUsage> getExpectedUsage(BuildRule rule) {
+    Optional<RuleResourceUsage> usage = getTargetUsage(rule.getFullyQualifiedName());
+    return usage.isPresent() ? usage : getTypeUsage(rule.getType());
+  }
+
+  /** @return the average usage of all the recorded targets, if there are any. */
+  public synchronized Optional<RuleResourceUsage> getAverageUsage() {
+    if (averageUsage == null) {
+      averageUsage =
+          queryQuietly("SELECT 'all', COUNT(*), %s FROM rule_history", "AVG")
+              .filter(entry -> entry.getSampleCount() > 0)
+              .map(RuleHistoryEntry::getUsage);
+    }
+    return averageUsage;
+  }
+
+  /** @return up to {@code limit} targets with the highest recorded usage of the given metric. */
+  public ImmutableList<RuleHistoryEntry> getTopTargets(Metric metric, int limit)
+      throws IOException {
+    try {
+      return query(
+          "SELECT target, samples, %s FROM rule_history ORDER BY " + metric.column + " DESC",
+          limit);
+    } catch (SQLException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /** @return per rule type averages, with the types with the highest usage of the metric first. */
+  public ImmutableList<RuleHistoryEntry> getTopTypes(Metric metric, int limit)
+      throws IOException {
+    try {
+      return queryTypes(metric, limit);
+    } catch (SQLException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /** Records the resources consumed by executing the given rule locally. */
+  public synchronized void record(BuildRule rule, RuleResourceUsage sample) {
+    String target = rule.getFullyQualifiedName();
+    PendingEntry entry = pending.get(target);
+    if (entry == null) {
+      Optional<RuleHistoryEntry> previous = getTarget(target);
+      entry =
+          previous.isPresent()
+              ? new PendingEntry(
+                  rule.getType(),
+                  previous.get().getSampleCount() + 1,
+                  previous.get().getUsage().blend(sample, SMOOTHING_FACTOR))
+              : new PendingEntry(rule.getType(), 1, sample);
+    } else {
+      entry =
+          new PendingEntry(
+              rule.getType(), entry.samples + 1, entry.usage.blend(sample, SMOOTHING_FACTOR));
+    }
+    pending.put(target, entry);
+  }
+
+  /** Writes the samples recorded so far to the database. */
+  public synchronized void flush() throws IOException {
+    if (pending.isEmpty()) {
+      return;
+    }
+    try (PreparedStatement updateStmt =
+        connection.prepareStatement(
+            "INSERT OR REPLACE INTO rule_history (target, type, samples, "
+                + "wall_time_ms, cpu_time_ms, peak_memory_bytes, output_size_bytes) "
+                + "VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+      connection.setAutoCommit(false);
+      for (Map.Entry<String, PendingEntry> entry : pending.entrySet()) {
+        RuleResourceUsage usage = entry.getValue().usage;
+        updateStmt.setString(1, entry.getKey());
+        updateStmt.setString(2, entry.getValue().type);
+        updateStmt.setLong(3, entry.getValue().samples);
+        updateStmt.setLong(4, usage.getWallTimeMillis());
+        updateStmt.setLong(5, usage.getCpuTimeMillis());
+        updateStmt.setLong(6, usage.getPeakMemoryBytes());
+        updateStmt.setLong(7, usage.getOutputSizeBytes());
+        updateStmt.addBatch();
+      }
+      updateStmt.executeBatch();
+      connection.commit();
+      pending.clear();
+    } catch (SQLException e) {
+      throw new IOException(e);
+    } finally {
+      try {
+        connection.setAutoCommit(true);
+      } catch (SQLException e) {
+        throw new IOException(e);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      try {
+        connection.close();
+      } catch (SQLException e) {
+        throw new IOException(e);
+      }
+    }
+  }
+
+  private synchronized Optional<RuleHistoryEntry> getTarget(String fullyQualifiedName) {
+    return targets.computeIfAbsent(
+        fullyQualifiedName,
+        name ->
+            queryQuietly(
+                "SELECT target, samples, %s FROM rule_history WHERE target = ?", "", name));
+  }
+
+  /**
+   * Runs a query for a single entry, logging failures rather than propagating them as the history
+   * only serves estimates.
+   */
+  private Optional<RuleHistoryEntry> queryQuietly(
+      String sqlFormat, String aggregate, String... parameters) {
+    try {
+      return query(sqlFormat, -1, aggregate, parameters).stream().findFirst();
+    } catch (SQLException e) {
+      LOG.warn(e, "Could not read the rule history.");
+      return Optional.empty();
+    }
+  }
+
+  private ImmutableList<RuleHistoryEntry> queryTypes(Metric orderBy, int limit)
+      throws SQLException {
+    return query(
+        "SELECT type, SUM(samples), %s FROM rule_history GROUP BY type ORDER BY AVG("
+            + orderBy.column
+            + ") DESC",
+        limit,
+        "AVG");
+  }
+
+  private ImmutableList<RuleHistoryEntry> query(String sqlFormat, int limit) throws SQLException {
+    return query(sqlFormat, limit, "");
+  }
+
+  /**
+   * Runs a query selecting a name, a sample count and the metrics, the latter of which are
+   * substituted for the {@code %s} in the format, wrapped in the given aggregate function if any.
+   * The {@code ?} placeholders of the query are bound to the given parameters.
+   */
+  private synchronized ImmutableList<RuleHistoryEntry> query(
+      String sqlFormat, int limit, String aggregate, String... parameters) throws SQLException {
+    StringBuilder columns = new StringBuilder();
+    for (Metric metric : Metric.values()) {
+      if (columns.length() > 0) {
+        columns.append(", ");
+      }
+      columns.append(aggregate).append('(').append(metric.column).append(')');
+    }
+    String sql = String.format(sqlFormat, columns) + (limit < 0 ? "" : " LIMIT " + limit);
+    ImmutableList.Builder<RuleHistoryEntry> entries = ImmutableList.builder();
+    try (PreparedStatement statement = connection.prepareStatement(sql)) {
+      for (int i = 0; i < parameters.length; i++) {
+        statement.setString(i + 1, parameters[i]);
+      }
+      try (ResultSet rs = statement.executeQuery()) {
+        while (rs.next()) {
+          entries.add(
+              RuleHistoryEntry.of(
+                  rs.getString(1),
+                  rs.getLong(2),
+                  RuleResourceUsage.of(
+                      rs.getLong(3), rs.getLong(4), rs.getLong(5), rs.getLong(6))));
+        }
+      }
+    }
+    return entries.build();
+  }
+
+  private static class PendingEntry {
+    private final String type;
+    private final long samples;
+    private final RuleResourceUsage usage;
+
+    private PendingEntry(String type, long samples, RuleResourceUsage usage) {
+      this.type = type;
+      this.samples = samples;
+      this.usage = usage;
+    }
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.build.stats;
+
+import com.facebook.buck.core.util.immutables.BuckStyleValue;
+
+/** Resource usage history of a single build target or of all the rules of a type. */
+@BuckStyleValue
+public interface RuleHistoryEntry {
+
+  /** The fully qualified name of the target, or the rule type for per-type entries. */
+  String getName();
+
+  /** Number of local builds that contributed to the usage. */
+  long getSampleCount();
+
+  RuleResourceUsage getUsage();
+
+  static RuleHistoryEntry of(String name, long sampleCount, RuleResourceUsage usage) {
+    return ImmutableRuleHistoryEntry.of(name, sampleCount, usage);
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.build.stats;
+
+import com.facebook.buck.core.util.immutables.BuckStyleValue;
+
+/** Resources consumed by executing a build rule locally. */
+@BuckStyleValue
+public abstract class RuleResourceUsage {
+
+  public abstract long getWallTimeMillis();
+
+  /** CPU time of the build thread running the steps plus that of the processes they launched. */
+  public abstract long getCpuTimeMillis();
+
+  /** Peak resident set size of the processes launched by the steps of the rule. */
+  public abstract long getPeakMemoryBytes();
+
+  public abstract long getOutputSizeBytes();
+
+  /**
+   * @return an exponential moving average with the given sample, which is weighted by {@code
+   *     smoothingFactor}.
+   */
+  public RuleResourceUsage blend(RuleResourceUsage sample, double smoothingFactor) {
+    return of(
+        blend(getWallTimeMillis(), sample.getWallTimeMillis(), smoothingFactor),
+        blend(getCpuTimeMillis(), sample.getCpuTimeMillis(), smoothingFactor),
+        blend(getPeakMemoryBytes(), sample.getPeakMemoryBytes(), smoothingFactor),
+        blend(getOutputSizeBytes(), sample.getOutputSizeBytes(), smoothingFactor));
+  }
+
+  private static long blend(long average, long sample, double smoothingFactor) {
+    return Math.round(average * (1 - smoothingFactor) + sample * smoothingFactor);
+  }
+
+  public static RuleResourceUsage of(
+      long wallTimeMillis, long cpuTimeMillis, long peakMemoryBytes, long outputSizeBytes) {
+    return ImmutableRuleResourceUsage.of(
+        wallTimeMillis, cpuTimeMillis, peakMemoryBytes, outputSizeBytes);
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.model.targetgraph;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.util.graph.MutableDirectedGraph;
+import com.facebook.buck.core.util.log.Logger;
+import com.google.common.collect.ImmutableMap;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Builds {@link TargetGraph}s using the graph built by the previous command as a baseline.
+ *
+ * <p>Target nodes are cached by the daemon and only re-created when the package defining them is
+ * invalidated, so a node that is the same instance as in the previous graph comes from a package
+ * that did not change since. If every dep such a node had in the previous graph is also part of the
+ * new graph, its edge set is copied from the previous graph instead of resolving its deps again,
+ * and the visibility of those edges, already verified, is not checked again. Only nodes from
+ * invalidated packages, or whose deps were, go through dep resolution and visibility checks.
+ */
+public class IncrementalTargetGraphBuilder {
+
+  private static final Logger LOG = Logger.get(IncrementalTargetGraphBuilder.class);
+
+  @Nullable private volatile TargetGraph previousGraph;
+
+  /**
+   * Starts building a graph.
+   *
+   * @param nodes all the nodes of the new graph.
+   */
+  public GraphBuilder newGraph(Iterable<TargetNode<?>> nodes) {
+    return new GraphBuilder(previousGraph, nodes);
+  }
+
+  /** Drops the previous graph, so the next graph is resolved and verified from scratch. */
+  public void invalidate() {
+    previousGraph = null;
+  }
+
+  /** Builds a single {@link TargetGraph}. Not thread-safe. */
+  public class GraphBuilder {
+
+    @Nullable private final TargetGraph previous;
+    private final Set<TargetNode<?>> nodes = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<TargetNode<?>> reusedNodes =
+        Collections.newSetFromMap(new IdentityHashMap<>());
+    private final MutableDirectedGraph<TargetNode<?>> graph = new MutableDirectedGraph<>();
+
+    private GraphBuilder(@Nullable TargetGraph previous, Iterable<TargetNode<?>> nodes) {
+      this.previous = previous;
+      for (TargetNode<?> node : nodes) {
+        this.nodes.add(node);
+      }
+    }
+
+    public void addNode(TargetNode<?> node) {
+      graph.addNode(node);
+    }
+
+    /**
+     * Adds the edges {@code node} had in the previous graph, if it is unchanged since and all its
+     * deps from that graph are part of this one.
+     *
+     * @return whether the edges were added; if not, the caller must resolve the deps of {@code
+     *     node} and add them with {@link #addEdge}.
+     */
+    public boolean addPreviousEdges(TargetNode<?> node) {
+      if (previous == null
+          || previous.getTargetsToNodes().get(node.getBuildTarget()) != node
+          || !previous.getNodes().contains(node)) {
+        return false;
+      }
+      Iterable<TargetNode<?>> deps = previous.getOutgoingNodesFor(node);
+      for (TargetNode<?> dep : deps) {
+        if (!nodes.contains(dep)) {
+          return false;
+        }
+      }
+      for (TargetNode<?> dep : deps) {
+        graph.addEdge(node, dep);
+      }
+      reusedNodes.add(node);
+      return true;
+    }
+
+    public void addEdge(TargetNode<?> node, TargetNode<?> dep) {
+      graph.addEdge(node, dep);
+    }
+
+    /** Creates the {@link TargetGraph}, returning the previous one if nothing changed. */
+    public TargetGraph build(ImmutableMap<BuildTarget, TargetNode<?>> index) {
+      if (previous != null
+          && reusedNodes.size() == graph.getNodeCount()
+          && graph.getNodeCount() == previous.getNodes().size()
+          && indexMatches(index, previous.getTargetsToNodes())) {
+        LOG.debug("Reusing previous target graph with %d nodes", previous.getSize());
+        return previous;
+      }
+
+      LOG.debug(
+          "Building target graph reusing the edges of %d out of %d nodes",
+          reusedNodes.size(), graph.getNodeCount());
+      TargetGraph targetGraph = new TargetGraph(graph, index, reusedNodes::contains);
+      previousGraph = targetGraph;
+      return targetGraph;
+    }
+  }
+
+  private static boolean indexMatches(
+      ImmutableMap<BuildTarget, TargetNode<?>> index,
+      ImmutableMap<BuildTarget, TargetNode<?>> previousIndex) {
+    if (index.size() != previousIndex.size()) {
+      return false;
+    }
+    for (Map.Entry<BuildTarget, TargetNode<?>> entry : index.entrySet()) {
+      if (previousIndex.get(entry.getKey()) != entry.getValue()) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -29,6 +29,7 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Optional;
 import java.util.OptionalInt;
+import java.util.function.Predicate;
 import javax.annotation.Nullable;
 
 /** Represents the graph of {@link TargetNode}s constructed by parsing the build files. */
@@ -43,14 +44,28 @@ public class TargetGraph extends DirectedAcyclicGraph<TargetNode<?>> {
 
   public TargetGraph(
       MutableDirectedGraph<TargetNode<?>> graph, ImmutableMap<BuildTarget, TargetNode<?>> index) {
+    this(graph, index, node -> false);
+  }
+
+  /**
+   * Creates a graph in which the visibility of the outgoing edges of nodes accepted by {@code
+   * hasVerifiedDeps} has already been verified, so only the other edges are checked.
+   */
+  TargetGraph(
+      MutableDirectedGraph<TargetNode<?>> graph,
+      ImmutableMap<BuildTarget, TargetNode<?>> index,
+      Predicate<TargetNode<?>> hasVerifiedDeps) {
     super(graph);
     this.targetsToNodes = index;
 
-    verifyVisibilityIntegrity();
+    verifyVisibilityIntegrity(hasVerifiedDeps);
   }
 
-  private void verifyVisibilityIntegrity() {
+  private void verifyVisibilityIntegrity(Predicate<TargetNode<?>> hasVerifiedDeps) {
     for (TargetNode<?> node : getNodes()) {
+      if (hasVerifiedDeps.test(node)) {
+        continue;
+      }
       for (TargetNode<?> dep : getOutgoingNodesFor(node)) {
         dep.isVisibleToOrThrow(node);
       }
@@ -102,6 +117,10 @@ public class TargetGraph extends DirectedAcyclicGraph<TargetNode<?>> {
     return Optional.ofNullable(targetsToNodes.get(target));
   }
 
+  ImmutableMap<BuildTarget, TargetNode<?>> getTargetsToNodes() {
+    return targetsToNodes;
+  }
+
   public Iterable<TargetNode<?>> getAll(Iterable<BuildTarget> targets) {
     return Iterables.transform(targets, this::get);
   }
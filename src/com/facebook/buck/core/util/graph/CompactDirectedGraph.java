@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.util.graph;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.function.IntConsumer;
+
+/**
+ * Immutable directed graph stored in compressed sparse row form.
+ *
+ * <p>Every node is assigned a dense int id in {@code [0, getNodeCount())}. The outgoing edges of
+ * node {@code i} are the ids {@code outgoingEdges[outgoingOffsets[i]..outgoingOffsets[i + 1])}, and
+ * incoming edges are stored the same way. Edges therefore cost two ints each instead of several
+ * hash table entries, and traversals over ids (see {@link CompactGraphTraversals}) only touch
+ * primitive arrays.
+ */
+public final class CompactDirectedGraph<T> implements TraversableGraph<T> {
+
+  private final ImmutableList<T> nodes;
+  private final ImmutableMap<T, Integer> nodeIds;
+  private final int[] outgoingOffsets;
+  private final int[] outgoingEdges;
+  private final int[] incomingOffsets;
+  private final int[] incomingEdges;
+
+  private CompactDirectedGraph(
+      ImmutableList<T> nodes,
+      ImmutableMap<T, Integer> nodeIds,
+      int[] outgoingOffsets,
+      int[] outgoingEdges,
+      int[] incomingOffsets,
+      int[] incomingEdges) {
+    this.nodes = nodes;
+    this.nodeIds = nodeIds;
+    this.outgoingOffsets = outgoingOffsets;
+    this.outgoingEdges = outgoingEdges;
+    this.incomingOffsets = incomingOffsets;
+    this.incomingEdges = incomingEdges;
+  }
+
+  /**
+   * Creates a compact copy of the given graph. Node ids follow the iteration order of {@link
+   * TraversableGraph#getNodes()} and edges keep the order of {@link
+   * TraversableGraph#getOutgoingNodesFor(Object)}.
+   */
+  public static <T> CompactDirectedGraph<T> copyOf(TraversableGraph<T> graph) {
+    ImmutableList<T> nodes = ImmutableList.copyOf(graph.getNodes());
+    int nodeCount = nodes.size();
+    ImmutableMap.Builder<T, Integer> nodeIdsBuilder =
+        ImmutableMap.builderWithExpectedSize(nodeCount);
+    for (int i = 0; i < nodeCount; i++) {
+      nodeIdsBuilder.put(nodes.get(i), i);
+    }
+    ImmutableMap<T, Integer> nodeIds = nodeIdsBuilder.build();
+
+    int[] outgoingOffsets = new int[nodeCount + 1];
+    int[] incomingOffsets = new int[nodeCount + 1];
+    int[] outgoingEdges = new int[16];
+    int edgeCount = 0;
+    for (int i = 0; i < nodeCount; i++) {
+      outgoingOffsets[i] = edgeCount;
+      for (T sink : graph.getOutgoingNodesFor(nodes.get(i))) {
+        Integer sinkId = nodeIds.get(sink);
+        Preconditions.checkState(sinkId != null, "Edge to %s which is not in the graph", sink);
+        if (edgeCount == outgoingEdges.length) {
+          outgoingEdges = Arrays.copyOf(outgoingEdges, edgeCount * 2);
+        }
+        outgoingEdges[edgeCount++] = sinkId;
+        incomingOffsets[sinkId + 1]++;
+      }
+    }
+    outgoingOffsets[nodeCount] = edgeCount;
+    if (outgoingEdges.length != edgeCount) {
+      outgoingEdges = Arrays.copyOf(outgoingEdges, edgeCount);
+    }
+
+    // Transpose the outgoing edges: turn per-node in-degrees into offsets, then fill each sink's
+    // slice in source id order.
+    for (int i = 0; i < nodeCount; i++) {
+      incomingOffsets[i + 1] += incomingOffsets[i];
+    }
+    int[] incomingEdges = new int[edgeCount];
+    int[] next = Arrays.copyOf(incomingOffsets, nodeCount);
+    for (int source = 0; source < nodeCount; source++) {
+      for (int e = outgoingOffsets[source]; e < outgoingOffsets[source + 1]; e++) {
+        incomingEdges[next[outgoingEdges[e]]++] = source;
+      }
+    }
+
+    return new CompactDirectedGraph<>(
+        nodes, nodeIds, outgoingOffsets, outgoingEdges, incomingOffsets, incomingEdges);
+  }
+
+  public int getNodeCount() {
+    return nodes.size();
+  }
+
+  public int getEdgeCount() {
+    return outgoingEdges.length;
+  }
+
+  /** @return the id of the given node, or {@code -1} if it is not in this graph. */
+  public int getNodeId(T node) {
+    Integer id = nodeIds.get(node);
+    return id == null ? -1 : id;
+  }
+
+  public T getNode(int id) {
+    return nodes.get(id);
+  }
+
+  public int getOutDegree(int id) {
+    return outgoingOffsets[id + 1] - outgoingOffsets[id];
+  }
+
+  public int getInDegree(int id) {
+    return incomingOffsets[id + 1] - incomingOffsets[id];
+  }
+
+  /** Calls {@code consumer} with the id of every node that {@code id} has an edge to. */
+  public void forEachOutgoing(int id, IntConsumer consumer) {
+    for (int e = outgoingOffsets[id]; e < outgoingOffsets[id + 1]; e++) {
+      consumer.accept(outgoingEdges[e]);
+    }
+  }
+
+  /** Calls {@code consumer} with the id of every node that has an edge to {@code id}. */
+  public void forEachIncoming(int id, IntConsumer consumer) {
+    for (int e = incomingOffsets[id]; e < incomingOffsets[id + 1]; e++) {
+      consumer.accept(incomingEdges[e]);
+    }
+  }
+
+  int[] getOutgoingOffsets() {
+    return outgoingOffsets;
+  }
+
+  int[] getOutgoingEdges() {
+    return outgoingEdges;
+  }
+
+  int[] getIncomingOffsets() {
+    return incomingOffsets;
+  }
+
+  int[] getIncomingEdges() {
+    return incomingEdges;
+  }
+
+  @Override
+  public List<T> getNodesWithNoIncomingEdges() {
+    return nodesWithNoEdges(incomingOffsets);
+  }
+
+  @Override
+  public List<T> getNodesWithNoOutgoingEdges() {
+    return nodesWithNoEdges(outgoingOffsets);
+  }
+
+  @Override
+  public List<T> getIncomingNodesFor(T sink) {
+    return edgeSlice(incomingOffsets, incomingEdges, sink);
+  }
+
+  @Override
+  public List<T> getOutgoingNodesFor(T source) {
+    return edgeSlice(outgoingOffsets, outgoingEdges, source);
+  }
+
+  @Override
+  public ImmutableList<T> getNodes() {
+    return nodes;
+  }
+
+  private ImmutableList<T> nodesWithNoEdges(int[] offsets) {
+    ImmutableList.Builder<T> result = ImmutableList.builder();
+    for (int i = 0; i < nodes.size(); i++) {
+      if (offsets[i] == offsets[i + 1]) {
+        result.add(nodes.get(i));
+      }
+    }
+    return result.build();
+  }
+
+  private List<T> edgeSlice(int[] offsets, int[] edges, T node) {
+    int id = getNodeId(node);
+    if (id < 0) {
+      return ImmutableList.of();
+    }
+    return new NodeSlice(edges, offsets[id], offsets[id + 1]);
+  }
+
+  /** Read-only view of a range of an edge array, mapped back to nodes. */
+  private class NodeSlice extends AbstractList<T> implements RandomAccess {
+
+    private final int[] edges;
+    private final int start;
+    private final int end;
+
+    NodeSlice(int[] edges, int start, int end) {
+      this.edges = edges;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public T get(int index) {
+      Preconditions.checkElementIndex(index, size());
+      return nodes.get(edges[start + index]);
+    }
+
+    @Override
+    public int size() {
+      return end - start;
+    }
+  }
+}
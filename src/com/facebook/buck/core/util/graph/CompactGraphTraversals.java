@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.util.graph;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.function.IntPredicate;
+
+/**
+ * Traversals over a {@link CompactDirectedGraph} that work on node ids and primitive arrays, so no
+ * hashing is needed per visited edge.
+ */
+public class CompactGraphTraversals {
+
+  /** Levels smaller than this are expanded on the calling thread. */
+  private static final int MIN_PARALLEL_CHUNK_SIZE = 1024;
+
+  /** Which edges a traversal follows. */
+  public enum Direction {
+    OUTGOING,
+    INCOMING,
+  }
+
+  private CompactGraphTraversals() {}
+
+  /**
+   * Returns the nodes of the graph ordered so that every node comes after all of the nodes it has
+   * outgoing edges to, like {@link TopologicalSort#sort(TraversableGraph)}.
+   *
+   * @throws IllegalStateException if the graph contains a cycle.
+   */
+  public static <T> ImmutableList<T> topologicalSort(CompactDirectedGraph<T> graph) {
+    int nodeCount = graph.getNodeCount();
+    int[] outgoingOffsets = graph.getOutgoingOffsets();
+    int[] incomingOffsets = graph.getIncomingOffsets();
+    int[] incomingEdges = graph.getIncomingEdges();
+
+    int[] remainingOutDegree = new int[nodeCount];
+    int[] queue = new int[nodeCount];
+    int tail = 0;
+    for (int i = 0; i < nodeCount; i++) {
+      remainingOutDegree[i] = outgoingOffsets[i + 1] - outgoingOffsets[i];
+      if (remainingOutDegree[i] == 0) {
+        queue[tail++] = i;
+      }
+    }
+
+    ImmutableList.Builder<T> sorted = ImmutableList.builderWithExpectedSize(nodeCount);
+    for (int head = 0; head < tail; head++) {
+      int node = queue[head];
+      sorted.add(graph.getNode(node));
+      for (int e = incomingOffsets[node]; e < incomingOffsets[node + 1]; e++) {
+        int parent = incomingEdges[e];
+        if (--remainingOutDegree[parent] == 0) {
+          queue[tail++] = parent;
+        }
+      }
+    }
+    Preconditions.checkState(tail == nodeCount, "Graph must be acyclic");
+    return sorted.build();
+  }
+
+  /**
+   * Returns the given roots and every node reachable from them by following outgoing edges, in
+   * breadth-first order.
+   */
+  public static <T> ImmutableSet<T> transitiveOutgoing(
+      CompactDirectedGraph<T> graph, Iterable<? extends T> roots) {
+    return breadthFirst(
+        graph, roots, graph.getOutgoingOffsets(), graph.getOutgoingEdges(), Integer.MAX_VALUE);
+  }
+
+  /**
+   * Like {@link #transitiveOutgoing(CompactDirectedGraph, Iterable)}, but stops after following
+   * {@code maxDepth} edges from the roots.
+   */
+  public static <T> ImmutableSet<T> transitiveOutgoing(
+      CompactDirectedGraph<T> graph, Iterable<? extends T> roots, int maxDepth) {
+    return breadthFirst(
+        graph, roots, graph.getOutgoingOffsets(), graph.getOutgoingEdges(), maxDepth);
+  }
+
+  /**
+   * Returns the given roots and every node that can reach one of them, in breadth-first order
+   * starting from the roots.
+   */
+  public static <T> ImmutableSet<T> transitiveIncoming(
+      CompactDirectedGraph<T> graph, Iterable<? extends T> roots) {
+    return breadthFirst(
+        graph, roots, graph.getIncomingOffsets(), graph.getIncomingEdges(), Integer.MAX_VALUE);
+  }
+
+  /**
+   * Performs a depth-first, post-order traversal from the given roots, like {@link
+   * AcyclicDepthFirstPostOrderTraversal}.
+   *
+   * @throws CycleException if a cycle is reachable from the roots.
+   */
+  public static <T> ImmutableList<T> depthFirstPostOrder(
+      CompactDirectedGraph<T> graph, Iterable<? extends T> roots) throws CycleException {
+    int[] offsets = graph.getOutgoingOffsets();
+    int[] edges = graph.getOutgoingEdges();
+    BitSet finished = new BitSet(graph.getNodeCount());
+    BitSet onStack = new BitSet(graph.getNodeCount());
+    // Parallel stacks of node ids and the position of the next edge to explore for each of them.
+    int[] nodeStack = new int[16];
+    int[] edgeStack = new int[16];
+    ImmutableList.Builder<T> result = ImmutableList.builder();
+
+    for (T root : roots) {
+      int rootId = requireNodeId(graph, root);
+      if (finished.get(rootId)) {
+        continue;
+      }
+      int depth = 0;
+      nodeStack[0] = rootId;
+      edgeStack[0] = offsets[rootId];
+      onStack.set(rootId);
+      while (depth >= 0) {
+        int node = nodeStack[depth];
+        int edge = edgeStack[depth];
+        if (edge == offsets[node + 1]) {
+          onStack.clear(node);
+          finished.set(node);
+          result.add(graph.getNode(node));
+          depth--;
+          continue;
+        }
+        edgeStack[depth]++;
+        int child = edges[edge];
+        if (finished.get(child)) {
+          continue;
+        }
+        if (onStack.get(child)) {
+          throw new CycleException(cycle(graph, nodeStack, depth, child));
+        }
+        depth++;
+        if (depth == nodeStack.length) {
+          nodeStack = Arrays.copyOf(nodeStack, depth * 2);
+          edgeStack = Arrays.copyOf(edgeStack, depth * 2);
+        }
+        nodeStack[depth] = child;
+        edgeStack[depth] = offsets[child];
+        onStack.set(child);
+      }
+    }
+    return result.build();
+  }
+
+  /**
+   * Level-synchronous breadth-first traversal that expands large levels in parallel.
+   *
+   * <p>Each level is split into chunks that are expanded on {@code executor}. The candidates found
+   * by each chunk are merged in chunk order, so the result is the same as that of a sequential
+   * traversal no matter how the chunks are scheduled.
+   *
+   * @param roots ids of the nodes to start from.
+   * @param maxDepth the maximum number of edges to follow from the roots.
+   * @param filter nodes it rejects, including roots, are neither returned nor traversed through.
+   *     It may be called concurrently from several threads.
+   * @param parallelism the maximum number of chunks a level is split into.
+   * @return the ids of the visited nodes: accepted roots first, then each level in order.
+   */
+  public static int[] parallelBreadthFirst(
+      CompactDirectedGraph<?> graph,
+      int[] roots,
+      Direction direction,
+      int maxDepth,
+      IntPredicate filter,
+      ListeningExecutorService executor,
+      int parallelism)
+      throws InterruptedException {
+    int[] offsets =
+        direction == Direction.OUTGOING ? graph.getOutgoingOffsets() : graph.getIncomingOffsets();
+    int[] edges =
+        direction == Direction.OUTGOING ? graph.getOutgoingEdges() : graph.getIncomingEdges();
+    BitSet visited = new BitSet(graph.getNodeCount());
+    IntList result = new IntList(roots.length);
+    for (int root : roots) {
+      if (!visited.get(root) && filter.test(root)) {
+        visited.set(root);
+        result.add(root);
+      }
+    }
+
+    int levelStart = 0;
+    for (int depth = 0; depth < maxDepth && levelStart < result.size(); depth++) {
+      int levelEnd = result.size();
+      int chunks =
+          Math.max(1, Math.min(parallelism, (levelEnd - levelStart) / MIN_PARALLEL_CHUNK_SIZE));
+      List<IntList> candidates;
+      if (chunks == 1) {
+        candidates =
+            ImmutableList.of(
+                expand(result.elements, levelStart, levelEnd, offsets, edges, visited, filter));
+      } else {
+        // Chunks only read the visited set, it is updated below once all of them are done.
+        int[] level = result.elements;
+        List<ListenableFuture<IntList>> futures = new ArrayList<>(chunks);
+        int chunkSize = (levelEnd - levelStart + chunks - 1) / chunks;
+        for (int start = levelStart; start < levelEnd; start += chunkSize) {
+          int chunkStart = start;
+          int chunkEnd = Math.min(levelEnd, start + chunkSize);
+          futures.add(
+              executor.submit(
+                  () -> expand(level, chunkStart, chunkEnd, offsets, edges, visited, filter)));
+        }
+        try {
+          candidates = Futures.allAsList(futures).get();
+        } catch (ExecutionException e) {
+          Throwables.throwIfUnchecked(e.getCause());
+          throw new RuntimeException(e.getCause());
+        }
+      }
+      for (IntList chunk : candidates) {
+        for (int i = 0; i < chunk.size(); i++) {
+          int node = chunk.elements[i];
+          if (!visited.get(node)) {
+            visited.set(node);
+            result.add(node);
+          }
+        }
+      }
+      levelStart = levelEnd;
+    }
+    return Arrays.copyOf(result.elements, result.size());
+  }
+
+  private static IntList expand(
+      int[] level,
+      int start,
+      int end,
+      int[] offsets,
+      int[] edges,
+      BitSet visited,
+      IntPredicate filter) {
+    IntList candidates = new IntList(end - start);
+    for (int i = start; i < end; i++) {
+      int node = level[i];
+      for (int e = offsets[node]; e < offsets[node + 1]; e++) {
+        int next = edges[e];
+        if (!visited.get(next) && filter.test(next)) {
+          candidates.add(next);
+        }
+      }
+    }
+    return candidates;
+  }
+
+  private static <T> ImmutableSet<T> breadthFirst(
+      CompactDirectedGraph<T> graph,
+      Iterable<? extends T> roots,
+      int[] offsets,
+      int[] edges,
+      int maxDepth) {
+    BitSet visited = new BitSet(graph.getNodeCount());
+    int[] queue = new int[graph.getNodeCount()];
+    int tail = 0;
+    for (T root : roots) {
+      int id = requireNodeId(graph, root);
+      if (!visited.get(id)) {
+        visited.set(id);
+        queue[tail++] = id;
+      }
+    }
+
+    int head = 0;
+    for (int depth = 0; depth < maxDepth && head < tail; depth++) {
+      int levelEnd = tail;
+      for (; head < levelEnd; head++) {
+        int node = queue[head];
+        for (int e = offsets[node]; e < offsets[node + 1]; e++) {
+          int next = edges[e];
+          if (!visited.get(next)) {
+            visited.set(next);
+            queue[tail++] = next;
+          }
+        }
+      }
+    }
+
+    ImmutableSet.Builder<T> result = ImmutableSet.builderWithExpectedSize(tail);
+    for (int i = 0; i < tail; i++) {
+      result.add(graph.getNode(queue[i]));
+    }
+    return result.build();
+  }
+
+  private static <T> List<T> cycle(
+      CompactDirectedGraph<T> graph, int[] nodeStack, int depth, int repeated) {
+    List<T> cycle = new ArrayList<>();
+    int start = depth;
+    while (nodeStack[start] != repeated) {
+      start--;
+    }
+    for (int i = start; i <= depth; i++) {
+      cycle.add(graph.getNode(nodeStack[i]));
+    }
+    cycle.add(graph.getNode(repeated));
+    return cycle;
+  }
+
+  private static <T> int requireNodeId(CompactDirectedGraph<T> graph, T node) {
+    int id = graph.getNodeId(node);
+    Preconditions.checkArgument(id >= 0, "%s is not in the graph", node);
+    return id;
+  }
+
+  /** Growable array of ints. */
+  private static class IntList {
+    private int[] elements;
+    private int size;
+
+    IntList(int capacity) {
+      this.elements = new int[Math.max(capacity, 16)];
+    }
+
+    void add(int value) {
+      if (size == elements.length) {
+        elements = Arrays.copyOf(elements, size * 2);
+      }
+      elements[size++] = value;
+    }
+
+    int size() {
+      return size;
+    }
+  }
+}
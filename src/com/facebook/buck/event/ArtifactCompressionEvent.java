@@ -114,6 +114,18 @@ public abstract class ArtifactCompressionEvent extends AbstractBuckEvent
       return startedTimeStamp;
     }
 
+    /** Returns how long the compression or decompression took. */
+    @JsonView(JsonViews.MachineReadableLog.class)
+    public long getDurationMillis() {
+      return getTimestampMillis() - startedTimeStamp;
+    }
+
+    /** Returns the full size divided by the compressed size, or 0 if nothing was compressed. */
+    @JsonView(JsonViews.MachineReadableLog.class)
+    public double getCompressionRatio() {
+      return compressedSize == 0 ? 0 : (double) fullSize / compressedSize;
+    }
+
     @Override
     public String getEventName() {
       return String.format(
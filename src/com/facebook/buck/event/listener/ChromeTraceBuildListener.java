@@ -673,7 +673,10 @@ public class ChromeTraceBuildListener implements BuckEventListener {
         ChromeTraceEvent.Phase.END,
         ImmutableMap.<String, String>builder()
             .put("full_size", Long.toString(finished.fullSize))
-            .put("compressed_size", Long.toString(finished.compressedSize)));
+            .put("compressed_size", Long.toString(finished.compressedSize))
+            .put(
+                "compression_ratio",
+                String.format(Locale.US, "%.2f", finished.getCompressionRatio())));
   }
 
   public void writeArtifactCompressionEvent(
@@ -20,13 +20,18 @@ import com.facebook.buck.io.filesystem.ProjectFilesystemDelegate;
 import com.facebook.buck.util.sha1.Sha1HashCode;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 import com.google.common.io.ByteSource;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 /**
  * Default implementation of {@link ProjectFilesystemDelegate} that talks to the filesystem via
@@ -34,6 +39,9 @@ import java.nio.file.Path;
  */
 public final class DefaultProjectFilesystemDelegate implements ProjectFilesystemDelegate {
 
+  private static final long LARGE_FILE_THRESHOLD_BYTES = 4L * 1024 * 1024;
+  private static final int LARGE_FILE_BUFFER_BYTES = 1024 * 1024;
+
   private final Path root;
 
   public DefaultProjectFilesystemDelegate(Path root) {
@@ -49,6 +57,15 @@ public final class DefaultProjectFilesystemDelegate implements ProjectFilesystem
   public Sha1HashCode computeSha1(Path pathRelativeToProjectRootOrJustAbsolute) throws IOException {
     Path fileToHash = getPathForRelativePath(pathRelativeToProjectRootOrJustAbsolute);
     try {
+      // Large files on the default filesystem are read in big chunks, rather than being copied
+      // through a small stream buffer. The resulting hash is the same. They are not memory
+      // mapped, since mappings are only released when collected and keep the files locked on
+      // Windows until then.
+      if (fileToHash.getFileSystem() == FileSystems.getDefault()
+          && Files.size(fileToHash) >= LARGE_FILE_THRESHOLD_BYTES) {
+        return Sha1HashCode.fromHashCode(hashLargeFile(fileToHash));
+      }
+
       // Normally, we would just use `Files.hash(fileToHash.toFile(), Hashing.sha1())`, but if
       // fileToHash is backed by Jimfs, its toFile() method throws an UnsupportedOperationException.
       // Creating the input stream via java.nio.file.Files.newInputStream() avoids this issue.
@@ -73,6 +90,19 @@ public final class DefaultProjectFilesystemDelegate implements ProjectFilesystem
     }
   }
 
+  private static HashCode hashLargeFile(Path fileToHash) throws IOException {
+    Hasher hasher = Hashing.sha1().newHasher();
+    ByteBuffer buffer = ByteBuffer.allocate(LARGE_FILE_BUFFER_BYTES);
+    try (FileChannel channel = FileChannel.open(fileToHash, StandardOpenOption.READ)) {
+      while (channel.read(buffer) >= 0) {
+        buffer.flip();
+        hasher.putBytes(buffer);
+        buffer.clear();
+      }
+    }
+    return hasher.hash();
+  }
+
   @Override
   public Path getPathForRelativePath(Path pathRelativeToProjectRoot) {
     // We often create {@link Path} instances using
@@ -22,6 +22,7 @@ import com.facebook.buck.core.exceptions.HumanReadableException;
 import com.facebook.buck.core.filesystems.AbsPath;
 import com.facebook.buck.core.model.BuildTarget;
 import com.facebook.buck.core.model.TargetConfiguration;
+import com.facebook.buck.core.model.targetgraph.IncrementalTargetGraphBuilder;
 import com.facebook.buck.core.model.targetgraph.TargetGraph;
 import com.facebook.buck.core.model.targetgraph.TargetGraphCreationResult;
 import com.facebook.buck.core.model.targetgraph.TargetNode;
@@ -29,7 +30,6 @@ import com.facebook.buck.core.model.targetgraph.TargetNodeMaybeIncompatible;
 import com.facebook.buck.core.util.graph.AcyclicDepthFirstPostOrderTraversalWithPayloadAndDependencyStack;
 import com.facebook.buck.core.util.graph.CycleException;
 import com.facebook.buck.core.util.graph.GraphTraversableWithPayloadAndDependencyStack;
-import com.facebook.buck.core.util.graph.MutableDirectedGraph;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.parser.api.BuildFileManifest;
 import com.facebook.buck.parser.exceptions.BuildFileParseException;
@@ -43,6 +43,7 @@ import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.ListenableFuture;
 import java.io.IOException;
 import java.util.HashMap;
@@ -176,7 +177,6 @@ abstract class AbstractParser implements Parser {
       return TargetGraphCreationResult.of(TargetGraph.EMPTY, toExplore);
     }
 
-    MutableDirectedGraph<TargetNode<?>> graph = new MutableDirectedGraph<>();
     Map<BuildTarget, TargetNode<?>> index = new HashMap<>();
     TemporaryUnconfiguredTargetToTargetUniquenessChecker checker =
         TemporaryUnconfiguredTargetToTargetUniquenessChecker.create(buckOutIncludeTargetConfigHash);
@@ -226,8 +226,14 @@ abstract class AbstractParser implements Parser {
 
     TargetGraph targetGraph = null;
     try {
+      Map<BuildTarget, Pair<TargetNode<?>, DependencyStack>> targetsAndNodes =
+          targetNodeTraversal.traverse(toExplore);
+      IncrementalTargetGraphBuilder.GraphBuilder graph =
+          permState
+              .getTargetGraphBuilder()
+              .newGraph(Iterables.transform(targetsAndNodes.values(), Pair::getFirst));
       for (Map.Entry<BuildTarget, Pair<TargetNode<?>, DependencyStack>> targetAndNode :
-          targetNodeTraversal.traverse(toExplore).entrySet()) {
+          targetsAndNodes.entrySet()) {
         BuildTarget target = targetAndNode.getKey();
         TargetNode<?> targetNode = targetAndNode.getValue().getFirst();
         DependencyStack dependencyStack = targetAndNode.getValue().getSecond();
@@ -244,13 +250,15 @@ abstract class AbstractParser implements Parser {
           // NOTE: do not used uniqueness checked for unflavored target
           // because `target.withoutFlavors()` does not switch unconfigured target
         }
-        for (BuildTarget dep : targetNode.getParseDeps()) {
-          graph.addEdge(
-              targetNode, state.getTargetNodeAssertCompatible(dep, dependencyStack.child(dep)));
+        if (!graph.addPreviousEdges(targetNode)) {
+          for (BuildTarget dep : targetNode.getParseDeps()) {
+            graph.addEdge(
+                targetNode, state.getTargetNodeAssertCompatible(dep, dependencyStack.child(dep)));
+          }
         }
       }
 
-      targetGraph = new TargetGraph(graph, ImmutableMap.copyOf(index));
+      targetGraph = graph.build(ImmutableMap.copyOf(index));
       return TargetGraphCreationResult.of(targetGraph, toExplore);
     } catch (CycleException e) {
       throw new HumanReadableException(e.getMessage());
@@ -16,21 +16,118 @@
 
 package com.facebook.buck.parser;
 
+import com.facebook.buck.core.cell.Cell;
 import com.facebook.buck.core.filesystems.AbsPath;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.io.watchman.Watchman;
 import com.facebook.buck.parser.api.BuildFileManifest;
+import com.facebook.buck.parser.api.ProjectBuildFileParser;
+import com.facebook.buck.parser.cache.impl.ParserCache;
+import com.facebook.buck.parser.exceptions.BuildTargetException;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 
-/** A pipeline that provides a {@link BuildFileManifest} for a given build file. */
+/**
+ * A pipeline that provides a {@link BuildFileManifest} for a given build file.
+ *
+ * <p>Manifests that are not in memory are looked up in the persistent {@link ParserCache} before
+ * the build file is evaluated. A single target can also be read from the persistent cache without
+ * decoding the rest of its package, see {@link #getCachedTargetJob}.
+ */
 public class BuildFileRawNodeParsePipeline extends GenericFileParsePipeline<BuildFileManifest> {
 
+  private final ProjectBuildFileParserPool projectBuildFileParserPool;
+  private final ListeningExecutorService executorService;
+  private final BuckEventBus eventBus;
+  private final Watchman watchman;
+  private final DaemonicParserState daemonicParserState;
+  private final ParserCache parserCache;
+
   public BuildFileRawNodeParsePipeline(
       PipelineNodeCache<AbsPath, BuildFileManifest> cache,
       ProjectBuildFileParserPool projectBuildFileParserPool,
       ListeningExecutorService executorService,
       BuckEventBus eventBus,
-      Watchman watchman) {
+      Watchman watchman,
+      DaemonicParserState daemonicParserState) {
     super(cache, projectBuildFileParserPool, executorService, eventBus, watchman);
+    this.projectBuildFileParserPool = projectBuildFileParserPool;
+    this.executorService = executorService;
+    this.eventBus = eventBus;
+    this.watchman = watchman;
+    this.daemonicParserState = daemonicParserState;
+    this.parserCache = daemonicParserState.getParserCache();
+  }
+
+  @Override
+  protected ListenableFuture<BuildFileManifest> parseFile(Cell cell, AbsPath buildFile) {
+    if (!parserCache.isEnabled(cell)) {
+      return super.parseFile(cell, buildFile);
+    }
+    return projectBuildFileParserPool.runWithParser(
+        eventBus,
+        cell,
+        watchman,
+        parser -> parserCache.getOrParse(cell, buildFile, (ProjectBuildFileParser) parser),
+        executorService);
+  }
+
+  /**
+   * Reads a single target from the persistent {@link ParserCache} without decoding the rest of the
+   * package.
+   *
+   * <p>The lookup is skipped if the manifest of the build file is in memory or already being
+   * computed, since {@link #getFileJob} is then cheaper. A target that is found is recorded in the
+   * {@link DaemonicParserState}, so it is invalidated like the targets of manifests kept in memory.
+   * If the result has no manifest, callers should fall back to {@link #getFileJob(Cell, AbsPath,
+   * ParserCache.TargetLookup)}.
+   */
+  public ListenableFuture<ParserCache.TargetLookup> getCachedTargetJob(
+      Cell cell, AbsPath buildFile, String targetName) throws BuildTargetException {
+    if (!parserCache.isEnabled(cell)
+        || hasFileJob(cell, buildFile)
+        || cell.getFilesystem().isIgnored(cell.getRoot().relativize(buildFile.getParent()))) {
+      return Futures.immediateFuture(ParserCache.TargetLookup.NOT_LOOKED_UP);
+    }
+    return projectBuildFileParserPool.runWithParser(
+        eventBus,
+        cell,
+        watchman,
+        parser -> {
+          ParserCache.TargetLookup lookup =
+              parserCache.getCachedTarget(
+                  cell, buildFile, targetName, (ProjectBuildFileParser) parser);
+          if (lookup.getManifest().isPresent()) {
+            daemonicParserState.putIndividuallyCachedTarget(
+                cell, buildFile, lookup.getManifest().get());
+          }
+          return lookup;
+        },
+        executorService);
+  }
+
+  /**
+   * Same as {@link #getFileJob(Cell, AbsPath)}, but reuses the fingerprints computed by a {@link
+   * #getCachedTargetJob} lookup that did not return the target if the build file has to be read.
+   */
+  public ListenableFuture<BuildFileManifest> getFileJob(
+      Cell cell, AbsPath buildFile, ParserCache.TargetLookup missedLookup)
+      throws BuildTargetException {
+    if (!missedLookup.wasLookedUp()) {
+      return getFileJob(cell, buildFile);
+    }
+    return getFileJob(
+        cell,
+        buildFile,
+        () ->
+            projectBuildFileParserPool.runWithParser(
+                eventBus,
+                cell,
+                watchman,
+                parser ->
+                    parserCache.getOrParse(
+                        cell, buildFile, missedLookup, (ProjectBuildFileParser) parser),
+                executorService));
   }
 }
@@ -17,8 +17,10 @@
 package com.facebook.buck.parser;
 
 import com.facebook.buck.core.cell.Cell;
+import com.facebook.buck.core.filesystems.AbsPath;
 import com.facebook.buck.core.model.BuildTarget;
 import com.facebook.buck.core.model.UnconfiguredBuildTarget;
+import com.facebook.buck.parser.cache.impl.ParserCache;
 import com.facebook.buck.parser.config.ParserConfig;
 import com.facebook.buck.parser.exceptions.BuildTargetException;
 import com.facebook.buck.parser.exceptions.NoSuchBuildTargetException;
@@ -73,14 +75,35 @@ public class BuildTargetRawNodeParsePipeline
     return builder.build().stream().sorted().collect(ImmutableList.toImmutableList());
   }
 
+  /**
+   * Reads the target from the persistent parser cache if possible, so that looking up a single
+   * target does not decode its whole package, and falls back to the manifest of the build file.
+   */
   @Override
   public ListenableFuture<Map<String, Object>> getNodeJob(
       Cell cell, UnconfiguredBuildTarget buildTarget) throws BuildTargetException {
+    AbsPath buildFile =
+        cell.getBuckConfigView(ParserConfig.class).getAbsolutePathToBuildFile(cell, buildTarget);
+    return Futures.transformAsync(
+        buildFileRawNodeParsePipeline.getCachedTargetJob(cell, buildFile, buildTarget.getName()),
+        lookup -> {
+          if (lookup.getManifest().isPresent()) {
+            return Futures.immediateFuture(
+                lookup.getManifest().get().getTargets().get(buildTarget.getName()));
+          }
+          return getNodeFromBuildFile(cell, buildTarget, buildFile, lookup);
+        },
+        executorService);
+  }
+
+  private ListenableFuture<Map<String, Object>> getNodeFromBuildFile(
+      Cell cell,
+      UnconfiguredBuildTarget buildTarget,
+      AbsPath buildFile,
+      ParserCache.TargetLookup missedLookup)
+      throws BuildTargetException {
     return Futures.transformAsync(
-        buildFileRawNodeParsePipeline.getFileJob(
-            cell,
-            cell.getBuckConfigView(ParserConfig.class)
-                .getAbsolutePathToBuildFile(cell, buildTarget)),
+        buildFileRawNodeParsePipeline.getFileJob(cell, buildFile, missedLookup),
         input -> {
           if (!input.getTargets().containsKey(buildTarget.getName())) {
             ParserConfig parserConfig = cell.getBuckConfigView(ParserConfig.class);
@@ -100,7 +123,7 @@ public class BuildTargetRawNodeParsePipeline
                     return OptionalLong.empty();
                   }
                 },
-                parserConfig.getAbsolutePathToBuildFile(cell, buildTarget).getPath());
+                buildFile.getPath());
           }
           return Futures.immediateFuture(input.getTargets().get(buildTarget.getName()));
         },
@@ -141,6 +141,14 @@ class DaemonicCellState {
   @GuardedBy("cachesLock")
   private final ConcurrentMapCache<AbsPath, BuildFileManifest> allBuildFileManifests;
 
+  /**
+   * Targets of build files whose manifest is not in {@link #allBuildFileManifests}, because they
+   * were read one at a time from the persistent parser cache. They are invalidated together with
+   * their build file, like the targets of a cached manifest.
+   */
+  @GuardedBy("cachesLock")
+  private final SetMultimap<AbsPath, UnflavoredBuildTarget> individuallyCachedTargets;
+
   /** Used as an unbounded cache to stored package file manifests by package file path. */
   @GuardedBy("cachesLock")
   private final ConcurrentMapCache<AbsPath, PackageFileManifest> allPackageFileManifests;
@@ -210,6 +218,7 @@ class DaemonicCellState {
     this.buildFileEnv = new HashMap<>();
     this.allBuildFileManifests = new ConcurrentMapCache<>(parsingThreads);
     this.allPackageFileManifests = new ConcurrentMapCache<>(parsingThreads);
+    this.individuallyCachedTargets = HashMultimap.create();
     this.allRawNodeTargets = new HashSet<>();
     this.cachesLock = new AutoCloseableReadWriteUpdateLock();
     this.targetNodeCache = new Cache<>(TARGET_NODE_CACHE_TYPE);
@@ -255,11 +264,42 @@ class DaemonicCellState {
         for (AbsPath dependent : dependentsOfEveryNode) {
           buildFileDependents.put(dependent, buildFile);
         }
+        // The manifest covers the targets read individually so far.
+        individuallyCachedTargets.removeAll(buildFile);
       }
       return updated;
     }
   }
 
+  /**
+   * Records the targets of a build file that were read without its whole manifest, so that they
+   * are invalidated when the build file, its includes or the environment it read change.
+   *
+   * @param buildFileManifest manifest of the build file restricted to the targets that were read
+   */
+  void putIndividuallyCachedTargets(
+      AbsPath buildFile,
+      BuildFileManifest buildFileManifest,
+      ImmutableSet<AbsPath> dependentsOfEveryNode,
+      ImmutableMap<String, Optional<String>> env) {
+    try (AutoCloseableLock writeLock = cachesLock.writeLock()) {
+      if (allBuildFileManifests.getIfPresent(buildFile) != null) {
+        return;
+      }
+      for (Map<String, Object> node : buildFileManifest.getTargets().values()) {
+        UnflavoredBuildTarget target =
+            UnflavoredBuildTargetFactory.createFromRawNode(
+                cellRoot.getPath(), cellCanonicalName, node, buildFile.getPath());
+        allRawNodeTargets.add(target);
+        individuallyCachedTargets.put(buildFile, target);
+      }
+      buildFileEnv.put(buildFile, env);
+      for (AbsPath dependent : dependentsOfEveryNode) {
+        buildFileDependents.put(dependent, buildFile);
+      }
+    }
+  }
+
   Optional<PackageFileManifest> lookupPackageFileManifest(AbsPath packageFile) {
     try (AutoCloseableLock readLock = cachesLock.readLock()) {
       return Optional.ofNullable(allPackageFileManifests.getIfPresent(packageFile));
@@ -314,6 +354,16 @@ class DaemonicCellState {
           }
         }
       }
+      for (UnflavoredBuildTarget target : individuallyCachedTargets.get(path)) {
+        invalidatedRawNodes++;
+        LOG.debug("Invalidating individually cached target for path %s: %s", path, target);
+        for (Cache<?, ?> cache : typedNodeCaches()) {
+          cache.invalidateFor(target);
+        }
+        if (invalidateBuildTargets) {
+          allRawNodeTargets.remove(target);
+        }
+      }
       return invalidatedRawNodes;
     }
   }
@@ -342,6 +392,7 @@ class DaemonicCellState {
       int invalidatedRawNodes = invalidateNodesInPath(path, true);
 
       allBuildFileManifests.invalidate(path);
+      individuallyCachedTargets.removeAll(path);
       allPackageFileManifests.invalidate(path);
 
       // We may have been given a file that other build files depend on. Invalidate accordingly.
@@ -23,8 +23,10 @@ import com.facebook.buck.core.filesystems.AbsPath;
 import com.facebook.buck.core.filesystems.RelPath;
 import com.facebook.buck.core.model.BuildFileTree;
 import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.model.TargetConfiguration;
 import com.facebook.buck.core.model.UnconfiguredBuildTarget;
 import com.facebook.buck.core.model.impl.FilesystemBackedBuildFileTree;
+import com.facebook.buck.core.model.targetgraph.IncrementalTargetGraphBuilder;
 import com.facebook.buck.core.model.targetgraph.TargetNodeMaybeIncompatible;
 import com.facebook.buck.core.model.targetgraph.raw.UnconfiguredTargetNode;
 import com.facebook.buck.core.util.log.Logger;
@@ -38,9 +40,11 @@ import com.facebook.buck.io.watchman.WatchmanOverflowEvent;
 import com.facebook.buck.io.watchman.WatchmanPathEvent;
 import com.facebook.buck.parser.api.BuildFileManifest;
 import com.facebook.buck.parser.api.PackageFileManifest;
+import com.facebook.buck.parser.cache.impl.ParserCache;
 import com.facebook.buck.parser.config.ParserConfig;
 import com.facebook.buck.parser.exceptions.BuildFileParseException;
 import com.facebook.buck.parser.exceptions.BuildTargetException;
+import com.facebook.buck.skylark.parser.SkylarkExtensionCache;
 import com.facebook.buck.util.concurrent.AutoCloseableLock;
 import com.facebook.buck.util.concurrent.AutoCloseableReadWriteLock;
 import com.google.common.annotations.VisibleForTesting;
@@ -212,25 +216,11 @@ public class DaemonicParserState {
       // invalidated mid-way through the parse).
       invalidateIfProjectBuildFileParserStateChanged(cell);
 
-      ImmutableSet.Builder<AbsPath> dependentsOfEveryNode = ImmutableSet.builder();
-
-      addAllIncludes(dependentsOfEveryNode, manifest.getIncludes(), cell);
-
-      if (cell.getBuckConfig().getView(ParserConfig.class).getEnablePackageFiles()) {
-        // Add the PACKAGE file in the build file's directory and parent directory as dependents,
-        // regardless of whether they currently exist. If a PACKAGE file is added, we need to
-        // invalidate all relevant nodes.
-        AbsPath packageFile = PackagePipeline.getPackageFileFromBuildFile(cell, buildFile);
-        ImmutableSet<AbsPath> parentPackageFiles =
-            PackagePipeline.getAllParentPackageFiles(cell, packageFile);
-        dependentsOfEveryNode.add(packageFile).addAll(parentPackageFiles);
-      }
-
       return getOrCreateCellState(cell)
           .putBuildFileManifestIfNotPresent(
               buildFile,
               manifest,
-              dependentsOfEveryNode.build(),
+              getDependentsOfEveryNode(cell, buildFile, manifest),
               manifest.getEnv().orElse(ImmutableMap.of()));
     }
   }
@@ -278,6 +268,42 @@ public class DaemonicParserState {
     }
   }
 
+  /**
+   * Records a target read on its own from the persistent {@link ParserCache}, so that it is
+   * invalidated when its build file, the includes of its build file or the environment variables
+   * they read change, like the targets of build file manifests kept by this state.
+   *
+   * @param manifest manifest of the build file restricted to that target
+   */
+  void putIndividuallyCachedTarget(Cell cell, AbsPath buildFile, BuildFileManifest manifest) {
+    getOrCreateCellState(cell)
+        .putIndividuallyCachedTargets(
+            buildFile,
+            manifest,
+            getDependentsOfEveryNode(cell, buildFile, manifest),
+            manifest.getEnv().orElse(ImmutableMap.of()));
+  }
+
+  /** @return the files whose changes invalidate every node of the given build file. */
+  private static ImmutableSet<AbsPath> getDependentsOfEveryNode(
+      Cell cell, AbsPath buildFile, BuildFileManifest manifest) {
+    ImmutableSet.Builder<AbsPath> dependentsOfEveryNode = ImmutableSet.builder();
+
+    addAllIncludes(dependentsOfEveryNode, manifest.getIncludes(), cell);
+
+    if (cell.getBuckConfig().getView(ParserConfig.class).getEnablePackageFiles()) {
+      // Add the PACKAGE file in the build file's directory and parent directory as dependents,
+      // regardless of whether they currently exist. If a PACKAGE file is added, we need to
+      // invalidate all relevant nodes.
+      AbsPath packageFile = PackagePipeline.getPackageFileFromBuildFile(cell, buildFile);
+      ImmutableSet<AbsPath> parentPackageFiles =
+          PackagePipeline.getAllParentPackageFiles(cell, packageFile);
+      dependentsOfEveryNode.add(packageFile).addAll(parentPackageFiles);
+    }
+
+    return dependentsOfEveryNode.build();
+  }
+
   /** Add all the includes from the manifest and Buck defaults. */
   private static void addAllIncludes(
       ImmutableSet.Builder<AbsPath> dependents,
@@ -357,6 +383,18 @@ public class DaemonicParserState {
 
   private final int parsingThreads;
 
+  /** Persistent cache of build file manifests, shared by all commands run by this daemon. */
+  private final ParserCache parserCache;
+
+  /** Evaluated Skylark extensions, shared by all Skylark parsers created by this daemon. */
+  private final SkylarkExtensionCache skylarkExtensionCache;
+
+  /** Target graph built by the previous command, used as a baseline for the next one. */
+  private final IncrementalTargetGraphBuilder targetGraphBuilder;
+
+  /** Dependencies and inputs of the targets of every build file parsed by this daemon. */
+  private final TargetDependencyIndex dependencyIndex;
+
   private final LoadingCache<Cell, BuildFileTree> buildFileTrees;
 
   /**
@@ -408,6 +446,10 @@ public class DaemonicParserState {
     this.cellPathToDaemonicState =
         new ConcurrentHashMap<>(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR, parsingThreads);
 
+    this.parserCache = new ParserCache();
+    this.skylarkExtensionCache = new SkylarkExtensionCache();
+    this.targetGraphBuilder = new IncrementalTargetGraphBuilder();
+    this.dependencyIndex = new TargetDependencyIndex();
     this.rawNodeCache = new DaemonicRawCacheView();
     this.packageFileCache = new DaemonicPackageCache();
 
@@ -415,6 +457,53 @@ public class DaemonicParserState {
     this.cellStateLock = new AutoCloseableReadWriteLock();
   }
 
+  ParserCache getParserCache() {
+    return parserCache;
+  }
+
+  SkylarkExtensionCache getSkylarkExtensionCache() {
+    return skylarkExtensionCache;
+  }
+
+  IncrementalTargetGraphBuilder getTargetGraphBuilder() {
+    return targetGraphBuilder;
+  }
+
+  public TargetDependencyIndex getDependencyIndex() {
+    return dependencyIndex;
+  }
+
+  /**
+   * Adds the compatible targets of a build file parsed for {@code targetConfiguration} to the
+   * {@link TargetDependencyIndex}. Nothing is recorded if the manifest of the build file is no
+   * longer cached, as the file has then been invalidated while its targets were being created.
+   */
+  void recordTargetNodes(
+      Cell cell,
+      AbsPath buildFile,
+      Optional<TargetConfiguration> targetConfiguration,
+      ImmutableList<TargetNodeMaybeIncompatible> targetNodes) {
+    DaemonicCellState state = getCellState(cell);
+    if (state == null) {
+      return;
+    }
+    Optional<BuildFileManifest> manifest = state.lookupBuildFileManifest(buildFile);
+    if (!manifest.isPresent()) {
+      return;
+    }
+    dependencyIndex.recordTargetNodes(
+        cell,
+        buildFile,
+        getDependentsOfEveryNode(cell, buildFile, manifest.get()),
+        manifest.get().getEnv().orElse(ImmutableMap.of()),
+        targetConfiguration,
+        targetNodes.stream()
+            .map(TargetNodeMaybeIncompatible::getTargetNodeOptional)
+            .filter(Optional::isPresent)
+            .map(Optional::get)
+            .collect(ImmutableList.toImmutableList()));
+  }
+
   LoadingCache<Cell, BuildFileTree> getBuildFileTrees() {
     return buildFileTrees;
   }
@@ -497,6 +586,7 @@ public class DaemonicParserState {
     // We only care about creation and deletion events because modified should result in a
     // rule key change.  For parsing, these are the only events we need to care about.
     if (isPathCreateOrDeleteEvent(event)) {
+      dependencyIndex.invalidateContainingPackages(fullPath);
       try (AutoCloseableLock readLock = cellStateLock.readLock()) {
         for (DaemonicCellState state : cellPathToDaemonicState.values()) {
           try {
@@ -538,6 +628,7 @@ public class DaemonicParserState {
     } else {
       invalidatePath(fullPath);
     }
+    skylarkExtensionCache.invalidatePath(fullPath);
   }
 
   /**
@@ -565,6 +656,7 @@ public class DaemonicParserState {
         invalidatePath(state, path);
       }
     }
+    dependencyIndex.invalidatePath(path);
   }
 
   /**
@@ -696,6 +788,11 @@ public class DaemonicParserState {
     try (AutoCloseableLock writeLock = cachedStateLock.writeLock()) {
       cachedIncludes.put(cell.getRoot(), defaultIncludes);
     }
+    if (expected != null) {
+      // On the first use of a cell there is nothing to compare with; packages restored into the
+      // index were checked against the configuration of the cell instead.
+      dependencyIndex.invalidateCell(cell.getRoot());
+    }
     if (invalidateCellCaches(cell)) {
       LOG.warn(
           "Invalidating cache on default includes change (%s != %s)", expected, defaultIncludes);
@@ -709,6 +806,8 @@ public class DaemonicParserState {
     try (AutoCloseableLock writeLock = cellStateLock.writeLock()) {
       boolean invalidated = cellPathToDaemonicState.containsKey(cell.getRoot());
       cellPathToDaemonicState.remove(cell.getRoot());
+      skylarkExtensionCache.invalidateCell(cell.getRoot());
+      targetGraphBuilder.invalidate();
       if (invalidated) {
         LOG.debug("Cell cache data invalidated.");
       } else {
@@ -724,6 +823,9 @@ public class DaemonicParserState {
     try (AutoCloseableLock writeLock = cellStateLock.writeLock()) {
       boolean invalidated = !cellPathToDaemonicState.isEmpty();
       cellPathToDaemonicState.clear();
+      skylarkExtensionCache.invalidateAll();
+      targetGraphBuilder.invalidate();
+      dependencyIndex.invalidateAll();
       buildFileTrees.invalidateAll();
       configurationBuildFiles.clear();
       if (invalidated) {
@@ -736,14 +838,17 @@ public class DaemonicParserState {
   }
 
   public ImmutableList<Counter> getCounters() {
-    return ImmutableList.of(
-        cacheInvalidatedByEnvironmentVariableChangeCounter,
-        cacheInvalidatedByDefaultIncludesChangeCounter,
-        cacheInvalidatedByWatchOverflowCounter,
-        buildFilesInvalidatedByFileAddOrRemoveCounter,
-        filesChangedCounter,
-        rulesInvalidatedByWatchEventsCounter,
-        pathsAddedOrRemovedInvalidatingBuildFiles);
+    return ImmutableList.<Counter>builder()
+        .add(
+            cacheInvalidatedByEnvironmentVariableChangeCounter,
+            cacheInvalidatedByDefaultIncludesChangeCounter,
+            cacheInvalidatedByWatchOverflowCounter,
+            buildFilesInvalidatedByFileAddOrRemoveCounter,
+            filesChangedCounter,
+            rulesInvalidatedByWatchEventsCounter,
+            pathsAddedOrRemovedInvalidatingBuildFiles)
+        .addAll(parserCache.getCounters())
+        .build();
   }
 
   @Override
@@ -47,6 +47,7 @@ import com.facebook.buck.skylark.io.impl.NativeGlobber;
 import com.facebook.buck.skylark.io.impl.SyncCookieState;
 import com.facebook.buck.skylark.parser.BuckGlobals;
 import com.facebook.buck.skylark.parser.RuleFunctionFactory;
+import com.facebook.buck.skylark.parser.SkylarkExtensionCache;
 import com.facebook.buck.skylark.parser.SkylarkProjectBuildFileParser;
 import com.facebook.buck.util.Console;
 import com.facebook.buck.util.DefaultProcessExecutor;
@@ -68,6 +69,7 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
   private final KnownRuleTypesProvider knownRuleTypesProvider;
   private final boolean enableProfiling;
   private final Optional<AtomicLong> processedBytes;
+  private final Optional<SkylarkExtensionCache> skylarkExtensionCache;
 
   public DefaultProjectBuildFileParserFactory(
       TypeCoercerFactory typeCoercerFactory,
@@ -75,13 +77,15 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
       ParserPythonInterpreterProvider pythonInterpreterProvider,
       KnownRuleTypesProvider knownRuleTypesProvider,
       boolean enableProfiling,
-      Optional<AtomicLong> processedBytes) {
+      Optional<AtomicLong> processedBytes,
+      Optional<SkylarkExtensionCache> skylarkExtensionCache) {
     this.typeCoercerFactory = typeCoercerFactory;
     this.console = console;
     this.pythonInterpreterProvider = pythonInterpreterProvider;
     this.knownRuleTypesProvider = knownRuleTypesProvider;
     this.enableProfiling = enableProfiling;
     this.processedBytes = processedBytes;
+    this.skylarkExtensionCache = skylarkExtensionCache;
   }
 
   public DefaultProjectBuildFileParserFactory(
@@ -89,14 +93,16 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
       ParserPythonInterpreterProvider pythonInterpreterProvider,
       boolean enableProfiling,
       Optional<AtomicLong> processedBytes,
-      KnownRuleTypesProvider knownRuleTypesProvider) {
+      KnownRuleTypesProvider knownRuleTypesProvider,
+      Optional<SkylarkExtensionCache> skylarkExtensionCache) {
     this(
         typeCoercerFactory,
         Console.createNullConsole(),
         pythonInterpreterProvider,
         knownRuleTypesProvider,
         enableProfiling,
-        processedBytes);
+        processedBytes,
+        skylarkExtensionCache);
   }
 
   public DefaultProjectBuildFileParserFactory(
@@ -110,6 +116,7 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
         pythonInterpreterProvider,
         knownRuleTypesProvider,
         false,
+        Optional.empty(),
         Optional.empty());
   }
 
@@ -201,7 +208,8 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
               knownRuleTypesProvider.getUserDefinedRuleTypes(cell),
               eventBus,
               buildFileParserOptions,
-              parserConfig.getSkylarkGlobHandler());
+              parserConfig.getSkylarkGlobHandler(),
+              skylarkExtensionCache);
       Optional<UserDefinedRuleLoader> udrLoader = Optional.empty();
       if (parserConfig.getUserDefinedRulesState() == UserDefinedRulesState.ENABLED) {
         udrLoader = Optional.of(skylark);
@@ -231,7 +239,8 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
                   knownRuleTypesProvider.getUserDefinedRuleTypes(cell),
                   eventBus,
                   buildFileParserOptions,
-                  parserConfig.getSkylarkGlobHandler());
+                  parserConfig.getSkylarkGlobHandler(),
+                  skylarkExtensionCache);
           break;
         case PYTHON_DSL:
           parser =
@@ -288,7 +297,8 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
       KnownUserDefinedRuleTypes knownUserDefinedRuleTypes,
       BuckEventBus eventBus,
       ProjectBuildFileParserOptions buildFileParserOptions,
-      SkylarkGlobHandler skylarkGlobHandler) {
+      SkylarkGlobHandler skylarkGlobHandler,
+      Optional<SkylarkExtensionCache> skylarkExtensionCache) {
     GlobberFactory globberFactory;
     try {
       globberFactory = getSkylarkGlobberFactory(buildFileParserOptions, skylarkGlobHandler);
@@ -336,7 +346,8 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
               SkylarkFilesystem.using(cell.getFilesystem()),
               buckGlobals,
               eventHandler,
-              globberFactory);
+              globberFactory,
+              skylarkExtensionCache);
 
       // All built-ins should have already been discovered. Freezing improves performance by
       // avoiding synchronization during query operations. This operation is idempotent, so it's
@@ -76,15 +76,35 @@ abstract class FileParserPool<T extends FileManifest> implements AutoCloseable {
       Watchman watchman,
       AbsPath parseFile,
       ListeningExecutorService executorService) {
+    return runWithParser(
+        buckEventBus,
+        cell,
+        watchman,
+        parser -> parser.getManifest(parseFile.getPath()),
+        executorService);
+  }
+
+  /**
+   * @param cell the cell in which we're parsing
+   * @param withParser the operation to perform with a parser of the cell
+   * @param executorService where to perform the operation.
+   * @return a {@link ListenableFuture} containing the result of the operation. The future will be
+   *     cancelled if the {@link ProjectBuildFileParserPool#close()} method is called.
+   */
+  public <R> ListenableFuture<R> runWithParser(
+      BuckEventBus buckEventBus,
+      Cell cell,
+      Watchman watchman,
+      ResourcePool.ThrowingFunction<FileParser<T>, R> withParser,
+      ListeningExecutorService executorService) {
     Preconditions.checkState(!closing.get());
 
     if (shouldUsePoolForCell(cell)) {
       return getResourcePoolForCell(buckEventBus, cell, watchman)
-          .scheduleOperationWithResource(
-              parser -> parser.getManifest(parseFile.getPath()), executorService);
+          .scheduleOperationWithResource(withParser, executorService);
     }
     FileParser<T> parser = getParserForCell(buckEventBus, cell, watchman);
-    return executorService.submit(() -> parser.getManifest(parseFile.getPath()));
+    return executorService.submit(() -> withParser.apply(parser));
   }
 
   private synchronized ResourcePool<FileParser<T>> getResourcePoolForCell(
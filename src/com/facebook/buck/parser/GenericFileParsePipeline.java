@@ -28,6 +28,7 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
 /** A pipeline that provides cached parsed results for a given file. */
 public class GenericFileParsePipeline<T extends FileManifest> implements FileParsePipeline<T> {
@@ -55,6 +56,16 @@ public class GenericFileParsePipeline<T extends FileManifest> implements FilePar
 
   @Override
   public ListenableFuture<T> getFileJob(Cell cell, AbsPath buildFile) throws BuildTargetException {
+    return getFileJob(cell, buildFile, () -> parseFile(cell, buildFile));
+  }
+
+  /**
+   * Same as {@link #getFileJob(Cell, AbsPath)}, but uses {@code parseJobSupplier} instead of {@link
+   * #parseFile} if the file is not present in the in-memory cache.
+   */
+  protected ListenableFuture<T> getFileJob(
+      Cell cell, AbsPath buildFile, Supplier<ListenableFuture<T>> parseJobSupplier)
+      throws BuildTargetException {
 
     if (shuttingDown.get()) {
       return Futures.immediateCancelledFuture();
@@ -75,11 +86,24 @@ public class GenericFileParsePipeline<T extends FileManifest> implements FilePar
                 pathToCheck);
           }
 
-          return fileParserPool.getManifest(eventBus, cell, watchman, buildFile, executorService);
+          return parseJobSupplier.get();
         },
         eventBus);
   }
 
+  /**
+   * @return whether the result for the given file is in the in-memory cache or is already being
+   *     computed, in which case {@link #getFileJob} does not parse it again.
+   */
+  protected boolean hasFileJob(Cell cell, AbsPath buildFile) throws BuildTargetException {
+    return cache.getJobIfPresent(cell, buildFile, eventBus).isPresent();
+  }
+
+  /** Schedules parsing of a file that is not present in the in-memory cache. */
+  protected ListenableFuture<T> parseFile(Cell cell, AbsPath buildFile) {
+    return fileParserPool.getManifest(eventBus, cell, watchman, buildFile, executorService);
+  }
+
   @Override
   public void close() {
     shuttingDown.set(true);
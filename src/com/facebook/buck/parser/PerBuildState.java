@@ -45,6 +45,7 @@ public class PerBuildState implements AutoCloseable {
   private final SelectorListResolver selectorListResolver;
   private final SelectorListFactory selectorListFactory;
   private final ConfigurationRuleRegistry configurationRuleRegistry;
+  private final DaemonicParserState daemonicParserState;
 
   PerBuildState(
       CellManager cellManager,
@@ -53,7 +54,8 @@ public class PerBuildState implements AutoCloseable {
       ParsingContext parsingContext,
       SelectorListResolver selectorListResolver,
       SelectorListFactory selectorListFactory,
-      ConfigurationRuleRegistry configurationRuleRegistry) {
+      ConfigurationRuleRegistry configurationRuleRegistry,
+      DaemonicParserState daemonicParserState) {
     this.cellManager = cellManager;
     this.buildFileRawNodeParsePipeline = buildFileRawNodeParsePipeline;
     this.targetNodeParsePipeline = targetNodeParsePipeline;
@@ -61,6 +63,7 @@ public class PerBuildState implements AutoCloseable {
     this.selectorListResolver = selectorListResolver;
     this.selectorListFactory = selectorListFactory;
     this.configurationRuleRegistry = configurationRuleRegistry;
+    this.daemonicParserState = daemonicParserState;
   }
 
   TargetNodeMaybeIncompatible getTargetNode(BuildTarget target, DependencyStack dependencyStack)
@@ -93,7 +96,10 @@ public class PerBuildState implements AutoCloseable {
       throws BuildFileParseException {
     Preconditions.checkState(buildFile.startsWith(cell.getRoot()));
 
-    return targetNodeParsePipeline.getAllRequestedTargetNodes(cell, buildFile, targetConfiguration);
+    ImmutableList<TargetNodeMaybeIncompatible> targetNodes =
+        targetNodeParsePipeline.getAllRequestedTargetNodes(cell, buildFile, targetConfiguration);
+    daemonicParserState.recordTargetNodes(cell, buildFile, targetConfiguration, targetNodes);
+    return targetNodes;
   }
 
   ListenableFuture<TargetNodeMaybeIncompatible> getRequestedTargetNodeJob(
@@ -109,8 +115,13 @@ public class PerBuildState implements AutoCloseable {
       throws BuildTargetException {
     Preconditions.checkState(buildFile.startsWith(cell.getRoot()));
 
-    return targetNodeParsePipeline.getAllRequestedTargetNodesJob(
-        cell, buildFile, targetConfiguration);
+    return Futures.transform(
+        targetNodeParsePipeline.getAllRequestedTargetNodesJob(
+            cell, buildFile, targetConfiguration),
+        targetNodes -> {
+          daemonicParserState.recordTargetNodes(cell, buildFile, targetConfiguration, targetNodes);
+          return targetNodes;
+        });
   }
 
   public BuildFileManifest getBuildFileManifest(Cell cell, AbsPath buildFile)
@@ -125,7 +136,7 @@ public class PerBuildState implements AutoCloseable {
     return buildFileRawNodeParsePipeline.getFileJob(cell, buildFile);
   }
 
-  ParsingContext getParsingContext() {
+  public ParsingContext getParsingContext() {
     return parsingContext;
   }
 
@@ -116,7 +116,8 @@ public class PerBuildStateFactory {
             parserPythonInterpreterProvider,
             parsingContext.isProfilingEnabled(),
             parseProcessedBytes,
-            knownRuleTypesProvider);
+            knownRuleTypesProvider,
+            Optional.of(daemonicParserState.getSkylarkExtensionCache()));
     ProjectBuildFileParserPool projectBuildFileParserPool =
         new ProjectBuildFileParserPool(
             numParsingThreads, // Max parsers to create per cell.
@@ -135,7 +136,8 @@ public class PerBuildStateFactory {
             projectBuildFileParserPool,
             executorService,
             eventBus,
-            watchman);
+            watchman,
+            daemonicParserState);
 
     BuildTargetRawNodeParsePipeline buildTargetRawNodeParsePipeline =
         new BuildTargetRawNodeParsePipeline(executorService, buildFileRawNodeParsePipeline);
@@ -297,7 +299,8 @@ public class PerBuildStateFactory {
         parsingContext,
         selectorListResolver,
         selectorListFactory,
-        configurationRuleRegistry);
+        configurationRuleRegistry,
+        daemonicParserState);
   }
 
   @SuppressWarnings("PMD.AvoidThreadGroup")
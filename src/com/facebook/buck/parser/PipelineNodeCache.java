@@ -86,6 +86,19 @@ class PipelineNodeCache<K, T> {
     return resultFuture;
   }
 
+  /**
+   * @return the job for the given key if its result is already cached or it has already been
+   *     scheduled, without scheduling a new one.
+   */
+  protected final Optional<ListenableFuture<T>> getJobIfPresent(
+      Cell cell, K key, BuckEventBus eventBus) throws BuildTargetException {
+    ListenableFuture<T> job = jobsCache.get(key);
+    if (job != null) {
+      return Optional.of(job);
+    }
+    return cache.lookupComputedNode(cell, key, eventBus).map(Futures::immediateFuture);
+  }
+
   protected interface JobSupplier<V> {
     ListenableFuture<V> get() throws BuildTargetException;
   }
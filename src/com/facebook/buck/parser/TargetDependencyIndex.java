@@ -0,0 +1,648 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.buck.parser;
+
+import com.facebook.buck.core.cell.Cell;
+import com.facebook.buck.core.filesystems.AbsPath;
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.model.TargetConfiguration;
+import com.facebook.buck.core.model.targetgraph.TargetNode;
+import com.facebook.buck.core.path.ForwardRelativePath;
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.SetMultimap;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Reverse dependencies and file ownership of the targets in every build file the daemon has fully
+ * parsed. Packages are recorded as they are parsed and dropped on the same file change events that
+ * invalidate the parser caches, so the index only ever describes packages as they currently are.
+ *
+ * <p>Targets are keyed by their unflavored fully qualified name and configuration, so a flavored
+ * target stands for its unflavored target. This assumes that the dependencies of a flavored target
+ * are among those of its unflavored target or not indexed. Dependencies on targets that are not
+ * indexed, such as targets of packages that have not been parsed yet, are unknown territory:
+ * anything that reaches them is assumed to reach everything. This makes the answers of the index a
+ * superset of the exact ones, which lets callers use it to skip work without changing their
+ * results.
+ */
+@ThreadSafe
+public class TargetDependencyIndex {
+
+  private static final Logger LOG = Logger.get(TargetDependencyIndex.class);
+
+  private static final String SNAPSHOT_FILE_NAME = "target_dependency_index.snapshot";
+  private static final int SNAPSHOT_VERSION = 3;
+
+  /** A configured target of an indexed package. */
+  private static final class IndexedNode {
+    private final String key;
+    private final ImmutableSet<String> deps;
+    private final ImmutableSet<ForwardRelativePath> inputs;
+
+    private IndexedNode(
+        String key, ImmutableSet<String> deps, ImmutableSet<ForwardRelativePath> inputs) {
+      this.key = key;
+      this.deps = deps;
+      this.inputs = inputs;
+    }
+
+    private boolean owns(ForwardRelativePath file) {
+      for (ForwardRelativePath input : inputs) {
+        if (!input.isEmpty() && file.startsWith(input)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /** The targets of a build file, for every target configuration it was requested with. */
+  private static final class IndexedPackage {
+    private final AbsPath cellRoot;
+    private final AbsPath buildFile;
+    private final ImmutableSet<AbsPath> dependents;
+    private final ImmutableMap<String, Optional<String>> env;
+    private final Map<String, ImmutableList<IndexedNode>> nodesByConfiguration = new HashMap<>();
+
+    private IndexedPackage(
+        AbsPath cellRoot,
+        AbsPath buildFile,
+        ImmutableSet<AbsPath> dependents,
+        ImmutableMap<String, Optional<String>> env) {
+      this.cellRoot = cellRoot;
+      this.buildFile = buildFile;
+      this.dependents = dependents;
+      this.env = env;
+    }
+
+    private boolean isEnvUpToDate(Map<String, String> environment) {
+      for (Map.Entry<String, Optional<String>> entry : env.entrySet()) {
+        if (!Optional.ofNullable(environment.get(entry.getKey())).equals(entry.getValue())) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  @GuardedBy("this")
+  private final Map<AbsPath, IndexedPackage> packages = new HashMap<>();
+
+  @GuardedBy("this")
+  private final Map<AbsPath, AbsPath> buildFilesByDirectory = new HashMap<>();
+
+  /** Build files by the includes and other files their parse depends on. */
+  @GuardedBy("this")
+  private final SetMultimap<AbsPath, AbsPath> buildFilesByDependent = HashMultimap.create();
+
+  @GuardedBy("this")
+  private final Map<String, IndexedNode> nodes = new HashMap<>();
+
+  /** Keys of the indexed targets that depend on a key, indexed or not. */
+  @GuardedBy("this")
+  private final SetMultimap<String, String> reverseDeps = HashMultimap.create();
+
+  /**
+   * Keys that are not indexed or transitively depend on a key that is not, computed on demand and
+   * dropped whenever targets are added or removed.
+   */
+  @GuardedBy("this")
+  @Nullable
+  private Set<String> reachingUnindexedKeys = null;
+
+  /** Fingerprints of the configuration of the cells the index has packages of. */
+  @GuardedBy("this")
+  private final Map<AbsPath, String> cellFingerprints = new HashMap<>();
+
+  private static String getKey(BuildTarget target) {
+    return target.withoutFlavors().toStringWithConfiguration();
+  }
+
+  private static String getConfigurationKey(Optional<TargetConfiguration> targetConfiguration) {
+    return targetConfiguration.map(Object::toString).orElse("");
+  }
+
+  private static String getCellFingerprint(Cell cell) {
+    return cell.getBuckConfig().getConfig().getOrderIndependentHashCode().toString();
+  }
+
+  /**
+   * Records the targets of a build file that has been parsed for {@code targetConfiguration}.
+   *
+   * @param dependents the includes and other files whose changes invalidate the build file
+   * @param env the environment variables the build file read while being parsed
+   */
+  public synchronized void recordTargetNodes(
+      Cell cell,
+      AbsPath buildFile,
+      ImmutableSet<AbsPath> dependents,
+      ImmutableMap<String, Optional<String>> env,
+      Optional<TargetConfiguration> targetConfiguration,
+      Iterable<TargetNode<?>> targetNodes) {
+    IndexedPackage indexedPackage = packages.get(buildFile);
+    if (indexedPackage != null
+        && !(indexedPackage.dependents.equals(dependents) && indexedPackage.env.equals(env))) {
+      removePackage(buildFile);
+      indexedPackage = null;
+    }
+    if (indexedPackage == null) {
+      indexedPackage = new IndexedPackage(cell.getRoot(), buildFile, dependents, env);
+      addPackage(indexedPackage);
+    }
+    String configuration = getConfigurationKey(targetConfiguration);
+    if (indexedPackage.nodesByConfiguration.containsKey(configuration)) {
+      // Parsing the same unchanged build file again yields the same targets.
+      return;
+    }
+    ImmutableList.Builder<IndexedNode> indexedNodes = ImmutableList.builder();
+    for (TargetNode<?> targetNode : targetNodes) {
+      ImmutableSet.Builder<String> deps = ImmutableSet.builder();
+      for (BuildTarget dep : targetNode.getParseDeps()) {
+        deps.add(getKey(dep));
+      }
+      indexedNodes.add(
+          new IndexedNode(
+              getKey(targetNode.getBuildTarget()), deps.build(), targetNode.getInputs()));
+    }
+    addNodes(indexedPackage, configuration, indexedNodes.build());
+    cellFingerprints.put(cell.getRoot(), getCellFingerprint(cell));
+  }
+
+  @GuardedBy("this")
+  private void addPackage(IndexedPackage indexedPackage) {
+    packages.put(indexedPackage.buildFile, indexedPackage);
+    buildFilesByDirectory.put(indexedPackage.buildFile.getParent(), indexedPackage.buildFile);
+    for (AbsPath dependent : indexedPackage.dependents) {
+      buildFilesByDependent.put(dependent, indexedPackage.buildFile);
+    }
+  }
+
+  @GuardedBy("this")
+  private void addNodes(
+      IndexedPackage indexedPackage, String configuration, ImmutableList<IndexedNode> newNodes) {
+    indexedPackage.nodesByConfiguration.put(configuration, newNodes);
+    reachingUnindexedKeys = null;
+    for (IndexedNode node : newNodes) {
+      // Different requested configurations may resolve to the same configured target.
+      if (nodes.putIfAbsent(node.key, node) == null) {
+        for (String dep : node.deps) {
+          reverseDeps.put(dep, node.key);
+        }
+      }
+    }
+  }
+
+  @GuardedBy("this")
+  private void removePackage(AbsPath buildFile) {
+    IndexedPackage indexedPackage = packages.remove(buildFile);
+    if (indexedPackage == null) {
+      return;
+    }
+    LOG.verbose("Removing %s from the target dependency index", buildFile);
+    reachingUnindexedKeys = null;
+    buildFilesByDirectory.remove(buildFile.getParent(), buildFile);
+    for (AbsPath dependent : indexedPackage.dependents) {
+      buildFilesByDependent.remove(dependent, buildFile);
+    }
+    for (ImmutableList<IndexedNode> packageNodes : indexedPackage.nodesByConfiguration.values()) {
+      for (IndexedNode node : packageNodes) {
+        if (nodes.remove(node.key, node)) {
+          for (String dep : node.deps) {
+            reverseDeps.remove(dep, node.key);
+          }
+        }
+      }
+    }
+  }
+
+  /** Drops the packages of {@code path} if it is a build file, and of the build files using it. */
+  public synchronized void invalidatePath(AbsPath path) {
+    removePackage(path);
+    for (AbsPath buildFile : ImmutableList.copyOf(buildFilesByDependent.get(path))) {
+      removePackage(buildFile);
+    }
+  }
+
+  /**
+   * Drops every package whose directory contains {@code path}, as adding or removing a file there
+   * can change the results of globs and package boundaries.
+   */
+  public synchronized void invalidateContainingPackages(AbsPath path) {
+    for (AbsPath directory = path.getParent();
+        directory != null;
+        directory = directory.getParent()) {
+      AbsPath buildFile = buildFilesByDirectory.get(directory);
+      if (buildFile != null) {
+        removePackage(buildFile);
+      }
+    }
+  }
+
+  /** Drops every package of the cell rooted at {@code cellRoot}. */
+  public synchronized void invalidateCell(AbsPath cellRoot) {
+    for (IndexedPackage indexedPackage : ImmutableList.copyOf(packages.values())) {
+      if (indexedPackage.cellRoot.equals(cellRoot)) {
+        removePackage(indexedPackage.buildFile);
+      }
+    }
+    cellFingerprints.remove(cellRoot);
+  }
+
+  /** Drops every package. */
+  public synchronized void invalidateAll() {
+    packages.clear();
+    buildFilesByDirectory.clear();
+    buildFilesByDependent.clear();
+    nodes.clear();
+    reverseDeps.clear();
+    reachingUnindexedKeys = null;
+    cellFingerprints.clear();
+  }
+
+  @GuardedBy("this")
+  private void removePackagesWithChangedEnv(Map<String, String> environment) {
+    List<AbsPath> stale = new ArrayList<>();
+    for (IndexedPackage indexedPackage : packages.values()) {
+      if (!indexedPackage.isEnvUpToDate(environment)) {
+        stale.add(indexedPackage.buildFile);
+      }
+    }
+    for (AbsPath buildFile : stale) {
+      removePackage(buildFile);
+    }
+  }
+
+  /**
+   * Looks up the targets of {@code buildFile} that own {@code file}, that is, have it or one of its
+   * parent directories as an input.
+   *
+   * @param file path of the file relative to the root of {@code cell}
+   * @return the fully qualified names and configurations of the owning targets, or empty if no
+   *     targets of the build file have been indexed for {@code targetConfiguration}
+   */
+  public synchronized Optional<ImmutableSet<String>> getOwners(
+      Cell cell,
+      AbsPath buildFile,
+      Optional<TargetConfiguration> targetConfiguration,
+      ForwardRelativePath file) {
+    IndexedPackage indexedPackage = packages.get(buildFile);
+    if (indexedPackage == null) {
+      return Optional.empty();
+    }
+    if (!indexedPackage.isEnvUpToDate(cell.getBuckConfig().getEnvironment())) {
+      removePackage(buildFile);
+      return Optional.empty();
+    }
+    ImmutableList<IndexedNode> packageNodes =
+        indexedPackage.nodesByConfiguration.get(getConfigurationKey(targetConfiguration));
+    if (packageNodes == null || packageNodes.isEmpty()) {
+      return Optional.empty();
+    }
+    ImmutableSet.Builder<String> owners = ImmutableSet.builder();
+    for (IndexedNode node : packageNodes) {
+      if (node.owns(file)) {
+        owners.add(node.key);
+      }
+    }
+    return Optional.of(owners.build());
+  }
+
+  /**
+   * Filters {@code candidates} down to the targets that may transitively depend on one of {@code
+   * targets}. Candidates that are not indexed, or that reach targets the index does not know about,
+   * are always kept.
+   *
+   * @param environment the current environment, against which the environment variables read by
+   *     the indexed build files are checked
+   */
+  public synchronized ImmutableSet<BuildTarget> getTargetsThatMayReach(
+      Iterable<BuildTarget> candidates,
+      Iterable<BuildTarget> targets,
+      Map<String, String> environment) {
+    removePackagesWithChangedEnv(environment);
+
+    Set<String> reachingUnindexed = reachingUnindexedKeys;
+    if (reachingUnindexed == null) {
+      List<String> unindexedKeys = new ArrayList<>();
+      for (String dep : reverseDeps.keySet()) {
+        if (!nodes.containsKey(dep)) {
+          unindexedKeys.add(dep);
+        }
+      }
+      reachingUnindexed = getKeysReaching(unindexedKeys, ImmutableSet.of());
+      reachingUnindexedKeys = reachingUnindexed;
+    }
+    List<String> targetKeys = new ArrayList<>();
+    for (BuildTarget target : targets) {
+      targetKeys.add(getKey(target));
+    }
+    // Keys reaching unindexed keys are kept anyway, so there is no need to walk past them again.
+    Set<String> reachingTargets = getKeysReaching(targetKeys, reachingUnindexed);
+
+    ImmutableSet.Builder<BuildTarget> result = ImmutableSet.builder();
+    for (BuildTarget candidate : candidates) {
+      String key = getKey(candidate);
+      if (!nodes.containsKey(key)
+          || reachingUnindexed.contains(key)
+          || reachingTargets.contains(key)) {
+        result.add(candidate);
+      }
+    }
+    return result.build();
+  }
+
+  /**
+   * Returns {@code keys} and the keys of every indexed target that transitively depends on one of
+   * them, not descending into {@code excluded}.
+   */
+  @GuardedBy("this")
+  private Set<String> getKeysReaching(Iterable<String> keys, Set<String> excluded) {
+    Set<String> visited = new HashSet<>();
+    Queue<String> queue = new ArrayDeque<>();
+    for (String key : keys) {
+      if (!excluded.contains(key) && visited.add(key)) {
+        queue.add(key);
+      }
+    }
+    while (!queue.isEmpty()) {
+      for (String dependent : reverseDeps.get(queue.remove())) {
+        if (!excluded.contains(dependent) && visited.add(dependent)) {
+          queue.add(dependent);
+        }
+      }
+    }
+    return visited;
+  }
+
+  /** @return where snapshots of the index are kept between daemon restarts. */
+  public static Path getSnapshotPath(ProjectFilesystem filesystem) {
+    return filesystem.resolve(
+        filesystem.getBuckPaths().getScratchDir().resolve(SNAPSHOT_FILE_NAME));
+  }
+
+  /**
+   * Writes the packages of the cells in {@code watchmanClocks} to {@code snapshotPath}, together
+   * with the watchman clock up to which file change events have been applied to each cell.
+   */
+  public synchronized void writeSnapshot(
+      Path snapshotPath, ImmutableMap<AbsPath, String> watchmanClocks) throws IOException {
+    Map<AbsPath, String> persistedCells = new HashMap<>();
+    for (Map.Entry<AbsPath, String> entry : cellFingerprints.entrySet()) {
+      if (watchmanClocks.containsKey(entry.getKey())) {
+        persistedCells.put(entry.getKey(), entry.getValue());
+      }
+    }
+    List<IndexedPackage> persistedPackages = new ArrayList<>();
+    for (IndexedPackage indexedPackage : packages.values()) {
+      if (persistedCells.containsKey(indexedPackage.cellRoot)) {
+        persistedPackages.add(indexedPackage);
+      }
+    }
+
+    Files.createDirectories(snapshotPath.getParent());
+    Path tempPath = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+    try {
+      writeSnapshotFile(tempPath, watchmanClocks, persistedCells, persistedPackages);
+      Files.move(
+          tempPath,
+          snapshotPath,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException | RuntimeException e) {
+      try {
+        Files.deleteIfExists(tempPath);
+      } catch (IOException deleteException) {
+        e.addSuppressed(deleteException);
+      }
+      throw e;
+    }
+    LOG.debug(
+        "Wrote %d packages of %d cells to %s",
+        persistedPackages.size(), persistedCells.size(), snapshotPath);
+  }
+
+  private static void writeSnapshotFile(
+      Path tempPath,
+      ImmutableMap<AbsPath, String> watchmanClocks,
+      Map<AbsPath, String> persistedCells,
+      List<IndexedPackage> persistedPackages)
+      throws IOException {
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+      out.writeInt(SNAPSHOT_VERSION);
+      out.writeInt(persistedCells.size());
+      for (Map.Entry<AbsPath, String> entry : persistedCells.entrySet()) {
+        writeString(out, entry.getKey().toString());
+        writeString(out, watchmanClocks.get(entry.getKey()));
+        writeString(out, entry.getValue());
+      }
+      out.writeInt(persistedPackages.size());
+      for (IndexedPackage indexedPackage : persistedPackages) {
+        writeString(out, indexedPackage.cellRoot.toString());
+        writeString(out, indexedPackage.buildFile.toString());
+        out.writeInt(indexedPackage.dependents.size());
+        for (AbsPath dependent : indexedPackage.dependents) {
+          writeString(out, dependent.toString());
+        }
+        out.writeInt(indexedPackage.env.size());
+        for (Map.Entry<String, Optional<String>> entry : indexedPackage.env.entrySet()) {
+          writeString(out, entry.getKey());
+          out.writeBoolean(entry.getValue().isPresent());
+          if (entry.getValue().isPresent()) {
+            writeString(out, entry.getValue().get());
+          }
+        }
+        out.writeInt(indexedPackage.nodesByConfiguration.size());
+        for (Map.Entry<String, ImmutableList<IndexedNode>> entry :
+            indexedPackage.nodesByConfiguration.entrySet()) {
+          writeString(out, entry.getKey());
+          out.writeInt(entry.getValue().size());
+          for (IndexedNode node : entry.getValue()) {
+            writeString(out, node.key);
+            out.writeInt(node.deps.size());
+            for (String dep : node.deps) {
+              writeString(out, dep);
+            }
+            out.writeInt(node.inputs.size());
+            for (ForwardRelativePath input : node.inputs) {
+              writeString(out, input.toString());
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /** Writes a string of any length, unlike {@link DataOutputStream#writeUTF}. */
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      throw new IOException("Invalid string length " + length);
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Loads the packages written by {@link #writeSnapshot} for the cells in {@code cells} whose
+   * configuration has not changed since. The restored packages are only valid once every change
+   * watchman reports since the returned clock of their cell has been applied to the index; callers
+   * must rewind the watchman cursors to those clocks and treat a fresh watchman instance as an
+   * overflow, or else drop the cell with {@link #invalidateCell}.
+   *
+   * @return the watchman clocks of the restored cells, by cell root
+   */
+  public synchronized ImmutableMap<AbsPath, String> restoreSnapshot(
+      Path snapshotPath, Iterable<Cell> cells) throws IOException {
+    Map<String, Cell> cellsByRoot = new HashMap<>();
+    for (Cell cell : cells) {
+      cellsByRoot.put(cell.getRoot().toString(), cell);
+    }
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath)))) {
+      if (in.readInt() != SNAPSHOT_VERSION) {
+        LOG.debug("Ignoring target dependency index snapshot %s of unknown version", snapshotPath);
+        return ImmutableMap.of();
+      }
+      Map<String, Cell> restoredCells = new HashMap<>();
+      ImmutableMap.Builder<AbsPath, String> watchmanClocks = ImmutableMap.builder();
+      int cellCount = in.readInt();
+      for (int i = 0; i < cellCount; i++) {
+        String cellRoot = readString(in);
+        String watchmanClock = readString(in);
+        String fingerprint = readString(in);
+        Cell cell = cellsByRoot.get(cellRoot);
+        if (cell != null && fingerprint.equals(getCellFingerprint(cell))) {
+          restoredCells.put(cellRoot, cell);
+          watchmanClocks.put(cell.getRoot(), watchmanClock);
+        } else {
+          LOG.debug("Ignoring packages of %s, its configuration has changed", cellRoot);
+        }
+      }
+      List<IndexedPackage> restored = new ArrayList<>();
+      int packageCount = in.readInt();
+      for (int i = 0; i < packageCount; i++) {
+        Cell cell = restoredCells.get(readString(in));
+        String buildFile = readString(in);
+        List<String> dependents = new ArrayList<>();
+        int dependentCount = in.readInt();
+        for (int j = 0; j < dependentCount; j++) {
+          dependents.add(readString(in));
+        }
+        ImmutableMap.Builder<String, Optional<String>> env = ImmutableMap.builder();
+        int envCount = in.readInt();
+        for (int j = 0; j < envCount; j++) {
+          String name = readString(in);
+          env.put(name, in.readBoolean() ? Optional.of(readString(in)) : Optional.empty());
+        }
+        Map<String, ImmutableList<IndexedNode>> nodesByConfiguration = new HashMap<>();
+        int configurationCount = in.readInt();
+        for (int j = 0; j < configurationCount; j++) {
+          String configuration = readString(in);
+          ImmutableList.Builder<IndexedNode> packageNodes = ImmutableList.builder();
+          int nodeCount = in.readInt();
+          for (int k = 0; k < nodeCount; k++) {
+            String key = readString(in);
+            ImmutableSet.Builder<String> deps = ImmutableSet.builder();
+            int depCount = in.readInt();
+            for (int l = 0; l < depCount; l++) {
+              deps.add(readString(in));
+            }
+            ImmutableSet.Builder<ForwardRelativePath> inputs = ImmutableSet.builder();
+            int inputCount = in.readInt();
+            for (int l = 0; l < inputCount; l++) {
+              inputs.add(ForwardRelativePath.of(readString(in)));
+            }
+            packageNodes.add(new IndexedNode(key, deps.build(), inputs.build()));
+          }
+          nodesByConfiguration.put(configuration, packageNodes.build());
+        }
+        if (cell == null) {
+          continue;
+        }
+        // Paths are resolved on the file system of their cell, which is not necessarily the
+        // default one.
+        FileSystem fileSystem = cell.getRoot().getPath().getFileSystem();
+        ImmutableSet.Builder<AbsPath> dependentPaths = ImmutableSet.builder();
+        for (String dependent : dependents) {
+          dependentPaths.add(AbsPath.of(fileSystem.getPath(dependent)));
+        }
+        IndexedPackage indexedPackage =
+            new IndexedPackage(
+                cell.getRoot(),
+                AbsPath.of(fileSystem.getPath(buildFile)),
+                dependentPaths.build(),
+                env.build());
+        indexedPackage.nodesByConfiguration.putAll(nodesByConfiguration);
+        restored.add(indexedPackage);
+      }
+
+      // Only populate the index once the whole snapshot has been read successfully.
+      for (IndexedPackage indexedPackage : restored) {
+        Map<String, ImmutableList<IndexedNode>> nodesByConfiguration =
+            new HashMap<>(indexedPackage.nodesByConfiguration);
+        indexedPackage.nodesByConfiguration.clear();
+        removePackage(indexedPackage.buildFile);
+        addPackage(indexedPackage);
+        for (Map.Entry<String, ImmutableList<IndexedNode>> entry :
+            nodesByConfiguration.entrySet()) {
+          addNodes(indexedPackage, entry.getKey(), entry.getValue());
+        }
+      }
+      for (Cell cell : restoredCells.values()) {
+        cellFingerprints.put(cell.getRoot(), getCellFingerprint(cell));
+      }
+      LOG.debug("Restored %d packages of %d cells", restored.size(), restoredCells.size());
+      return watchmanClocks.build();
+    } catch (NoSuchFileException e) {
+      return ImmutableMap.of();
+    }
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.parser.cache;
+
+/** Describes which operations are allowed on a parser cache. */
+public enum ParserCacheAccessMode {
+  // The cache is not used at all.
+  NONE(false, false),
+  // Manifests can be fetched from the cache, but nothing is stored.
+  READONLY(true, false),
+  // Manifests are both fetched from and stored to the cache.
+  READWRITE(true, true),
+  ;
+
+  private final boolean readable;
+  private final boolean writable;
+
+  ParserCacheAccessMode(boolean readable, boolean writable) {
+    this.readable = readable;
+    this.writable = writable;
+  }
+
+  public boolean isReadable() {
+    return readable;
+  }
+
+  public boolean isWritable() {
+    return writable;
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.parser.cache;
+
+import com.facebook.buck.core.config.BuckConfig;
+import com.facebook.buck.core.config.ConfigView;
+import com.facebook.buck.core.util.immutables.BuckStyleValue;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import java.nio.file.Path;
+import org.immutables.value.Value;
+
+/** Configuration of the persistent cache of parsed build file manifests. */
+@BuckStyleValue
+public abstract class ParserCacheConfig implements ConfigView<BuckConfig> {
+
+  public static final String PARSER_CACHE_SECTION_NAME = "parser_cache";
+
+  private static final String DIR_FIELD = "dir";
+  private static final String DIR_MODE_FIELD = "dir_mode";
+  private static final String DEFAULT_DIR_NAME = "parser_cache";
+
+  @Override
+  public abstract BuckConfig getDelegate();
+
+  public static ParserCacheConfig of(BuckConfig delegate) {
+    return ImmutableParserCacheConfig.of(delegate);
+  }
+
+  /** @return the access mode of the local (directory based) parser cache. */
+  @Value.Lazy
+  public ParserCacheAccessMode getDirCacheAccessMode() {
+    return getDelegate()
+        .getEnum(PARSER_CACHE_SECTION_NAME, DIR_MODE_FIELD, ParserCacheAccessMode.class)
+        .orElse(ParserCacheAccessMode.NONE);
+  }
+
+  /** @return whether the local parser cache is enabled for reads. */
+  public boolean isDirParserCacheEnabled() {
+    return getDirCacheAccessMode().isReadable();
+  }
+
+  /**
+   * @return the location of the local parser cache. Relative paths are resolved against the cell
+   *     root. The cache is kept in {@code buck-out/parser_cache} by default.
+   */
+  @Value.Lazy
+  public Path getDirCacheLocation() {
+    ProjectFilesystem filesystem = getDelegate().getFilesystem();
+    return getDelegate()
+        .getValue(PARSER_CACHE_SECTION_NAME, DIR_FIELD)
+        .map(filesystem::resolve)
+        .orElseGet(
+            () ->
+                filesystem.resolve(
+                    filesystem.getBuckPaths().getBuckOut().resolve(DEFAULT_DIR_NAME)));
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.parser.cache;
+
+import com.facebook.buck.parser.api.BuildFileManifest;
+import com.google.common.hash.HashCode;
+import java.util.Optional;
+
+/**
+ * Storage for serialized {@link BuildFileManifest}s.
+ *
+ * <p>Entries are addressed by two fingerprints. The weak fingerprint identifies the build file and
+ * the configuration it was parsed with, and can be computed without parsing. The strong
+ * fingerprint covers the contents of the build file and all of its transitive includes.
+ */
+public interface ParserCacheStorage {
+
+  /**
+   * Stores a serialized {@link BuildFileManifest}.
+   *
+   * @param weakFingerprint the weak fingerprint of the build file.
+   * @param strongFingerprint the strong fingerprint of the build file.
+   * @param serializedBuildFileManifest the bytes of the serialized manifest.
+   */
+  void storeBuildFileManifest(
+      HashCode weakFingerprint, HashCode strongFingerprint, byte[] serializedBuildFileManifest)
+      throws ParserCacheException;
+
+  /**
+   * Retrieves a previously stored serialized {@link BuildFileManifest}.
+   *
+   * @param weakFingerprint the weak fingerprint of the build file.
+   * @param strongFingerprint the strong fingerprint of the build file.
+   * @return the bytes of the serialized manifest or {@link Optional#empty()} if there is no such
+   *     entry.
+   */
+  Optional<byte[]> getBuildFileManifest(HashCode weakFingerprint, HashCode strongFingerprint)
+      throws ParserCacheException;
+
+  /**
+   * Deletes the entry for the given fingerprints, if any. This is used to drop entries that no
+   * longer match the state of the file system.
+   */
+  void deleteCacheEntries(HashCode weakFingerprint, HashCode strongFingerprint)
+      throws ParserCacheException;
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.parser.cache.binary;
+
+import com.facebook.buck.parser.api.BuildFileManifest;
+import com.facebook.buck.parser.api.PackageFileManifest;
+import com.facebook.buck.parser.api.PackageMetadata;
+import com.facebook.buck.parser.exceptions.ParsingError;
+import com.facebook.buck.skylark.io.GlobSpecWithResult;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedSet;
+import java.io.IOException;
+import java.util.Optional;
+
+/**
+ * Serializes {@link BuildFileManifest} and {@link PackageFileManifest} to a compact binary form
+ * that can be stored and read from disk.
+ *
+ * <p>Compared to {@link com.facebook.buck.parser.cache.json.BuildFileManifestSerializer}, strings
+ * are written once into an interning table and referenced by index, lengths are varint encoded
+ * and targets are stored as independent, indexed records so that a single target can be read
+ * without decoding the rest of the package (see {@link LazyBuildFileManifest}).
+ *
+ * <p>The layout is:
+ *
+ * <pre>
+ *   magic, format version, manifest kind
+ *   string table: count, (utf-8 length, utf-8 bytes)*
+ *   build file manifest:
+ *     includes, configs, env, glob manifest, errors,
+ *     target count, (name, encoded length)*, encoded targets
+ *   package file manifest:
+ *     visibility, within_view, includes, configs, env, errors
+ * </pre>
+ */
+public class BinaryManifestSerializer {
+
+  private static final byte[] MAGIC = {'B', 'K', 'M', 'F'};
+
+  /** Bump this whenever the layout of serialized manifests changes incompatibly. */
+  private static final int FORMAT_VERSION = 1;
+
+  private static final byte KIND_BUILD_FILE = 1;
+  private static final byte KIND_PACKAGE_FILE = 2;
+
+  private BinaryManifestSerializer() {}
+
+  /**
+   * Serializes an instance of {@link BuildFileManifest} to a byte array.
+   *
+   * @throws IOException if a target attribute has a type that cannot be serialized.
+   */
+  public static byte[] serialize(BuildFileManifest buildFileManifest) throws IOException {
+    ManifestEncoder encoder = new ManifestEncoder();
+
+    encoder.writeStrings(buildFileManifest.getIncludes());
+    encoder.writeStringKeyedMap(buildFileManifest.getConfigs());
+    encoder.writeEnv(buildFileManifest.getEnv());
+    encoder.writeGlobManifest(buildFileManifest.getGlobManifest());
+    encoder.writeErrors(buildFileManifest.getErrors());
+    byte[] header = encoder.takeBytes();
+
+    ImmutableMap<String, ImmutableMap<String, Object>> targets = buildFileManifest.getTargets();
+    byte[][] encodedTargets = new byte[targets.size()][];
+    int i = 0;
+    for (ImmutableMap<String, Object> target : targets.values()) {
+      encoder.writeStringKeyedMap(target);
+      encodedTargets[i++] = encoder.takeBytes();
+    }
+
+    encoder.writeVarInt(targets.size());
+    i = 0;
+    for (String targetName : targets.keySet()) {
+      encoder.writeString(targetName);
+      encoder.writeVarInt(encodedTargets[i++].length);
+    }
+    byte[] targetIndex = encoder.takeBytes();
+
+    writePreamble(encoder, KIND_BUILD_FILE);
+    encoder.writeBytes(header);
+    encoder.writeBytes(targetIndex);
+    for (byte[] encodedTarget : encodedTargets) {
+      encoder.writeBytes(encodedTarget);
+    }
+    return encoder.takeBytes();
+  }
+
+  /**
+   * Serializes an instance of {@link PackageFileManifest} to a byte array.
+   *
+   * @throws IOException if a read configuration value has a type that cannot be serialized.
+   */
+  public static byte[] serialize(PackageFileManifest packageFileManifest) throws IOException {
+    ManifestEncoder encoder = new ManifestEncoder();
+
+    PackageMetadata packageMetadata = packageFileManifest.getPackage();
+    encoder.writeStrings(packageMetadata.getVisibility());
+    encoder.writeStrings(packageMetadata.getWithinView());
+    encoder.writeStrings(packageFileManifest.getIncludes());
+    encoder.writeStringKeyedMap(packageFileManifest.getConfigs());
+    encoder.writeEnv(packageFileManifest.getEnv());
+    encoder.writeErrors(packageFileManifest.getErrors());
+    byte[] body = encoder.takeBytes();
+
+    writePreamble(encoder, KIND_PACKAGE_FILE);
+    encoder.writeBytes(body);
+    return encoder.takeBytes();
+  }
+
+  /**
+   * Deserializes an instance of {@link BuildFileManifest} from a byte array, decoding all of its
+   * targets.
+   *
+   * @throws IOException if the bytes do not hold a build file manifest in the current format.
+   */
+  public static BuildFileManifest deserializeBuildFileManifest(byte[] buildFileManifestBytes)
+      throws IOException {
+    return openBuildFileManifest(buildFileManifestBytes).toBuildFileManifest();
+  }
+
+  /**
+   * Reads the parts of a serialized {@link BuildFileManifest} that are shared by all targets and
+   * returns a view that decodes targets on demand.
+   *
+   * @throws IOException if the bytes do not hold a build file manifest in the current format.
+   */
+  public static LazyBuildFileManifest openBuildFileManifest(byte[] buildFileManifestBytes)
+      throws IOException {
+    ManifestDecoder decoder =
+        new ManifestDecoder(buildFileManifestBytes, 0, buildFileManifestBytes.length);
+    ManifestDecoder.StringTable strings = readPreamble(decoder, KIND_BUILD_FILE);
+
+    ImmutableSortedSet<String> includes = ImmutableSortedSet.copyOf(decoder.readStringList());
+    ImmutableMap<String, Object> configs = decoder.readStringKeyedMap();
+    Optional<ImmutableMap<String, Optional<String>>> env = decoder.readEnv();
+    ImmutableList<GlobSpecWithResult> globManifest = decoder.readGlobManifest();
+    ImmutableList<ParsingError> errors = decoder.readErrors();
+
+    int targetCount = decoder.readSize();
+    ImmutableMap.Builder<String, Integer> targetSlots =
+        ImmutableMap.builderWithExpectedSize(targetCount);
+    int[] lengths = new int[targetCount];
+    for (int i = 0; i < targetCount; i++) {
+      targetSlots.put(decoder.readString(), i);
+      lengths[i] = decoder.readVarInt();
+    }
+    int[] offsets = new int[targetCount];
+    for (int i = 0; i < targetCount; i++) {
+      offsets[i] = decoder.getPosition();
+      decoder.skip(lengths[i]);
+    }
+
+    return new LazyBuildFileManifest(
+        buildFileManifestBytes,
+        strings,
+        targetSlots.build(),
+        offsets,
+        lengths,
+        includes,
+        configs,
+        env,
+        globManifest,
+        errors);
+  }
+
+  /**
+   * Deserializes an instance of {@link PackageFileManifest} from a byte array.
+   *
+   * @throws IOException if the bytes do not hold a package file manifest in the current format.
+   */
+  public static PackageFileManifest deserializePackageFileManifest(byte[] packageFileManifestBytes)
+      throws IOException {
+    ManifestDecoder decoder =
+        new ManifestDecoder(packageFileManifestBytes, 0, packageFileManifestBytes.length);
+    readPreamble(decoder, KIND_PACKAGE_FILE);
+
+    ImmutableList<String> visibility = decoder.readStringList();
+    ImmutableList<String> withinView = decoder.readStringList();
+    return PackageFileManifest.of(
+        PackageMetadata.of(visibility, withinView),
+        ImmutableSortedSet.copyOf(decoder.readStringList()),
+        decoder.readStringKeyedMap(),
+        decoder.readEnv(),
+        decoder.readErrors());
+  }
+
+  private static void writePreamble(ManifestEncoder encoder, byte kind) {
+    encoder.writeBytes(MAGIC);
+    encoder.writeVarInt(FORMAT_VERSION);
+    encoder.writeByte(kind);
+    encoder.writeStringTable();
+  }
+
+  private static ManifestDecoder.StringTable readPreamble(ManifestDecoder decoder, byte kind)
+      throws IOException {
+    for (byte magicByte : MAGIC) {
+      if (decoder.readByte() != magicByte) {
+        throw new IOException("Not a serialized manifest.");
+      }
+    }
+    int formatVersion = decoder.readVarInt();
+    if (formatVersion != FORMAT_VERSION) {
+      throw new IOException(
+          String.format(
+              "Unsupported manifest format version %d, expected %d.",
+              formatVersion, FORMAT_VERSION));
+    }
+    if (decoder.readByte() != kind) {
+      throw new IOException("Serialized manifest is of an unexpected kind.");
+    }
+    return decoder.readStringTable();
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.parser.cache.binary;
+
+import com.facebook.buck.parser.api.BuildFileManifest;
+import com.facebook.buck.parser.exceptions.ParsingError;
+import com.facebook.buck.skylark.io.GlobSpecWithResult;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * A {@link BuildFileManifest} serialized by {@link BinaryManifestSerializer} whose targets are
+ * decoded on demand.
+ *
+ * <p>Everything but the targets is decoded eagerly, so whether the manifest is still valid can be
+ * checked before paying for the targets.
+ */
+public final class LazyBuildFileManifest {
+
+  private final byte[] data;
+  private final ManifestDecoder.StringTable strings;
+  private final ImmutableMap<String, Integer> targetSlots;
+  private final int[] targetOffsets;
+  private final int[] targetLengths;
+  private final ImmutableSortedSet<String> includes;
+  private final ImmutableMap<String, Object> configs;
+  private final Optional<ImmutableMap<String, Optional<String>>> env;
+  private final ImmutableList<GlobSpecWithResult> globManifest;
+  private final ImmutableList<ParsingError> errors;
+
+  LazyBuildFileManifest(
+      byte[] data,
+      ManifestDecoder.StringTable strings,
+      ImmutableMap<String, Integer> targetSlots,
+      int[] targetOffsets,
+      int[] targetLengths,
+      ImmutableSortedSet<String> includes,
+      ImmutableMap<String, Object> configs,
+      Optional<ImmutableMap<String, Optional<String>>> env,
+      ImmutableList<GlobSpecWithResult> globManifest,
+      ImmutableList<ParsingError> errors) {
+    this.data = data;
+    this.strings = strings;
+    this.targetSlots = targetSlots;
+    this.targetOffsets = targetOffsets;
+    this.targetLengths = targetLengths;
+    this.includes = includes;
+    this.configs = configs;
+    this.env = env;
+    this.globManifest = globManifest;
+    this.errors = errors;
+  }
+
+  /** @return names of the targets defined in the build file, in definition order. */
+  public ImmutableSet<String> getTargetNames() {
+    return targetSlots.keySet();
+  }
+
+  /**
+   * Decodes a single target.
+   *
+   * @return attributes of the target with the given name, or empty if it is not defined.
+   * @throws IOException if the target record is corrupted.
+   */
+  public Optional<ImmutableMap<String, Object>> getTarget(String name) throws IOException {
+    Integer slot = targetSlots.get(name);
+    if (slot == null) {
+      return Optional.empty();
+    }
+    return Optional.of(decodeTarget(slot));
+  }
+
+  public ImmutableSortedSet<String> getIncludes() {
+    return includes;
+  }
+
+  public ImmutableMap<String, Object> getConfigs() {
+    return configs;
+  }
+
+  public Optional<ImmutableMap<String, Optional<String>>> getEnv() {
+    return env;
+  }
+
+  public ImmutableList<GlobSpecWithResult> getGlobManifest() {
+    return globManifest;
+  }
+
+  public ImmutableList<ParsingError> getErrors() {
+    return errors;
+  }
+
+  /**
+   * Decodes all targets.
+   *
+   * @throws IOException if any target record is corrupted.
+   */
+  public BuildFileManifest toBuildFileManifest() throws IOException {
+    ImmutableMap.Builder<String, ImmutableMap<String, Object>> targets =
+        ImmutableMap.builderWithExpectedSize(targetSlots.size());
+    for (Map.Entry<String, Integer> entry : targetSlots.entrySet()) {
+      targets.put(entry.getKey(), decodeTarget(entry.getValue()));
+    }
+    return BuildFileManifest.of(targets.build(), includes, configs, env, globManifest, errors);
+  }
+
+  private ImmutableMap<String, Object> decodeTarget(int slot) throws IOException {
+    int offset = targetOffsets[slot];
+    int limit = offset + targetLengths[slot];
+    ManifestDecoder decoder = new ManifestDecoder(data, offset, limit, strings);
+    ImmutableMap<String, Object> target = decoder.readStringKeyedMap();
+    if (decoder.getPosition() != limit) {
+      throw ManifestDecoder.corrupted();
+    }
+    return target;
+  }
+}
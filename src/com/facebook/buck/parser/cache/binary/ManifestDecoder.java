@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.parser.cache.binary;
+
+import com.facebook.buck.parser.exceptions.ParsingError;
+import com.facebook.buck.parser.syntax.ListWithSelects;
+import com.facebook.buck.parser.syntax.SelectorValue;
+import com.facebook.buck.skylark.io.GlobSpec;
+import com.facebook.buck.skylark.io.GlobSpecWithResult;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Ordering;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import javax.annotation.Nullable;
+
+/**
+ * Reads values written by {@link ManifestEncoder} from a region of a byte array.
+ *
+ * <p>Strings are resolved through a {@link StringTable} that decodes each entry the first time it
+ * is referenced, so reading a single target only decodes the strings that target uses.
+ */
+final class ManifestDecoder {
+
+  private final byte[] data;
+  private final int limit;
+  private int position;
+  @Nullable private StringTable strings;
+
+  ManifestDecoder(byte[] data, int position, int limit) {
+    this.data = data;
+    this.position = position;
+    this.limit = limit;
+  }
+
+  ManifestDecoder(byte[] data, int position, int limit, StringTable strings) {
+    this(data, position, limit);
+    this.strings = strings;
+  }
+
+  int getPosition() {
+    return position;
+  }
+
+  /** Reads a string table and uses it to resolve strings read afterwards. */
+  StringTable readStringTable() throws IOException {
+    int count = readVarInt();
+    int[] offsets = new int[count];
+    int[] lengths = new int[count];
+    for (int i = 0; i < count; i++) {
+      lengths[i] = readVarInt();
+      offsets[i] = position;
+      skip(lengths[i]);
+    }
+    strings = new StringTable(data, offsets, lengths);
+    return strings;
+  }
+
+  void skip(int length) throws IOException {
+    if (length < 0 || length > limit - position) {
+      throw corrupted();
+    }
+    position += length;
+  }
+
+  byte readByte() throws IOException {
+    if (position >= limit) {
+      throw corrupted();
+    }
+    return data[position++];
+  }
+
+  boolean readBoolean() throws IOException {
+    return readByte() != 0;
+  }
+
+  int readVarInt() throws IOException {
+    int result = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      byte b = readByte();
+      result |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return result;
+      }
+    }
+    throw corrupted();
+  }
+
+  long readVarLong() throws IOException {
+    long result = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = readByte();
+      result |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return result;
+      }
+    }
+    throw corrupted();
+  }
+
+  /** Reads a collection size, making sure it cannot exceed the remaining input. */
+  int readSize() throws IOException {
+    int size = readVarInt();
+    // Every element takes at least one byte.
+    if (size < 0 || size > limit - position) {
+      throw corrupted();
+    }
+    return size;
+  }
+
+  String readString() throws IOException {
+    if (strings == null) {
+      throw corrupted();
+    }
+    return strings.get(readVarInt());
+  }
+
+  ImmutableList<String> readStringList() throws IOException {
+    int size = readSize();
+    ImmutableList.Builder<String> builder = ImmutableList.builderWithExpectedSize(size);
+    for (int i = 0; i < size; i++) {
+      builder.add(readString());
+    }
+    return builder.build();
+  }
+
+  ImmutableMap<String, Object> readStringKeyedMap() throws IOException {
+    int size = readSize();
+    ImmutableMap.Builder<String, Object> builder = ImmutableMap.builderWithExpectedSize(size);
+    for (int i = 0; i < size; i++) {
+      builder.put(readString(), readNonNullValue());
+    }
+    return builder.build();
+  }
+
+  Optional<ImmutableMap<String, Optional<String>>> readEnv() throws IOException {
+    if (!readBoolean()) {
+      return Optional.empty();
+    }
+    int size = readSize();
+    ImmutableMap.Builder<String, Optional<String>> builder =
+        ImmutableMap.builderWithExpectedSize(size);
+    for (int i = 0; i < size; i++) {
+      String key = readString();
+      builder.put(key, readBoolean() ? Optional.of(readString()) : Optional.empty());
+    }
+    return Optional.of(builder.build());
+  }
+
+  ImmutableList<GlobSpecWithResult> readGlobManifest() throws IOException {
+    int size = readSize();
+    ImmutableList.Builder<GlobSpecWithResult> builder = ImmutableList.builderWithExpectedSize(size);
+    for (int i = 0; i < size; i++) {
+      ImmutableList<String> include = readStringList();
+      ImmutableList<String> exclude = readStringList();
+      boolean excludeDirectories = readBoolean();
+      ImmutableSet<String> filePaths = ImmutableSet.copyOf(readStringList());
+      builder.add(
+          GlobSpecWithResult.of(GlobSpec.of(include, exclude, excludeDirectories), filePaths));
+    }
+    return builder.build();
+  }
+
+  ImmutableList<ParsingError> readErrors() throws IOException {
+    int size = readSize();
+    ImmutableList.Builder<ParsingError> builder = ImmutableList.builderWithExpectedSize(size);
+    for (int i = 0; i < size; i++) {
+      String message = readString();
+      builder.add(ParsingError.of(message, readStringList()));
+    }
+    return builder.build();
+  }
+
+  /** Reads a value that is stored in an immutable collection and thus cannot be null. */
+  Object readNonNullValue() throws IOException {
+    Object value = readValue();
+    if (value == null) {
+      throw corrupted();
+    }
+    return value;
+  }
+
+  @Nullable
+  Object readValue() throws IOException {
+    byte tag = readByte();
+    switch (tag) {
+      case ManifestEncoder.TAG_NULL:
+        return null;
+      case ManifestEncoder.TAG_FALSE:
+        return false;
+      case ManifestEncoder.TAG_TRUE:
+        return true;
+      case ManifestEncoder.TAG_INT:
+        {
+          int encoded = readVarInt();
+          return (encoded >>> 1) ^ -(encoded & 1);
+        }
+      case ManifestEncoder.TAG_LONG:
+        {
+          long encoded = readVarLong();
+          return (encoded >>> 1) ^ -(encoded & 1);
+        }
+      case ManifestEncoder.TAG_DOUBLE:
+        return Double.longBitsToDouble(readVarLong());
+      case ManifestEncoder.TAG_STRING:
+        return readString();
+      case ManifestEncoder.TAG_LIST:
+        return readList();
+      case ManifestEncoder.TAG_SET:
+        return ImmutableSet.copyOf(readList());
+      case ManifestEncoder.TAG_SORTED_SET:
+        return readSortedSet();
+      case ManifestEncoder.TAG_MAP:
+        return readMap();
+      case ManifestEncoder.TAG_SORTED_MAP:
+        return readSortedMap();
+      case ManifestEncoder.TAG_OPTIONAL_EMPTY:
+        return Optional.empty();
+      case ManifestEncoder.TAG_OPTIONAL_PRESENT:
+        return Optional.of(readNonNullValue());
+      case ManifestEncoder.TAG_SELECTOR_VALUE:
+        {
+          ImmutableMap<String, Object> dictionary = readStringKeyedMap();
+          return SelectorValue.of(dictionary, readString());
+        }
+      case ManifestEncoder.TAG_LIST_WITH_SELECTS:
+        {
+          ImmutableList<Object> elements = readList();
+          return ListWithSelects.of(elements, readClass());
+        }
+      default:
+        throw corrupted();
+    }
+  }
+
+  private ImmutableList<Object> readList() throws IOException {
+    int size = readSize();
+    ImmutableList.Builder<Object> builder = ImmutableList.builderWithExpectedSize(size);
+    for (int i = 0; i < size; i++) {
+      builder.add(readNonNullValue());
+    }
+    return builder.build();
+  }
+
+  @SuppressWarnings("rawtypes")
+  private ImmutableSortedSet<?> readSortedSet() throws IOException {
+    int size = readSize();
+    ImmutableSortedSet.Builder<Comparable> builder = ImmutableSortedSet.naturalOrder();
+    for (int i = 0; i < size; i++) {
+      builder.add(readComparable());
+    }
+    return builder.build();
+  }
+
+  private ImmutableMap<Object, Object> readMap() throws IOException {
+    int size = readSize();
+    ImmutableMap.Builder<Object, Object> builder = ImmutableMap.builderWithExpectedSize(size);
+    for (int i = 0; i < size; i++) {
+      Object key = readNonNullValue();
+      builder.put(key, readNonNullValue());
+    }
+    return builder.build();
+  }
+
+  @SuppressWarnings("rawtypes")
+  private ImmutableSortedMap<?, Object> readSortedMap() throws IOException {
+    int size = readSize();
+    ImmutableSortedMap.Builder<Comparable, Object> builder =
+        new ImmutableSortedMap.Builder<>(Ordering.natural());
+    for (int i = 0; i < size; i++) {
+      Comparable key = readComparable();
+      builder.put(key, readNonNullValue());
+    }
+    return builder.build();
+  }
+
+  @SuppressWarnings("rawtypes")
+  private Comparable readComparable() throws IOException {
+    Object value = readNonNullValue();
+    if (!(value instanceof Comparable)) {
+      throw corrupted();
+    }
+    return (Comparable) value;
+  }
+
+  private Class<?> readClass() throws IOException {
+    String className = readString();
+    try {
+      return Class.forName(className, false, ManifestDecoder.class.getClassLoader());
+    } catch (ClassNotFoundException e) {
+      throw new IOException(String.format("Unknown selectable type %s.", className), e);
+    }
+  }
+
+  static IOException corrupted() {
+    return new IOException("Serialized manifest is corrupted or truncated.");
+  }
+
+  /** Strings referenced by a serialized manifest, decoded on first use. */
+  static final class StringTable {
+    private final byte[] data;
+    private final int[] offsets;
+    private final int[] lengths;
+    // Strings are immutable, so racing threads at worst decode the same entry twice.
+    private final String[] decoded;
+
+    private StringTable(byte[] data, int[] offsets, int[] lengths) {
+      this.data = data;
+      this.offsets = offsets;
+      this.lengths = lengths;
+      this.decoded = new String[offsets.length];
+    }
+
+    String get(int index) throws IOException {
+      if (index < 0 || index >= decoded.length) {
+        throw corrupted();
+      }
+      String string = decoded[index];
+      if (string == null) {
+        string = new String(data, offsets[index], lengths[index], StandardCharsets.UTF_8);
+        decoded[index] = string;
+      }
+      return string;
+    }
+  }
+}
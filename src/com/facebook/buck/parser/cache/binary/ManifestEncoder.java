@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.parser.cache.binary;
+
+import com.facebook.buck.parser.exceptions.ParsingError;
+import com.facebook.buck.parser.syntax.ListWithSelects;
+import com.facebook.buck.parser.syntax.SelectorValue;
+import com.facebook.buck.skylark.io.GlobSpec;
+import com.facebook.buck.skylark.io.GlobSpecWithResult;
+import com.google.common.collect.Ordering;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import javax.annotation.Nullable;
+
+/**
+ * Writes the values stored in parser manifests into a byte buffer.
+ *
+ * <p>Every string is written as an index into a table that is shared by all the sections written
+ * with the same encoder, so attribute names, rule types and labels that are repeated across
+ * targets are only stored once.
+ */
+final class ManifestEncoder {
+
+  static final byte TAG_NULL = 0;
+  static final byte TAG_FALSE = 1;
+  static final byte TAG_TRUE = 2;
+  static final byte TAG_INT = 3;
+  static final byte TAG_LONG = 4;
+  static final byte TAG_DOUBLE = 5;
+  static final byte TAG_STRING = 6;
+  static final byte TAG_LIST = 7;
+  static final byte TAG_SET = 8;
+  static final byte TAG_SORTED_SET = 9;
+  static final byte TAG_MAP = 10;
+  static final byte TAG_SORTED_MAP = 11;
+  static final byte TAG_OPTIONAL_EMPTY = 12;
+  static final byte TAG_OPTIONAL_PRESENT = 13;
+  static final byte TAG_SELECTOR_VALUE = 14;
+  static final byte TAG_LIST_WITH_SELECTS = 15;
+
+  private final Map<String, Integer> stringIndex = new HashMap<>();
+  private final List<String> strings = new ArrayList<>();
+  private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+  /** @return the bytes written since the last call and resets the buffer. */
+  byte[] takeBytes() {
+    byte[] bytes = buffer.toByteArray();
+    buffer.reset();
+    return bytes;
+  }
+
+  /** Writes the string table accumulated so far into the buffer. */
+  void writeStringTable() {
+    writeVarInt(strings.size());
+    for (String string : strings) {
+      byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+      writeVarInt(bytes.length);
+      buffer.write(bytes, 0, bytes.length);
+    }
+  }
+
+  void writeByte(int value) {
+    buffer.write(value);
+  }
+
+  void writeBytes(byte[] bytes) {
+    buffer.write(bytes, 0, bytes.length);
+  }
+
+  /** Writes a non-negative integer using 7 bits per byte. */
+  void writeVarInt(int value) {
+    while ((value & ~0x7F) != 0) {
+      buffer.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buffer.write(value);
+  }
+
+  void writeVarLong(long value) {
+    while ((value & ~0x7FL) != 0) {
+      buffer.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buffer.write((int) value);
+  }
+
+  void writeBoolean(boolean value) {
+    buffer.write(value ? 1 : 0);
+  }
+
+  /** Writes a string as an index into the string table. */
+  void writeString(String value) {
+    Integer index = stringIndex.get(value);
+    if (index == null) {
+      index = strings.size();
+      strings.add(value);
+      stringIndex.put(value, index);
+    }
+    writeVarInt(index);
+  }
+
+  void writeStrings(Collection<String> values) {
+    writeVarInt(values.size());
+    for (String value : values) {
+      writeString(value);
+    }
+  }
+
+  /** Writes a map with string keys, which is how targets and most attributes are represented. */
+  void writeStringKeyedMap(Map<String, ?> map) throws IOException {
+    writeVarInt(map.size());
+    for (Map.Entry<String, ?> entry : map.entrySet()) {
+      writeString(entry.getKey());
+      writeValue(entry.getValue());
+    }
+  }
+
+  void writeEnv(Optional<? extends Map<String, Optional<String>>> env) {
+    if (!env.isPresent()) {
+      writeBoolean(false);
+      return;
+    }
+    writeBoolean(true);
+    writeVarInt(env.get().size());
+    for (Map.Entry<String, Optional<String>> entry : env.get().entrySet()) {
+      writeString(entry.getKey());
+      if (entry.getValue().isPresent()) {
+        writeBoolean(true);
+        writeString(entry.getValue().get());
+      } else {
+        writeBoolean(false);
+      }
+    }
+  }
+
+  void writeGlobManifest(List<GlobSpecWithResult> globManifest) {
+    writeVarInt(globManifest.size());
+    for (GlobSpecWithResult globSpecWithResult : globManifest) {
+      GlobSpec globSpec = globSpecWithResult.getGlobSpec();
+      writeStrings(globSpec.getInclude());
+      writeStrings(globSpec.getExclude());
+      writeBoolean(globSpec.getExcludeDirectories());
+      writeStrings(globSpecWithResult.getFilePaths());
+    }
+  }
+
+  void writeErrors(List<ParsingError> errors) {
+    writeVarInt(errors.size());
+    for (ParsingError error : errors) {
+      writeString(error.getMessage());
+      writeStrings(error.getStackTrace());
+    }
+  }
+
+  /**
+   * Writes an arbitrary attribute value.
+   *
+   * @throws IOException if the value, or any value nested in it, has a type that cannot be
+   *     represented.
+   */
+  void writeValue(@Nullable Object value) throws IOException {
+    if (value == null) {
+      writeByte(TAG_NULL);
+    } else if (value instanceof String) {
+      writeByte(TAG_STRING);
+      writeString((String) value);
+    } else if (value instanceof Boolean) {
+      writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+    } else if (value instanceof Integer) {
+      writeByte(TAG_INT);
+      int intValue = (Integer) value;
+      writeVarInt((intValue << 1) ^ (intValue >> 31));
+    } else if (value instanceof Long) {
+      writeByte(TAG_LONG);
+      long longValue = (Long) value;
+      writeVarLong((longValue << 1) ^ (longValue >> 63));
+    } else if (value instanceof Double) {
+      writeByte(TAG_DOUBLE);
+      writeVarLong(Double.doubleToRawLongBits((Double) value));
+    } else if (value instanceof List) {
+      writeByte(TAG_LIST);
+      writeValues((List<?>) value);
+    } else if (value instanceof SortedSet) {
+      checkNaturalOrdering(((SortedSet<?>) value).comparator(), value);
+      writeByte(TAG_SORTED_SET);
+      writeValues((SortedSet<?>) value);
+    } else if (value instanceof Set) {
+      writeByte(TAG_SET);
+      writeValues((Set<?>) value);
+    } else if (value instanceof SortedMap) {
+      checkNaturalOrdering(((SortedMap<?, ?>) value).comparator(), value);
+      writeByte(TAG_SORTED_MAP);
+      writeMap((SortedMap<?, ?>) value);
+    } else if (value instanceof Map) {
+      writeByte(TAG_MAP);
+      writeMap((Map<?, ?>) value);
+    } else if (value instanceof Optional) {
+      Optional<?> optional = (Optional<?>) value;
+      if (optional.isPresent()) {
+        writeByte(TAG_OPTIONAL_PRESENT);
+        writeValue(optional.get());
+      } else {
+        writeByte(TAG_OPTIONAL_EMPTY);
+      }
+    } else if (value instanceof SelectorValue) {
+      SelectorValue selectorValue = (SelectorValue) value;
+      writeByte(TAG_SELECTOR_VALUE);
+      writeStringKeyedMap(selectorValue.getDictionary());
+      writeString(selectorValue.getNoMatchError());
+    } else if (value instanceof ListWithSelects) {
+      ListWithSelects listWithSelects = (ListWithSelects) value;
+      writeByte(TAG_LIST_WITH_SELECTS);
+      writeValues(listWithSelects.getElements());
+      writeString(listWithSelects.getType().getName());
+    } else {
+      throw new IOException(
+          String.format("Values of type %s cannot be serialized.", value.getClass().getName()));
+    }
+  }
+
+  private void writeValues(Collection<?> values) throws IOException {
+    writeVarInt(values.size());
+    for (Object element : values) {
+      writeValue(element);
+    }
+  }
+
+  private void writeMap(Map<?, ?> map) throws IOException {
+    writeVarInt(map.size());
+    for (Map.Entry<?, ?> entry : map.entrySet()) {
+      writeValue(entry.getKey());
+      writeValue(entry.getValue());
+    }
+  }
+
+  /** Sorted collections are always read back with the natural ordering of their elements. */
+  private static void checkNaturalOrdering(@Nullable Comparator<?> comparator, Object value)
+      throws IOException {
+    if (comparator != null
+        && !comparator.equals(Ordering.natural())
+        && !comparator.equals(Comparator.naturalOrder())) {
+      throw new IOException(
+          String.format(
+              "Sorted collections with a custom ordering (%s) cannot be serialized.",
+              value.getClass().getName()));
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.parser.cache.impl;
+
+import com.facebook.buck.core.cell.Cell;
+import com.facebook.buck.core.config.BuckConfig;
+import com.facebook.buck.core.filesystems.AbsPath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.parser.config.ParserConfig;
+import com.facebook.buck.rules.keys.config.impl.BuckVersion;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Map;
+
+/** Computes the fingerprints used to address entries in a parser cache. */
+public final class Fingerprinter {
+
+  /** Bump this whenever the layout of cached manifests changes incompatibly. */
+  private static final int FORMAT_VERSION = 2;
+
+  /**
+   * Configuration sections that affect how build files are evaluated. Values read by build files
+   * themselves via {@code read_config} are recorded in the manifest and verified separately.
+   */
+  private static final ImmutableList<String> PARSER_SECTIONS =
+      ImmutableList.of(ParserConfig.BUILDFILE_SECTION_NAME, "parser", "project");
+
+  private Fingerprinter() {}
+
+  /**
+   * Computes the weak fingerprint of a build file. The weak fingerprint depends only on the
+   * location of the build file and the configuration of the parser, so it can be computed without
+   * reading the build file.
+   */
+  public static HashCode getWeakFingerprint(Cell cell, AbsPath buildFile) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putInt(FORMAT_VERSION);
+    hasher.putString(BuckVersion.getVersion(), StandardCharsets.UTF_8);
+    hasher.putString(cell.getCanonicalName().getName(), StandardCharsets.UTF_8);
+    hasher.putString(cell.getRoot().relativize(buildFile).toString(), StandardCharsets.UTF_8);
+
+    BuckConfig buckConfig = cell.getBuckConfig();
+    for (String section : PARSER_SECTIONS) {
+      hasher.putString(section, StandardCharsets.UTF_8);
+      for (Map.Entry<String, String> entry :
+          ImmutableSortedMap.copyOf(buckConfig.getEntriesForSection(section)).entrySet()) {
+        hasher.putString(entry.getKey(), StandardCharsets.UTF_8);
+        hasher.putString(entry.getValue(), StandardCharsets.UTF_8);
+      }
+    }
+    hasher.putBoolean(buckConfig.getView(ParserConfig.class).getAllowEmptyGlobs());
+    return hasher.hash();
+  }
+
+  /**
+   * Computes the strong fingerprint of a build file from the contents of all files it includes.
+   *
+   * @param filesystem the filesystem of the cell the build file belongs to.
+   * @param includes absolute paths of all the files loaded when evaluating the build file,
+   *     including the build file itself.
+   */
+  public static HashCode getStrongFingerprint(
+      ProjectFilesystem filesystem, ImmutableSortedSet<String> includes) throws IOException {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putInt(FORMAT_VERSION);
+    Path root = filesystem.getRootPath().getPath();
+    for (String include : includes) {
+      Path includePath = filesystem.getPath(include);
+      // Paths within the cell are hashed relative to it, so that the entry is shared between
+      // checkouts of the same repository.
+      Path pathToHash = includePath.startsWith(root) ? root.relativize(includePath) : includePath;
+      hasher.putString(pathToHash.toString(), StandardCharsets.UTF_8);
+      filesystem.computeSha1(includePath).update(hasher);
+    }
+    return hasher.hash();
+  }
+}
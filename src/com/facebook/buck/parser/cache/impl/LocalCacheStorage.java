@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.parser.cache.impl;
+
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.parser.cache.ParserCacheAccessMode;
+import com.facebook.buck.parser.cache.ParserCacheException;
+import com.facebook.buck.parser.cache.ParserCacheStorage;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+
+/**
+ * A {@link ParserCacheStorage} that keeps serialized manifests on the local file system.
+ *
+ * <p>Every entry is stored in {@code <cache dir>/<weak fingerprint>/<strong fingerprint>}, so that
+ * several versions of the same build file (e.g. from different branches) can coexist.
+ */
+public class LocalCacheStorage implements ParserCacheStorage {
+  private static final Logger LOG = Logger.get(LocalCacheStorage.class);
+
+  private static final String TMP_EXTENSION = ".tmp";
+
+  private final Path cacheDir;
+  private final ParserCacheAccessMode accessMode;
+  private final ProjectFilesystem filesystem;
+
+  private LocalCacheStorage(
+      Path cacheDir, ParserCacheAccessMode accessMode, ProjectFilesystem filesystem) {
+    this.cacheDir = cacheDir;
+    this.accessMode = accessMode;
+    this.filesystem = filesystem;
+  }
+
+  /**
+   * Creates a new {@link LocalCacheStorage}.
+   *
+   * @param cacheDir the absolute location of the cache.
+   * @param accessMode the access mode of the cache, must allow reads.
+   * @param filesystem the filesystem of the cell that owns the cache.
+   */
+  public static LocalCacheStorage of(
+      Path cacheDir, ParserCacheAccessMode accessMode, ProjectFilesystem filesystem)
+      throws ParserCacheException {
+    Preconditions.checkArgument(
+        accessMode.isReadable(), "Local parser cache must be readable when created.");
+    Preconditions.checkArgument(cacheDir.isAbsolute(), "Cache location must be absolute.");
+    try {
+      filesystem.mkdirs(cacheDir);
+    } catch (IOException e) {
+      throw new ParserCacheException(e, "Unable to create parser cache directory %s.", cacheDir);
+    }
+    return new LocalCacheStorage(cacheDir, accessMode, filesystem);
+  }
+
+  private Path getEntryPath(HashCode weakFingerprint, HashCode strongFingerprint) {
+    return cacheDir.resolve(weakFingerprint.toString()).resolve(strongFingerprint.toString());
+  }
+
+  @Override
+  public void storeBuildFileManifest(
+      HashCode weakFingerprint, HashCode strongFingerprint, byte[] serializedBuildFileManifest)
+      throws ParserCacheException {
+    if (!accessMode.isWritable()) {
+      LOG.debug("Local parser cache is not writable, skipping store.");
+      return;
+    }
+
+    Path entryPath = getEntryPath(weakFingerprint, strongFingerprint);
+    Path tmp = null;
+    try {
+      filesystem.mkdirs(entryPath.getParent());
+      // Write to a temporary file first so that concurrent readers never see a partial entry.
+      tmp = Files.createTempFile(entryPath.getParent(), "manifest", TMP_EXTENSION);
+      Files.write(tmp, serializedBuildFileManifest);
+      filesystem.move(tmp, entryPath, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      throw new ParserCacheException(e, "Failed to store manifest to %s.", entryPath);
+    } finally {
+      if (tmp != null) {
+        try {
+          Files.deleteIfExists(tmp);
+        } catch (IOException e) {
+          LOG.debug(e, "Unable to delete temporary parser cache file %s.", tmp);
+        }
+      }
+    }
+  }
+
+  @Override
+  public Optional<byte[]> getBuildFileManifest(HashCode weakFingerprint, HashCode strongFingerprint)
+      throws ParserCacheException {
+    Path entryPath = getEntryPath(weakFingerprint, strongFingerprint);
+    try {
+      if (!Files.isRegularFile(entryPath)) {
+        return Optional.empty();
+      }
+      return Optional.of(Files.readAllBytes(entryPath));
+    } catch (IOException e) {
+      throw new ParserCacheException(e, "Failed to read manifest from %s.", entryPath);
+    }
+  }
+
+  @Override
+  public void deleteCacheEntries(HashCode weakFingerprint, HashCode strongFingerprint)
+      throws ParserCacheException {
+    if (!accessMode.isWritable()) {
+      return;
+    }
+    Path entryPath = getEntryPath(weakFingerprint, strongFingerprint);
+    try {
+      Files.deleteIfExists(entryPath);
+    } catch (IOException e) {
+      throw new ParserCacheException(e, "Failed to delete manifest %s.", entryPath);
+    }
+  }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.parser.cache.impl;
+
+import com.facebook.buck.command.config.ConfigIgnoredByDaemon;
+import com.facebook.buck.core.cell.Cell;
+import com.facebook.buck.core.filesystems.AbsPath;
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.counters.Counter;
+import com.facebook.buck.counters.IntegerCounter;
+import com.facebook.buck.parser.api.BuildFileManifest;
+import com.facebook.buck.parser.api.ProjectBuildFileParser;
+import com.facebook.buck.parser.api.Syntax;
+import com.facebook.buck.parser.cache.ParserCacheConfig;
+import com.facebook.buck.parser.cache.ParserCacheException;
+import com.facebook.buck.parser.cache.ParserCacheStorage;
+import com.facebook.buck.parser.cache.binary.BinaryManifestSerializer;
+import com.facebook.buck.parser.cache.binary.LazyBuildFileManifest;
+import com.facebook.buck.parser.config.ParserConfig;
+import com.facebook.buck.parser.exceptions.BuildFileParseException;
+import com.facebook.buck.parser.options.UserDefinedRulesState;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nullable;
+
+/**
+ * Persistent cache of {@link BuildFileManifest}s that survives daemon restarts.
+ *
+ * <p>A cached manifest is reused only if the build file and all of its transitive includes are
+ * unchanged, the configuration values and environment variables it read have the same values, and
+ * its globs still resolve to the same files.
+ *
+ * <p>The cache is only used for cells whose build files are all written in Skylark.
+ *
+ * <p>This object is meant to be kept for the lifetime of the daemon so that its counters are
+ * aggregated across commands.
+ */
+public class ParserCache {
+  private static final Logger LOG = Logger.get(ParserCache.class);
+
+  private static final String COUNTER_CATEGORY = "buck_parser_cache";
+  private static final String HITS_COUNTER_NAME = "hits";
+  private static final String MISSES_COUNTER_NAME = "misses";
+  private static final String BYTES_READ_COUNTER_NAME = "bytes_read";
+  private static final String BYTES_WRITTEN_COUNTER_NAME = "bytes_written";
+
+  private final IntegerCounter hitsCounter;
+  private final IntegerCounter missesCounter;
+  private final IntegerCounter bytesReadCounter;
+  private final IntegerCounter bytesWrittenCounter;
+
+  /** Storage per cell root, empty if the cache is disabled for the cell. */
+  private final ConcurrentMap<AbsPath, Optional<ParserCacheStorage>> storages =
+      new ConcurrentHashMap<>();
+
+  public ParserCache() {
+    this.hitsCounter = new IntegerCounter(COUNTER_CATEGORY, HITS_COUNTER_NAME, ImmutableMap.of());
+    this.missesCounter =
+        new IntegerCounter(COUNTER_CATEGORY, MISSES_COUNTER_NAME, ImmutableMap.of());
+    this.bytesReadCounter =
+        new IntegerCounter(COUNTER_CATEGORY, BYTES_READ_COUNTER_NAME, ImmutableMap.of());
+    this.bytesWrittenCounter =
+        new IntegerCounter(COUNTER_CATEGORY, BYTES_WRITTEN_COUNTER_NAME, ImmutableMap.of());
+  }
+
+  /** @return whether manifests of build files in the given cell may be served from this cache. */
+  public boolean isEnabled(Cell cell) {
+    ParserConfig parserConfig = cell.getBuckConfigView(ParserConfig.class);
+    // Only the Skylark parser can list the includes of a build file without evaluating it and
+    // check recorded globs against the file system, so cells that may contain Python DSL build
+    // files are always parsed. Cached manifests also do not carry the extensions that define user
+    // defined rules, so those have to go through the parser as well.
+    return cell.getBuckConfigView(ParserCacheConfig.class).isDirParserCacheEnabled()
+        && parserConfig.getDefaultBuildFileSyntax() == Syntax.SKYLARK
+        && !parserConfig.isPolyglotParsingEnabled()
+        && parserConfig.getUserDefinedRulesState() != UserDefinedRulesState.ENABLED;
+  }
+
+  /**
+   * Returns the manifest for the given build file, either from the cache or by parsing it with the
+   * given parser. Freshly parsed manifests are stored in the cache if it is writable.
+   */
+  public BuildFileManifest getOrParse(Cell cell, AbsPath buildFile, ProjectBuildFileParser parser)
+      throws BuildFileParseException, InterruptedException, IOException {
+    Optional<ParserCacheStorage> storage = getStorage(cell);
+    if (!storage.isPresent()) {
+      return parser.getManifest(buildFile.getPath());
+    }
+
+    HashCode weakFingerprint = Fingerprinter.getWeakFingerprint(cell, buildFile);
+    HashCode strongFingerprint =
+        Fingerprinter.getStrongFingerprint(
+            cell.getFilesystem(), parser.getIncludedFiles(buildFile.getPath()));
+    return getOrParse(storage.get(), weakFingerprint, strongFingerprint, cell, buildFile, parser);
+  }
+
+  /**
+   * Same as {@link #getOrParse(Cell, AbsPath, ProjectBuildFileParser)}, but reuses the fingerprints
+   * computed by a {@link #getCachedTarget} lookup that did not return the target, so that the
+   * includes of the build file are not listed again.
+   */
+  public BuildFileManifest getOrParse(
+      Cell cell, AbsPath buildFile, TargetLookup missedLookup, ProjectBuildFileParser parser)
+      throws BuildFileParseException, InterruptedException, IOException {
+    Optional<ParserCacheStorage> storage = getStorage(cell);
+    if (!storage.isPresent()) {
+      return parser.getManifest(buildFile.getPath());
+    }
+    HashCode weakFingerprint = missedLookup.weakFingerprint;
+    HashCode strongFingerprint = missedLookup.strongFingerprint;
+    if (weakFingerprint == null || strongFingerprint == null) {
+      return getOrParse(cell, buildFile, parser);
+    }
+    return getOrParse(storage.get(), weakFingerprint, strongFingerprint, cell, buildFile, parser);
+  }
+
+  private BuildFileManifest getOrParse(
+      ParserCacheStorage storage,
+      HashCode weakFingerprint,
+      HashCode strongFingerprint,
+      Cell cell,
+      AbsPath buildFile,
+      ProjectBuildFileParser parser)
+      throws BuildFileParseException, InterruptedException, IOException {
+    Optional<LazyBuildFileManifest> cachedManifest =
+        lookup(storage, weakFingerprint, strongFingerprint, cell, buildFile, parser);
+    if (cachedManifest.isPresent()) {
+      try {
+        BuildFileManifest manifest = cachedManifest.get().toBuildFileManifest();
+        hitsCounter.inc();
+        return manifest;
+      } catch (IOException e) {
+        LOG.debug(e, "Dropping unreadable parser cache entry for %s.", buildFile);
+        deleteEntry(storage, weakFingerprint, strongFingerprint);
+      }
+    }
+    missesCounter.inc();
+
+    BuildFileManifest manifest = parser.getManifest(buildFile.getPath());
+    if (manifest.getErrors().isEmpty()
+        // Guard against the build file or its includes changing while they were being parsed.
+        && strongFingerprint.equals(
+            Fingerprinter.getStrongFingerprint(cell.getFilesystem(), manifest.getIncludes()))) {
+      store(storage, weakFingerprint, strongFingerprint, manifest);
+    }
+    return manifest;
+  }
+
+  /**
+   * Looks up a single target of the given build file in the cache, decoding only that target.
+   *
+   * <p>Nothing is parsed. If the build file is not cached, its entry is stale or it does not define
+   * the target, the result has no manifest and the caller should fall back to {@link
+   * #getOrParse(Cell, AbsPath, TargetLookup, ProjectBuildFileParser)}, which also records the miss.
+   */
+  public TargetLookup getCachedTarget(
+      Cell cell, AbsPath buildFile, String targetName, ProjectBuildFileParser parser)
+      throws BuildFileParseException, InterruptedException, IOException {
+    Optional<ParserCacheStorage> storage = getStorage(cell);
+    if (!storage.isPresent()) {
+      return TargetLookup.NOT_LOOKED_UP;
+    }
+
+    HashCode weakFingerprint = Fingerprinter.getWeakFingerprint(cell, buildFile);
+    HashCode strongFingerprint =
+        Fingerprinter.getStrongFingerprint(
+            cell.getFilesystem(), parser.getIncludedFiles(buildFile.getPath()));
+
+    Optional<LazyBuildFileManifest> cachedManifest =
+        lookup(storage.get(), weakFingerprint, strongFingerprint, cell, buildFile, parser);
+    if (!cachedManifest.isPresent()) {
+      return new TargetLookup(weakFingerprint, strongFingerprint, Optional.empty());
+    }
+    LazyBuildFileManifest manifest = cachedManifest.get();
+    Optional<ImmutableMap<String, Object>> target;
+    try {
+      target = manifest.getTarget(targetName);
+    } catch (IOException e) {
+      LOG.debug(e, "Dropping unreadable parser cache entry for %s.", buildFile);
+      deleteEntry(storage.get(), weakFingerprint, strongFingerprint);
+      return new TargetLookup(weakFingerprint, strongFingerprint, Optional.empty());
+    }
+    if (!target.isPresent()) {
+      return new TargetLookup(weakFingerprint, strongFingerprint, Optional.empty());
+    }
+    hitsCounter.inc();
+    return new TargetLookup(
+        weakFingerprint,
+        strongFingerprint,
+        Optional.of(
+            BuildFileManifest.of(
+                ImmutableMap.of(targetName, target.get()),
+                manifest.getIncludes(),
+                manifest.getConfigs(),
+                manifest.getEnv(),
+                manifest.getGlobManifest(),
+                manifest.getErrors())));
+  }
+
+  /** Reads a cached manifest and checks that it is still valid, without decoding its targets. */
+  private Optional<LazyBuildFileManifest> lookup(
+      ParserCacheStorage storage,
+      HashCode weakFingerprint,
+      HashCode strongFingerprint,
+      Cell cell,
+      AbsPath buildFile,
+      ProjectBuildFileParser parser)
+      throws IOException, InterruptedException {
+    Optional<byte[]> serializedManifest;
+    try {
+      serializedManifest = storage.getBuildFileManifest(weakFingerprint, strongFingerprint);
+    } catch (ParserCacheException e) {
+      LOG.warn(e, "Failed to read %s from the parser cache.", buildFile);
+      return Optional.empty();
+    }
+    if (!serializedManifest.isPresent()) {
+      return Optional.empty();
+    }
+    bytesReadCounter.inc(serializedManifest.get().length);
+
+    LazyBuildFileManifest manifest;
+    try {
+      manifest = BinaryManifestSerializer.openBuildFileManifest(serializedManifest.get());
+    } catch (IOException e) {
+      // The entry is either corrupted or was written by an incompatible version of Buck.
+      LOG.debug(e, "Dropping unreadable parser cache entry for %s.", buildFile);
+      deleteEntry(storage, weakFingerprint, strongFingerprint);
+      return Optional.empty();
+    }
+
+    // Validate the entry before decoding its targets, which make up most of its size.
+    if (!readConfigsMatch(cell, manifest.getConfigs())
+        || !readEnvMatches(cell, manifest.getEnv())
+        || !parser.globResultsMatchCurrentState(buildFile.getPath(), manifest.getGlobManifest())) {
+      LOG.verbose("Parser cache entry for %s is stale.", buildFile);
+      return Optional.empty();
+    }
+    return Optional.of(manifest);
+  }
+
+  private void store(
+      ParserCacheStorage storage,
+      HashCode weakFingerprint,
+      HashCode strongFingerprint,
+      BuildFileManifest manifest) {
+    try {
+      byte[] serializedManifest = BinaryManifestSerializer.serialize(manifest);
+      storage.storeBuildFileManifest(weakFingerprint, strongFingerprint, serializedManifest);
+      bytesWrittenCounter.inc(serializedManifest.length);
+    } catch (IOException | ParserCacheException e) {
+      LOG.warn(e, "Failed to store a manifest in the parser cache.");
+    }
+  }
+
+  private static void deleteEntry(
+      ParserCacheStorage storage, HashCode weakFingerprint, HashCode strongFingerprint) {
+    try {
+      storage.deleteCacheEntries(weakFingerprint, strongFingerprint);
+    } catch (ParserCacheException e) {
+      LOG.debug(e, "Failed to delete a parser cache entry.");
+    }
+  }
+
+  /** Checks that every configuration value read by the build file still has the same value. */
+  private static boolean readConfigsMatch(Cell cell, ImmutableMap<String, Object> configs) {
+    ImmutableMap<String, ImmutableMap<String, String>> rawConfig =
+        cell.getBuckConfigView(ConfigIgnoredByDaemon.class).getRawConfigForParser();
+    for (Map.Entry<String, Object> section : configs.entrySet()) {
+      if (!(section.getValue() instanceof Map)) {
+        return false;
+      }
+      ImmutableMap<String, String> currentSection =
+          rawConfig.getOrDefault(section.getKey(), ImmutableMap.of());
+      for (Map.Entry<?, ?> field : ((Map<?, ?>) section.getValue()).entrySet()) {
+        Optional<String> recordedValue = unwrapConfigValue(field.getValue());
+        if (!recordedValue.equals(Optional.ofNullable(currentSection.get(field.getKey())))) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /** Config values are recorded as optional strings, but some parsers record plain strings. */
+  private static Optional<String> unwrapConfigValue(Object value) {
+    if (value instanceof Optional) {
+      return ((Optional<?>) value).map(Objects::toString);
+    }
+    return Optional.ofNullable(value).map(Objects::toString);
+  }
+
+  /** Checks that every environment variable read by the build file still has the same value. */
+  private static boolean readEnvMatches(
+      Cell cell, Optional<ImmutableMap<String, Optional<String>>> env) {
+    if (!env.isPresent()) {
+      return true;
+    }
+    ImmutableMap<String, String> environment = cell.getBuckConfig().getEnvironment();
+    for (Map.Entry<String, Optional<String>> entry : env.get().entrySet()) {
+      if (!entry.getValue().equals(Optional.ofNullable(environment.get(entry.getKey())))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private Optional<ParserCacheStorage> getStorage(Cell cell) {
+    return storages.computeIfAbsent(
+        cell.getRoot(),
+        root -> {
+          ParserCacheConfig config = cell.getBuckConfigView(ParserCacheConfig.class);
+          if (!config.isDirParserCacheEnabled()) {
+            return Optional.empty();
+          }
+          try {
+            return Optional.of(
+                LocalCacheStorage.of(
+                    config.getDirCacheLocation(),
+                    config.getDirCacheAccessMode(),
+                    cell.getFilesystem()));
+          } catch (ParserCacheException e) {
+            LOG.warn(e, "Unable to create the parser cache, build files will be parsed.");
+            return Optional.empty();
+          }
+        });
+  }
+
+  /** @return counters tracking hits, misses and the amount of data read and written. */
+  public ImmutableList<Counter> getCounters() {
+    return ImmutableList.of(hitsCounter, missesCounter, bytesReadCounter, bytesWrittenCounter);
+  }
+
+  /** Result of looking up a single target with {@link #getCachedTarget}. */
+  public static final class TargetLookup {
+
+    /** A lookup that was not performed, for example because the cache is disabled. */
+    public static final TargetLookup NOT_LOOKED_UP =
+        new TargetLookup(null, null, Optional.empty());
+
+    @Nullable private final HashCode weakFingerprint;
+    @Nullable private final HashCode strongFingerprint;
+    private final Optional<BuildFileManifest> manifest;
+
+    private TargetLookup(
+        @Nullable HashCode weakFingerprint,
+        @Nullable HashCode strongFingerprint,
+        Optional<BuildFileManifest> manifest) {
+      this.weakFingerprint = weakFingerprint;
+      this.strongFingerprint = strongFingerprint;
+      this.manifest = manifest;
+    }
+
+    /**
+     * @return the manifest of the build file restricted to the requested target, with the
+     *     includes, configs and environment of the whole build file, or empty on a miss.
+     */
+    public Optional<BuildFileManifest> getManifest() {
+      return manifest;
+    }
+
+    /** @return whether the cache was consulted, so a fallback can reuse its fingerprints. */
+    public boolean wasLookedUp() {
+      return weakFingerprint != null;
+    }
+  }
+}
@@ -471,6 +471,16 @@ public abstract class ParserConfig implements ConfigView<BuckConfig> {
     return getDelegate().getBooleanValue("parser", "enable_package_files", false);
   }
 
+  /**
+   * @return whether the daemon keeps its index of target dependencies and inputs on disk when it
+   *     shuts down, and restores it on start up, invalidating whatever watchman reports as changed
+   *     in between.
+   */
+  @Value.Lazy
+  public boolean shouldPersistTargetDependencyIndex() {
+    return getDelegate().getBooleanValue("parser", "persist_target_dependency_index", false);
+  }
+
   @Value.Lazy
   public int getMissingTargetLevenshteinDistance() {
     return getDelegate().getInteger("parser", "missing_target_levenshtein_distance").orElse(5);
@@ -36,8 +36,6 @@ import com.facebook.buck.query.QueryEnvironment.ArgumentType;
 import com.facebook.buck.query.QueryEnvironment.QueryFunction;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Sets;
-import java.util.ArrayList;
-import java.util.Collection;
 import java.util.LinkedHashSet;
 import java.util.Set;
 
@@ -79,6 +77,8 @@ public class AllPathsFunction<T extends QueryTarget> implements QueryFunction<T,
 
     Set<T> fromSet = evaluator.eval(from, env);
     Set<T> toSet = evaluator.eval(to, env);
+    // Paths can only start at the "from" targets that reach the "to" set.
+    fromSet = env.getRootsThatMayReach(fromSet, toSet);
 
     // Algorithm:
     // 1) compute "reachableFromX", the forward transitive closure of the "from" set;
@@ -89,18 +89,8 @@ public class AllPathsFunction<T extends QueryTarget> implements QueryFunction<T,
     env.buildTransitiveClosure(fromSet, Integer.MAX_VALUE);
 
     Set<T> reachableFromX = env.getTransitiveClosure(fromSet);
-    Set<T> result = intersection(reachableFromX, toSet);
-    Collection<T> worklist = result;
-    while (!worklist.isEmpty()) {
-      Collection<T> reverseDeps = env.getReverseDeps(worklist);
-      worklist = new ArrayList<>();
-      for (T target : reverseDeps) {
-        if (reachableFromX.contains(target) && result.add(target)) {
-          worklist.add(target);
-        }
-      }
-    }
-    return result;
+    return env.getTransitiveReverseDeps(
+        intersection(reachableFromX, toSet), Integer.MAX_VALUE, reachableFromX);
   }
 
   /**
@@ -114,6 +114,9 @@ public class DepsFunction<T extends QueryTarget> implements QueryFunction<T, T>
     Optional<QueryExpression<T>> deps =
         args.size() > 2 ? Optional.of(args.get(2).getExpression()) : Optional.empty();
     env.buildTransitiveClosure(argumentSet, depthBound);
+    if (!deps.isPresent()) {
+      return env.getTransitiveFwdDeps(argumentSet, depthBound);
+    }
 
     // LinkedHashSet preserves the order of insertion when iterating over the values.
     // The order by which we traverse the result is meaningful because the dependencies are
@@ -131,11 +134,7 @@ public class DepsFunction<T extends QueryTarget> implements QueryFunction<T, T>
               next.add(queryTarget);
             }
           };
-      if (deps.isPresent()) {
-        forEachDep(env, deps.get(), current, consumer);
-      } else {
-        env.forEachFwdDep(current, consumer);
-      }
+      forEachDep(env, deps.get(), current, consumer);
       if (next.isEmpty()) {
         break;
       }
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.query;
+
+import com.facebook.buck.core.model.QueryTarget;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * Evaluates query expressions like {@link NoopQueryEvaluator} while recording how much time each
+ * query function and set operator took and how many targets it produced.
+ *
+ * <p>Times include the evaluation of nested expressions.
+ */
+public class ProfilingQueryEvaluator<ENV_NODE_TYPE> implements QueryEvaluator<ENV_NODE_TYPE> {
+
+  private final Map<String, OperatorProfile> profiles = new LinkedHashMap<>();
+
+  @Override
+  public <OUTPUT_TYPE extends QueryTarget> Set<OUTPUT_TYPE> eval(
+      QueryExpression<ENV_NODE_TYPE> exp, QueryEnvironment<ENV_NODE_TYPE> env)
+      throws QueryException {
+    String operator = getOperatorName(exp);
+    if (operator == null) {
+      return exp.eval(this, env);
+    }
+
+    long start = System.nanoTime();
+    Set<OUTPUT_TYPE> result = exp.eval(this, env);
+    profiles
+        .computeIfAbsent(operator, OperatorProfile::new)
+        .record(System.nanoTime() - start, result.size());
+    return result;
+  }
+
+  /** @return the recorded profiles, most expensive first. */
+  public List<OperatorProfile> getProfiles() {
+    List<OperatorProfile> result = new ArrayList<>(profiles.values());
+    result.sort(Comparator.comparingLong(OperatorProfile::getTotalNanos).reversed());
+    return result;
+  }
+
+  @Nullable
+  private static String getOperatorName(QueryExpression<?> exp) {
+    if (exp instanceof FunctionExpression) {
+      return ((FunctionExpression<?>) exp).getFunction().getName();
+    }
+    if (exp instanceof BinaryOperatorExpression) {
+      return ((BinaryOperatorExpression<?>) exp).getOperator().name().toLowerCase(Locale.ROOT);
+    }
+    return null;
+  }
+
+  /** Time spent in, and targets produced by, all evaluations of a single operator. */
+  public static class OperatorProfile {
+    private final String operator;
+    private int invocations;
+    private long totalNanos;
+    private long totalTargets;
+
+    OperatorProfile(String operator) {
+      this.operator = operator;
+    }
+
+    void record(long nanos, int targets) {
+      invocations++;
+      totalNanos += nanos;
+      totalTargets += targets;
+    }
+
+    public String getOperator() {
+      return operator;
+    }
+
+    public int getInvocations() {
+      return invocations;
+    }
+
+    public long getTotalNanos() {
+      return totalNanos;
+    }
+
+    public long getTotalMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(totalNanos);
+    }
+
+    /** @return the sum of the result sizes of all evaluations. */
+    public long getTotalTargets() {
+      return totalTargets;
+    }
+  }
+}
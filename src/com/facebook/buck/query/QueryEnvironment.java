@@ -33,6 +33,10 @@ package com.facebook.buck.query;
 import com.facebook.buck.core.model.QueryTarget;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.Objects;
 import java.util.Set;
 import java.util.function.Consumer;
@@ -241,6 +245,74 @@ public interface QueryEnvironment<NODE_TYPE> {
   /** Returns the direct reverse dependencies of the specified targets. */
   Set<NODE_TYPE> getReverseDeps(Iterable<NODE_TYPE> targets) throws QueryException;
 
+  /**
+   * Returns {@code targets} followed by their forward dependencies up to {@code maxDepth} edges
+   * away, in breadth-first order. Callers must ensure that {@link #buildTransitiveClosure} has been
+   * called for the relevant subgraph.
+   */
+  default Set<NODE_TYPE> getTransitiveFwdDeps(Set<NODE_TYPE> targets, int maxDepth)
+      throws QueryException {
+    // LinkedHashSet preserves the order of insertion when iterating over the values.
+    // The order by which we traverse the result is meaningful because the dependencies are
+    // traversed level-by-level.
+    Set<NODE_TYPE> result = new LinkedHashSet<>(targets);
+    Collection<NODE_TYPE> current = targets;
+    for (int i = 0; i < maxDepth; i++) {
+      Collection<NODE_TYPE> next = new ArrayList<>();
+      forEachFwdDep(
+          current,
+          target -> {
+            if (result.add(target)) {
+              next.add(target);
+            }
+          });
+      if (next.isEmpty()) {
+        break;
+      }
+      current = next;
+    }
+    return result;
+  }
+
+  /**
+   * Returns the targets in {@code targets} that are in {@code universe}, followed by their reverse
+   * dependencies within {@code universe} up to {@code maxDepth} edges away, in breadth-first
+   * order. Targets outside of {@code universe} are neither returned nor traversed through.
+   */
+  default Set<NODE_TYPE> getTransitiveReverseDeps(
+      Set<NODE_TYPE> targets, int maxDepth, Set<NODE_TYPE> universe) throws QueryException {
+    Set<NODE_TYPE> visited = new LinkedHashSet<>();
+
+    // This predicate function does not just do filtering but also populates visited collection.
+    // This is a bit ugly but enables to evaluate the collection exactly once
+    // The actual evaluation and population of `visited` happens in `getReverseDeps` as it iterates
+    // through targets
+    Predicate<NODE_TYPE> filter = target -> universe.contains(target) && visited.add(target);
+
+    Set<NODE_TYPE> current = targets;
+    // Iterating maxDepth+1 times because the first one processes the given argument set.
+    for (int i = 0; i <= maxDepth; i++) {
+      Set<NODE_TYPE> next = getReverseDeps(Iterables.filter(current, filter::test));
+      if (next.isEmpty()) {
+        break;
+      }
+      current = next;
+    }
+    return visited;
+  }
+
+  /**
+   * Returns the targets in {@code roots} whose forward transitive closure may contain one of {@code
+   * targets}, preserving their order. Implementations that know the dependency graph ahead of time
+   * can use this to avoid loading universes that cannot reach the targets; the result must be a
+   * superset of the roots that actually do.
+   */
+  @SuppressWarnings("unused")
+  default Set<NODE_TYPE> getRootsThatMayReach(Set<NODE_TYPE> roots, Set<NODE_TYPE> targets)
+      throws QueryException {
+    return roots;
+  }
+
   Set<QueryFileTarget> getInputs(NODE_TYPE target) throws QueryException;
 
   /**
@@ -34,10 +34,7 @@ import com.facebook.buck.core.model.QueryTarget;
 import com.facebook.buck.query.QueryEnvironment.Argument;
 import com.facebook.buck.query.QueryEnvironment.ArgumentType;
 import com.facebook.buck.query.QueryEnvironment.QueryFunction;
-import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterables;
-import java.util.LinkedHashSet;
 import java.util.Set;
 
 /**
@@ -81,31 +78,14 @@ public class RdepsFunction<T extends QueryTarget> implements QueryFunction<T, T>
       QueryEvaluator<T> evaluator, QueryEnvironment<T> env, ImmutableList<Argument<T>> args)
       throws QueryException {
     Set<T> universeSet = evaluator.eval(args.get(0).getExpression(), env);
+    Set<T> targets = evaluator.eval(args.get(1).getExpression(), env);
+    // Universe roots that cannot reach any of the targets contribute nothing to the result, so
+    // their transitive closures do not have to be loaded.
+    universeSet = env.getRootsThatMayReach(universeSet, targets);
     env.buildTransitiveClosure(universeSet, Integer.MAX_VALUE);
     Set<T> transitiveClosureUniverse = env.getTransitiveClosure(universeSet);
 
-    // LinkedHashSet preserves the order of insertion when iterating over the values.
-    // The order by which we traverse the result is meaningful because the dependencies are
-    // traversed level-by-level.
-    Set<T> visited = new LinkedHashSet<>();
-    Set<T> current = evaluator.eval(args.get(1).getExpression(), env);
-
-    // This predicate function does not just do filtering but also populates visited collection.
-    // This is a bit ugly but enables to evaluate the collection exactly once
-    // The actual evaluation and population of `visited` happens in `getReverseDeps` as it iterates
-    // through targets
-    Predicate<T> filter =
-        target -> (transitiveClosureUniverse.contains(target) && visited.add(target));
-
     int depthBound = args.size() > 2 ? args.get(2).getInteger() : Integer.MAX_VALUE;
-    // Iterating depthBound+1 times because the first one processes the given argument set.
-    for (int i = 0; i <= depthBound; i++) {
-      Set<T> next = env.getReverseDeps(Iterables.filter(current, filter));
-      if (next.isEmpty()) {
-        break;
-      }
-      current = next;
-    }
-    return visited;
+    return env.getTransitiveReverseDeps(targets, depthBound, transitiveClosureUniverse);
   }
 }
@@ -52,6 +52,24 @@ public class TargetVariablesQueryEnvironment<NODE_TYPE> implements QueryEnvironm
     return delegate.getReverseDeps(targets);
   }
 
+  @Override
+  public Set<NODE_TYPE> getTransitiveFwdDeps(Set<NODE_TYPE> targets, int maxDepth)
+      throws QueryException {
+    return delegate.getTransitiveFwdDeps(targets, maxDepth);
+  }
+
+  @Override
+  public Set<NODE_TYPE> getTransitiveReverseDeps(
+      Set<NODE_TYPE> targets, int maxDepth, Set<NODE_TYPE> universe) throws QueryException {
+    return delegate.getTransitiveReverseDeps(targets, maxDepth, universe);
+  }
+
+  @Override
+  public Set<NODE_TYPE> getRootsThatMayReach(Set<NODE_TYPE> roots, Set<NODE_TYPE> targets)
+      throws QueryException {
+    return delegate.getRootsThatMayReach(roots, targets);
+  }
+
   @Override
   public Set<QueryFileTarget> getInputs(NODE_TYPE target) throws QueryException {
     return delegate.getInputs(target);
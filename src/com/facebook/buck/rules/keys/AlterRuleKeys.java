@@ -19,17 +19,34 @@ package com.facebook.buck.rules.keys;
 import com.facebook.buck.core.build.action.BuildEngineAction;
 import com.facebook.buck.core.rulekey.AddsToRuleKey;
 import com.facebook.buck.core.util.log.Logger;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.LoadingCache;
-import com.google.common.collect.ImmutableCollection;
-import java.util.concurrent.ConcurrentHashMap;
+import com.google.common.collect.ImmutableList;
 
 public final class AlterRuleKeys {
   private static final Logger LOG = Logger.get(AlterRuleKeys.class);
-  private static final LoadingCache<Class<?>, ImmutableCollection<AlterRuleKey>> cache =
-      CacheBuilder.newBuilder().build(new ReflectiveAlterKeyLoader());
-  private static final ConcurrentHashMap<Class<?>, String> pseudoNameCache =
-      new ConcurrentHashMap<>();
+  private static final ReflectiveAlterKeyLoader LOADER = new ReflectiveAlterKeyLoader();
+
+  /**
+   * Per-class extractors, built once. {@link ClassValue} lookups are a field read on the class
+   * rather than a hash map probe, and don't keep classes from being unloaded.
+   */
+  private static final ClassValue<ImmutableList<AlterRuleKey>> cache =
+      new ClassValue<ImmutableList<AlterRuleKey>>() {
+        @Override
+        protected ImmutableList<AlterRuleKey> computeValue(Class<?> type) {
+          return LOADER.load(type).asList();
+        }
+      };
+
+  private static final ClassValue<String> classNameCache =
+      new ClassValue<String>() {
+        @Override
+        protected String computeValue(Class<?> clazz) {
+          if (clazz.isAnonymousClass() || clazz.isSynthetic()) {
+            return getPseudoClassName(clazz);
+          }
+          return clazz.getName();
+        }
+      };
 
   public static void amendKey(AbstractRuleKeyBuilder<?> sink, BuildEngineAction action) {
     amendKey(sink, (Object) action);
@@ -49,13 +66,11 @@ public final class AlterRuleKeys {
 
   private static void amendKey(AbstractRuleKeyBuilder<?> sink, Object appendable) {
     Class<?> clazz = appendable.getClass();
-    String className = clazz.getName();
-    if (clazz.isAnonymousClass() || clazz.isSynthetic()) {
-      className = pseudoNameCache.computeIfAbsent(clazz, AlterRuleKeys::getPseudoClassName);
-    }
-    sink.setReflectively(".class", className);
-    for (AlterRuleKey alterRuleKey : cache.getUnchecked(clazz)) {
-      alterRuleKey.amendKey(sink, appendable);
+    sink.setReflectively(".class", classNameCache.get(clazz));
+    ImmutableList<AlterRuleKey> alterRuleKeys = cache.get(clazz);
+    // Indexed loop to avoid allocating an iterator for every object added to a rule key.
+    for (int i = 0; i < alterRuleKeys.size(); i++) {
+      alterRuleKeys.get(i).amendKey(sink, appendable);
     }
   }
 
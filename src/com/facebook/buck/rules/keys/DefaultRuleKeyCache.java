@@ -29,10 +29,16 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import java.util.AbstractMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -71,7 +77,14 @@ public class DefaultRuleKeyCache<V> implements TrackableRuleKeyCache<V> {
         node.getClass());
 
     RuleKeyResult<V> result = create.apply(node);
-    for (Object dependency : result.deps) {
+    ImmutableList<Object> deps = ImmutableList.copyOf(result.deps);
+    cache.computeIfPresent(
+        new IdentityWrapper<>(node),
+        (key, value) -> {
+          value.deps = deps;
+          return value;
+        });
+    for (Object dependency : deps) {
       cache.compute(
           new IdentityWrapper<>(dependency),
           (key, value) -> {
@@ -227,6 +240,57 @@ public class DefaultRuleKeyCache<V> implements TrackableRuleKeyCache<V> {
         statsTracker);
   }
 
+  /**
+   * Invalidate all cached {@link BuildEngineAction}s which aren't among the given live actions, and
+   * their transitive dependents, then drop any remaining nodes which are no longer reachable from a
+   * retained action. This lets the cache survive an action graph being incrementally regenerated,
+   * as unchanged rules are carried over into the new graph as the same instances.
+   */
+  @Override
+  public void retainActions(
+      Iterable<? extends BuildEngineAction> liveActions, CacheStatsTracker statsTracker) {
+    Set<Object> live = Collections.newSetFromMap(new IdentityHashMap<>());
+    liveActions.forEach(live::add);
+
+    invalidateNodes(
+        cache.keySet().stream()
+            .map(key -> key.delegate)
+            .filter(key -> key instanceof BuildEngineAction && !live.contains(key))
+            .collect(Collectors.toList())
+            .stream(),
+        statsTracker);
+
+    // Mark everything still reachable from a retained action through the deps recorded when its
+    // rule key was calculated, and sweep the rest (e.g. appendables only held by dropped rules).
+    Set<Object> reachable = Collections.newSetFromMap(new IdentityHashMap<>());
+    Deque<Object> work = new ArrayDeque<>();
+    cache.keySet().stream()
+        .map(key -> key.delegate)
+        .filter(key -> key instanceof BuildEngineAction)
+        .forEach(work::add);
+    while (!work.isEmpty()) {
+      Object key = work.pop();
+      if (!reachable.add(key)) {
+        continue;
+      }
+      Node<Object, V> node = cache.get(new IdentityWrapper<>(key));
+      ImmutableList<Object> deps = node == null ? null : node.deps;
+      if (deps != null) {
+        deps.forEach(work::push);
+      }
+    }
+    int swept = 0;
+    for (Iterator<IdentityWrapper<Object>> iterator = cache.keySet().iterator();
+        iterator.hasNext(); ) {
+      if (!reachable.contains(iterator.next().delegate)) {
+        iterator.remove();
+        swept++;
+      }
+    }
+    statsTracker.recordEviction(swept);
+    LOG.debug("retained %d rule key cache nodes, swept %d unreachable ones", cache.size(), swept);
+  }
+
   /** Invalidate everything in the cache. */
   @Override
   public void invalidateAll(CacheStatsTracker statsTracker) {
@@ -267,6 +331,12 @@ public class DefaultRuleKeyCache<V> implements TrackableRuleKeyCache<V> {
      */
     @Nullable private volatile Supplier<V> value;
 
+    /**
+     * The deps this node's value was calculated from, recorded so that nodes no longer reachable
+     * from any live action can be swept.
+     */
+    @Nullable private volatile ImmutableList<Object> deps;
+
     public Node() {
       this.dependents = Stream.builder();
       this.value = null;
@@ -20,6 +20,7 @@ import com.facebook.buck.rules.keys.hasher.CountingRuleKeyHasher;
 import com.facebook.buck.rules.keys.hasher.RuleKeyHasher;
 import com.facebook.buck.util.Scope;
 import java.nio.file.Path;
+import java.util.Arrays;
 
 /**
  * A wrapper of {@link RuleKeyHasher} that provides scoped hashing facilities.
@@ -31,6 +32,20 @@ import java.nio.file.Path;
 public class DefaultRuleKeyScopedHasher<HASH> implements RuleKeyScopedHasher {
   private final CountingRuleKeyHasher<HASH> hasher;
 
+  /**
+   * Scopes are strictly nested, as they are only ever used in try-with-resources blocks, so the
+   * state of open scopes is kept on these stacks and a single {@link Scope} instance closes the
+   * innermost one. This avoids allocating a closure for every key, wrapper and element hashed.
+   *
+   * <p>The values are the {@link String} or {@link Path} keys, {@link RuleKeyHasher.Wrapper}s, or
+   * {@link DefaultContainerScope}s owning element scopes.
+   */
+  private long[] scopeStartCounts = new long[8];
+
+  private Object[] scopeValues = new Object[8];
+  private int scopeDepth = 0;
+  private final Scope innermostScope = this::closeInnermostScope;
+
   DefaultRuleKeyScopedHasher(CountingRuleKeyHasher<HASH> hasher) {
     this.hasher = hasher;
   }
@@ -42,34 +57,19 @@ public class DefaultRuleKeyScopedHasher<HASH> implements RuleKeyScopedHasher {
   /** Hashes the key iff non-empty (i.e. if anything gets hashed during its scope). */
   @Override
   public Scope keyScope(String key) {
-    long hasherCount = hasher.getCount();
-    return () -> {
-      if (hasher.getCount() > hasherCount) {
-        hasher.putKey(key);
-      }
-    };
+    return openScope(key);
   }
 
   /** Hashes the key iff non-empty (i.e. if anything gets hashed during its scope). */
   @Override
   public Scope pathKeyScope(Path key) {
-    long hasherCount = hasher.getCount();
-    return () -> {
-      if (hasher.getCount() > hasherCount) {
-        hasher.putKeyPath(key);
-      }
-    };
+    return openScope(key);
   }
 
   /** Hashes the wrapper iff non-empty (i.e. if any element gets hashed during its scope). */
   @Override
   public Scope wrapperScope(RuleKeyHasher.Wrapper wrapper) {
-    long hasherCount = hasher.getCount();
-    return () -> {
-      if (hasher.getCount() > hasherCount) {
-        hasher.putWrapper(wrapper);
-      }
-    };
+    return openScope(wrapper);
   }
 
   /**
@@ -79,36 +79,60 @@ public class DefaultRuleKeyScopedHasher<HASH> implements RuleKeyScopedHasher {
    */
   @Override
   public ContainerScope containerScope(RuleKeyHasher.Container container) {
-    return new DefaultContainerScope(hasher, container);
+    return new DefaultContainerScope(this, container);
+  }
+
+  private Scope openScope(Object value) {
+    if (scopeDepth == scopeValues.length) {
+      scopeStartCounts = Arrays.copyOf(scopeStartCounts, scopeDepth * 2);
+      scopeValues = Arrays.copyOf(scopeValues, scopeDepth * 2);
+    }
+    scopeStartCounts[scopeDepth] = hasher.getCount();
+    scopeValues[scopeDepth] = value;
+    scopeDepth++;
+    return innermostScope;
+  }
+
+  private void closeInnermostScope() {
+    scopeDepth--;
+    Object value = scopeValues[scopeDepth];
+    scopeValues[scopeDepth] = null;
+    if (hasher.getCount() <= scopeStartCounts[scopeDepth]) {
+      return;
+    }
+    if (value instanceof String) {
+      hasher.putKey((String) value);
+    } else if (value instanceof Path) {
+      hasher.putKeyPath((Path) value);
+    } else if (value instanceof RuleKeyHasher.Wrapper) {
+      hasher.putWrapper((RuleKeyHasher.Wrapper) value);
+    } else {
+      ((DefaultContainerScope) value).elementCount++;
+    }
   }
 
   public static class DefaultContainerScope implements ContainerScope {
-    private final CountingRuleKeyHasher<?> hasher;
+    private final DefaultRuleKeyScopedHasher<?> scopedHasher;
     private final RuleKeyHasher.Container container;
     private int elementCount = 0;
 
     private DefaultContainerScope(
-        CountingRuleKeyHasher<?> hasher, RuleKeyHasher.Container container) {
-      this.hasher = hasher;
+        DefaultRuleKeyScopedHasher<?> scopedHasher, RuleKeyHasher.Container container) {
+      this.scopedHasher = scopedHasher;
       this.container = container;
     }
 
     /** Increases element count if anything gets hashed during the element scope. */
     @Override
     public Scope elementScope() {
-      long hasherCount = hasher.getCount();
-      return () -> {
-        if (hasher.getCount() > hasherCount) {
-          elementCount++;
-        }
-      };
+      return scopedHasher.openScope(this);
     }
 
     /** Hashes the container iff non-empty (i.e. if any element gets hashed during this scope). */
     @Override
     public void close() {
       if (elementCount > 0) {
-        hasher.putContainer(container, elementCount);
+        scopedHasher.hasher.putContainer(container, elementCount);
       }
     }
   }
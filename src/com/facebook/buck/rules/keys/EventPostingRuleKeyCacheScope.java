@@ -64,6 +64,7 @@ public class EventPostingRuleKeyCacheScope<V> implements RuleKeyCacheScope<V> {
       scope.update("hits", stats.getHitCount());
       scope.update("misses", stats.getMissCount());
       scope.update("requests", stats.getRequestCount());
+      scope.update("evictions", stats.getEvictionCount());
       scope.update("load_time_ms", stats.getTotalLoadTime());
 
       // Run additional cleanup.
@@ -33,6 +33,7 @@ import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
 import java.nio.file.Path;
 import java.util.Map;
+import java.util.Objects;
 import java.util.function.Consumer;
 import java.util.stream.IntStream;
 import javax.annotation.Nullable;
@@ -133,8 +134,19 @@ public class RuleKeyCacheRecycler<V> {
           LOG.debug("invalidating entire cache due to settings change");
           getCache().invalidateAll();
           scope.update("settings_change", true);
+          scope.update("action_graph_change", false);
+        } else if (Objects.requireNonNull(previousSettings).actionGraph
+            != currentSettings.actionGraph) {
+          // NOTE: Since the cache indexes using instance equality, only rules which were carried
+          // over as-is into the new action graph (e.g. by incremental action graph generation) can
+          // keep their keys. Everything else, and anything depending on it, is dropped here.
+          LOG.debug("invalidating rules missing from the new action graph");
+          getCache().retainActions(currentSettings.actionGraph.getNodes());
+          scope.update("settings_change", false);
+          scope.update("action_graph_change", true);
         } else {
           scope.update("settings_change", false);
+          scope.update("action_graph_change", false);
         }
 
         // Record the current settings for next time.
@@ -193,15 +205,7 @@ public class RuleKeyCacheRecycler<V> {
         return false;
       }
 
-      if (previous.ruleKeySeed != current.ruleKeySeed) {
-        return false;
-      }
-
-      // NOTE: Since the cache indexes using instance equality, it's only ever useful if we get a
-      // hit in the action graph cache and re-use the same action graph in the next build.  So, if
-      // we detect that a fresh action graph is being used, we eagerly dump the cache to free up
-      // memory.
-      return previous.actionGraph == current.actionGraph;
+      return previous.ruleKeySeed == current.ruleKeySeed;
     }
   }
 }
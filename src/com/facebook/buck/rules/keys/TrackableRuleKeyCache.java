@@ -56,5 +56,12 @@ public interface TrackableRuleKeyCache<V> {
 
   void invalidateAll(CacheStatsTracker statsTracker);
 
+  /**
+   * Invalidate all cached actions which aren't among {@code liveActions}, along with everything
+   * that transitively depends on them.
+   */
+  void retainActions(
+      Iterable<? extends BuildEngineAction> liveActions, CacheStatsTracker statsTracker);
+
   ImmutableList<Map.Entry<BuildRule, V>> getCachedBuildRules();
 }
@@ -87,6 +87,14 @@ public class TrackedRuleKeyCache<V> implements RuleKeyCache<V> {
     cache.invalidateAll(statsTracker);
   }
 
+  /**
+   * Invalidate all cached actions which aren't among {@code liveActions}, along with everything
+   * that transitively depends on them.
+   */
+  public void retainActions(Iterable<? extends BuildEngineAction> liveActions) {
+    cache.retainActions(liveActions, statsTracker);
+  }
+
   @VisibleForTesting
   TrackableRuleKeyCache<V> getCache() {
     return cache;
@@ -33,21 +33,56 @@ import java.util.regex.Pattern;
 /** An implementation of {@link RuleKeyHasher} that wraps Guava's {@link Hasher}. */
 public class GuavaRuleKeyHasher implements RuleKeyHasher<HashCode> {
 
+  /** Large enough for SHA-1 and SHA-256 hash codes and most keys, flags and target names. */
+  private static final int SCRATCH_SIZE = 128;
+
   private final Hasher hasher;
 
+  /**
+   * Reused to feed ASCII strings and hash codes to the hasher, instead of allocating an encoder and
+   * a byte array for each of them.
+   */
+  private final byte[] scratch = new byte[SCRATCH_SIZE];
+
   public GuavaRuleKeyHasher(Hasher hasher) {
     this.hasher = hasher;
   }
 
   private GuavaRuleKeyHasher putBytes(byte type, byte[] bytes) {
-    hasher.putBytes(bytes);
-    hasher.putInt(bytes.length);
+    return putBytes(type, bytes, bytes.length);
+  }
+
+  private GuavaRuleKeyHasher putBytes(byte type, byte[] bytes, int length) {
+    hasher.putBytes(bytes, 0, length);
+    hasher.putInt(length);
     hasher.putByte(type);
     return this;
   }
 
   private GuavaRuleKeyHasher putStringified(byte type, String val) {
-    return putBytes(type, val.getBytes(StandardCharsets.UTF_8));
+    int length = val.length();
+    if (length > SCRATCH_SIZE) {
+      return putBytes(type, val.getBytes(StandardCharsets.UTF_8));
+    }
+    // ASCII characters encode to the same single byte in UTF-8, so this hashes exactly the bytes
+    // `getBytes(UTF_8)` would have returned.
+    for (int i = 0; i < length; i++) {
+      char c = val.charAt(i);
+      if (c >= 0x80) {
+        return putBytes(type, val.getBytes(StandardCharsets.UTF_8));
+      }
+      scratch[i] = (byte) c;
+    }
+    return putBytes(type, scratch, length);
+  }
+
+  private GuavaRuleKeyHasher putHashCode(byte type, HashCode hash) {
+    int length = hash.bits() / Byte.SIZE;
+    if (length > SCRATCH_SIZE) {
+      return putBytes(type, hash.asBytes());
+    }
+    hash.writeBytesTo(scratch, 0, length);
+    return putBytes(type, scratch, length);
   }
 
   private GuavaRuleKeyHasher putPathFast(byte type, Path path) {
@@ -139,7 +174,7 @@ public class GuavaRuleKeyHasher implements RuleKeyHasher<HashCode> {
   @Override
   public GuavaRuleKeyHasher putPath(Path path, HashCode hash) {
     this.putPathFast(RuleKeyHasherTypes.PATH, path);
-    this.putBytes(RuleKeyHasherTypes.PATH, hash.asBytes());
+    this.putHashCode(RuleKeyHasherTypes.PATH, hash);
     return this;
   }
 
@@ -148,7 +183,7 @@ public class GuavaRuleKeyHasher implements RuleKeyHasher<HashCode> {
       Path relativeArchivePath, Path archiveMemberPath, HashCode hash) {
     putPathFast(RuleKeyHasherTypes.ARCHIVE_MEMBER_PATH, relativeArchivePath);
     putPathFast(RuleKeyHasherTypes.ARCHIVE_MEMBER_PATH, archiveMemberPath);
-    this.putBytes(RuleKeyHasherTypes.ARCHIVE_MEMBER_PATH, hash.asBytes());
+    this.putHashCode(RuleKeyHasherTypes.ARCHIVE_MEMBER_PATH, hash);
     return this;
   }
 
@@ -159,7 +194,7 @@ public class GuavaRuleKeyHasher implements RuleKeyHasher<HashCode> {
 
   @Override
   public GuavaRuleKeyHasher putRuleKey(RuleKey ruleKey) {
-    return this.putBytes(RuleKeyHasherTypes.RULE_KEY, ruleKey.getHashCode().asBytes());
+    return this.putHashCode(RuleKeyHasherTypes.RULE_KEY, ruleKey.getHashCode());
   }
 
   @Override
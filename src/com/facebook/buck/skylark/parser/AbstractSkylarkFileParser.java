@@ -92,15 +92,20 @@ abstract class AbstractSkylarkFileParser<T extends FileManifest> implements File
   private final LoadingCache<LoadImport, IncludesData> includesDataCache;
   private final PackageImplicitIncludesFinder packageImplicitIncludeFinder;
 
+  /** Extensions evaluated by other parsers, consulted when {@link #extensionDataCache} misses. */
+  protected final Optional<SkylarkExtensionCache> sharedExtensionCache;
+
   AbstractSkylarkFileParser(
       ProjectBuildFileParserOptions options,
       FileSystem fileSystem,
       BuckGlobals buckGlobals,
-      EventHandler eventHandler) {
+      EventHandler eventHandler,
+      Optional<SkylarkExtensionCache> sharedExtensionCache) {
     this.options = options;
     this.fileSystem = fileSystem;
     this.eventHandler = eventHandler;
     this.buckGlobals = buckGlobals;
+    this.sharedExtensionCache = sharedExtensionCache;
 
     this.astCache = CacheBuilder.newBuilder().build();
     this.extensionDataCache = CacheBuilder.newBuilder().build();
@@ -581,10 +586,49 @@ abstract class AbstractSkylarkFileParser<T extends FileManifest> implements File
    */
   private @Nullable ExtensionData lookupExtensionForImport(
       com.google.devtools.build.lib.vfs.Path path, String importString) {
-    ExtensionData ext = extensionDataCache.getIfPresent(path);
+    ExtensionData ext = getCachedExtension(path);
     return ext == null ? ext : ext.withImportString(importString);
   }
 
+  /**
+   * Retrieves extension data from this parser's cache, falling back to the cache shared with other
+   * parsers.
+   */
+  private @Nullable ExtensionData getCachedExtension(com.google.devtools.build.lib.vfs.Path path) {
+    ExtensionData ext = extensionDataCache.getIfPresent(path);
+    if (ext != null || !sharedExtensionCache.isPresent()) {
+      return ext;
+    }
+    ext = sharedExtensionCache.get().get(options.getProjectRoot(), path.toString());
+    if (ext != null) {
+      registerUserDefinedRules(ext, new HashSet<>());
+      extensionDataCache.put(path, ext);
+    }
+    return ext;
+  }
+
+  /**
+   * Makes the user defined rules exported by an extension evaluated by another parser, and by its
+   * dependencies, known to this parser. Evaluating the extension here would have registered them.
+   */
+  private void registerUserDefinedRules(
+      ExtensionData extension, Set<com.google.devtools.build.lib.vfs.Path> visited) {
+    if (!visited.add(extension.getPath())) {
+      return;
+    }
+    for (Object value : extension.getExtension().getBindings().values()) {
+      if (value instanceof SkylarkUserDefinedRule) {
+        SkylarkUserDefinedRule rule = (SkylarkUserDefinedRule) value;
+        if (rule.isExported()) {
+          buckGlobals.getKnownUserDefinedRuleTypes().addRule(rule);
+        }
+      }
+    }
+    for (ExtensionData dependency : extension.getDependencies()) {
+      registerUserDefinedRules(dependency, visited);
+    }
+  }
+
   /**
    * Loads extensions abstract syntax tree if needed.
    *
@@ -620,7 +664,7 @@ abstract class AbstractSkylarkFileParser<T extends FileManifest> implements File
       load.addDependency(dependency);
       com.google.devtools.build.lib.vfs.Path extensionPath =
           getImportPath(dependency.getLabel(), dependency.getImport());
-      if (extensionDataCache.getIfPresent(extensionPath) == null) {
+      if (getCachedExtension(extensionPath) == null) {
         // Schedule dependency to be loaded if needed.
         haveUnsatisfiedDeps = true;
         queue.push(new ExtensionLoadState(dependency, extensionPath));
@@ -726,6 +770,8 @@ abstract class AbstractSkylarkFileParser<T extends FileManifest> implements File
   private ExtensionData loadExtension(LoadImport loadImport)
       throws IOException, BuildFileParseException, InterruptedException {
     ExtensionData extension = null;
+    long sharedCacheGeneration =
+        sharedExtensionCache.map(SkylarkExtensionCache::getGeneration).orElse(0L);
     ArrayDeque<ExtensionLoadState> work = new ArrayDeque<>();
     work.push(
         new ExtensionLoadState(
@@ -756,6 +802,15 @@ abstract class AbstractSkylarkFileParser<T extends FileManifest> implements File
         work.removeFirst();
         extension = buildExtensionData(load);
         extensionDataCache.put(load.getPath(), extension);
+        if (sharedExtensionCache.isPresent()) {
+          sharedExtensionCache
+              .get()
+              .put(
+                  options.getProjectRoot(),
+                  load.getPath().toString(),
+                  extension,
+                  sharedCacheGeneration);
+        }
       }
     }
 
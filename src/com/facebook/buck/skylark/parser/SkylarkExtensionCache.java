@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.skylark.parser;
+
+import com.facebook.buck.core.filesystems.AbsPath;
+import com.facebook.buck.core.util.log.Logger;
+import com.facebook.buck.util.types.Pair;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+/**
+ * Evaluated Skylark extensions shared by all Skylark parsers created while the daemon is alive, so
+ * that extensions loaded by most build files are evaluated once per change rather than once per
+ * parser instance.
+ *
+ * <p>Entries are keyed by the root of the cell the loading parser belongs to, because the globals
+ * an extension is evaluated with depend on the cell. An entry is dropped when the extension file or
+ * any file it transitively loads changes.
+ */
+public class SkylarkExtensionCache {
+  private static final Logger LOG = Logger.get(SkylarkExtensionCache.class);
+
+  private final ConcurrentMap<Pair<AbsPath, String>, ExtensionData> extensions =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Incremented on every invalidation. Extensions whose evaluation started before an invalidation
+   * may have read stale files, so they are not added to the cache.
+   */
+  private final AtomicLong generation = new AtomicLong();
+
+  long getGeneration() {
+    return generation.get();
+  }
+
+  @Nullable
+  ExtensionData get(AbsPath cellRoot, String path) {
+    return extensions.get(new Pair<>(cellRoot, path));
+  }
+
+  /**
+   * Adds an evaluated extension, unless the cache was invalidated after {@code startGeneration}.
+   */
+  void put(AbsPath cellRoot, String path, ExtensionData extension, long startGeneration) {
+    Pair<AbsPath, String> key = new Pair<>(cellRoot, path);
+    extensions.put(key, extension);
+    // Invalidations bump the generation before removing entries, so either the check below sees
+    // the bump, or the invalidation sees the entry we just added.
+    if (generation.get() != startGeneration) {
+      extensions.remove(key, extension);
+    }
+  }
+
+  /** Drops every extension that is defined in or transitively loads {@code path}. */
+  public void invalidatePath(AbsPath path) {
+    generation.incrementAndGet();
+    if (extensions.isEmpty()) {
+      return;
+    }
+    String changedPath = path.toString();
+    int sizeBefore = extensions.size();
+    extensions
+        .values()
+        .removeIf(extension -> extension.getLoadTransitiveClosure().contains(changedPath));
+    int invalidated = sizeBefore - extensions.size();
+    if (invalidated > 0) {
+      LOG.debug("Invalidated %d Skylark extensions depending on %s", invalidated, changedPath);
+    }
+  }
+
+  /** Drops all extensions loaded by parsers of the cell rooted at {@code cellRoot}. */
+  public void invalidateCell(AbsPath cellRoot) {
+    generation.incrementAndGet();
+    extensions.keySet().removeIf(key -> key.getFirst().equals(cellRoot));
+  }
+
+  /** Drops all extensions. */
+  public void invalidateAll() {
+    generation.incrementAndGet();
+    extensions.clear();
+  }
+
+  public int size() {
+    return extensions.size();
+  }
+}
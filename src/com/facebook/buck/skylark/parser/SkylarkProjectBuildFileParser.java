@@ -71,8 +71,9 @@ public class SkylarkProjectBuildFileParser extends AbstractSkylarkFileParser<Bui
       FileSystem fileSystem,
       BuckGlobals buckGlobals,
       EventHandler eventHandler,
-      GlobberFactory globberFactory) {
-    super(options, fileSystem, buckGlobals, eventHandler);
+      GlobberFactory globberFactory,
+      Optional<SkylarkExtensionCache> sharedExtensionCache) {
+    super(options, fileSystem, buckGlobals, eventHandler, sharedExtensionCache);
     this.buckEventBus = buckEventBus;
     this.globberFactory = globberFactory;
   }
@@ -85,8 +86,36 @@ public class SkylarkProjectBuildFileParser extends AbstractSkylarkFileParser<Bui
       BuckGlobals buckGlobals,
       EventHandler eventHandler,
       GlobberFactory globberFactory) {
+    return using(
+        options,
+        buckEventBus,
+        fileSystem,
+        buckGlobals,
+        eventHandler,
+        globberFactory,
+        Optional.empty());
+  }
+
+  /**
+   * Create an instance of Skylark project build file parser using provided options, which reuses
+   * extensions evaluated by other parsers sharing {@code sharedExtensionCache}.
+   */
+  public static SkylarkProjectBuildFileParser using(
+      ProjectBuildFileParserOptions options,
+      BuckEventBus buckEventBus,
+      FileSystem fileSystem,
+      BuckGlobals buckGlobals,
+      EventHandler eventHandler,
+      GlobberFactory globberFactory,
+      Optional<SkylarkExtensionCache> sharedExtensionCache) {
     return new SkylarkProjectBuildFileParser(
-        options, buckEventBus, fileSystem, buckGlobals, eventHandler, globberFactory);
+        options,
+        buckEventBus,
+        fileSystem,
+        buckGlobals,
+        eventHandler,
+        globberFactory,
+        sharedExtensionCache);
   }
 
   @VisibleForTesting
@@ -97,7 +126,8 @@ public class SkylarkProjectBuildFileParser extends AbstractSkylarkFileParser<Bui
         other.fileSystem,
         other.buckGlobals,
         other.eventHandler,
-        other.globberFactory);
+        other.globberFactory,
+        other.sharedExtensionCache);
   }
 
   @Override
@@ -16,6 +16,7 @@
 
 package com.facebook.buck.support.state;
 
+import com.facebook.buck.artifact_cache.MemoryArtifactStore;
 import com.facebook.buck.core.cell.Cell;
 import com.facebook.buck.core.files.DirectoryListCache;
 import com.facebook.buck.core.files.FileTreeCache;
@@ -31,6 +32,7 @@ import com.facebook.buck.io.watchman.Watchman;
 import com.facebook.buck.io.watchman.WatchmanCursor;
 import com.facebook.buck.io.watchman.WatchmanWatcher;
 import com.facebook.buck.parser.DaemonicParserState;
+import com.facebook.buck.parser.TargetDependencyIndex;
 import com.facebook.buck.parser.manifest.BuildFileManifestCache;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
 import com.facebook.buck.rules.keys.RuleKeyCacheRecycler;
@@ -46,8 +48,11 @@ import com.google.common.eventbus.EventBus;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * {@link BuckGlobalState} contains all the global state of Buck which is kept between invocations
@@ -68,6 +73,7 @@ public final class BuckGlobalState implements Closeable {
   private final TypeCoercerFactory typeCoercerFactory;
   private final DaemonicParserState daemonicParserState;
   private final ImmutableList<ProjectFileHashCache> hashCaches;
+  private final ExecutorService fileHashPrefetchExecutor;
   private final LoadingCache<Path, DirectoryListCache> directoryListCachePerRoot;
   private final LoadingCache<Path, BuildFileManifestCache> buildFileManifestCachePerRoot;
   private final LoadingCache<Path, FileTreeCache> fileTreeCachePerRoot;
@@ -76,18 +82,23 @@ public final class BuckGlobalState implements Closeable {
   private final ConcurrentMap<String, WorkerProcessPool> persistentWorkerPools;
   private final VersionedTargetGraphCache versionedTargetGraphCache;
   private final ActionGraphCache actionGraphCache;
+  private final MemoryArtifactStore memoryArtifactStore;
   private final RuleKeyCacheRecycler<RuleKey> defaultRuleKeyFactoryCacheRecycler;
   private final ImmutableMap<AbsPath, WatchmanCursor> cursor;
   private final KnownRuleTypesProvider knownRuleTypesProvider;
   private final Clock clock;
   private final long startTime;
   private final boolean usesWatchman;
+  private final boolean persistFileHashCaches;
+  private final boolean persistTargetDependencyIndex;
+  private final AtomicBoolean snapshotsRestored;
 
   BuckGlobalState(
       Cell rootCell,
       TypeCoercerFactory typeCoercerFactory,
       DaemonicParserState daemonicParserState,
       ImmutableList<ProjectFileHashCache> hashCaches,
+      ExecutorService fileHashPrefetchExecutor,
       LoadingCache<Path, DirectoryListCache> directoryListCachePerRoot,
       LoadingCache<Path, FileTreeCache> fileTreeCachePerRoot,
       LoadingCache<Path, BuildFileManifestCache> buildFileManifestCachePerRoot,
@@ -96,15 +107,20 @@ public final class BuckGlobalState implements Closeable {
       ConcurrentMap<String, WorkerProcessPool> persistentWorkerPools,
       VersionedTargetGraphCache versionedTargetGraphCache,
       ActionGraphCache actionGraphCache,
+      MemoryArtifactStore memoryArtifactStore,
       RuleKeyCacheRecycler<RuleKey> defaultRuleKeyFactoryCacheRecycler,
       ImmutableMap<AbsPath, WatchmanCursor> cursor,
       KnownRuleTypesProvider knownRuleTypesProvider,
       Clock clock,
-      boolean usesWatchman) {
+      boolean usesWatchman,
+      boolean persistFileHashCaches,
+      boolean persistTargetDependencyIndex,
+      boolean snapshotsRestored) {
     this.rootCell = rootCell;
     this.typeCoercerFactory = typeCoercerFactory;
     this.daemonicParserState = daemonicParserState;
     this.hashCaches = hashCaches;
+    this.fileHashPrefetchExecutor = fileHashPrefetchExecutor;
     this.directoryListCachePerRoot = directoryListCachePerRoot;
     this.fileTreeCachePerRoot = fileTreeCachePerRoot;
     this.buildFileManifestCachePerRoot = buildFileManifestCachePerRoot;
@@ -113,11 +129,15 @@ public final class BuckGlobalState implements Closeable {
     this.persistentWorkerPools = persistentWorkerPools;
     this.versionedTargetGraphCache = versionedTargetGraphCache;
     this.actionGraphCache = actionGraphCache;
+    this.memoryArtifactStore = memoryArtifactStore;
     this.defaultRuleKeyFactoryCacheRecycler = defaultRuleKeyFactoryCacheRecycler;
     this.cursor = cursor;
     this.knownRuleTypesProvider = knownRuleTypesProvider;
     this.clock = clock;
     this.usesWatchman = usesWatchman;
+    this.persistFileHashCaches = persistFileHashCaches;
+    this.persistTargetDependencyIndex = persistTargetDependencyIndex;
+    this.snapshotsRestored = new AtomicBoolean(snapshotsRestored);
 
     this.startTime = clock.currentTimeMillis();
   }
@@ -142,6 +162,11 @@ public final class BuckGlobalState implements Closeable {
     return actionGraphCache;
   }
 
+  /** Return the small artifacts kept in memory for the {@code memory} artifact cache mode. */
+  public MemoryArtifactStore getMemoryArtifactStore() {
+    return memoryArtifactStore;
+  }
+
   public ImmutableList<ProjectFileHashCache> getFileHashCaches() {
     return hashCaches;
   }
@@ -214,7 +239,13 @@ public final class BuckGlobalState implements Closeable {
       // TODO(sergeyb): replace with one single invalidation event containing all changes
       fileEventBus.post(started);
       try {
-        watchmanWatcher.postEvents(eventBus, watchmanFreshInstanceAction);
+        // State restored from a snapshot is only valid if watchman still knows the clock it was
+        // taken at; if it does not, the restored caches have to be dropped.
+        watchmanWatcher.postEvents(
+            eventBus,
+            snapshotsRestored.getAndSet(false)
+                ? WatchmanWatcher.FreshInstanceAction.POST_OVERFLOW_EVENT
+                : watchmanFreshInstanceAction);
       } finally {
         FileHashCacheEvent.InvalidationFinished finished =
             FileHashCacheEvent.invalidationFinished(started);
@@ -248,6 +279,50 @@ public final class BuckGlobalState implements Closeable {
   public void close() {
     shutdownPersistentWorkerPools();
     shutdownWebServer();
+    fileHashPrefetchExecutor.shutdownNow();
+    if (persistFileHashCaches) {
+      writeFileHashCacheSnapshots();
+    }
+    if (persistTargetDependencyIndex) {
+      writeTargetDependencyIndexSnapshot();
+    }
+  }
+
+  private void writeTargetDependencyIndexSnapshot() {
+    // Named cursors cannot be resumed by a different process, so only cells with clocks are saved.
+    ImmutableMap.Builder<AbsPath, String> clocks = ImmutableMap.builder();
+    for (Map.Entry<AbsPath, WatchmanCursor> entry : cursor.entrySet()) {
+      if (entry.getValue().get().startsWith("c:")) {
+        clocks.put(entry.getKey(), entry.getValue().get());
+      }
+    }
+    try {
+      daemonicParserState
+          .getDependencyIndex()
+          .writeSnapshot(
+              TargetDependencyIndex.getSnapshotPath(rootCell.getFilesystem()), clocks.build());
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to write target dependency index snapshot");
+    }
+  }
+
+  private void writeFileHashCacheSnapshots() {
+    for (ProjectFileHashCache hashCache : hashCaches) {
+      if (!(hashCache instanceof WatchedFileHashCache)) {
+        continue;
+      }
+      WatchedFileHashCache cache = (WatchedFileHashCache) hashCache;
+      WatchmanCursor cellCursor = cursor.get(cache.getFilesystem().getRootPath());
+      // Named cursors cannot be resumed by a different process, so there is nothing to save.
+      if (cellCursor == null || !cellCursor.get().startsWith("c:")) {
+        continue;
+      }
+      try {
+        cache.writeSnapshot(cache.getSnapshotPath(), cellCursor.get());
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to write file hash cache snapshot for %s", cache.getFilesystem());
+      }
+    }
   }
 
   private void shutdownPersistentWorkerPools() {
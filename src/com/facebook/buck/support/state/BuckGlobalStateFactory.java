@@ -18,6 +18,7 @@ package com.facebook.buck.support.state;
 
 import com.facebook.buck.artifact_cache.ArtifactCache;
 import com.facebook.buck.artifact_cache.ArtifactCaches;
+import com.facebook.buck.artifact_cache.MemoryArtifactStore;
 import com.facebook.buck.artifact_cache.config.ArtifactCacheBuckConfig;
 import com.facebook.buck.command.config.BuildBuckConfig;
 import com.facebook.buck.core.cell.Cell;
@@ -40,6 +41,7 @@ import com.facebook.buck.io.watchman.WatchmanCursor;
 import com.facebook.buck.io.watchman.WatchmanFactory;
 import com.facebook.buck.io.watchman.WatchmanWatcher;
 import com.facebook.buck.parser.DaemonicParserState;
+import com.facebook.buck.parser.TargetDependencyIndex;
 import com.facebook.buck.parser.config.ParserConfig;
 import com.facebook.buck.parser.manifest.BuildFileManifestCache;
 import com.facebook.buck.rules.coercer.DefaultTypeCoercerFactory;
@@ -49,6 +51,7 @@ import com.facebook.buck.rules.keys.RuleKeyCacheRecycler;
 import com.facebook.buck.util.cache.ProjectFileHashCache;
 import com.facebook.buck.util.cache.impl.DefaultFileHashCache;
 import com.facebook.buck.util.cache.impl.WatchedFileHashCache;
+import com.facebook.buck.util.concurrent.MostExecutors;
 import com.facebook.buck.util.stream.RichStream;
 import com.facebook.buck.util.timing.Clock;
 import com.facebook.buck.versions.VersionedTargetGraphCache;
@@ -58,12 +61,19 @@ import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
 import com.google.common.eventbus.EventBus;
+import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Map;
 import java.util.Optional;
 import java.util.OptionalInt;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /** Factory for {@link BuckGlobalState}. */
 public class BuckGlobalStateFactory {
@@ -85,18 +95,37 @@ public class BuckGlobalStateFactory {
     BuildBuckConfig buildBuckConfig =
         rootCell.getRootCell().getBuckConfig().getView(BuildBuckConfig.class);
 
-    // Setup the stacked file hash cache from all cells.
+    // Setup the stacked file hash cache from all cells. The caches share one prefetch pool, which
+    // lives as long as they do. Its queue is bounded: a dropped prefetch only means the file is
+    // hashed on the thread hashing its directory instead.
+    int prefetchThreads = Runtime.getRuntime().availableProcessors();
+    ExecutorService fileHashPrefetchExecutor =
+        new ThreadPoolExecutor(
+            /* corePoolSize */ prefetchThreads,
+            /* maximumPoolSize */ prefetchThreads,
+            /* keepAliveTime */ 0L,
+            TimeUnit.MILLISECONDS,
+            /* workQueue */ new ArrayBlockingQueue<>(4 * prefetchThreads),
+            /* threadFactory */ new MostExecutors.NamedThreadFactory("file-hash-prefetch"),
+            /* handler */ new ThreadPoolExecutor.DiscardPolicy());
     ImmutableList.Builder<ProjectFileHashCache> hashCachesBuilder =
         ImmutableList.builderWithExpectedSize(allCells.size() + 1);
+    ImmutableList.Builder<WatchedFileHashCache> watchedCachesBuilder = ImmutableList.builder();
     for (Cell subCell : allCells) {
       WatchedFileHashCache watchedCache =
-          new WatchedFileHashCache(subCell.getFilesystem(), buildBuckConfig.getFileHashCacheMode());
+          new WatchedFileHashCache(
+              subCell.getFilesystem(),
+              buildBuckConfig.getFileHashCacheMode(),
+              Optional.of(fileHashPrefetchExecutor));
       fileEventBus.register(watchedCache);
       hashCachesBuilder.add(watchedCache);
+      watchedCachesBuilder.add(watchedCache);
     }
     hashCachesBuilder.add(
         DefaultFileHashCache.createBuckOutFileHashCache(
-            rootCell.getRootCell().getFilesystem(), buildBuckConfig.getFileHashCacheMode()));
+            rootCell.getRootCell().getFilesystem(),
+            buildBuckConfig.getFileHashCacheMode(),
+            Optional.of(fileHashPrefetchExecutor)));
     ImmutableList<ProjectFileHashCache> hashCaches = hashCachesBuilder.build();
 
     // Setup file list cache and file tree cache from all cells
@@ -110,6 +139,8 @@ public class BuckGlobalStateFactory {
     ActionGraphCache actionGraphCache =
         new ActionGraphCache(buildBuckConfig.getMaxActionGraphCacheEntries());
     VersionedTargetGraphCache versionedTargetGraphCache = new VersionedTargetGraphCache();
+    MemoryArtifactStore memoryArtifactStore =
+        MemoryArtifactStore.of(new ArtifactCacheBuckConfig(rootCell.getRootCell().getBuckConfig()));
 
     TypeCoercerFactory typeCoercerFactory = new DefaultTypeCoercerFactory();
     ParserConfig parserConfig = rootCell.getRootCell().getBuckConfig().getView(ParserConfig.class);
@@ -157,6 +188,15 @@ public class BuckGlobalStateFactory {
       cursor = watchman.buildNamedWatchmanCursorMap();
     }
     LOG.debug("Using Watchman Cursor: %s", cursor);
+    ImmutableMap<AbsPath, String> initialCursor =
+        ImmutableMap.copyOf(Maps.transformValues(cursor, WatchmanCursor::get));
+    boolean fileHashCachesRestored =
+        buildBuckConfig.shouldPersistFileHashCaches()
+            && restoreFileHashCaches(watchedCachesBuilder.build(), cursor);
+    boolean targetDependencyIndexRestored =
+        parserConfig.shouldPersistTargetDependencyIndex()
+            && restoreTargetDependencyIndex(
+                daemonicParserState.getDependencyIndex(), rootCell, cursor, initialCursor);
     ConcurrentMap<String, WorkerProcessPool> persistentWorkerPools = new ConcurrentHashMap<>();
 
     return new BuckGlobalState(
@@ -164,6 +204,7 @@ public class BuckGlobalStateFactory {
         typeCoercerFactory,
         daemonicParserState,
         hashCaches,
+        fileHashPrefetchExecutor,
         directoryListCachePerRoot,
         fileTreeCachePerRoot,
         buildFileManifestCachePerRoot,
@@ -172,11 +213,97 @@ public class BuckGlobalStateFactory {
         persistentWorkerPools,
         versionedTargetGraphCache,
         actionGraphCache,
+        memoryArtifactStore,
         defaultRuleKeyFactoryCacheRecycler,
         cursor,
         knownRuleTypesProvider,
         clock,
-        watchman != WatchmanFactory.NULL_WATCHMAN);
+        watchman != WatchmanFactory.NULL_WATCHMAN,
+        buildBuckConfig.shouldPersistFileHashCaches(),
+        parserConfig.shouldPersistTargetDependencyIndex(),
+        fileHashCachesRestored || targetDependencyIndexRestored);
+  }
+
+  /**
+   * Restores file hash caches saved by a previous daemon and rewinds each cell's watchman cursor to
+   * the clock of its snapshot, so that the first query reports everything that changed since.
+   * Only clock cursors can be rewound; caches of cells using named cursors start out empty.
+   *
+   * @return whether any cache was restored
+   */
+  private static boolean restoreFileHashCaches(
+      ImmutableList<WatchedFileHashCache> caches, ImmutableMap<AbsPath, WatchmanCursor> cursor) {
+    boolean restored = false;
+    for (WatchedFileHashCache cache : caches) {
+      WatchmanCursor cellCursor = cursor.get(cache.getFilesystem().getRootPath());
+      if (cellCursor == null || !cellCursor.get().startsWith("c:")) {
+        continue;
+      }
+      try {
+        Optional<String> clock = cache.restoreSnapshot(cache.getSnapshotPath());
+        if (!clock.isPresent()) {
+          continue;
+        }
+        if (!clock.get().startsWith("c:")) {
+          LOG.debug("Dropping file hash cache snapshot with unusable clock %s", clock.get());
+          cache.invalidateAll();
+          continue;
+        }
+        LOG.info(
+            "Restored file hash cache for %s, rewinding watchman cursor from %s to %s",
+            cache.getFilesystem().getRootPath(), cellCursor.get(), clock.get());
+        cellCursor.set(clock.get());
+        restored = true;
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to restore file hash cache snapshot for %s", cache.getFilesystem());
+      }
+    }
+    return restored;
+  }
+
+  /**
+   * Restores the target dependency index saved by a previous daemon and rewinds the watchman cursor
+   * of every restored cell to the clock of the snapshot, like {@link #restoreFileHashCaches}. Cells
+   * whose cursor cannot be rewound, or was already rewound to a different clock for the file hash
+   * caches, are dropped from the index again.
+   *
+   * @return whether the packages of any cell were restored
+   */
+  private static boolean restoreTargetDependencyIndex(
+      TargetDependencyIndex index,
+      Cells cells,
+      ImmutableMap<AbsPath, WatchmanCursor> cursor,
+      ImmutableMap<AbsPath, String> initialCursor) {
+    ImmutableMap<AbsPath, String> clocks;
+    try {
+      clocks =
+          index.restoreSnapshot(
+              TargetDependencyIndex.getSnapshotPath(cells.getRootCell().getFilesystem()),
+              cells.getAllCells());
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to restore target dependency index snapshot");
+      return false;
+    }
+    boolean restored = false;
+    for (Map.Entry<AbsPath, String> entry : clocks.entrySet()) {
+      WatchmanCursor cellCursor = cursor.get(entry.getKey());
+      String clock = entry.getValue();
+      if (cellCursor == null
+          || !cellCursor.get().startsWith("c:")
+          || !clock.startsWith("c:")
+          || !(cellCursor.get().equals(initialCursor.get(entry.getKey()))
+              || cellCursor.get().equals(clock))) {
+        LOG.debug("Dropping restored target dependency index entries of %s", entry.getKey());
+        index.invalidateCell(entry.getKey());
+        continue;
+      }
+      LOG.info(
+          "Restored target dependency index for %s, rewinding watchman cursor from %s to %s",
+          entry.getKey(), cellCursor.get(), clock);
+      cellCursor.set(clock);
+      restored = true;
+    }
+    return restored;
   }
 
   /** Create a number of instances of {@link DirectoryListCache}, one per each cell */
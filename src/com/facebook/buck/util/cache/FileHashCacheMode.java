@@ -22,6 +22,7 @@ public enum FileHashCacheMode {
   PREFIX_TREE,
   LIMITED_PREFIX_TREE,
   LIMITED_PREFIX_TREE_PARALLEL,
-  PARALLEL_COMPARISON;
+  PARALLEL_COMPARISON,
+  OFF_HEAP;
   public static final FileHashCacheMode DEFAULT = PREFIX_TREE;
 }
@@ -20,6 +20,7 @@ import com.facebook.buck.core.cell.name.CanonicalCellName;
 import com.facebook.buck.core.filesystems.AbsPath;
 import com.facebook.buck.core.filesystems.RelPath;
 import com.facebook.buck.core.io.ArchiveMemberPath;
+import com.facebook.buck.core.util.log.Logger;
 import com.facebook.buck.event.AbstractBuckEvent;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.io.filesystem.ProjectFilesystemFactory;
@@ -32,10 +33,14 @@ import com.facebook.buck.util.cache.ProjectFileHashCache;
 import com.facebook.buck.util.hashing.PathHashing;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
@@ -44,16 +49,29 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
 
 public class DefaultFileHashCache implements ProjectFileHashCache {
 
+  private static final Logger LOG = Logger.get(DefaultFileHashCache.class);
+
   private static final boolean SHOULD_CHECK_IGNORED_PATHS =
       Boolean.getBoolean("buck.DefaultFileHashCache.check_ignored_paths");
 
+  /** Upper bound on the tasks queued to hash the files of a single directory in parallel. */
+  private static final int MAX_PREFETCH_TASKS_PER_DIRECTORY =
+      Runtime.getRuntime().availableProcessors();
+
   private final ProjectFilesystem projectFilesystem;
   private final Predicate<Path> ignoredPredicate;
+  private final Optional<Executor> prefetchExecutor;
 
   @VisibleForTesting FileHashCacheEngine fileHashCacheEngine;
 
@@ -61,16 +79,30 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
       ProjectFilesystem projectFilesystem,
       Predicate<Path> ignoredPredicate,
       FileHashCacheMode fileHashCacheMode) {
+    this(projectFilesystem, ignoredPredicate, fileHashCacheMode, Optional.empty());
+  }
+
+  /**
+   * @param prefetchExecutor if present, used to hash the files of a directory in parallel when the
+   *     hash of the directory is computed.
+   */
+  protected DefaultFileHashCache(
+      ProjectFilesystem projectFilesystem,
+      Predicate<Path> ignoredPredicate,
+      FileHashCacheMode fileHashCacheMode,
+      Optional<Executor> prefetchExecutor) {
     this.projectFilesystem = projectFilesystem;
     this.ignoredPredicate = ignoredPredicate;
+    this.prefetchExecutor = prefetchExecutor;
     FileHashCacheEngine.ValueLoader<HashCodeAndFileType> hashLoader =
-        path -> {
-          try {
-            return getHashCodeAndFileType(path);
-          } catch (IOException e) {
-            throw new RuntimeException(e);
-          }
-        };
+        deduplicated(
+            path -> {
+              try {
+                return getHashCodeAndFileType(path);
+              } catch (IOException e) {
+                throw new RuntimeException(e);
+              }
+            });
 
     FileHashCacheEngine.ValueLoader<Long> sizeLoader =
         path -> {
@@ -82,13 +114,14 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
         };
 
     FileHashCacheEngine.ValueLoader<HashCode> fileHashLoader =
-        (path) -> {
-          try {
-            return getFileHashCode(path);
-          } catch (IOException e) {
-            throw new RuntimeException(e);
-          }
-        };
+        deduplicated(
+            (path) -> {
+              try {
+                return getFileHashCode(path);
+              } catch (IOException e) {
+                throw new RuntimeException(e);
+              }
+            });
 
     FileHashCacheEngine.ValueLoader<HashCodeAndFileType> dirHashLoader =
         (path) -> {
@@ -125,6 +158,9 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
                         projectFilesystem, fileHashLoader, dirHashLoader, sizeLoader),
                     "limited"));
         break;
+      case OFF_HEAP:
+        fileHashCacheEngine = OffHeapFileHashCacheEngine.createWithStats(hashLoader, sizeLoader);
+        break;
       default:
         throw new RuntimeException("Unsupported file hash cache engine: " + fileHashCacheMode);
     }
@@ -132,10 +168,18 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
 
   public static DefaultFileHashCache createBuckOutFileHashCache(
       ProjectFilesystem projectFilesystem, FileHashCacheMode fileHashCacheMode) {
+    return createBuckOutFileHashCache(projectFilesystem, fileHashCacheMode, Optional.empty());
+  }
+
+  public static DefaultFileHashCache createBuckOutFileHashCache(
+      ProjectFilesystem projectFilesystem,
+      FileHashCacheMode fileHashCacheMode,
+      Optional<Executor> prefetchExecutor) {
     return new DefaultFileHashCache(
         projectFilesystem.createBuckOutProjectFilesystem(),
         (path) -> !isInBuckOut(projectFilesystem, path),
-        fileHashCacheMode);
+        fileHashCacheMode,
+        prefetchExecutor);
   }
 
   public static DefaultFileHashCache createDefaultFileHashCache(
@@ -225,10 +269,124 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
 
   private HashCodeAndFileType getDirHashCode(Path path) throws IOException {
     Hasher hasher = Hashing.sha1().newHasher();
-    PathHashing.hashPath(hasher, this, projectFilesystem, path);
+    ImmutableSet<Path> files = projectFilesystem.getFilesUnderPath(path);
+    try (FilePrefetch ignored = prefetchFileHashes(files)) {
+      PathHashing.hashPath(hasher, this, path, files);
+    }
     return HashCodeAndFileType.ofDirectory(hasher.hash());
   }
 
+  /**
+   * Starts hashing the uncached files among {@code files} on the prefetch executor, if any. The
+   * directory hash itself is still computed in order on the calling thread, which picks up
+   * finished hashes from the cache and joins the ones still in flight.
+   */
+  private FilePrefetch prefetchFileHashes(ImmutableSet<Path> files) {
+    FilePrefetch prefetch = new FilePrefetch();
+    if (!prefetchExecutor.isPresent() || files.size() < 2) {
+      return prefetch;
+    }
+    for (Path file : files) {
+      if (fileHashCacheEngine.getIfPresent(file) == null && !isIgnored(file)) {
+        prefetch.pending.add(file);
+      }
+    }
+    int tasks = Math.min(prefetch.pending.size(), MAX_PREFETCH_TASKS_PER_DIRECTORY);
+    try {
+      for (int i = 0; i < tasks; i++) {
+        prefetchExecutor.get().execute(prefetch::drain);
+      }
+    } catch (RejectedExecutionException e) {
+      LOG.verbose(e, "File hash prefetch executor is shut down");
+    }
+    return prefetch;
+  }
+
+  /**
+   * Files of a directory whose hashes are computed by a bounded number of tasks on the prefetch
+   * executor. Closing it drops the files that have not been started and waits for the ones being
+   * hashed, so that no prefetch touches the cache after the directory hash has been computed, when
+   * it could race with an invalidation.
+   */
+  private class FilePrefetch implements AutoCloseable {
+    private final ConcurrentLinkedQueue<Path> pending = new ConcurrentLinkedQueue<>();
+    private boolean closed = false;
+    private int running = 0;
+
+    private void drain() {
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        running++;
+      }
+      try {
+        Path file;
+        while ((file = pending.poll()) != null) {
+          try {
+            get(file);
+          } catch (IOException | RuntimeException e) {
+            // The directory hash will request this file again and report the failure.
+            LOG.verbose(e, "Failed to prefetch hash of %s", file);
+          }
+        }
+      } finally {
+        synchronized (this) {
+          running--;
+          notifyAll();
+        }
+      }
+    }
+
+    @Override
+    public synchronized void close() {
+      closed = true;
+      pending.clear();
+      boolean interrupted = false;
+      while (running > 0) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Wraps {@code loader} so that concurrent loads of the same path share a single computation,
+   * whichever cache engine is in use.
+   */
+  private static <T> FileHashCacheEngine.ValueLoader<T> deduplicated(
+      FileHashCacheEngine.ValueLoader<T> loader) {
+    ConcurrentMap<Path, SettableFuture<T>> inflight = new ConcurrentHashMap<>();
+    return path -> {
+      SettableFuture<T> future = SettableFuture.create();
+      SettableFuture<T> existing = inflight.putIfAbsent(path, future);
+      if (existing != null) {
+        try {
+          return Uninterruptibles.getUninterruptibly(existing);
+        } catch (ExecutionException e) {
+          Throwables.throwIfUnchecked(e.getCause());
+          throw new RuntimeException(e.getCause());
+        }
+      }
+      try {
+        T value = loader.load(path);
+        future.set(value);
+        return value;
+      } catch (RuntimeException | Error e) {
+        future.setException(e);
+        throw e;
+      } finally {
+        inflight.remove(path, future);
+      }
+    };
+  }
+
   @Override
   public boolean willGet(Path relativePath) {
     Preconditions.checkState(!relativePath.isAbsolute());
@@ -24,14 +24,20 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.hash.HashCode;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.Map;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarInputStream;
 import java.util.jar.Manifest;
+import javax.annotation.Nullable;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 
 class DefaultJarContentHasher implements JarContentHasher {
 
@@ -51,19 +57,7 @@ class DefaultJarContentHasher implements JarContentHasher {
 
   @Override
   public ImmutableMap<Path, HashCodeAndFileType> getContentHashes() throws IOException {
-    Manifest manifest = null;
-    try (JarInputStream inputStream =
-        new JarInputStream(filesystem.newFileInputStream(jarRelativePath))) {
-      JarEntry entry = inputStream.getNextJarEntry();
-      while (entry != null) {
-        if (JarFile.MANIFEST_NAME.equalsIgnoreCase(entry.getName())) {
-          manifest = new Manifest();
-          manifest.read(inputStream);
-          break;
-        }
-        entry = inputStream.getNextJarEntry();
-      }
-    }
+    Manifest manifest = readManifest();
     if (manifest == null) {
       throw new UnsupportedOperationException(
           "Cache does not know how to return hash codes for archive members except "
@@ -89,4 +83,44 @@ class DefaultJarContentHasher implements JarContentHasher {
 
     return builder.build();
   }
+
+  @Nullable
+  private Manifest readManifest() throws IOException {
+    Path jarPath = filesystem.resolve(jarRelativePath);
+    if (Files.isRegularFile(jarPath)) {
+      // CustomJarOutputStream writes the manifest last, so look it up through the central
+      // directory rather than inflating every entry of a large jar to reach it. This does not go
+      // through java.util.zip.ZipFile, whose cache of open archives can serve stale contents.
+      try (ZipFile zipFile = new ZipFile(Files.newByteChannel(jarPath))) {
+        ZipArchiveEntry manifestEntry = zipFile.getEntry(JarFile.MANIFEST_NAME);
+        if (manifestEntry == null) {
+          manifestEntry =
+              Collections.list(zipFile.getEntries()).stream()
+                  .filter(entry -> JarFile.MANIFEST_NAME.equalsIgnoreCase(entry.getName()))
+                  .findFirst()
+                  .orElse(null);
+        }
+        if (manifestEntry == null) {
+          return null;
+        }
+        try (InputStream inputStream = zipFile.getInputStream(manifestEntry)) {
+          return new Manifest(inputStream);
+        }
+      }
+    }
+
+    try (JarInputStream inputStream =
+        new JarInputStream(filesystem.newFileInputStream(jarRelativePath))) {
+      JarEntry entry = inputStream.getNextJarEntry();
+      while (entry != null) {
+        if (JarFile.MANIFEST_NAME.equalsIgnoreCase(entry.getName())) {
+          Manifest manifest = new Manifest();
+          manifest.read(inputStream);
+          return manifest;
+        }
+        entry = inputStream.getNextJarEntry();
+      }
+    }
+    return null;
+  }
 }
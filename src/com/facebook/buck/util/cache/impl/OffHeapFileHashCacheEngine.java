@@ -0,0 +1,973 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.util.cache.impl;
+
+import com.facebook.buck.event.AbstractBuckEvent;
+import com.facebook.buck.util.cache.FileHashCacheEngine;
+import com.facebook.buck.util.cache.HashCodeAndFileType;
+import com.facebook.buck.util.cache.JarHashCodeAndFileType;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.IntConsumer;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * {@link FileHashCacheEngine} that keeps SHA-1 hashes and sizes in off-heap open-addressing tables
+ * keyed by interned path ids, rather than in a map of {@link Path} to {@link HashCodeAndFileType}
+ * objects. Paths are interned as UTF-8 bytes in off-heap buffers as well, so for repositories with
+ * millions of files this removes most of the per-entry objects from the daemon heap, which
+ * otherwise dominate GC pause times.
+ *
+ * <p>Like the segments of a {@link com.google.common.cache.LoadingCache}, entries are spread over
+ * independently locked segments by path hash, so that build threads hashing different files do not
+ * contend on one lock. Each segment interns the ancestors of its paths too, which lets it
+ * invalidate a subtree on its own.
+ *
+ * <p>Values are loaded outside of the locks. A miss reserves the slot of the path with a new
+ * generation before loading, and the loaded value is only stored if the slot still has that
+ * generation, so a load that raced with an invalidation or a newer {@link #put} is not cached.
+ *
+ * <p>Values that do not fit the fixed-width layout (hashes other than SHA-1, and archives, which
+ * carry their member hashes) are kept in small on-heap side maps. Invalidation follows {@link
+ * FileSystemMapFileHashCache}: invalidating a path drops it and everything below it, and
+ * invalidating with parents additionally drops the values of all of its ancestors.
+ */
+class OffHeapFileHashCacheEngine implements FileHashCacheEngine {
+
+  private static final int SHA1_BYTES = 20;
+  private static final int SEGMENT_COUNT = 16;
+
+  private final ValueLoader<HashCodeAndFileType> hashLoader;
+  private final ValueLoader<Long> sizeLoader;
+  private final Segment[] segments;
+
+  @VisibleForTesting
+  OffHeapFileHashCacheEngine(
+      ValueLoader<HashCodeAndFileType> hashLoader, ValueLoader<Long> sizeLoader) {
+    this.hashLoader = hashLoader;
+    this.sizeLoader = sizeLoader;
+    this.segments = new Segment[SEGMENT_COUNT];
+    for (int i = 0; i < SEGMENT_COUNT; i++) {
+      segments[i] = new Segment();
+    }
+  }
+
+  public static FileHashCacheEngine createWithStats(
+      ValueLoader<HashCodeAndFileType> hashLoader, ValueLoader<Long> sizeLoader) {
+    return new StatsTrackingFileHashCacheEngine(
+        new OffHeapFileHashCacheEngine(hashLoader, sizeLoader), "offheap");
+  }
+
+  @Override
+  public void put(Path path, HashCodeAndFileType value) {
+    PathKey key = new PathKey(path);
+    segmentFor(key).putHash(key, value);
+  }
+
+  @Override
+  public void putSize(Path path, long value) {
+    PathKey key = new PathKey(path);
+    segmentFor(key).putSize(key, value);
+  }
+
+  @Override
+  public void invalidate(Path path) {
+    PathKey key = new PathKey(path);
+    for (Segment segment : segments) {
+      segment.invalidate(key);
+    }
+  }
+
+  @Override
+  public void invalidateWithParents(Path path) {
+    List<PathKey> pathAndAncestors = new ArrayList<>();
+    for (Path current = path; current != null; current = current.getParent()) {
+      pathAndAncestors.add(new PathKey(current));
+    }
+    for (Segment segment : segments) {
+      segment.invalidateWithParents(pathAndAncestors);
+    }
+  }
+
+  @Override
+  public HashCode get(Path path) throws IOException {
+    return getOrLoad(path.normalize()).getHashCode();
+  }
+
+  @Override
+  public HashCode getForArchiveMember(Path archiveRelativePath, Path memberPath)
+      throws IOException {
+    JarHashCodeAndFileType fileHashCodeAndFileType =
+        (JarHashCodeAndFileType) getOrLoad(archiveRelativePath.normalize());
+    HashCodeAndFileType memberHashCodeAndFileType =
+        fileHashCodeAndFileType.getContents().get(memberPath);
+    if (memberHashCodeAndFileType == null) {
+      throw new NoSuchFileException(archiveRelativePath.toString());
+    }
+    return memberHashCodeAndFileType.getHashCode();
+  }
+
+  @Override
+  public long getSize(Path relativePath) {
+    Path path = relativePath.normalize();
+    PathKey key = new PathKey(path);
+    Segment segment = segmentFor(key);
+    Long size = segment.getSize(key);
+    if (size != null) {
+      return size;
+    }
+    long generation = segment.reserve(key);
+    long loaded;
+    try {
+      // Load outside of the lock: hashing a directory recursively queries its children.
+      loaded = sizeLoader.load(path);
+    } catch (RuntimeException e) {
+      segment.cancelReservation(key, generation);
+      throw e;
+    }
+    segment.putSizeIfCurrent(key, loaded, generation);
+    return loaded;
+  }
+
+  @Override
+  @Nullable
+  public HashCodeAndFileType getIfPresent(Path path) {
+    PathKey key = new PathKey(path);
+    return segmentFor(key).getHash(key);
+  }
+
+  @Override
+  @Nullable
+  public Long getSizeIfPresent(Path path) {
+    PathKey key = new PathKey(path);
+    return segmentFor(key).getSize(key);
+  }
+
+  @Override
+  public void invalidateAll() {
+    for (Segment segment : segments) {
+      segment.clear();
+    }
+  }
+
+  @Override
+  public ConcurrentMap<Path, HashCodeAndFileType> asMap() {
+    ConcurrentMap<Path, HashCodeAndFileType> map = new ConcurrentHashMap<>();
+    for (Segment segment : segments) {
+      segment.addHashesTo(map);
+    }
+    return map;
+  }
+
+  @Override
+  public List<AbstractBuckEvent> getStatsEvents() {
+    return Collections.emptyList();
+  }
+
+  /** @return the number of ids currently handed out to paths, summed over all segments. */
+  @VisibleForTesting
+  int getInternedPathCount() {
+    int count = 0;
+    for (Segment segment : segments) {
+      count += segment.getInternedPathCount();
+    }
+    return count;
+  }
+
+  /** @return the number of bytes currently reserved off-heap for cache entries and paths. */
+  @VisibleForTesting
+  long getOffHeapBytes() {
+    long bytes = 0;
+    for (Segment segment : segments) {
+      bytes += segment.getOffHeapBytes();
+    }
+    return bytes;
+  }
+
+  private Segment segmentFor(PathKey key) {
+    // The interners index by the low bits of the hash, so pick segments by the high ones.
+    return segments[(key.hash >>> 16) & (SEGMENT_COUNT - 1)];
+  }
+
+  private HashCodeAndFileType getOrLoad(Path path) {
+    PathKey key = new PathKey(path);
+    Segment segment = segmentFor(key);
+    HashCodeAndFileType value = segment.getHash(key);
+    if (value != null) {
+      return value;
+    }
+    long generation = segment.reserve(key);
+    HashCodeAndFileType loaded;
+    try {
+      // Load outside of the lock: hashing a directory recursively queries its children.
+      loaded = hashLoader.load(path);
+    } catch (RuntimeException e) {
+      segment.cancelReservation(key, generation);
+      throw e;
+    }
+    segment.putHashIfCurrent(key, loaded, generation);
+    return loaded;
+  }
+
+  /** A path together with its UTF-8 encoding and hash, computed once per operation. */
+  private static final class PathKey {
+    private final Path path;
+    private final byte[] bytes;
+    private final int hash;
+
+    private PathKey(Path path) {
+      this.path = path;
+      this.bytes = path.toString().getBytes(StandardCharsets.UTF_8);
+      this.hash = mix(path.hashCode());
+    }
+  }
+
+  /** An independently locked part of the cache, holding the paths whose hash selects it. */
+  private static final class Segment {
+    @GuardedBy("this")
+    private final PathInterner interner = new PathInterner();
+
+    @GuardedBy("this")
+    private final OffHeapTable table = new OffHeapTable();
+
+    @GuardedBy("this")
+    private final Map<Integer, HashCodeAndFileType> onHeapValues = new HashMap<>();
+
+    /** The last generation handed out to a slot. Generations are never reused. */
+    @GuardedBy("this")
+    private long lastGeneration = 0;
+
+    /** The file system paths are recreated on by {@link #addHashesTo}. */
+    @GuardedBy("this")
+    @Nullable
+    private FileSystem fileSystem;
+
+    @Nullable
+    synchronized HashCodeAndFileType getHash(PathKey key) {
+      int id = interner.lookup(key);
+      if (id < 0) {
+        return null;
+      }
+      HashCodeAndFileType onHeap = onHeapValues.get(id);
+      return onHeap != null ? onHeap : table.getHash(id);
+    }
+
+    @Nullable
+    synchronized Long getSize(PathKey key) {
+      int id = interner.lookup(key);
+      return id < 0 ? null : table.getSize(id);
+    }
+
+    /**
+     * Gives the slot of the path a new generation, which makes any load that is in flight for it
+     * stale.
+     *
+     * @return the new generation, to be passed back when storing the loaded value.
+     */
+    synchronized long reserve(PathKey key) {
+      int id = intern(key);
+      long generation = ++lastGeneration;
+      table.setGeneration(id, generation);
+      return generation;
+    }
+
+    /** Drops the slot reserved by a load that failed, if nothing was stored in it since. */
+    synchronized void cancelReservation(PathKey key, long generation) {
+      int id = interner.lookup(key);
+      if (id >= 0
+          && table.getGeneration(id) == generation
+          && table.isEmpty(id)
+          && !onHeapValues.containsKey(id)) {
+        table.remove(id);
+        releaseIfUnused(id);
+      }
+    }
+
+    synchronized void putHash(PathKey key, HashCodeAndFileType value) {
+      int id = intern(key);
+      storeHash(id, value);
+      table.setGeneration(id, ++lastGeneration);
+    }
+
+    synchronized void putHashIfCurrent(PathKey key, HashCodeAndFileType value, long generation) {
+      int id = interner.lookup(key);
+      if (id >= 0 && table.getGeneration(id) == generation) {
+        storeHash(id, value);
+      }
+    }
+
+    synchronized void putSize(PathKey key, long size) {
+      int id = intern(key);
+      table.putSize(id, size);
+      table.setGeneration(id, ++lastGeneration);
+    }
+
+    synchronized void putSizeIfCurrent(PathKey key, long size, long generation) {
+      int id = interner.lookup(key);
+      if (id >= 0 && table.getGeneration(id) == generation) {
+        table.putSize(id, size);
+      }
+    }
+
+    synchronized void invalidate(PathKey key) {
+      int id = interner.lookup(key);
+      if (id < 0) {
+        return;
+      }
+      releaseIfUnused(invalidateSubtree(id));
+    }
+
+    /** @param pathAndAncestors the keys of the invalidated path and of each of its ancestors */
+    synchronized void invalidateWithParents(List<PathKey> pathAndAncestors) {
+      int deepestAncestor = PathInterner.NO_PARENT;
+      int id = interner.lookup(pathAndAncestors.get(0));
+      if (id >= 0) {
+        deepestAncestor = invalidateSubtree(id);
+      } else {
+        for (int i = 1; i < pathAndAncestors.size(); i++) {
+          deepestAncestor = interner.lookup(pathAndAncestors.get(i));
+          if (deepestAncestor >= 0) {
+            break;
+          }
+        }
+      }
+      for (int ancestor = deepestAncestor;
+          ancestor != PathInterner.NO_PARENT;
+          ancestor = interner.getParent(ancestor)) {
+        removeEntry(ancestor);
+      }
+      releaseIfUnused(deepestAncestor);
+    }
+
+    synchronized void clear() {
+      interner.clear();
+      table.clear();
+      onHeapValues.clear();
+    }
+
+    synchronized void addHashesTo(Map<Path, HashCodeAndFileType> map) {
+      if (fileSystem == null) {
+        return;
+      }
+      FileSystem pathFileSystem = fileSystem;
+      table.forEachKey(
+          id -> {
+            HashCodeAndFileType value = table.getHash(id);
+            if (value != null) {
+              map.put(interner.getPath(id, pathFileSystem), value);
+            }
+          });
+      onHeapValues.forEach((id, value) -> map.put(interner.getPath(id, pathFileSystem), value));
+    }
+
+    synchronized int getInternedPathCount() {
+      return interner.size();
+    }
+
+    synchronized long getOffHeapBytes() {
+      return table.getCapacityBytes() + interner.getCapacityBytes();
+    }
+
+    @GuardedBy("this")
+    private int intern(PathKey key) {
+      if (fileSystem == null) {
+        fileSystem = key.path.getFileSystem();
+      }
+      int id = interner.intern(key);
+      table.findOrInsert(id);
+      return id;
+    }
+
+    @GuardedBy("this")
+    private void storeHash(int id, HashCodeAndFileType value) {
+      HashCode hashCode = value.getHashCode();
+      if (value.getClass() == HashCodeAndFileType.class && hashCode.bits() == SHA1_BYTES * 8) {
+        onHeapValues.remove(id);
+        table.putHash(id, value.getType(), hashCode.asBytes());
+      } else {
+        table.removeHash(id);
+        onHeapValues.put(id, value);
+      }
+    }
+
+    @GuardedBy("this")
+    private void removeEntry(int id) {
+      table.remove(id);
+      onHeapValues.remove(id);
+    }
+
+    /**
+     * Drops the values of the given path and everything below it and releases their ids.
+     *
+     * @return the id of the parent of the path, or {@link PathInterner#NO_PARENT}.
+     */
+    @GuardedBy("this")
+    private int invalidateSubtree(int id) {
+      interner.forEachDescendant(id, this::removeEntry);
+      removeEntry(id);
+      return interner.release(id);
+    }
+
+    /** Releases the ids of the given path and its ancestors for as long as they are not needed. */
+    @GuardedBy("this")
+    private void releaseIfUnused(int id) {
+      while (id != PathInterner.NO_PARENT && !interner.hasChildren(id) && !table.contains(id)) {
+        id = interner.release(id);
+      }
+    }
+  }
+
+  /**
+   * Assigns dense int ids to paths, whose UTF-8 bytes are kept in an off-heap buffer. Ancestors are
+   * interned along with a path and each id links to its parent, first child and siblings, so that
+   * subtree invalidation visits just the subtree instead of comparing paths. Ids of invalidated
+   * paths are released and handed out again, which keeps the interner bounded by the paths
+   * currently cached rather than all paths ever seen.
+   */
+  private static class PathInterner {
+    static final int NO_PARENT = -1;
+    private static final int NONE = -1;
+    private static final int FREE = -1;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int INITIAL_NAME_BYTES = 4096;
+
+    private int[] nameOffsets;
+    private int[] nameLengths;
+    private int[] hashes;
+    private int[] parents;
+    private int[] firstChildren;
+    private int[] nextSiblings;
+    private int[] previousSiblings;
+    private int count;
+    private int size;
+    // Released ids, chained through nextSiblings.
+    private int freeHead;
+
+    // Paths are appended to names; bytes of released paths are reclaimed by compaction.
+    private ByteBuffer names;
+    private int namesEnd;
+    private int releasedNameBytes;
+
+    // Open-addressing index of id + 1 by path hash; 0 marks an empty bucket.
+    private int[] index;
+
+    PathInterner() {
+      clear();
+    }
+
+    int lookup(PathKey key) {
+      int mask = index.length - 1;
+      for (int bucket = key.hash & mask; ; bucket = (bucket + 1) & mask) {
+        int entry = index[bucket];
+        if (entry == 0) {
+          return -1;
+        }
+        int id = entry - 1;
+        if (hashes[id] == key.hash && nameEquals(id, key.bytes)) {
+          return id;
+        }
+      }
+    }
+
+    int intern(PathKey key) {
+      int id = lookup(key);
+      if (id >= 0) {
+        return id;
+      }
+      Path parentPath = key.path.getParent();
+      int parent = parentPath == null ? NO_PARENT : intern(new PathKey(parentPath));
+      id = allocate();
+      nameOffsets[id] = appendName(key.bytes);
+      nameLengths[id] = key.bytes.length;
+      hashes[id] = key.hash;
+      parents[id] = parent;
+      firstChildren[id] = NONE;
+      previousSiblings[id] = NONE;
+      nextSiblings[id] = NONE;
+      if (parent != NO_PARENT) {
+        int sibling = firstChildren[parent];
+        nextSiblings[id] = sibling;
+        if (sibling != NONE) {
+          previousSiblings[sibling] = id;
+        }
+        firstChildren[parent] = id;
+      }
+      size++;
+      if (size * 2 > index.length) {
+        rehash(index.length * 2);
+      } else {
+        insert(id);
+      }
+      return id;
+    }
+
+    Path getPath(int id, FileSystem fileSystem) {
+      byte[] bytes = new byte[nameLengths[id]];
+      int offset = nameOffsets[id];
+      for (int i = 0; i < bytes.length; i++) {
+        bytes[i] = names.get(offset + i);
+      }
+      return fileSystem.getPath(new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    int getParent(int id) {
+      return parents[id];
+    }
+
+    boolean hasChildren(int id) {
+      return firstChildren[id] != NONE;
+    }
+
+    /** Visits every path below the given one, each before its own descendants. */
+    void forEachDescendant(int id, IntConsumer consumer) {
+      int current = firstChildren[id];
+      while (current != NONE) {
+        consumer.accept(current);
+        if (firstChildren[current] != NONE) {
+          current = firstChildren[current];
+          continue;
+        }
+        while (current != id && nextSiblings[current] == NONE) {
+          current = parents[current];
+        }
+        current = current == id ? NONE : nextSiblings[current];
+      }
+    }
+
+    /**
+     * Releases the id of the given path and of everything below it.
+     *
+     * @return the id of the parent of the path, or {@link #NO_PARENT}.
+     */
+    int release(int id) {
+      while (firstChildren[id] != NONE) {
+        int child = firstChildren[id];
+        while (firstChildren[child] != NONE) {
+          child = firstChildren[child];
+        }
+        free(child);
+      }
+      int parent = parents[id];
+      free(id);
+      return parent;
+    }
+
+    void clear() {
+      nameOffsets = new int[INITIAL_CAPACITY];
+      nameLengths = new int[INITIAL_CAPACITY];
+      hashes = new int[INITIAL_CAPACITY];
+      parents = new int[INITIAL_CAPACITY];
+      firstChildren = new int[INITIAL_CAPACITY];
+      nextSiblings = new int[INITIAL_CAPACITY];
+      previousSiblings = new int[INITIAL_CAPACITY];
+      index = new int[INITIAL_CAPACITY * 2];
+      count = 0;
+      size = 0;
+      freeHead = NONE;
+      names = ByteBuffer.allocateDirect(INITIAL_NAME_BYTES);
+      namesEnd = 0;
+      releasedNameBytes = 0;
+    }
+
+    int size() {
+      return size;
+    }
+
+    long getCapacityBytes() {
+      return names.capacity();
+    }
+
+    private boolean nameEquals(int id, byte[] bytes) {
+      if (nameLengths[id] != bytes.length) {
+        return false;
+      }
+      int offset = nameOffsets[id];
+      for (int i = 0; i < bytes.length; i++) {
+        if (names.get(offset + i) != bytes[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /** @return the offset at which the bytes were stored. */
+    private int appendName(byte[] bytes) {
+      if (namesEnd + bytes.length > names.capacity()) {
+        int liveBytes = namesEnd - releasedNameBytes;
+        int capacity = names.capacity();
+        // Compact in place when at least half of the buffer is garbage, otherwise grow.
+        while (liveBytes + bytes.length > capacity / 2) {
+          Preconditions.checkState(
+              capacity <= Integer.MAX_VALUE / 2,
+              "Off-heap file hash cache cannot intern more than %s bytes of paths",
+              capacity);
+          capacity *= 2;
+        }
+        compactNames(capacity);
+      }
+      int offset = namesEnd;
+      for (int i = 0; i < bytes.length; i++) {
+        names.put(offset + i, bytes[i]);
+      }
+      namesEnd += bytes.length;
+      return offset;
+    }
+
+    private void compactNames(int capacity) {
+      ByteBuffer compacted = ByteBuffer.allocateDirect(capacity);
+      int end = 0;
+      for (int id = 0; id < count; id++) {
+        if (nameLengths[id] == FREE) {
+          continue;
+        }
+        int offset = nameOffsets[id];
+        for (int i = 0; i < nameLengths[id]; i++) {
+          compacted.put(end + i, names.get(offset + i));
+        }
+        nameOffsets[id] = end;
+        end += nameLengths[id];
+      }
+      namesEnd = end;
+      releasedNameBytes = 0;
+      names = compacted;
+    }
+
+    private int allocate() {
+      if (freeHead != NONE) {
+        int id = freeHead;
+        freeHead = nextSiblings[id];
+        return id;
+      }
+      if (count == parents.length) {
+        int capacity = parents.length * 2;
+        nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+        nameLengths = Arrays.copyOf(nameLengths, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        parents = Arrays.copyOf(parents, capacity);
+        firstChildren = Arrays.copyOf(firstChildren, capacity);
+        nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+        previousSiblings = Arrays.copyOf(previousSiblings, capacity);
+      }
+      return count++;
+    }
+
+    /** Unlinks a path without children from its parent and the index and frees its id. */
+    private void free(int id) {
+      int parent = parents[id];
+      int previous = previousSiblings[id];
+      int next = nextSiblings[id];
+      if (previous != NONE) {
+        nextSiblings[previous] = next;
+      } else if (parent != NO_PARENT) {
+        firstChildren[parent] = next;
+      }
+      if (next != NONE) {
+        previousSiblings[next] = previous;
+      }
+      removeFromIndex(id);
+      releasedNameBytes += nameLengths[id];
+      nameLengths[id] = FREE;
+      nextSiblings[id] = freeHead;
+      freeHead = id;
+      size--;
+    }
+
+    private void rehash(int capacity) {
+      index = new int[capacity];
+      for (int id = 0; id < count; id++) {
+        if (nameLengths[id] != FREE) {
+          insert(id);
+        }
+      }
+    }
+
+    private void insert(int id) {
+      int mask = index.length - 1;
+      int bucket = hashes[id] & mask;
+      while (index[bucket] != 0) {
+        bucket = (bucket + 1) & mask;
+      }
+      index[bucket] = id + 1;
+    }
+
+    private void removeFromIndex(int id) {
+      int mask = index.length - 1;
+      int hole = hashes[id] & mask;
+      while (index[hole] != id + 1) {
+        hole = (hole + 1) & mask;
+      }
+      // Shift later entries of the probe sequence back into the hole, so that lookups never stop
+      // at an empty bucket before reaching them.
+      for (int bucket = (hole + 1) & mask; index[bucket] != 0; bucket = (bucket + 1) & mask) {
+        int home = hashes[index[bucket] - 1] & mask;
+        if (((bucket - home) & mask) >= ((bucket - hole) & mask)) {
+          index[hole] = index[bucket];
+          hole = bucket;
+        }
+      }
+      index[hole] = 0;
+    }
+  }
+
+  /**
+   * Linear-probing hash table of fixed-width slots in a direct {@link ByteBuffer}. Each slot holds
+   * the path id, presence flags, the file type, the size, the 20-byte SHA-1 and the generation of
+   * the slot. Ids are dense and handed out in discovery order, so they are used as their own hash:
+   * paths hashed together end up in neighbouring slots.
+   */
+  private static class OffHeapTable {
+    private static final int KEY_OFFSET = 0;
+    private static final int FLAGS_OFFSET = 4;
+    private static final int TYPE_OFFSET = 5;
+    private static final int SIZE_OFFSET = 8;
+    private static final int HASH_OFFSET = 16;
+    private static final int GENERATION_OFFSET = 40;
+    private static final int SLOT_BYTES = 48;
+
+    private static final byte HAS_HASH = 1;
+    private static final byte HAS_SIZE = 2;
+
+    // Keys are stored as id + 1 so that a zeroed buffer reads as empty.
+    private static final int EMPTY = 0;
+    private static final int TOMBSTONE = -1;
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int MAX_CAPACITY = Integer.highestOneBit(Integer.MAX_VALUE / SLOT_BYTES);
+
+    private ByteBuffer buffer;
+    private int capacity;
+    private int live = 0;
+    private int used = 0;
+
+    OffHeapTable() {
+      allocate(INITIAL_CAPACITY);
+    }
+
+    void putHash(int id, byte type, byte[] sha1) {
+      int offset = findOrInsert(id);
+      buffer.put(offset + FLAGS_OFFSET, (byte) (buffer.get(offset + FLAGS_OFFSET) | HAS_HASH));
+      buffer.put(offset + TYPE_OFFSET, type);
+      for (int i = 0; i < SHA1_BYTES; i++) {
+        buffer.put(offset + HASH_OFFSET + i, sha1[i]);
+      }
+    }
+
+    void putSize(int id, long size) {
+      int offset = findOrInsert(id);
+      buffer.put(offset + FLAGS_OFFSET, (byte) (buffer.get(offset + FLAGS_OFFSET) | HAS_SIZE));
+      buffer.putLong(offset + SIZE_OFFSET, size);
+    }
+
+    void setGeneration(int id, long generation) {
+      buffer.putLong(findOrInsert(id) + GENERATION_OFFSET, generation);
+    }
+
+    /** @return the generation of the slot of the given id, or 0 if it has no slot. */
+    long getGeneration(int id) {
+      int offset = find(id);
+      return offset < 0 ? 0 : buffer.getLong(offset + GENERATION_OFFSET);
+    }
+
+    @Nullable
+    HashCodeAndFileType getHash(int id) {
+      int offset = find(id);
+      if (offset < 0 || (buffer.get(offset + FLAGS_OFFSET) & HAS_HASH) == 0) {
+        return null;
+      }
+      HashCode hashCode = HashCode.fromBytes(readSha1(offset + HASH_OFFSET));
+      return buffer.get(offset + TYPE_OFFSET) == HashCodeAndFileType.TYPE_DIRECTORY
+          ? HashCodeAndFileType.ofDirectory(hashCode)
+          : HashCodeAndFileType.ofFile(hashCode);
+    }
+
+    @Nullable
+    Long getSize(int id) {
+      int offset = find(id);
+      if (offset < 0 || (buffer.get(offset + FLAGS_OFFSET) & HAS_SIZE) == 0) {
+        return null;
+      }
+      return buffer.getLong(offset + SIZE_OFFSET);
+    }
+
+    private byte[] readSha1(int offset) {
+      // Word-sized reads are considerably cheaper than twenty single-byte ones.
+      byte[] sha1 = new byte[SHA1_BYTES];
+      long high = buffer.getLong(offset);
+      long low = buffer.getLong(offset + 8);
+      int tail = buffer.getInt(offset + 16);
+      for (int i = 0; i < 8; i++) {
+        sha1[i] = (byte) (high >>> (56 - 8 * i));
+        sha1[8 + i] = (byte) (low >>> (56 - 8 * i));
+      }
+      for (int i = 0; i < 4; i++) {
+        sha1[16 + i] = (byte) (tail >>> (24 - 8 * i));
+      }
+      return sha1;
+    }
+
+    /** Clears the hash of the given id, keeping its slot for its size and generation. */
+    void removeHash(int id) {
+      int offset = find(id);
+      if (offset >= 0) {
+        buffer.put(offset + FLAGS_OFFSET, (byte) (buffer.get(offset + FLAGS_OFFSET) & ~HAS_HASH));
+      }
+    }
+
+    void remove(int id) {
+      int offset = find(id);
+      if (offset >= 0) {
+        delete(offset);
+      }
+    }
+
+    boolean contains(int id) {
+      return find(id) >= 0;
+    }
+
+    /** @return whether the slot of the given id holds neither a hash nor a size. */
+    boolean isEmpty(int id) {
+      int offset = find(id);
+      return offset < 0 || buffer.get(offset + FLAGS_OFFSET) == 0;
+    }
+
+    void forEachKey(IntConsumer consumer) {
+      for (int slot = 0; slot < capacity; slot++) {
+        int key = buffer.getInt(slot * SLOT_BYTES + KEY_OFFSET);
+        if (key > 0) {
+          consumer.accept(key - 1);
+        }
+      }
+    }
+
+    long getCapacityBytes() {
+      return (long) capacity * SLOT_BYTES;
+    }
+
+    void clear() {
+      allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int slots) {
+      buffer = ByteBuffer.allocateDirect(slots * SLOT_BYTES);
+      capacity = slots;
+      live = 0;
+      used = 0;
+    }
+
+    private int find(int id) {
+      int key = id + 1;
+      int mask = capacity - 1;
+      for (int slot = key & mask; ; slot = (slot + 1) & mask) {
+        int offset = slot * SLOT_BYTES;
+        int current = buffer.getInt(offset + KEY_OFFSET);
+        if (current == key) {
+          return offset;
+        }
+        if (current == EMPTY) {
+          return -1;
+        }
+      }
+    }
+
+    int findOrInsert(int id) {
+      int existing = find(id);
+      if (existing >= 0) {
+        return existing;
+      }
+      if ((used + 1) * 2 > capacity) {
+        // Grow when mostly live, otherwise rebuild in place to drop tombstones.
+        resize(live * 4 >= capacity ? capacity * 2 : capacity);
+      }
+      int key = id + 1;
+      int mask = capacity - 1;
+      int slot = key & mask;
+      int offset;
+      while (true) {
+        offset = slot * SLOT_BYTES;
+        int current = buffer.getInt(offset + KEY_OFFSET);
+        if (current == EMPTY || current == TOMBSTONE) {
+          if (current == EMPTY) {
+            used++;
+          }
+          break;
+        }
+        slot = (slot + 1) & mask;
+      }
+      live++;
+      buffer.putInt(offset + KEY_OFFSET, key);
+      buffer.put(offset + FLAGS_OFFSET, (byte) 0);
+      buffer.putLong(offset + GENERATION_OFFSET, 0);
+      return offset;
+    }
+
+    private void delete(int offset) {
+      buffer.putInt(offset + KEY_OFFSET, TOMBSTONE);
+      buffer.put(offset + FLAGS_OFFSET, (byte) 0);
+      live--;
+    }
+
+    private void resize(int slots) {
+      Preconditions.checkState(
+          slots <= MAX_CAPACITY, "Off-heap file hash cache cannot grow beyond %s slots", slots);
+      ByteBuffer old = buffer;
+      int oldCapacity = capacity;
+      buffer = ByteBuffer.allocateDirect(slots * SLOT_BYTES);
+      capacity = slots;
+      live = 0;
+      used = 0;
+      int mask = capacity - 1;
+      for (int oldSlot = 0; oldSlot < oldCapacity; oldSlot++) {
+        int oldOffset = oldSlot * SLOT_BYTES;
+        int key = old.getInt(oldOffset + KEY_OFFSET);
+        if (key <= 0) {
+          continue;
+        }
+        int slot = key & mask;
+        while (buffer.getInt(slot * SLOT_BYTES + KEY_OFFSET) != EMPTY) {
+          slot = (slot + 1) & mask;
+        }
+        int offset = slot * SLOT_BYTES;
+        for (int i = 0; i < SLOT_BYTES; i++) {
+          buffer.put(offset + i, old.get(oldOffset + i));
+        }
+        live++;
+        used++;
+      }
+    }
+  }
+
+  private static int mix(int hash) {
+    int h = hash * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
@@ -22,16 +22,47 @@ import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.io.watchman.WatchmanOverflowEvent;
 import com.facebook.buck.io.watchman.WatchmanPathEvent;
 import com.facebook.buck.util.cache.FileHashCacheMode;
+import com.facebook.buck.util.cache.HashCodeAndFileType;
+import com.facebook.buck.util.cache.JarHashCodeAndFileType;
 import com.google.common.eventbus.Subscribe;
+import com.google.common.hash.HashCode;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executor;
 
 public class WatchedFileHashCache extends DefaultFileHashCache {
 
   private static final Logger LOG = Logger.get(WatchedFileHashCache.class);
 
+  private static final String SNAPSHOT_FILE_NAME = "file_hash_cache.snapshot";
+  private static final int SNAPSHOT_VERSION = 1;
+
   public WatchedFileHashCache(
       ProjectFilesystem projectFilesystem, FileHashCacheMode fileHashCacheMode) {
-    super(projectFilesystem, getDefaultPathPredicate(projectFilesystem), fileHashCacheMode);
+    this(projectFilesystem, fileHashCacheMode, Optional.empty());
+  }
+
+  public WatchedFileHashCache(
+      ProjectFilesystem projectFilesystem,
+      FileHashCacheMode fileHashCacheMode,
+      Optional<Executor> prefetchExecutor) {
+    super(
+        projectFilesystem,
+        getDefaultPathPredicate(projectFilesystem),
+        fileHashCacheMode,
+        prefetchExecutor);
   }
 
   /**
@@ -54,4 +85,99 @@ public class WatchedFileHashCache extends DefaultFileHashCache {
     LOG.debug("Invalidating all");
     invalidateAll();
   }
+
+  /** @return where snapshots of this cache are kept between daemon restarts. */
+  public Path getSnapshotPath() {
+    ProjectFilesystem filesystem = getFilesystem();
+    return filesystem.resolve(
+        filesystem.getBuckPaths().getScratchDir().resolve(SNAPSHOT_FILE_NAME));
+  }
+
+  /**
+   * Writes the cached file and archive hashes to {@code snapshotPath}, together with the watchman
+   * clock up to which file change events have been applied to this cache. Directory hashes are
+   * left out: they depend on ignore settings and are cheap to recompute from their children.
+   */
+  public synchronized void writeSnapshot(Path snapshotPath, String watchmanClock)
+      throws IOException {
+    Files.createDirectories(snapshotPath.getParent());
+    Path tempPath = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+    int entries = 0;
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+      out.writeInt(SNAPSHOT_VERSION);
+      out.writeUTF(getFilesystem().getRootPath().toString());
+      out.writeUTF(watchmanClock);
+      List<Map.Entry<Path, HashCodeAndFileType>> persisted = new ArrayList<>();
+      for (Map.Entry<Path, HashCodeAndFileType> entry : fileHashCacheEngine.asMap().entrySet()) {
+        if (entry.getValue().getType() != HashCodeAndFileType.TYPE_DIRECTORY) {
+          persisted.add(entry);
+        }
+      }
+      out.writeInt(persisted.size());
+      for (Map.Entry<Path, HashCodeAndFileType> entry : persisted) {
+        byte[] hash = entry.getValue().getHashCode().asBytes();
+        out.writeUTF(entry.getKey().toString());
+        out.writeByte(entry.getValue().getType());
+        out.writeShort(hash.length);
+        out.write(hash);
+      }
+      entries = persisted.size();
+    }
+    Files.move(
+        tempPath,
+        snapshotPath,
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    LOG.debug("Wrote %d file hashes at clock %s to %s", entries, watchmanClock, snapshotPath);
+  }
+
+  /**
+   * Loads hashes written by {@link #writeSnapshot}. The restored entries are only valid once every
+   * change watchman reports since the returned clock has been applied to this cache; callers must
+   * rewind the watchman cursor to that clock and treat a fresh watchman instance as an overflow.
+   *
+   * @return the watchman clock of the snapshot, or empty if there was no usable snapshot, in which
+   *     case the cache is left untouched.
+   */
+  public synchronized Optional<String> restoreSnapshot(Path snapshotPath) throws IOException {
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath)))) {
+      if (in.readInt() != SNAPSHOT_VERSION) {
+        LOG.debug("Ignoring file hash cache snapshot %s with unknown version", snapshotPath);
+        return Optional.empty();
+      }
+      String root = in.readUTF();
+      if (!root.equals(getFilesystem().getRootPath().toString())) {
+        LOG.debug("Ignoring file hash cache snapshot %s taken for %s", snapshotPath, root);
+        return Optional.empty();
+      }
+      String watchmanClock = in.readUTF();
+      int count = in.readInt();
+      List<Map.Entry<Path, HashCodeAndFileType>> restored = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        Path path = getFilesystem().getPath(in.readUTF());
+        byte type = in.readByte();
+        byte[] hash = new byte[in.readShort()];
+        in.readFully(hash);
+        if (isIgnored(path)) {
+          continue;
+        }
+        HashCode hashCode = HashCode.fromBytes(hash);
+        restored.add(
+            new AbstractMap.SimpleEntry<>(
+                path,
+                type == HashCodeAndFileType.TYPE_ARCHIVE
+                    ? JarHashCodeAndFileType.ofArchive(
+                        hashCode, new DefaultJarContentHasher(getFilesystem(), path))
+                    : HashCodeAndFileType.ofFile(hashCode)));
+      }
+      // Only populate the cache once the whole snapshot has been read successfully.
+      restored.forEach(entry -> fileHashCacheEngine.put(entry.getKey(), entry.getValue()));
+      LOG.debug("Restored %d file hashes at clock %s", restored.size(), watchmanClock);
+      return Optional.of(watchmanClock);
+    } catch (NoSuchFileException e) {
+      return Optional.empty();
+    }
+  }
 }
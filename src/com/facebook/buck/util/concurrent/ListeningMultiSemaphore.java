@@ -22,20 +22,31 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import java.util.Comparator;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
 
 /**
  * A semaphore using {@link ListenableFuture}s for acquisition of different resource types rather
  * than blocking.
+ *
+ * <p>Pending acquisitions are granted in order of decreasing priority, and in FIFO order among
+ * acquisitions of the same priority.
  */
 public class ListeningMultiSemaphore {
 
+  private static final Comparator<ListeningSemaphoreArrayPendingItem> PENDING_ITEM_ORDER =
+      Comparator.comparingLong(ListeningSemaphoreArrayPendingItem::getPriority)
+          .reversed()
+          .thenComparingLong(ListeningSemaphoreArrayPendingItem::getSequenceNumber);
+
   private ResourceAmounts usedValues;
   private final ResourceAmounts maximumValues;
-  private final List<ListeningSemaphoreArrayPendingItem> pending = new LinkedList<>();
+  private final NavigableSet<ListeningSemaphoreArrayPendingItem> pending =
+      new TreeSet<>(PENDING_ITEM_ORDER);
   private final ResourceAllocationFairness fairness;
+  private long nextSequenceNumber = 0;
 
   public ListeningMultiSemaphore(
       ResourceAmounts availableResources, ResourceAllocationFairness fairness) {
@@ -54,7 +65,19 @@ public class ListeningMultiSemaphore {
    *     amounts, they will be capped to them.
    * @return Future that will be completed once resource will be acquired.
    */
-  public synchronized ListenableFuture<Unit> acquire(ResourceAmounts resources) {
+  public ListenableFuture<Unit> acquire(ResourceAmounts resources) {
+    return acquire(resources, 0);
+  }
+
+  /**
+   * Same as {@link #acquire(ResourceAmounts)}, but if the resources are not immediately available,
+   * this acquisition is granted before pending acquisitions with a lower priority.
+   *
+   * @param resources Resource amounts that need to be acquired.
+   * @param priority Priority of this acquisition relative to other pending acquisitions.
+   * @return Future that will be completed once resource will be acquired.
+   */
+  public synchronized ListenableFuture<Unit> acquire(ResourceAmounts resources, long priority) {
     if (resources.equals(ResourceAmounts.zero())) {
       return Futures.immediateFuture(Unit.UNIT);
     }
@@ -62,7 +85,9 @@ public class ListeningMultiSemaphore {
     resources = capResourceAmounts(resources);
     if (!checkIfResourcesAvailable(resources)) {
       SettableFuture<Unit> pendingFuture = SettableFuture.create();
-      pending.add(ImmutableListeningSemaphoreArrayPendingItem.of(pendingFuture, resources));
+      pending.add(
+          ImmutableListeningSemaphoreArrayPendingItem.of(
+              pendingFuture, resources, priority, nextSequenceNumber++));
       return pendingFuture;
     }
     increaseUsedResources(resources);
@@ -25,4 +25,10 @@ interface ListeningSemaphoreArrayPendingItem {
   SettableFuture<Unit> getFuture();
 
   ResourceAmounts getResources();
+
+  /** Items with a higher priority are granted resources first. */
+  long getPriority();
+
+  /** Order in which the item was queued, used to keep items of the same priority in FIFO order. */
+  long getSequenceNumber();
 }
@@ -30,6 +30,9 @@ import javax.annotation.Nullable;
  * A {@link ListeningExecutorService} which gates execution using a {@link ListeningMultiSemaphore}
  * and allows resources to be assigned to submitted tasks.
  *
+ * <p>Tasks submitted through a service returned by {@link #withPriority(long)} are granted
+ * resources before waiting tasks with a lower priority.
+ *
  * <p>NOTE: If futures for submitted jobs are cancelled while they are running, it's possible that
  * the semaphore will be released for that cancelled job before it is finished, meaning more jobs
  * may be scheduled than expected.
@@ -38,14 +41,24 @@ public class WeightedListeningExecutorService extends AbstractListeningExecutorS
   private final ListeningMultiSemaphore semaphore;
   private final ResourceAmounts defaultValues;
   private final ListeningExecutorService delegate;
+  private final long priority;
 
   public WeightedListeningExecutorService(
       ListeningMultiSemaphore semaphore,
       ResourceAmounts defaultValues,
       ListeningExecutorService delegate) {
+    this(semaphore, defaultValues, delegate, 0);
+  }
+
+  private WeightedListeningExecutorService(
+      ListeningMultiSemaphore semaphore,
+      ResourceAmounts defaultValues,
+      ListeningExecutorService delegate,
+      long priority) {
     this.semaphore = semaphore;
     this.defaultValues = defaultValues;
     this.delegate = delegate;
+    this.priority = priority;
   }
 
   /**
@@ -61,14 +74,29 @@ public class WeightedListeningExecutorService extends AbstractListeningExecutorS
     if (newDefaultAmounts.equals(defaultValues)) {
       return this;
     }
-    return new WeightedListeningExecutorService(semaphore, newDefaultAmounts, delegate);
+    return new WeightedListeningExecutorService(semaphore, newDefaultAmounts, delegate, priority);
+  }
+
+  /**
+   * Creates a new service whose tasks acquire resources with the given priority. Tasks of a higher
+   * priority that wait for resources are started before those with a lower priority.
+   *
+   * @param newPriority priority of the tasks submitted through the returned service
+   * @return Service that uses the same semaphore, delegate and default resource amounts but with
+   *     the given priority.
+   */
+  public WeightedListeningExecutorService withPriority(long newPriority) {
+    if (newPriority == priority) {
+      return this;
+    }
+    return new WeightedListeningExecutorService(semaphore, defaultValues, delegate, newPriority);
   }
 
   private <T> ListenableFuture<T> submitWithSemaphore(
       Callable<T> callable, ResourceAmounts amounts) {
     ListenableFuture<T> future =
         Futures.transformAsync(
-            semaphore.acquire(amounts),
+            semaphore.acquire(amounts, priority),
             input -> {
               try {
                 return Futures.immediateFuture(callable.call());
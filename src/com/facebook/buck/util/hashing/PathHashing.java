@@ -38,10 +38,20 @@ public class PathHashing {
       ProjectFilesystem projectFilesystem,
       Path root)
       throws IOException {
+    return hashPath(hasher, fileHashLoader, root, projectFilesystem.getFilesUnderPath(root));
+  }
+
+  /**
+   * Like {@link #hashPath(Hasher, ProjectFileHashLoader, ProjectFilesystem, Path)}, for callers
+   * that have already listed the files under {@code root}.
+   */
+  public static ImmutableSet<Path> hashPath(
+      Hasher hasher, ProjectFileHashLoader fileHashLoader, Path root, Iterable<Path> filesUnderRoot)
+      throws IOException {
     Preconditions.checkArgument(
         !root.equals(EMPTY_PATH), "Path to hash (%s) must not be empty", root);
     ImmutableSet.Builder<Path> children = ImmutableSet.builder();
-    for (Path path : ImmutableSortedSet.copyOf(projectFilesystem.getFilesUnderPath(root))) {
+    for (Path path : ImmutableSortedSet.copyOf(filesUnderRoot)) {
       FastPaths.hashPathFast(hasher, path);
       if (!root.equals(path)) {
         children.add(root.relativize(path));
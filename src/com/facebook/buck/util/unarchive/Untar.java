@@ -22,12 +22,15 @@ import com.facebook.buck.io.file.MostFiles;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.util.PatternsMatcher;
 import com.facebook.buck.util.environment.Platform;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdInputStream;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.ByteStreams;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.FileVisitOption;
 import java.nio.file.Files;
@@ -52,9 +55,15 @@ import org.apache.commons.compress.compressors.CompressorStreamFactory;
 public class Untar extends Unarchiver {
 
   private final Optional<String> compressorType;
+  private final Optional<ZstdDictDecompress> zstdDictionary;
 
   private Untar(Optional<String> compressorType) {
+    this(compressorType, Optional.empty());
+  }
+
+  private Untar(Optional<String> compressorType, Optional<ZstdDictDecompress> zstdDictionary) {
     this.compressorType = compressorType;
+    this.zstdDictionary = zstdDictionary;
   }
 
   public static Untar tarUnarchiver() {
@@ -77,6 +86,11 @@ public class Untar extends Unarchiver {
     return new Untar(Optional.of(CompressorStreamFactory.ZSTANDARD));
   }
 
+  /** Extracts zstd archives that may have been compressed with {@code dictionary}. */
+  public static Untar zstdUnarchiver(ZstdDictDecompress dictionary) {
+    return new Untar(Optional.of(CompressorStreamFactory.ZSTANDARD), Optional.of(dictionary));
+  }
+
   @Override
   public ImmutableSet<Path> extractArchive(
       Path archiveFile,
@@ -106,6 +120,66 @@ public class Untar extends Unarchiver {
       PatternsMatcher entriesToExclude,
       boolean writeSymlinksAfterCreatingFiles)
       throws IOException {
+    try (TarArchiveInputStream archiveStream = getArchiveInputStream(archiveFile)) {
+      return extractArchive(
+          archiveStream,
+          filesystem,
+          filesystemRelativePath,
+          stripPath,
+          existingFileMode,
+          entriesToExclude,
+          writeSymlinksAfterCreatingFiles,
+          new HashSet<>());
+    } catch (CompressorException e) {
+      throw new IOException(
+          String.format("Could not get decompressor for archive at %s", archiveFile), e);
+    }
+  }
+
+  /**
+   * Extracts an archive that is read from a stream, e.g. one that is still being downloaded. The
+   * stream is not closed.
+   *
+   * @param archive The (possibly compressed) archive contents
+   * @param filesystem The filesystem that will be extracted into
+   * @param filesystemRelativePath The path relative to the filesystem root to extract into
+   * @param existingFileMode How to handle existing files
+   * @param extractedDirectories Every directory entry of the archive is added to this set
+   * @return A list of paths to files that were created (not directories)
+   * @throws IOException If the archive could not be extracted for any reason
+   */
+  public ImmutableSet<Path> extractArchive(
+      InputStream archive,
+      ProjectFilesystem filesystem,
+      Path filesystemRelativePath,
+      ExistingFileMode existingFileMode,
+      Set<Path> extractedDirectories)
+      throws IOException {
+    try {
+      return extractArchive(
+          getArchiveInputStream(new BufferedInputStream(archive)),
+          filesystem,
+          filesystemRelativePath,
+          Optional.empty(),
+          existingFileMode,
+          PatternsMatcher.NONE,
+          Platform.detect() == Platform.WINDOWS,
+          extractedDirectories);
+    } catch (CompressorException e) {
+      throw new IOException("Could not get decompressor for archive stream", e);
+    }
+  }
+
+  private ImmutableSet<Path> extractArchive(
+      TarArchiveInputStream archiveStream,
+      ProjectFilesystem filesystem,
+      Path filesystemRelativePath,
+      Optional<Path> stripPath,
+      ExistingFileMode existingFileMode,
+      PatternsMatcher entriesToExclude,
+      boolean writeSymlinksAfterCreatingFiles,
+      Set<Path> extractedDirectories)
+      throws IOException {
 
     ImmutableSet.Builder<Path> paths = ImmutableSet.builder();
     HashSet<Path> dirsToTidy = new HashSet<>();
@@ -117,50 +191,46 @@ public class Untar extends Unarchiver {
     // all files are extracted, and /then/ try to do the links
     Map<Path, Path> windowsSymlinkMap = new HashMap<>();
 
-    try (TarArchiveInputStream archiveStream = getArchiveInputStream(archiveFile)) {
-      TarArchiveEntry entry;
-      while ((entry = archiveStream.getNextTarEntry()) != null) {
-        String entryName = entry.getName();
-        if (entriesToExclude.matches(entryName)) {
+    TarArchiveEntry entry;
+    while ((entry = archiveStream.getNextTarEntry()) != null) {
+      String entryName = entry.getName();
+      if (entriesToExclude.matches(entryName)) {
+        continue;
+      }
+      Path destFile = Paths.get(entryName);
+      Path destPath;
+      if (stripPath.isPresent()) {
+        if (!destFile.startsWith(stripPath.get())) {
           continue;
         }
-        Path destFile = Paths.get(entryName);
-        Path destPath;
-        if (stripPath.isPresent()) {
-          if (!destFile.startsWith(stripPath.get())) {
-            continue;
-          }
-          destPath =
-              filesystemRelativePath.resolve(stripPath.get().relativize(destFile)).normalize();
-        } else {
-          destPath = filesystemRelativePath.resolve(destFile).normalize();
-        }
+        destPath =
+            filesystemRelativePath.resolve(stripPath.get().relativize(destFile)).normalize();
+      } else {
+        destPath = filesystemRelativePath.resolve(destFile).normalize();
+      }
 
-        if (entry.isDirectory()) {
-          dirsToTidy.add(destPath);
-          mkdirs(creator, destPath);
-          dirCreationTimes.put(destPath, entry.getModTime().getTime());
-        } else if (entry.isSymbolicLink()) {
-          if (writeSymlinksAfterCreatingFiles) {
-            recordSymbolicLinkForWindows(creator, destPath, entry, windowsSymlinkMap);
-          } else {
-            writeSymbolicLink(creator, destPath, entry);
-          }
-          paths.add(destPath);
-          setAttributes(filesystem, destPath, entry);
-        } else if (entry.isFile()) {
-          writeFile(creator, archiveStream, destPath);
-          paths.add(destPath);
-          setAttributes(filesystem, destPath, entry);
+      if (entry.isDirectory()) {
+        dirsToTidy.add(destPath);
+        extractedDirectories.add(destPath);
+        mkdirs(creator, destPath);
+        dirCreationTimes.put(destPath, entry.getModTime().getTime());
+      } else if (entry.isSymbolicLink()) {
+        if (writeSymlinksAfterCreatingFiles) {
+          recordSymbolicLinkForWindows(creator, destPath, entry, windowsSymlinkMap);
+        } else {
+          writeSymbolicLink(creator, destPath, entry);
         }
+        paths.add(destPath);
+        setAttributes(filesystem, destPath, entry);
+      } else if (entry.isFile()) {
+        writeFile(creator, archiveStream, destPath);
+        paths.add(destPath);
+        setAttributes(filesystem, destPath, entry);
       }
-
-      writeWindowsSymlinks(creator, windowsSymlinkMap);
-    } catch (CompressorException e) {
-      throw new IOException(
-          String.format("Could not get decompressor for archive at %s", archiveFile), e);
     }
 
+    writeWindowsSymlinks(creator, windowsSymlinkMap);
+
     setDirectoryModificationTimes(filesystem, dirCreationTimes);
 
     ImmutableSet<Path> filePaths = paths.build();
@@ -173,8 +243,16 @@ public class Untar extends Unarchiver {
 
   private TarArchiveInputStream getArchiveInputStream(Path tarFile)
       throws IOException, CompressorException {
-    BufferedInputStream inputStream = new BufferedInputStream(Files.newInputStream(tarFile));
-    if (compressorType.isPresent()) {
+    return getArchiveInputStream(new BufferedInputStream(Files.newInputStream(tarFile)));
+  }
+
+  private TarArchiveInputStream getArchiveInputStream(InputStream inputStream)
+      throws IOException, CompressorException {
+    if (zstdDictionary.isPresent()) {
+      ZstdInputStream zstdInputStream = new ZstdInputStream(inputStream);
+      zstdInputStream.setDict(zstdDictionary.get());
+      return new TarArchiveInputStream(zstdInputStream);
+    } else if (compressorType.isPresent()) {
       return new TarArchiveInputStream(
           new CompressorStreamFactory()
               .createCompressorInputStream(compressorType.get(), inputStream));
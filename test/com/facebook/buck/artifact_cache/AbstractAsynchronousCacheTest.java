@@ -106,6 +106,52 @@ public class AbstractAsynchronousCacheTest {
     }
   }
 
+  @Test
+  public void testAdaptiveMultiFetchBatchSize() throws Exception {
+    ExplicitRunExecutorService service = new ExplicitRunExecutorService();
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+
+    List<ImmutableList<RuleKey>> requestedRuleKeys = new ArrayList<>();
+    AdaptiveFetchController controller = new AdaptiveFetchController(4, 100);
+
+    try (AbstractAsynchronousCache cache =
+        new RequestedKeyRecordingAsynchronousCache(
+            service,
+            filesystem,
+            requestedRuleKeys,
+            new ArrayList<>(),
+            3,
+            3,
+            false,
+            Optional.of(controller))) {
+
+      List<ListenableFuture<CacheResult>> results = new ArrayList<>();
+      for (int i = 0; i < 20; i++) {
+        results.add(
+            cache.fetchAsync(
+                null,
+                new RuleKey(HashCode.fromInt(i)),
+                LazyPath.ofInstance(filesystem.getPath("path" + i))));
+      }
+
+      service.run();
+
+      for (ListenableFuture<CacheResult> future : results) {
+        assertTrue(future.isDone());
+        assertTrue(future.get().getType().isSuccess());
+      }
+
+      // The controller, not the cache's own limit, decides the batch size, and it grows after
+      // every full batch that succeeds.
+      assertEquals(
+          AdaptiveFetchController.INITIAL_MULTI_FETCH_BATCH_SIZE,
+          requestedRuleKeys.get(0).size());
+      assertEquals(
+          AdaptiveFetchController.INITIAL_MULTI_FETCH_BATCH_SIZE + 1,
+          requestedRuleKeys.get(1).size());
+    }
+  }
+
   @Test
   public void testSkipPendingAsyncFetchRequests() throws ExecutionException, InterruptedException {
     ExplicitRunExecutorService service = new ExplicitRunExecutorService();
@@ -282,6 +328,26 @@ public class AbstractAsynchronousCacheTest {
         int multiFetchLimit,
         int concurrency,
         boolean isMultiCheckEnabled) {
+      this(
+          service,
+          filesystem,
+          requestedRuleKeys,
+          checkedRuleKeys,
+          multiFetchLimit,
+          concurrency,
+          isMultiCheckEnabled,
+          Optional.empty());
+    }
+
+    public RequestedKeyRecordingAsynchronousCache(
+        ExplicitRunExecutorService service,
+        ProjectFilesystem filesystem,
+        List<ImmutableList<RuleKey>> requestedRuleKeys,
+        List<ImmutableSet<RuleKey>> checkedRuleKeys,
+        int multiFetchLimit,
+        int concurrency,
+        boolean isMultiCheckEnabled,
+        Optional<AdaptiveFetchController> adaptiveFetchController) {
       super(
           "fake",
           ArtifactCacheMode.dir,
@@ -290,7 +356,8 @@ public class AbstractAsynchronousCacheTest {
           service,
           new NoOpEventListener(),
           Optional.empty(),
-          filesystem);
+          filesystem,
+          adaptiveFetchController);
       this.requestedRuleKeys = requestedRuleKeys;
       this.checkedRuleKeys = checkedRuleKeys;
       this.multiFetchLimit = multiFetchLimit;
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class AdaptiveFetchControllerTest {
+  private static final String BACKEND = "http://cache-1:8080";
+  private static final String OTHER_BACKEND = "http://cache-2:8080";
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Test
+  public void concurrencyIsBounded() {
+    AdaptiveFetchController controller = new AdaptiveFetchController(2, 10);
+
+    Optional<AdaptiveFetchController.Permit> permit = controller.tryAcquire();
+    assertTrue(permit.isPresent());
+    assertTrue(controller.tryAcquire().isPresent());
+    assertFalse(controller.tryAcquire().isPresent());
+    assertEquals(0, controller.getAvailablePermits());
+
+    controller.release(permit.get());
+    assertEquals(1, controller.getAvailablePermits());
+    assertTrue(controller.tryAcquire().isPresent());
+  }
+
+  @Test
+  public void concurrencyStartsSmallAndGrowsAdditively() {
+    AdaptiveFetchController controller = new AdaptiveFetchController(16, 10);
+    int initial = AdaptiveFetchController.INITIAL_CONCURRENCY;
+    assertEquals(initial, controller.getConcurrency());
+
+    // Roughly one more request per round of requests that completed without congestion.
+    long time = 0;
+    for (int i = 0; i <= initial; i++) {
+      controller.onSuccess(BACKEND, 1, 0, time, time + MS);
+      time += 2 * MS;
+    }
+    assertEquals(initial + 1, controller.getConcurrency());
+  }
+
+  @Test
+  public void permitsAreTakenFromAndReturnedToTheirBackend() {
+    AdaptiveFetchController controller = new AdaptiveFetchController(2, 10);
+    controller.onSuccess(BACKEND, 1, 100, 0, MS);
+    Optional<AdaptiveFetchController.Permit> permit = controller.tryAcquire();
+    assertTrue(permit.isPresent());
+    assertTrue(controller.tryAcquire().isPresent());
+    assertFalse(controller.tryAcquire().isPresent());
+
+    // Requests sent to the previous backend don't count against the one answering now.
+    controller.onSuccess(OTHER_BACKEND, 1, 100, 2 * MS, 3 * MS);
+    assertEquals(2, controller.getAvailablePermits());
+    assertTrue(controller.tryAcquire().isPresent());
+
+    controller.release(permit.get());
+    assertEquals(1, controller.getAvailablePermits());
+  }
+
+  @Test
+  public void batchSizeGrowsAdditivelyAfterFullBatches() {
+    AdaptiveFetchController controller = new AdaptiveFetchController(4, 10);
+    int initial = AdaptiveFetchController.INITIAL_MULTI_FETCH_BATCH_SIZE;
+    assertEquals(initial, controller.getMultiFetchBatchSize());
+
+    controller.onSuccess(BACKEND, initial, 100, 0, MS);
+    assertEquals(initial + 1, controller.getMultiFetchBatchSize());
+
+    // A batch that wasn't full says nothing about whether a bigger one would work.
+    controller.onSuccess(BACKEND, 2, 100, 2 * MS, 3 * MS);
+    assertEquals(initial + 1, controller.getMultiFetchBatchSize());
+
+    controller.onSuccess(BACKEND, initial + 1, 100, 4 * MS, 5 * MS);
+    controller.onSuccess(BACKEND, initial + 2, 100, 6 * MS, 7 * MS);
+    controller.onSuccess(BACKEND, 10, 100, 8 * MS, 9 * MS);
+    assertEquals(10, controller.getMultiFetchBatchSize());
+  }
+
+  @Test
+  public void errorsHalveLimitsOncePerRoundTrip() {
+    AdaptiveFetchController controller = new AdaptiveFetchController(4, 100);
+    controller.onSuccess(BACKEND, 1, 100, 0, MS);
+
+    controller.onError(BACKEND, 2 * MS, 10 * MS);
+    assertEquals(2, controller.getConcurrency());
+    assertEquals(4, controller.getMultiFetchBatchSize());
+
+    // This request was already in flight when the limits were reduced.
+    controller.onError(BACKEND, 5 * MS, 11 * MS);
+    assertEquals(2, controller.getConcurrency());
+
+    controller.onError(BACKEND, 12 * MS, 20 * MS);
+    assertEquals(1, controller.getConcurrency());
+    assertEquals(2, controller.getMultiFetchBatchSize());
+
+    controller.onError(BACKEND, 21 * MS, 30 * MS);
+    assertEquals(1, controller.getConcurrency());
+    assertEquals(1, controller.getMultiFetchBatchSize());
+  }
+
+  @Test
+  public void concurrencyRecoversAdditively() {
+    AdaptiveFetchController controller = new AdaptiveFetchController(4, 100);
+    controller.onError(BACKEND, 0, MS);
+    controller.onError(BACKEND, 2 * MS, 3 * MS);
+    assertEquals(1, controller.getConcurrency());
+
+    // Roughly one more request per round of requests that completed without congestion.
+    long time = 4 * MS;
+    controller.onSuccess(BACKEND, 1, 0, time, time + MS);
+    assertEquals(2, controller.getConcurrency());
+    for (int i = 0; i < 3; i++) {
+      time += 2 * MS;
+      controller.onSuccess(BACKEND, 1, 0, time, time + MS);
+    }
+    assertEquals(3, controller.getConcurrency());
+  }
+
+  @Test
+  public void slowResponsesAreTreatedAsCongestion() {
+    AdaptiveFetchController controller = new AdaptiveFetchController(4, 100);
+    controller.onSuccess(BACKEND, 1, 1000, 0, MS);
+
+    controller.onSuccess(BACKEND, 1, 1000, 2 * MS, 12 * MS);
+
+    assertEquals(2, controller.getConcurrency());
+  }
+
+  @Test
+  public void largeResponsesAreNotMistakenForCongestion() {
+    AdaptiveFetchController controller = new AdaptiveFetchController(4, 100);
+    // Establish the round trip time and the throughput of the backend: 1MB per millisecond.
+    controller.onSuccess(BACKEND, 1, 0, 0, MS);
+    controller.onSuccess(BACKEND, 1, 1_000_000, 2 * MS, 3 * MS);
+
+    controller.onSuccess(BACKEND, 1, 20_000_000, 4 * MS, 25 * MS);
+
+    assertEquals(4, controller.getConcurrency());
+  }
+
+  @Test
+  public void limitsAreTrackedPerBackend() {
+    AdaptiveFetchController controller = new AdaptiveFetchController(4, 100);
+    controller.onSuccess(BACKEND, 1, 100, 0, MS);
+    controller.onError(BACKEND, 2 * MS, 3 * MS);
+    assertEquals(2, controller.getConcurrency());
+
+    // Once another backend answers, its limits apply.
+    controller.onSuccess(OTHER_BACKEND, 1, 100, 4 * MS, 5 * MS);
+    assertEquals(4, controller.getConcurrency());
+
+    // Errors without a known backend count against the current one.
+    controller.onError(AdaptiveFetchController.UNKNOWN_BACKEND, 6 * MS, 7 * MS);
+    assertEquals(2, controller.getConcurrency());
+    controller.onSuccess(BACKEND, 1, 100, 8 * MS, 9 * MS);
+    assertEquals(2, controller.getConcurrency());
+  }
+
+  @Test
+  public void backendIsIdentifiedBySchemeHostAndPort() {
+    assertEquals(
+        "https://cache.example.com:8443",
+        AdaptiveFetchController.getBackend("https://cache.example.com:8443/artifacts/key/abc"));
+    assertEquals(
+        "http://10.0.0.1", AdaptiveFetchController.getBackend("http://10.0.0.1/thrift?x=1"));
+    assertEquals(
+        AdaptiveFetchController.UNKNOWN_BACKEND, AdaptiveFetchController.getBackend("not a url"));
+  }
+}
@@ -17,7 +17,9 @@
 package com.facebook.buck.artifact_cache;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.artifact_cache.config.ArtifactCacheBuckConfig;
 import com.facebook.buck.artifact_cache.config.ArtifactCacheBuckConfig.Executor;
@@ -289,6 +291,77 @@ public class ArtifactCacheBuckConfigTest {
         Matchers.equalTo(MorePaths.expandHomeDir(Paths.get("~/cache_dir"))));
   }
 
+  @Test
+  public void testContentAddressedDirCache() throws IOException {
+    ArtifactCacheBuckConfig config = createFromText("[cache]", "dir = ~/cache_dir");
+    assertFalse(
+        Iterables.getOnlyElement(config.getCacheEntries().getDirCacheEntries())
+            .isContentAddressed());
+
+    config = createFromText("[cache]", "dir = ~/cache_dir", "dir_content_addressed = true");
+    assertTrue(
+        Iterables.getOnlyElement(config.getCacheEntries().getDirCacheEntries())
+            .isContentAddressed());
+  }
+
+  @Test
+  public void testTwoLevelCachingChunking() throws IOException {
+    ArtifactCacheBuckConfig config = createFromText("[cache]", "two_level_cache_enabled = true");
+    assertThat(config.getTwoLevelCachingChunkAverageSize(), Matchers.equalTo(Optional.empty()));
+
+    config =
+        createFromText(
+            "[cache]",
+            "two_level_cache_chunking_enabled = true",
+            "two_level_cache_chunk_average_size = 16kb",
+            "two_level_cache_chunk_store_max_size = 10mb");
+    assertThat(
+        config.getTwoLevelCachingChunkAverageSize(), Matchers.equalTo(Optional.of(16 * 1024)));
+    assertThat(config.getTwoLevelCachingChunkStoreMaxSize(), Matchers.equalTo(10L * 1024 * 1024));
+  }
+
+  @Test
+  public void testCoalesceStores() throws IOException {
+    ArtifactCacheBuckConfig config = createFromText("[cache]", "mode = http");
+    assertFalse(config.getCoalesceStoresEnabled());
+
+    config =
+        createFromText(
+            "[cache]", "mode = http", "coalesce_stores = true", "coalesced_store_batch_size = 16");
+    assertTrue(config.getCoalesceStoresEnabled());
+    assertThat(config.getCoalescedStoreBatchSize(), Matchers.equalTo(16));
+  }
+
+  @Test
+  public void testArtifactCompression() throws IOException {
+    ArtifactCacheBuckConfig config = createFromText("[cache]");
+    assertThat(config.getArtifactCompressionLevel(), Matchers.equalTo(3));
+    assertThat(config.getArtifactCompressionThreads(), Matchers.equalTo(0));
+    assertFalse(config.getArtifactCompressionDictionary().isPresent());
+
+    config =
+        createFromText(
+            "[cache]", "artifact_compression_level = 19", "artifact_compression_threads = 4");
+    assertThat(config.getArtifactCompressionLevel(), Matchers.equalTo(19));
+    assertThat(config.getArtifactCompressionThreads(), Matchers.equalTo(4));
+  }
+
+  @Test
+  public void testMemoryCache() throws IOException {
+    ArtifactCacheBuckConfig config = createFromText("[cache]", "mode = dir, memory");
+    assertThat(
+        config.getArtifactCacheModes(),
+        Matchers.contains(ArtifactCacheMode.dir, ArtifactCacheMode.memory));
+    assertThat(config.getMemoryCacheMaxSize(), Matchers.equalTo(64 * 1024 * 1024L));
+    assertThat(config.getMemoryCacheMaxArtifactSize(), Matchers.equalTo(256 * 1024L));
+
+    config =
+        createFromText(
+            "[cache]", "mode = memory", "memory_max_size = 1mb", "memory_max_artifact_size = 4kb");
+    assertThat(config.getMemoryCacheMaxSize(), Matchers.equalTo(1024 * 1024L));
+    assertThat(config.getMemoryCacheMaxArtifactSize(), Matchers.equalTo(4 * 1024L));
+  }
+
   @Test
   public void testRepository() throws IOException {
     ArtifactCacheBuckConfig config = createFromText("[cache]", "repository = some_repo");
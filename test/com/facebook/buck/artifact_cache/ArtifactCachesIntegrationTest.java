@@ -670,7 +670,8 @@ public class ArtifactCachesIntegrationTest {
         managerScope,
         "test://",
         "myhostname",
-        clientCertificateHandler);
+        clientCertificateHandler,
+        Optional.empty());
   }
 
   class NotFoundHandler extends AbstractHandler {
@@ -52,6 +52,7 @@ public class ArtifactCachesTest {
   private TestBackgroundTaskManager bgTaskManager;
   private TaskManagerCommandScope managerScope;
   private UnconfiguredBuildTargetViewFactory unconfiguredBuildTargetFactory;
+  private Optional<MemoryArtifactStore> memoryArtifactStore = Optional.empty();
 
   @Before
   public void setUp() {
@@ -94,6 +95,26 @@ public class ArtifactCachesTest {
     managerScope.close();
   }
 
+  @Test
+  public void testCreateMemoryCacheInFrontOfDirCache() throws Exception {
+    ArtifactCacheBuckConfig cacheConfig =
+        ArtifactCacheBuckConfigTest.createFromText("[cache]", "mode = dir, memory");
+    memoryArtifactStore = Optional.of(MemoryArtifactStore.of(cacheConfig));
+    ProjectFilesystem projectFilesystem = new FakeProjectFilesystem();
+    BuckEventBus buckEventBus = BuckEventBusForTests.newInstance();
+    ArtifactCache artifactCache =
+        newArtifactCache(cacheConfig, projectFilesystem, buckEventBus, Optional.empty())
+            .newInstance();
+
+    ArtifactCache memoryCache = ((TwoLevelArtifactCacheDecorator) artifactCache).getDelegate();
+    assertThat(memoryCache, Matchers.instanceOf(MemoryArtifactCache.class));
+    assertThat(
+        stripDecorators(((MemoryArtifactCache) memoryCache).getDelegate()),
+        Matchers.instanceOf(DirArtifactCache.class));
+    artifactCache.close();
+    managerScope.close();
+  }
+
   @Test
   public void testCreateSQLiteCacheOnly() throws Exception {
     ArtifactCacheBuckConfig cacheConfig =
@@ -290,6 +311,7 @@ public class ArtifactCachesTest {
         managerScope,
         "test://",
         "hostname",
-        ClientCertificateHandler.fromConfiguration(cacheConfig));
+        ClientCertificateHandler.fromConfiguration(cacheConfig),
+        memoryArtifactStore);
   }
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.facebook.buck.util.unarchive.ExistingFileMode;
+import com.github.luben.zstd.ZstdDictTrainer;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class ArtifactCompressionTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private ProjectFilesystem source;
+  private ProjectFilesystem destination;
+  private Path archive;
+
+  @Before
+  public void setUp() throws IOException {
+    source = TestProjectFilesystems.createProjectFilesystem(tmp.newFolder("source"));
+    destination = TestProjectFilesystems.createProjectFilesystem(tmp.newFolder("destination"));
+    archive = tmp.getRoot().resolve("archive.tar.zst");
+  }
+
+  @Test
+  public void roundTripsWithWorkersAndLevel() throws IOException {
+    byte[] contents = randomText(4 * 1024 * 1024, 0);
+    source.writeBytesToPath(contents, Paths.get("file"));
+
+    ArtifactCompression compression = new ArtifactCompression(9, 2, Optional.empty());
+    long fullSize =
+        ArtifactUploader.compress(
+            source, ImmutableList.of(Paths.get("file")), archive, compression);
+
+    assertEquals(contents.length, fullSize);
+    assertTrue(compression.canDecompress(archive));
+    assertEquals(
+        ImmutableSet.of(Paths.get("file")),
+        compression
+            .getUnarchiver()
+            .extractArchive(archive, destination, ExistingFileMode.OVERWRITE));
+    assertArrayEquals(contents, Files.readAllBytes(destination.resolve("file")));
+  }
+
+  @Test
+  public void roundTripsWithDictionary() throws IOException {
+    byte[] contents = randomText(16 * 1024, 42);
+    source.writeBytesToPath(contents, Paths.get("file"));
+
+    ArtifactCompression compression = new ArtifactCompression(3, 0, Optional.of(trainDictionary()));
+    ArtifactUploader.compress(source, ImmutableList.of(Paths.get("file")), archive, compression);
+
+    assertTrue(compression.canDecompress(archive));
+    compression.getUnarchiver().extractArchive(archive, destination, ExistingFileMode.OVERWRITE);
+    assertArrayEquals(contents, Files.readAllBytes(destination.resolve("file")));
+  }
+
+  @Test
+  public void readersWithoutTheDictionaryCannotDecompress() throws IOException {
+    source.writeBytesToPath(randomText(16 * 1024, 42), Paths.get("file"));
+    ArtifactUploader.compress(
+        source,
+        ImmutableList.of(Paths.get("file")),
+        archive,
+        new ArtifactCompression(3, 0, Optional.of(trainDictionary())));
+
+    assertFalse(ArtifactCompression.DEFAULT.canDecompress(archive));
+  }
+
+  @Test
+  public void readersWithADictionaryCanDecompressArtifactsWithoutOne() throws IOException {
+    byte[] contents = randomText(16 * 1024, 42);
+    source.writeBytesToPath(contents, Paths.get("file"));
+    ArtifactUploader.compress(
+        source, ImmutableList.of(Paths.get("file")), archive, ArtifactCompression.DEFAULT);
+
+    ArtifactCompression compression = new ArtifactCompression(3, 0, Optional.of(trainDictionary()));
+    assertTrue(compression.canDecompress(archive));
+    compression.getUnarchiver().extractArchive(archive, destination, ExistingFileMode.OVERWRITE);
+    assertArrayEquals(contents, Files.readAllBytes(destination.resolve("file")));
+  }
+
+  private static byte[] trainDictionary() {
+    ZstdDictTrainer trainer = new ZstdDictTrainer(1024 * 1024, 16 * 1024);
+    for (int i = 0; i < 1000; i++) {
+      trainer.addSample(randomText(1024, i));
+    }
+    return trainer.trainSamples();
+  }
+
+  /** Text that compresses reasonably well, built from a small vocabulary. */
+  private static byte[] randomText(int size, long seed) {
+    String[] words = {"build", "rule", "cache", "artifact", "target", "java", "library", "deps"};
+    Random random = new Random(seed);
+    StringBuilder builder = new StringBuilder(size + 16);
+    while (builder.length() < size) {
+      builder.append(words[random.nextInt(words.length)]).append(' ');
+    }
+    builder.setLength(size);
+    return builder.toString().getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -133,7 +133,8 @@ public class ArtifactUploaderTest {
         ImmutableMap.of("metadata", "metadata", "build-metadata", "build-metadata"),
         ImmutableSortedSet.of(dir, file, dirFile, metadataFile),
         new FakeBuildRule(BUILD_TARGET, filesystem, TestBuildRuleParams.create()),
-        1000);
+        1000,
+        ArtifactCompression.DEFAULT);
 
     assertTrue(stored.get());
   }
@@ -151,7 +152,8 @@ public class ArtifactUploaderTest {
         ImmutableSet.of(PosixFilePermission.OWNER_EXECUTE));
 
     // Compress
-    ArtifactUploader.compress(fs, ImmutableList.of(file.getPath()), out.getPath());
+    ArtifactUploader.compress(
+        fs, ImmutableList.of(file.getPath()), out.getPath(), ArtifactCompression.DEFAULT);
 
     // Decompress+unarchive, and check that the only file is an executable.
     try (TarArchiveInputStream fin =
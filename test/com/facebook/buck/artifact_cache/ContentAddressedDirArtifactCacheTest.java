@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.artifact_cache.config.CacheReadMode;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.io.file.BorrowablePath;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.facebook.buck.util.timing.IncrementingFakeClock;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class ContentAddressedDirArtifactCacheTest {
+  @Rule public TemporaryPaths tmpDir = new TemporaryPaths();
+
+  private static final RuleKey RULE_KEY_A = new RuleKey("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa");
+  private static final RuleKey RULE_KEY_B = new RuleKey("bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb");
+  private static final RuleKey RULE_KEY_C = new RuleKey("cccccccccccccccccccccccccccccccccccccccc");
+
+  private Path cacheDir;
+  private ProjectFilesystem projectFilesystem;
+  private ContentAddressedDirArtifactCache cache;
+
+  @Before
+  public void setUp() throws IOException {
+    cacheDir = tmpDir.newFolder();
+    projectFilesystem = TestProjectFilesystems.createProjectFilesystem(tmpDir.getRoot());
+  }
+
+  @After
+  public void tearDown() {
+    if (cache != null) {
+      cache.close();
+    }
+  }
+
+  @Test
+  public void storeAndFetchHit() throws Exception {
+    cache = newCache(Optional.empty());
+    ImmutableMap<String, String> metadata = ImmutableMap.of("key", "value");
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(RULE_KEY_A).setMetadata(metadata).build(),
+        BorrowablePath.notBorrowablePath(newArtifact("a", "contents of a")));
+
+    Path output = tmpDir.getRoot().resolve("output");
+    CacheResult result =
+        Futures.getUnchecked(cache.fetchAsync(null, RULE_KEY_A, LazyPath.ofInstance(output)));
+
+    assertEquals(CacheResultType.HIT, result.getType());
+    assertEquals(metadata, result.getMetadata());
+    assertEquals("contents of a".length(), result.getArtifactSizeBytes());
+    assertEquals("contents of a", new String(Files.readAllBytes(output), UTF_8));
+  }
+
+  @Test
+  public void fetchMiss() {
+    cache = newCache(Optional.empty());
+    CacheResult result =
+        Futures.getUnchecked(
+            cache.fetchAsync(
+                null, RULE_KEY_A, LazyPath.ofInstance(tmpDir.getRoot().resolve("output"))));
+
+    assertEquals(CacheResultType.MISS, result.getType());
+  }
+
+  @Test
+  public void identicalArtifactsAreStoredOnce() throws Exception {
+    cache = newCache(Optional.empty());
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(RULE_KEY_A).build(),
+        BorrowablePath.notBorrowablePath(newArtifact("a", "same")));
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(RULE_KEY_B).build(),
+        BorrowablePath.borrowablePath(newArtifact("b", "same")));
+
+    assertEquals("same".length(), cache.getTotalBlobSize());
+    assertEquals(
+        ImmutableMap.of(
+            RULE_KEY_A, CacheResultType.CONTAINS,
+            RULE_KEY_B, CacheResultType.CONTAINS,
+            RULE_KEY_C, CacheResultType.MISS),
+        ImmutableMap.copyOf(
+            Futures.getUnchecked(
+                    cache.multiContainsAsync(ImmutableSet.of(RULE_KEY_A, RULE_KEY_B, RULE_KEY_C)))
+                .entrySet().stream()
+                .collect(
+                    ImmutableMap.toImmutableMap(
+                        e -> e.getKey(), e -> e.getValue().getType()))));
+  }
+
+  @Test
+  public void notBorrowableOutputIsLeftInPlace() throws Exception {
+    cache = newCache(Optional.empty());
+    Path artifact = newArtifact("a", "contents of a");
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(RULE_KEY_A).build(),
+        BorrowablePath.notBorrowablePath(artifact));
+
+    assertTrue(Files.exists(artifact));
+    assertTrue(projectFilesystem.exists(cache.getBlobPath(sha1("contents of a"))));
+  }
+
+  @Test
+  public void leastRecentlyUsedBlobsAreEvicted() throws Exception {
+    cache = newCache(Optional.of(14L));
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(RULE_KEY_A).build(),
+        BorrowablePath.notBorrowablePath(newArtifact("a", "aaaa")));
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(RULE_KEY_B).build(),
+        BorrowablePath.notBorrowablePath(newArtifact("b", "bbbbbbbb")));
+    // Using a makes b the least recently used blob.
+    Futures.getUnchecked(
+        cache.fetchAsync(null, RULE_KEY_A, LazyPath.ofInstance(tmpDir.getRoot().resolve("out"))));
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(RULE_KEY_C).build(),
+        BorrowablePath.notBorrowablePath(newArtifact("c", "cccc")));
+
+    cache.evictLeastRecentlyUsedBlobs();
+
+    assertEquals(8, cache.getTotalBlobSize());
+    assertFalse(projectFilesystem.exists(cache.getBlobPath(sha1("bbbbbbbb"))));
+    assertEquals(
+        CacheResultType.MISS,
+        Futures.getUnchecked(
+                cache.fetchAsync(
+                    null, RULE_KEY_B, LazyPath.ofInstance(tmpDir.getRoot().resolve("out"))))
+            .getType());
+    assertTrue(projectFilesystem.exists(cache.getBlobPath(sha1("aaaa"))));
+    assertTrue(projectFilesystem.exists(cache.getBlobPath(sha1("cccc"))));
+  }
+
+  @Test
+  public void indexIsSharedBetweenInstances() throws Exception {
+    cache = newCache(Optional.empty());
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(RULE_KEY_A).build(),
+        BorrowablePath.notBorrowablePath(newArtifact("a", "contents of a")));
+    cache.close();
+
+    cache = newCache(Optional.empty());
+    assertEquals(
+        CacheResultType.HIT,
+        Futures.getUnchecked(
+                cache.fetchAsync(
+                    null, RULE_KEY_A, LazyPath.ofInstance(tmpDir.getRoot().resolve("out"))))
+            .getType());
+  }
+
+  @Test
+  public void missingBlobIsAMiss() throws Exception {
+    cache = newCache(Optional.empty());
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(RULE_KEY_A).build(),
+        BorrowablePath.notBorrowablePath(newArtifact("a", "contents of a")));
+    projectFilesystem.deleteFileAtPath(cache.getBlobPath(sha1("contents of a")));
+
+    assertEquals(
+        CacheResultType.MISS,
+        Futures.getUnchecked(
+                cache.fetchAsync(
+                    null, RULE_KEY_A, LazyPath.ofInstance(tmpDir.getRoot().resolve("out"))))
+            .getType());
+  }
+
+  @Test
+  public void readOnlyCacheDoesNotStore() throws Exception {
+    cache = newCache(Optional.empty(), CacheReadMode.READONLY);
+    cache.store(
+        ArtifactInfo.builder().addRuleKeys(RULE_KEY_A).build(),
+        BorrowablePath.notBorrowablePath(newArtifact("a", "contents of a")));
+
+    assertEquals(0, cache.getTotalBlobSize());
+  }
+
+  private ContentAddressedDirArtifactCache newCache(Optional<Long> maxCacheSizeBytes) {
+    return newCache(maxCacheSizeBytes, CacheReadMode.READWRITE);
+  }
+
+  private ContentAddressedDirArtifactCache newCache(
+      Optional<Long> maxCacheSizeBytes, CacheReadMode cacheReadMode) {
+    try {
+      return new ContentAddressedDirArtifactCache(
+          "dir",
+          projectFilesystem,
+          cacheDir,
+          cacheReadMode,
+          maxCacheSizeBytes,
+          MoreExecutors.newDirectExecutorService(),
+          new IncrementingFakeClock(TimeUnit.MILLISECONDS.toNanos(1)));
+    } catch (IOException | SQLException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private Path newArtifact(String name, String contents) throws IOException {
+    Path path = tmpDir.newFile(name);
+    Files.write(path, contents.getBytes(UTF_8));
+    return path;
+  }
+
+  private static HashCode sha1(String contents) {
+    return Hashing.sha1().hashString(contents, UTF_8);
+  }
+}
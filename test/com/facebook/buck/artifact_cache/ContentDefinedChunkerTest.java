@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Bytes;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+public class ContentDefinedChunkerTest {
+
+  private static final ContentDefinedChunker CHUNKER = new ContentDefinedChunker(256, 1024, 8192);
+
+  @Test
+  public void chunksConcatenateToInput() throws IOException {
+    byte[] data = randomBytes(1, 100_000);
+    ByteArrayOutputStream concatenated = new ByteArrayOutputStream();
+    CHUNKER.split(new ByteArrayInputStream(data), concatenated::write);
+    assertArrayEquals(data, concatenated.toByteArray());
+  }
+
+  @Test
+  public void chunkSizesStayWithinBounds() throws IOException {
+    List<Integer> sizes = new ArrayList<>();
+    CHUNKER.split(
+        new ByteArrayInputStream(randomBytes(2, 200_000)),
+        (buffer, offset, length) -> sizes.add(length));
+    for (int size : sizes.subList(0, sizes.size() - 1)) {
+      assertThat(size, Matchers.allOf(Matchers.greaterThan(256), Matchers.lessThanOrEqualTo(8192)));
+    }
+    int average = 200_000 / sizes.size();
+    assertThat(average, Matchers.allOf(Matchers.greaterThan(512), Matchers.lessThan(2048)));
+  }
+
+  @Test
+  public void constantInputIsCutAtMaxSize() throws IOException {
+    List<Integer> sizes = new ArrayList<>();
+    CHUNKER.split(
+        new ByteArrayInputStream(new byte[20_000]), (buffer, offset, length) -> sizes.add(length));
+    assertEquals(8192, (int) sizes.get(0));
+    assertEquals(8192, (int) sizes.get(1));
+    assertEquals(20_000 - 2 * 8192, (int) sizes.get(2));
+  }
+
+  @Test
+  public void insertionOnlyChangesNearbyChunks() throws IOException {
+    byte[] original = randomBytes(3, 200_000);
+    byte[] edited =
+        Bytes.concat(
+            Arrays.copyOfRange(original, 0, 100_000),
+            randomBytes(4, 100),
+            Arrays.copyOfRange(original, 100_000, original.length));
+
+    Set<HashCode> originalChunks = chunkHashes(original);
+    Set<HashCode> editedChunks = chunkHashes(edited);
+    Set<HashCode> newChunks = new HashSet<>(editedChunks);
+    newChunks.removeAll(originalChunks);
+
+    assertTrue(
+        "Only the chunks around the insertion should change, got " + newChunks.size(),
+        newChunks.size() <= 3);
+  }
+
+  private static Set<HashCode> chunkHashes(byte[] data) throws IOException {
+    Set<HashCode> hashes = new HashSet<>();
+    CHUNKER.split(
+        new ByteArrayInputStream(data),
+        (buffer, offset, length) -> hashes.add(Hashing.sha1().hashBytes(buffer, offset, length)));
+    return hashes;
+  }
+
+  private static byte[] randomBytes(long seed, int size) {
+    byte[] bytes = new byte[size];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+}
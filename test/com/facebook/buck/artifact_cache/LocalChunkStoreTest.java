@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.facebook.buck.util.timing.IncrementingFakeClock;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class LocalChunkStoreTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private LocalChunkStore store;
+
+  @Before
+  public void setUp() {
+    store =
+        new LocalChunkStore(
+            tmp.getRoot().resolve("chunks"),
+            28,
+            new IncrementingFakeClock(TimeUnit.SECONDS.toNanos(1)));
+  }
+
+  @Test
+  public void putChunkCanBeRead() throws IOException {
+    byte[] chunk = "0123456789".getBytes(StandardCharsets.UTF_8);
+    String hash = Hashing.sha1().hashBytes(chunk).toString();
+    assertFalse(store.get(hash).isPresent());
+
+    store.put(hash, chunk, 0, chunk.length);
+    assertEquals("0123456789", new String(Files.readAllBytes(store.get(hash).get()), "UTF-8"));
+  }
+
+  @Test
+  public void commitVerifiedRejectsCorruptChunks() throws IOException {
+    Path tmpFile = store.newTempFile();
+    Files.write(tmpFile, "corrupt".getBytes(StandardCharsets.UTF_8));
+    String hash = Hashing.sha1().hashBytes("expected".getBytes(StandardCharsets.UTF_8)).toString();
+    try {
+      store.commitVerified(tmpFile, hash);
+      throw new AssertionError("Expected the chunk to be rejected.");
+    } catch (IOException e) {
+      // Expected.
+    }
+    assertFalse(Files.exists(tmpFile));
+    assertFalse(store.get(hash).isPresent());
+  }
+
+  @Test
+  public void trimEvictsLeastRecentlyUsedChunks() throws IOException {
+    String a = putChunk("aaaaaaaaaa");
+    String b = putChunk("bbbbbbbbbb");
+    String c = putChunk("cccccccccc");
+    // Using a makes b the least recently used chunk.
+    store.get(a);
+
+    store.trim();
+
+    assertTrue(store.get(a).isPresent());
+    assertFalse(store.get(b).isPresent());
+    assertTrue(store.get(c).isPresent());
+  }
+
+  @Test
+  public void trimOnlyListsChunksOnceTheRecordedSizeIsExceeded() throws IOException {
+    String a = putChunk("aaaaaaaaaa");
+    store.trim();
+    // A chunk the recorded size does not know about, e.g. stored by a concurrent build.
+    Path untracked = tmp.getRoot().resolve("chunks").resolve("ff").resolve("ff");
+    Files.createDirectories(untracked.getParent());
+    Files.write(untracked, new byte[20]);
+    Files.setLastModifiedTime(untracked, FileTime.fromMillis(0));
+
+    String b = putChunk("bbbbbbbbbb");
+    store.trim();
+    assertTrue(Files.exists(untracked));
+
+    String c = putChunk("cccccccccc");
+    store.trim();
+    assertFalse(Files.exists(untracked));
+    assertFalse(store.get(a).isPresent());
+    assertTrue(store.get(b).isPresent());
+    assertTrue(store.get(c).isPresent());
+  }
+
+  private String putChunk(String contents) throws IOException {
+    byte[] chunk = contents.getBytes(StandardCharsets.UTF_8);
+    String hash = Hashing.sha1().hashBytes(chunk).toString();
+    store.put(hash, chunk, 0, chunk.length);
+    return hash;
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.io.file.BorrowablePath;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class MemoryArtifactCacheTest {
+
+  private static final RuleKey RULE_KEY = new RuleKey("aaaa");
+  private static final ImmutableMap<String, String> METADATA = ImmutableMap.of("key", "value");
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private InMemoryArtifactCache delegate;
+  private MemoryArtifactStore store;
+
+  @Before
+  public void setUp() {
+    delegate = new InMemoryArtifactCache();
+    store = new MemoryArtifactStore(1024 * 1024, 1024);
+  }
+
+  @Test
+  public void fetchedArtifactsAreServedFromMemoryAcrossCaches() throws Exception {
+    byte[] data = "artifact".getBytes();
+    delegate.store(
+        ArtifactInfo.builder().addRuleKeys(RULE_KEY).setMetadata(METADATA).build(), data);
+
+    CacheResult first = fetch(new MemoryArtifactCache(store, delegate), RULE_KEY);
+    assertEquals(ArtifactCacheMode.dir, first.cacheMode().get());
+
+    // A cache created for the next command, with a delegate that no longer has the artifact.
+    MemoryArtifactCache next = new MemoryArtifactCache(store, new InMemoryArtifactCache());
+    Path output = tmp.newFile();
+    CacheResult second = next.fetchAsync(null, RULE_KEY, LazyPath.ofInstance(output)).get();
+    assertEquals(CacheResultType.HIT, second.getType());
+    assertEquals(ArtifactCacheMode.memory, second.cacheMode().get());
+    assertEquals(METADATA, second.getMetadata());
+    assertArrayEquals(data, Files.readAllBytes(output));
+    assertEquals(1, store.getStats().hitCount());
+  }
+
+  @Test
+  public void storedArtifactsAreKeptUnderAllRuleKeys() throws Exception {
+    RuleKey otherKey = new RuleKey("bbbb");
+    Path artifact = tmp.newFile();
+    Files.write(artifact, "artifact".getBytes());
+    MemoryArtifactCache cache = new MemoryArtifactCache(store, delegate);
+
+    cache
+        .store(
+            ArtifactInfo.builder().addRuleKeys(RULE_KEY, otherKey).setMetadata(METADATA).build(),
+            BorrowablePath.borrowablePath(artifact))
+        .get();
+
+    assertTrue(delegate.hasArtifact(RULE_KEY));
+    assertEquals(ArtifactCacheMode.memory, fetch(cache, RULE_KEY).cacheMode().get());
+    assertEquals(ArtifactCacheMode.memory, fetch(cache, otherKey).cacheMode().get());
+  }
+
+  @Test
+  public void largeArtifactsAreNotKept() throws Exception {
+    delegate.store(
+        ArtifactInfo.builder().addRuleKeys(RULE_KEY).setMetadata(METADATA).build(), new byte[2048]);
+    MemoryArtifactCache cache = new MemoryArtifactCache(store, delegate);
+
+    fetch(cache, RULE_KEY);
+
+    assertEquals(ArtifactCacheMode.dir, fetch(cache, RULE_KEY).cacheMode().get());
+    assertEquals(0, store.size());
+  }
+
+  @Test
+  public void leastRecentlyUsedArtifactsAreEvictedBySize() throws Exception {
+    MemoryArtifactStore small = new MemoryArtifactStore(4 * 1024, 1024);
+    for (int i = 0; i < 64; i++) {
+      small.put(
+          ImmutableList.of(new RuleKey(String.format("%04x", i))),
+          new MemoryArtifactStore.Artifact(METADATA, new byte[1000]));
+    }
+    assertTrue(small.size() < 64);
+    assertTrue(small.getStats().evictionCount() > 0);
+  }
+
+  @Test
+  public void deletedArtifactsAreForgotten() throws Exception {
+    delegate.store(
+        ArtifactInfo.builder().addRuleKeys(RULE_KEY).setMetadata(METADATA).build(), new byte[8]);
+    MemoryArtifactCache cache = new MemoryArtifactCache(store, delegate);
+    fetch(cache, RULE_KEY);
+
+    cache.deleteAsync(ImmutableList.of(RULE_KEY)).get();
+
+    assertFalse(store.get(RULE_KEY).isPresent());
+    assertEquals(CacheResultType.MISS, fetch(cache, RULE_KEY).getType());
+  }
+
+  private CacheResult fetch(ArtifactCache cache, RuleKey ruleKey) throws Exception {
+    return cache.fetchAsync(null, ruleKey, LazyPath.ofInstance(tmp.newFile())).get();
+  }
+}
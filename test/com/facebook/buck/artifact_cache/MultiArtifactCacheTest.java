@@ -38,8 +38,10 @@ import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -429,4 +431,50 @@ public class MultiArtifactCacheTest {
 
     multiArtifactCache.close();
   }
+
+  @Test
+  public void payloadFileIsOnlyRequiredWhenHitsAreStoredToPreviousCaches() throws IOException {
+    List<Boolean> required = new ArrayList<>();
+    class RecordingArtifactCache extends NoopArtifactCache {
+      @Override
+      public ListenableFuture<CacheResult> fetchAsync(
+          BuildTarget target, RuleKey ruleKey, LazyPath output) {
+        required.add(StreamingLazyPath.isPayloadFileRequired(output));
+        return Futures.immediateFuture(CacheResult.miss());
+      }
+    }
+    StreamingLazyPath output =
+        new StreamingLazyPath() {
+          @Override
+          protected Path create() {
+            return tmp.getRoot().resolve("artifact");
+          }
+
+          @Override
+          protected OutputStream teePayload(OutputStream payloadSink) {
+            return payloadSink;
+          }
+
+          @Override
+          protected void payloadVerified() {}
+        };
+    MultiArtifactCache multiArtifactCache =
+        new MultiArtifactCache(
+            ImmutableList.of(
+                new RecordingArtifactCache(),
+                new RecordingArtifactCache() {
+                  @Override
+                  public CacheReadMode getCacheReadMode() {
+                    return CacheReadMode.READWRITE;
+                  }
+                },
+                new RecordingArtifactCache()));
+
+    Futures.getUnchecked(multiArtifactCache.fetchAsync(null, dummyRuleKey, output));
+
+    // Only the hits of the last cache are stored to the writable cache before it.
+    assertEquals(ImmutableList.of(false, false, true), required);
+
+    multiArtifactCache.close();
+  }
 }
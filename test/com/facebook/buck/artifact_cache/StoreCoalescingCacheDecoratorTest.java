@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
+import com.facebook.buck.artifact_cache.config.CacheReadMode;
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.event.BuckEventBusForTests;
+import com.facebook.buck.io.file.BorrowablePath;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.facebook.buck.util.types.Pair;
+import com.facebook.buck.util.types.Unit;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class StoreCoalescingCacheDecoratorTest {
+
+  private static final RuleKey KEY_A = new RuleKey("aaaa");
+  private static final RuleKey KEY_B = new RuleKey("bbbb");
+  private static final RuleKey KEY_C = new RuleKey("cccc");
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private BorrowablePath output;
+  private RecordingArtifactCache delegate;
+
+  @Before
+  public void setUp() throws IOException {
+    output = BorrowablePath.notBorrowablePath(tmp.newFile());
+    delegate = new RecordingArtifactCache();
+  }
+
+  private StoreCoalescingCacheDecorator newCache(int maxConcurrentBatches) {
+    return new StoreCoalescingCacheDecorator(
+        delegate, BuckEventBusForTests.newInstance(), 64, maxConcurrentBatches);
+  }
+
+  private static ArtifactInfo info(RuleKey ruleKey) {
+    return ArtifactInfo.builder().addRuleKeys(ruleKey).build();
+  }
+
+  @Test
+  public void repeatedStoresAreUploadedOnce() {
+    StoreCoalescingCacheDecorator cache = newCache(1);
+    delegate.completeStoresImmediately = true;
+
+    Futures.getUnchecked(cache.store(info(KEY_A), output));
+    Futures.getUnchecked(cache.store(info(KEY_A), output));
+
+    assertEquals(ImmutableList.of(KEY_A), delegate.stored);
+  }
+
+  @Test
+  public void overlappingStoreWaitsForTheUploadInFlight() {
+    StoreCoalescingCacheDecorator cache = newCache(2);
+
+    ListenableFuture<Unit> first = cache.store(info(KEY_A), output);
+    ListenableFuture<Unit> second =
+        cache.store(
+            ImmutableList.of(new Pair<>(info(KEY_A), output), new Pair<>(info(KEY_B), output)));
+
+    // B is stored after A, which is already being uploaded by the first store.
+    assertEquals(ImmutableList.of(KEY_A), delegate.stored);
+    assertFalse(second.isDone());
+
+    delegate.completeStores();
+    assertTrue(first.isDone());
+    assertEquals(ImmutableList.of(KEY_A, KEY_B), delegate.stored);
+
+    delegate.completeStores();
+    assertTrue(second.isDone());
+  }
+
+  @Test
+  public void artifactsTheCacheContainsAreSkipped() {
+    StoreCoalescingCacheDecorator cache = newCache(1);
+    delegate.completeStoresImmediately = true;
+    delegate.contained.add(KEY_A);
+
+    Futures.getUnchecked(cache.store(info(KEY_A), output));
+    Futures.getUnchecked(cache.store(info(KEY_B), output));
+
+    assertEquals(ImmutableList.of(KEY_B), delegate.stored);
+  }
+
+  @Test
+  public void storesEverythingWhenMultiContainsIsUnsupported() {
+    StoreCoalescingCacheDecorator cache = newCache(1);
+    delegate.completeStoresImmediately = true;
+    delegate.supportsMultiContains = false;
+    delegate.contained.add(KEY_A);
+
+    Futures.getUnchecked(cache.store(info(KEY_A), output));
+    Futures.getUnchecked(cache.store(info(KEY_B), output));
+
+    assertEquals(ImmutableList.of(KEY_A, KEY_B), delegate.stored);
+    assertEquals(1, delegate.containsRequests.size());
+  }
+
+  @Test
+  public void storesQueuedBehindABatchAreCheckedTogether() {
+    StoreCoalescingCacheDecorator cache = newCache(1);
+
+    ListenableFuture<Unit> first = cache.store(info(KEY_A), output);
+    ListenableFuture<Unit> second = cache.store(info(KEY_B), output);
+    ListenableFuture<Unit> third = cache.store(info(KEY_C), output);
+    assertEquals(ImmutableList.of(KEY_A), delegate.stored);
+
+    delegate.completeStores();
+    assertTrue(first.isDone());
+    assertEquals(ImmutableList.of(KEY_A, KEY_B, KEY_C), delegate.stored);
+    assertEquals(
+        ImmutableList.of(ImmutableSet.of(KEY_A), ImmutableSet.of(KEY_B, KEY_C)),
+        delegate.containsRequests);
+
+    delegate.completeStores();
+    assertTrue(second.isDone());
+    assertTrue(third.isDone());
+  }
+
+  @Test
+  public void failedStoresAreRetried() {
+    StoreCoalescingCacheDecorator cache = newCache(1);
+
+    ListenableFuture<Unit> first = cache.store(info(KEY_A), output);
+    delegate.failStores();
+    assertTrue(first.isDone());
+
+    delegate.completeStoresImmediately = true;
+    Futures.getUnchecked(cache.store(info(KEY_A), output));
+    assertEquals(ImmutableList.of(KEY_A, KEY_A), delegate.stored);
+  }
+
+  /** Records stores and completes them when the test says so. */
+  private static class RecordingArtifactCache implements ArtifactCache {
+    private final List<RuleKey> stored = new ArrayList<>();
+    private final List<ImmutableSet<RuleKey>> containsRequests = new ArrayList<>();
+    private final Set<RuleKey> contained = new HashSet<>();
+    private final List<SettableFuture<Unit>> pendingStores = new ArrayList<>();
+    private boolean completeStoresImmediately = false;
+    private boolean supportsMultiContains = true;
+
+    void completeStores() {
+      for (SettableFuture<Unit> store : drainPendingStores()) {
+        store.set(Unit.UNIT);
+      }
+    }
+
+    void failStores() {
+      for (SettableFuture<Unit> store : drainPendingStores()) {
+        store.setException(new IOException("store failed"));
+      }
+    }
+
+    private List<SettableFuture<Unit>> drainPendingStores() {
+      List<SettableFuture<Unit>> stores = new ArrayList<>(pendingStores);
+      pendingStores.clear();
+      return stores;
+    }
+
+    @Override
+    public ListenableFuture<CacheResult> fetchAsync(
+        BuildTarget target, RuleKey ruleKey, LazyPath output) {
+      return Futures.immediateFuture(CacheResult.miss());
+    }
+
+    @Override
+    public void skipPendingAndFutureAsyncFetches() {}
+
+    @Override
+    public ListenableFuture<Unit> store(ArtifactInfo info, BorrowablePath output) {
+      return store(ImmutableList.of(new Pair<>(info, output)));
+    }
+
+    @Override
+    public ListenableFuture<Unit> store(
+        ImmutableList<Pair<ArtifactInfo, BorrowablePath>> artifacts) {
+      for (Pair<ArtifactInfo, BorrowablePath> artifact : artifacts) {
+        stored.addAll(artifact.getFirst().getRuleKeys());
+      }
+      if (completeStoresImmediately) {
+        return Futures.immediateFuture(Unit.UNIT);
+      }
+      SettableFuture<Unit> future = SettableFuture.create();
+      pendingStores.add(future);
+      return future;
+    }
+
+    @Override
+    public ListenableFuture<ImmutableMap<RuleKey, CacheResult>> multiContainsAsync(
+        ImmutableSet<RuleKey> ruleKeys) {
+      containsRequests.add(ruleKeys);
+      if (!supportsMultiContains) {
+        throw new UnsupportedOperationException("multiContains is not supported");
+      }
+      return Futures.immediateFuture(
+          ImmutableMap.copyOf(
+              Maps.toMap(
+                  ruleKeys,
+                  ruleKey ->
+                      contained.contains(ruleKey)
+                          ? CacheResult.contains("recording", ArtifactCacheMode.http)
+                          : CacheResult.miss())));
+    }
+
+    @Override
+    public ListenableFuture<CacheDeleteResult> deleteAsync(List<RuleKey> ruleKeys) {
+      return Futures.immediateFuture(CacheDeleteResult.of(ImmutableList.of()));
+    }
+
+    @Override
+    public CacheReadMode getCacheReadMode() {
+      return CacheReadMode.READWRITE;
+    }
+
+    @Override
+    public void close() {}
+  }
+}
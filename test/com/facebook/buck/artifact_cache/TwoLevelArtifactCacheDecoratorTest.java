@@ -16,20 +16,35 @@
 
 package com.facebook.buck.artifact_cache;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertThat;
 
+import com.facebook.buck.core.model.BuildTarget;
 import com.facebook.buck.core.rulekey.RuleKey;
 import com.facebook.buck.event.BuckEventBusForTests;
 import com.facebook.buck.io.file.BorrowablePath;
 import com.facebook.buck.io.file.LazyPath;
 import com.facebook.buck.io.filesystem.TestProjectFilesystems;
 import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Bytes;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 import org.hamcrest.Matchers;
 import org.junit.Rule;
 import org.junit.Test;
@@ -209,4 +224,249 @@ public class TwoLevelArtifactCacheDecoratorTest {
           Matchers.equalTo(CacheResultType.HIT));
     }
   }
+
+  private TwoLevelArtifactCacheDecorator newChunkedCache(ArtifactCache delegate, Path root) {
+    return new TwoLevelArtifactCacheDecorator(
+        delegate,
+        TestProjectFilesystems.createProjectFilesystem(root),
+        BuckEventBusForTests.newInstance(),
+        /* performTwoLevelStores */ true,
+        /* minimumTwoLevelStoredArtifactSize */ 0L,
+        /* maximumTwoLevelStoredArtifactSize */ Optional.empty(),
+        /* chunkAverageSize */ Optional.of(1024),
+        /* chunkStoreMaxSize */ TwoLevelArtifactCacheDecorator.DEFAULT_CHUNK_STORE_MAX_SIZE,
+        ArtifactCompression.DEFAULT);
+  }
+
+  private static byte[] randomBytes(long seed, int size) {
+    byte[] bytes = new byte[size];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static byte[] insertBytes(byte[] data, int offset, byte[] inserted) {
+    return Bytes.concat(
+        Arrays.copyOfRange(data, 0, offset),
+        inserted,
+        Arrays.copyOfRange(data, offset, data.length));
+  }
+
+  @Test
+  public void testChunkedStoreAndFetch() throws IOException {
+    byte[] data = randomBytes(1, 50_000);
+    try (InMemoryArtifactCache inMemoryArtifactCache = new InMemoryArtifactCache();
+        TwoLevelArtifactCacheDecorator twoLevelCache =
+            newChunkedCache(inMemoryArtifactCache, tmp.newFolder())) {
+      Path input = tmp.newFile();
+      Files.write(input, data);
+      twoLevelCache.store(
+          ArtifactInfo.builder().addRuleKeys(dummyRuleKey).build(),
+          BorrowablePath.notBorrowablePath(input));
+      assertThat(inMemoryArtifactCache.getArtifactCount(), Matchers.greaterThan(10));
+
+      LazyPath output = LazyPath.ofInstance(tmp.newFile());
+      CacheResult cacheResult =
+          Futures.getUnchecked(twoLevelCache.fetchAsync(null, dummyRuleKey, output));
+      assertThat(cacheResult.getType(), Matchers.equalTo(CacheResultType.HIT));
+      assertThat(
+          cacheResult.getMetadata().keySet(),
+          Matchers.not(Matchers.contains(TwoLevelArtifactCacheDecorator.CHUNKS_METADATA_KEY)));
+      assertArrayEquals(data, Files.readAllBytes(output.get()));
+    }
+  }
+
+  @Test
+  public void testChunkedStoreOnlyUploadsChangedChunks() throws IOException {
+    byte[] data = randomBytes(2, 50_000);
+    try (InMemoryArtifactCache inMemoryArtifactCache = new InMemoryArtifactCache();
+        TwoLevelArtifactCacheDecorator twoLevelCache =
+            newChunkedCache(inMemoryArtifactCache, tmp.newFolder())) {
+      Path input = tmp.newFile();
+      Files.write(input, data);
+      twoLevelCache.store(
+          ArtifactInfo.builder().addRuleKeys(dummyRuleKey).build(),
+          BorrowablePath.notBorrowablePath(input));
+      int artifactCount = inMemoryArtifactCache.getArtifactCount();
+
+      Files.write(input, insertBytes(data, 25_000, randomBytes(3, 10)));
+      twoLevelCache.store(
+          ArtifactInfo.builder().addRuleKeys(dummyRuleKey2).build(),
+          BorrowablePath.notBorrowablePath(input));
+
+      // The new first-level entry, plus the chunks around the insertion.
+      assertThat(
+          inMemoryArtifactCache.getArtifactCount() - artifactCount,
+          Matchers.lessThanOrEqualTo(1 + 3));
+    }
+  }
+
+  private static byte[] compressibleBytes(long seed, int size) {
+    String[] words = {"buck ", "rule ", "key ", "cache ", "artifact ", "chunk ", "\n"};
+    Random random = new Random(seed);
+    StringBuilder builder = new StringBuilder(size);
+    while (builder.length() < size) {
+      builder.append(words[random.nextInt(words.length)]).append(random.nextInt(100));
+    }
+    return builder.substring(0, size).getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static void writeCompressed(Path path, byte[] data) throws IOException {
+    try (OutputStream out = ArtifactCompression.DEFAULT.compress(Files.newOutputStream(path))) {
+      out.write(data);
+    }
+  }
+
+  private static byte[] readCompressed(Path path) throws IOException {
+    try (InputStream in = ArtifactCompression.DEFAULT.decompress(Files.newInputStream(path))) {
+      return ByteStreams.toByteArray(in);
+    }
+  }
+
+  @Test
+  public void testChunkedStoreOfCompressedArtifactReusesChunksAfterAnEdit() throws IOException {
+    byte[] data = compressibleBytes(8, 200_000);
+    try (InMemoryArtifactCache inMemoryArtifactCache = new InMemoryArtifactCache();
+        TwoLevelArtifactCacheDecorator writer =
+            newChunkedCache(inMemoryArtifactCache, tmp.newFolder());
+        TwoLevelArtifactCacheDecorator reader =
+            newChunkedCache(inMemoryArtifactCache, tmp.newFolder())) {
+      Path input = tmp.newFile();
+      writeCompressed(input, data);
+      writer.store(
+          ArtifactInfo.builder().addRuleKeys(dummyRuleKey).build(),
+          BorrowablePath.notBorrowablePath(input));
+      int artifactCount = inMemoryArtifactCache.getArtifactCount();
+      assertThat(artifactCount, Matchers.greaterThan(20));
+
+      byte[] edited = insertBytes(data, 100_000, "edited".getBytes(StandardCharsets.UTF_8));
+      writeCompressed(input, edited);
+      writer.store(
+          ArtifactInfo.builder().addRuleKeys(dummyRuleKey2).build(),
+          BorrowablePath.notBorrowablePath(input));
+
+      // The new first-level entry, plus the chunks around the edit. Every chunk after it is the
+      // same as before, even though the compressed artifact differs from there on.
+      assertThat(
+          inMemoryArtifactCache.getArtifactCount() - artifactCount,
+          Matchers.lessThanOrEqualTo(1 + 3));
+
+      LazyPath output = LazyPath.ofInstance(tmp.newFile());
+      assertThat(
+          Futures.getUnchecked(reader.fetchAsync(null, dummyRuleKey2, output)).getType(),
+          Matchers.equalTo(CacheResultType.HIT));
+      assertArrayEquals(edited, readCompressed(output.get()));
+    }
+  }
+
+  @Test
+  public void testChunkedFetchReusesLocalChunks() throws IOException {
+    byte[] data = randomBytes(4, 50_000);
+    AtomicInteger fetches = new AtomicInteger();
+    try (InMemoryArtifactCache inMemoryArtifactCache =
+            new InMemoryArtifactCache() {
+              @Override
+              public ListenableFuture<CacheResult> fetchAsync(
+                  BuildTarget target, RuleKey ruleKey, LazyPath output) {
+                fetches.incrementAndGet();
+                return super.fetchAsync(target, ruleKey, output);
+              }
+            };
+        TwoLevelArtifactCacheDecorator writer =
+            newChunkedCache(inMemoryArtifactCache, tmp.newFolder());
+        TwoLevelArtifactCacheDecorator reader =
+            newChunkedCache(inMemoryArtifactCache, tmp.newFolder())) {
+      Path input = tmp.newFile();
+      Files.write(input, data);
+      writer.store(
+          ArtifactInfo.builder().addRuleKeys(dummyRuleKey).build(),
+          BorrowablePath.notBorrowablePath(input));
+      byte[] edited = insertBytes(data, 25_000, randomBytes(5, 10));
+      Files.write(input, edited);
+      writer.store(
+          ArtifactInfo.builder().addRuleKeys(dummyRuleKey2).build(),
+          BorrowablePath.notBorrowablePath(input));
+
+      LazyPath output = LazyPath.ofInstance(tmp.newFile());
+      assertThat(
+          Futures.getUnchecked(reader.fetchAsync(null, dummyRuleKey, output)).getType(),
+          Matchers.equalTo(CacheResultType.HIT));
+      assertArrayEquals(data, Files.readAllBytes(output.get()));
+
+      fetches.set(0);
+      assertThat(
+          Futures.getUnchecked(reader.fetchAsync(null, dummyRuleKey2, output)).getType(),
+          Matchers.equalTo(CacheResultType.HIT));
+      assertArrayEquals(edited, Files.readAllBytes(output.get()));
+      // The first-level entry, plus the chunks around the insertion.
+      assertThat(fetches.get(), Matchers.lessThanOrEqualTo(1 + 3));
+    }
+  }
+
+  @Test
+  public void testMissingChunkIsAMiss() throws IOException {
+    byte[] data = randomBytes(6, 50_000);
+    try (InMemoryArtifactCache inMemoryArtifactCache = new InMemoryArtifactCache();
+        TwoLevelArtifactCacheDecorator writer =
+            newChunkedCache(inMemoryArtifactCache, tmp.newFolder());
+        TwoLevelArtifactCacheDecorator reader =
+            newChunkedCache(inMemoryArtifactCache, tmp.newFolder())) {
+      Path input = tmp.newFile();
+      Files.write(input, data);
+      writer.store(
+          ArtifactInfo.builder().addRuleKeys(dummyRuleKey).build(),
+          BorrowablePath.notBorrowablePath(input));
+
+      String chunks =
+          Futures.getUnchecked(
+                  inMemoryArtifactCache.fetchAsync(
+                      null, dummyRuleKey, LazyPath.ofInstance(tmp.newFile())))
+              .getMetadata()
+              .get(TwoLevelArtifactCacheDecorator.CHUNKS_METADATA_KEY);
+      String firstChunk = chunks.substring(0, chunks.indexOf(':'));
+      inMemoryArtifactCache.deleteAsync(ImmutableList.of(new RuleKey(firstChunk + "2c01")));
+
+      assertThat(
+          Futures.getUnchecked(
+                  reader.fetchAsync(null, dummyRuleKey, LazyPath.ofInstance(tmp.newFile())))
+              .getType(),
+          Matchers.equalTo(CacheResultType.MISS));
+    }
+  }
+
+  @Test
+  public void testChunkedEntryIsReadWithoutKeepingChunksWhenChunkingIsDisabled()
+      throws IOException {
+    byte[] data = randomBytes(7, 50_000);
+    Path readerRoot = tmp.newFolder();
+    try (InMemoryArtifactCache inMemoryArtifactCache = new InMemoryArtifactCache();
+        TwoLevelArtifactCacheDecorator writer =
+            newChunkedCache(inMemoryArtifactCache, tmp.newFolder());
+        TwoLevelArtifactCacheDecorator reader =
+            new TwoLevelArtifactCacheDecorator(
+                inMemoryArtifactCache,
+                TestProjectFilesystems.createProjectFilesystem(readerRoot),
+                BuckEventBusForTests.newInstance(),
+                /* performTwoLevelStores */ true,
+                /* minimumTwoLevelStoredArtifactSize */ 0L,
+                /* maximumTwoLevelStoredArtifactSize */ Optional.empty())) {
+      Path input = tmp.newFile();
+      Files.write(input, data);
+      writer.store(
+          ArtifactInfo.builder().addRuleKeys(dummyRuleKey).build(),
+          BorrowablePath.notBorrowablePath(input));
+
+      LazyPath output = LazyPath.ofInstance(tmp.newFile());
+      assertThat(
+          Futures.getUnchecked(reader.fetchAsync(null, dummyRuleKey, output)).getType(),
+          Matchers.equalTo(CacheResultType.HIT));
+      assertArrayEquals(data, Files.readAllBytes(output.get()));
+
+      Path buckOut = readerRoot.resolve("buck-out");
+      assertFalse(
+          Files.exists(buckOut.resolve(TwoLevelArtifactCacheDecorator.CHUNK_STORE_DIR_NAME)));
+      try (Stream<Path> tmpFiles = Files.list(buckOut.resolve("tmp"))) {
+        assertFalse(tmpFiles.anyMatch(path -> path.getFileName().toString().startsWith("chunk")));
+      }
+    }
+  }
 }
@@ -40,6 +40,7 @@ import com.google.common.hash.HashCode;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -51,12 +52,19 @@ public class BuildInfoRecorderTest {
 
   @Rule public TemporaryPaths tmp = new TemporaryPaths();
   private ProjectFilesystem filesystem;
+  private BuildInfoStore store;
 
   private static final BuildTarget BUILD_TARGET = BuildTargetFactory.newInstance("//foo:bar");
 
   @Before
-  public void setUp() {
+  public void setUp() throws IOException {
     this.filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    this.store = new SQLiteBuildInfoStore(filesystem);
+  }
+
+  @After
+  public void tearDown() {
+    store.close();
   }
 
   @Test
@@ -68,7 +76,6 @@ public class BuildInfoRecorderTest {
 
   @Test
   public void testWriteMetadataToDisk() throws IOException {
-    BuildInfoStore store = createBuildInfoStore();
     BuildInfoRecorder buildInfoRecorder = createBuildInfoRecorder();
     buildInfoRecorder.addMetadata("key1", "value1");
 
@@ -211,13 +218,9 @@ public class BuildInfoRecorderTest {
     return new BuildInfoRecorder(
         BUILD_TARGET,
         filesystem,
-        createBuildInfoStore(),
+        store,
         new DefaultClock(),
         new BuildId(),
         ImmutableMap.of());
   }
-
-  private SQLiteBuildInfoStore createBuildInfoStore() throws IOException {
-    return new SQLiteBuildInfoStore(filesystem);
-  }
 }
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.build.engine.buildinfo;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.model.BuildTargetFactory;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+
+/** Measures how many rules per second can record their build metadata. */
+public class SQLiteBuildInfoStoreBenchmark {
+  @Rule public TemporaryPaths tmpDir = new TemporaryPaths();
+
+  @Param({"1000", "10000", "100000"})
+  private int ruleCount = 1000;
+
+  @Param({"1", "10"})
+  private int threadCount = 4;
+
+  private ProjectFilesystem filesystem;
+  private List<BuildTarget> targets;
+  private List<ImmutableMap<String, String>> metadata;
+
+  private SQLiteBuildInfoStore store;
+  private ListeningExecutorService executor;
+
+  @Before
+  public void setUp() throws IOException {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmpDir.getRoot());
+    setUpBenchmark();
+  }
+
+  @BeforeExperiment
+  private void setUpBenchmark() throws IOException {
+    store = new SQLiteBuildInfoStore(filesystem);
+    targets = new ArrayList<>(ruleCount);
+    metadata = new ArrayList<>(ruleCount);
+    for (int i = 0; i < ruleCount; i++) {
+      targets.add(BuildTargetFactory.newInstance("//bench/" + (i % 100) + ":rule" + i));
+      // Roughly what BuildInfoRecorder writes for a built rule.
+      metadata.add(
+          ImmutableMap.of(
+              BuildInfo.MetadataKey.RULE_KEY, "rulekey" + i,
+              BuildInfo.MetadataKey.INPUT_BASED_RULE_KEY, "inputkey" + i,
+              BuildInfo.MetadataKey.BUILD_ID, "build",
+              BuildInfo.MetadataKey.ORIGIN_BUILD_ID, "build",
+              BuildInfo.MetadataKey.RECORDED_PATHS, "[\"buck-out/gen/rule" + i + "\"]"));
+    }
+  }
+
+  @After
+  @AfterExperiment
+  public void tearDown() {
+    store.close();
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  @Ignore
+  @Test
+  public void testSingleThreaded() throws IOException {
+    executor = MoreExecutors.newDirectExecutorService();
+    runAllBenchmarks();
+  }
+
+  @Ignore
+  @Test
+  public void testMultiThreaded() throws IOException {
+    executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threadCount));
+    runAllBenchmarks();
+  }
+
+  private void runAllBenchmarks() throws IOException {
+    report("update", this::benchUpdateMetadata);
+    report("read", this::benchReadMetadata);
+    report("delete+update", this::benchRebuild);
+  }
+
+  private void report(String name, Runnable benchmark) throws IOException {
+    long start = System.nanoTime();
+    benchmark.run();
+    store.flush();
+    long elapsed = System.nanoTime() - start;
+    System.out.printf(
+        "%s: %d rules in %d ms, %.0f rules/sec%n",
+        name,
+        ruleCount,
+        TimeUnit.NANOSECONDS.toMillis(elapsed),
+        ruleCount * (double) TimeUnit.SECONDS.toNanos(1) / elapsed);
+  }
+
+  @Benchmark
+  private void benchUpdateMetadata() {
+    forEachRule(
+        i -> {
+          store.updateMetadata(targets.get(i), metadata.get(i));
+          return null;
+        });
+  }
+
+  @Benchmark
+  private void benchReadMetadata() {
+    forEachRule(
+        i -> {
+          store.readMetadata(targets.get(i), BuildInfo.MetadataKey.RULE_KEY);
+          return store.getAllMetadata(targets.get(i));
+        });
+  }
+
+  @Benchmark
+  private void benchRebuild() {
+    forEachRule(
+        i -> {
+          store.deleteMetadata(targets.get(i));
+          store.updateMetadata(targets.get(i), metadata.get(i));
+          return null;
+        });
+  }
+
+  private void forEachRule(RuleOperation operation) {
+    List<ListenableFuture<Object>> futures = new ArrayList<>(ruleCount);
+    for (int i = 0; i < ruleCount; i++) {
+      int rule = i;
+      futures.add(executor.submit(() -> operation.apply(rule)));
+    }
+    Futures.getUnchecked(Futures.allAsList(futures));
+  }
+
+  private interface RuleOperation {
+    Object apply(int rule) throws IOException;
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.build.engine.buildinfo;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.model.BuildTargetFactory;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class SQLiteBuildInfoStoreTest {
+  private static final BuildTarget TARGET = BuildTargetFactory.newInstance("//foo:bar");
+  private static final BuildTarget OTHER_TARGET = BuildTargetFactory.newInstance("//foo:baz");
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private ProjectFilesystem filesystem;
+
+  @Before
+  public void setUp() {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+  }
+
+  @Test
+  public void readsSeeWritesBeforeTheyAreCommitted() throws IOException {
+    try (SQLiteBuildInfoStore store = new SQLiteBuildInfoStore(filesystem)) {
+      store.updateMetadata(TARGET, ImmutableMap.of("a", "1", "b", "2"));
+      store.updateMetadata(TARGET, ImmutableMap.of("b", "3"));
+
+      assertEquals(Optional.of("1"), store.readMetadata(TARGET, "a"));
+      assertEquals(Optional.of("3"), store.readMetadata(TARGET, "b"));
+      assertEquals(ImmutableMap.of("a", "1", "b", "3"), store.getAllMetadata(TARGET));
+      assertEquals(ImmutableMap.of(), store.getAllMetadata(OTHER_TARGET));
+    }
+  }
+
+  @Test
+  public void deleteIsCommittedBeforeItReturns() throws IOException {
+    try (SQLiteBuildInfoStore store = new SQLiteBuildInfoStore(filesystem);
+        SQLiteBuildInfoStore otherStore = new SQLiteBuildInfoStore(filesystem)) {
+      store.updateMetadata(TARGET, ImmutableMap.of("a", "1", "b", "2"));
+      store.flush();
+      assertEquals(Optional.of("1"), otherStore.readMetadata(TARGET, "a"));
+
+      store.deleteMetadata(TARGET);
+      assertEquals(ImmutableMap.of(), otherStore.getAllMetadata(TARGET));
+
+      store.updateMetadata(TARGET, ImmutableMap.of("b", "3"));
+      assertEquals(Optional.empty(), store.readMetadata(TARGET, "a"));
+      assertEquals(ImmutableMap.of("b", "3"), store.getAllMetadata(TARGET));
+    }
+  }
+
+  @Test
+  public void deleteDropsPendingUpdates() throws IOException {
+    try (SQLiteBuildInfoStore store = new SQLiteBuildInfoStore(filesystem)) {
+      store.updateMetadata(TARGET, ImmutableMap.of("a", "1"));
+      store.deleteMetadata(TARGET);
+
+      assertEquals(Optional.empty(), store.readMetadata(TARGET, "a"));
+      store.flush();
+      assertEquals(ImmutableMap.of(), store.getAllMetadata(TARGET));
+    }
+  }
+
+  @Test
+  public void closeCommitsPendingWrites() throws IOException {
+    try (SQLiteBuildInfoStore store = new SQLiteBuildInfoStore(filesystem)) {
+      for (int i = 0; i < 100; i++) {
+        store.updateMetadata(
+            BuildTargetFactory.newInstance("//foo:" + i), ImmutableMap.of("key", "value" + i));
+      }
+      store.deleteMetadata(TARGET);
+      store.updateMetadata(OTHER_TARGET, ImmutableMap.of("a", "1"));
+    }
+
+    try (SQLiteBuildInfoStore store = new SQLiteBuildInfoStore(filesystem)) {
+      for (int i = 0; i < 100; i++) {
+        assertEquals(
+            Optional.of("value" + i),
+            store.readMetadata(BuildTargetFactory.newInstance("//foo:" + i), "key"));
+      }
+      assertEquals(ImmutableMap.of(), store.getAllMetadata(TARGET));
+      assertEquals(ImmutableMap.of("a", "1"), store.getAllMetadata(OTHER_TARGET));
+    }
+  }
+}
@@ -16,6 +16,7 @@
 
 package com.facebook.buck.core.build.engine.cache.manager;
 
+import com.facebook.buck.artifact_cache.ArtifactCompression;
 import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.artifact_cache.CacheResultType;
 import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
@@ -39,7 +40,9 @@ public class BuildCacheArtifactFetcherTest {
           null,
           null,
           null,
-          null);
+          null,
+          ArtifactCompression.DEFAULT,
+          MoreExecutors.directExecutor());
 
   @Test
   public void testConvertErrorToSoftErrorListenableFutureCacheResultError() throws Exception {
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.buck.core.build.engine.cache.manager;
+
+import com.facebook.buck.artifact_cache.StreamingLazyPath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.facebook.buck.util.unarchive.Untar;
+import com.google.common.collect.ImmutableSet;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class StreamingArtifactExtractorTest {
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private ProjectFilesystem filesystem;
+  private ExecutorService executor;
+  private StreamingArtifactExtractor extractor;
+
+  @Before
+  public void setUp() {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    executor = Executors.newCachedThreadPool();
+    extractor =
+        new StreamingArtifactExtractor("artifact", filesystem, Untar.zstdUnarchiver(), executor);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void verifiedPayloadIsOnlyInstalledOnRequest() throws Exception {
+    byte[] payload = archive("out/file", "contents");
+    download(payload);
+    StreamingLazyPath.markVerifiedIfStreaming(extractor);
+
+    Assert.assertTrue(extractor.finish(true));
+    Assert.assertFalse(filesystem.exists(Paths.get("out/file")));
+    Assert.assertEquals(payload.length, extractor.getPayloadSize());
+
+    Assert.assertEquals(ImmutableSet.of(Paths.get("out/file")), extractor.install());
+    Assert.assertEquals("contents", filesystem.readFileIfItExists(Paths.get("out/file")).get());
+    assertNothingStaged();
+  }
+
+  @Test
+  public void payloadIsNotWrittenToTheFileUnlessRequired() throws Exception {
+    download(archive("out/file", "contents"));
+    StreamingLazyPath.markVerifiedIfStreaming(extractor);
+
+    Assert.assertTrue(extractor.finish(true));
+    Assert.assertFalse(extractor.hasPayloadFile());
+    Assert.assertEquals(0, Files.size(extractor.getUnchecked()));
+  }
+
+  @Test
+  public void requiredPayloadIsWrittenToTheFile() throws Exception {
+    byte[] payload = archive("out/file", "contents");
+    StreamingLazyPath.requirePayloadFile(extractor, true);
+    download(payload);
+    StreamingLazyPath.markVerifiedIfStreaming(extractor);
+
+    Assert.assertTrue(extractor.finish(true));
+    Assert.assertTrue(extractor.hasPayloadFile());
+    Assert.assertArrayEquals(payload, Files.readAllBytes(extractor.getUnchecked()));
+  }
+
+  @Test
+  public void unverifiedPayloadIsCleanedUp() throws Exception {
+    download(archive("out/file", "contents"));
+
+    Assert.assertFalse(extractor.finish(true));
+    Assert.assertFalse(filesystem.exists(Paths.get("out/file")));
+    assertNothingStaged();
+  }
+
+  @Test
+  public void missIsCleanedUp() throws Exception {
+    download(archive("out/file", "contents"));
+    StreamingLazyPath.markVerifiedIfStreaming(extractor);
+
+    Assert.assertFalse(extractor.finish(false));
+    Assert.assertFalse(filesystem.exists(Paths.get("out/file")));
+    assertNothingStaged();
+  }
+
+  @Test
+  public void laterPayloadReplacesEarlierOne() throws Exception {
+    download(archive("out/first", "first"));
+    download(archive("out/second", "second"));
+    StreamingLazyPath.markVerifiedIfStreaming(extractor);
+
+    Assert.assertTrue(extractor.finish(true));
+    Assert.assertEquals(ImmutableSet.of(Paths.get("out/second")), extractor.install());
+    Assert.assertFalse(filesystem.exists(Paths.get("out/first")));
+    assertNothingStaged();
+  }
+
+  @Test
+  public void installRemovesFilesMissingFromArchivedDirectories() throws Exception {
+    filesystem.mkdirs(Paths.get("out"));
+    filesystem.mkdirs(Paths.get("other"));
+    filesystem.writeContentsToPath("stale", Paths.get("out/stale"));
+    filesystem.writeContentsToPath("kept", Paths.get("other/kept"));
+    download(archive("out/file", "contents"));
+    StreamingLazyPath.markVerifiedIfStreaming(extractor);
+
+    Assert.assertTrue(extractor.finish(true));
+    extractor.install();
+
+    Assert.assertFalse(filesystem.exists(Paths.get("out/stale")));
+    Assert.assertTrue(filesystem.exists(Paths.get("other/kept")));
+  }
+
+  @Test
+  public void payloadLargerThanTheBufferIsExtracted() throws Exception {
+    byte[] contents = new byte[10 * 1024 * 1024];
+    new Random(42).nextBytes(contents);
+    download(archive("out/file", contents));
+    StreamingLazyPath.markVerifiedIfStreaming(extractor);
+
+    Assert.assertTrue(extractor.finish(true));
+    extractor.install();
+    Assert.assertArrayEquals(contents, Files.readAllBytes(filesystem.resolve("out/file")));
+  }
+
+  @Test
+  public void emptyPayloadDoesNotTouchOutputs() throws Exception {
+    download(new byte[0]);
+    StreamingLazyPath.markVerifiedIfStreaming(extractor);
+
+    Assert.assertFalse(extractor.finish(true));
+    Assert.assertTrue(extractor.hasPayloadFile());
+  }
+
+  @Test
+  public void corruptPayloadFallsBackToTheRequiredFile() throws Exception {
+    byte[] garbage = "not an archive".getBytes(StandardCharsets.UTF_8);
+    StreamingLazyPath.requirePayloadFile(extractor, true);
+    download(garbage);
+    StreamingLazyPath.markVerifiedIfStreaming(extractor);
+
+    Assert.assertFalse(extractor.finish(true));
+    Assert.assertTrue(extractor.hasPayloadFile());
+    Assert.assertArrayEquals(garbage, Files.readAllBytes(extractor.getUnchecked()));
+    assertNothingStaged();
+  }
+
+  @Test
+  public void corruptPayloadWithoutFileCannotFallBack() throws Exception {
+    download("not an archive".getBytes(StandardCharsets.UTF_8));
+    StreamingLazyPath.markVerifiedIfStreaming(extractor);
+
+    Assert.assertFalse(extractor.finish(true));
+    Assert.assertFalse(extractor.hasPayloadFile());
+  }
+
+  @Test
+  public void payloadIsWrittenToTheFileWhenNoThreadIsFree() throws Exception {
+    extractor =
+        new StreamingArtifactExtractor(
+            "artifact",
+            filesystem,
+            Untar.zstdUnarchiver(),
+            command -> {
+              throw new RejectedExecutionException();
+            });
+    byte[] payload = archive("out/file", "contents");
+    download(payload);
+    StreamingLazyPath.markVerifiedIfStreaming(extractor);
+
+    Assert.assertFalse(extractor.finish(true));
+    Assert.assertTrue(extractor.hasPayloadFile());
+    Assert.assertArrayEquals(payload, Files.readAllBytes(extractor.getUnchecked()));
+  }
+
+  /** Writes the payload the way a cache does: through the tee, in small chunks. */
+  private void download(byte[] payload) throws IOException {
+    Path file = extractor.get();
+    try (OutputStream out =
+        StreamingLazyPath.teeIfStreaming(extractor, Files.newOutputStream(file))) {
+      int chunk = Math.max(7, payload.length / 100);
+      for (int i = 0; i < payload.length; i += chunk) {
+        out.write(payload, i, Math.min(chunk, payload.length - i));
+      }
+    }
+  }
+
+  private void assertNothingStaged() throws IOException {
+    Path tmpDir = filesystem.getBuckPaths().getTmpDir();
+    Assert.assertTrue(
+        !filesystem.exists(tmpDir) || filesystem.getDirectoryContents(tmpDir).isEmpty());
+  }
+
+  private static byte[] archive(String name, String contents) throws IOException {
+    return archive(name, contents.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static byte[] archive(String name, byte[] data) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (TarArchiveOutputStream tar =
+        new TarArchiveOutputStream(new ZstdCompressorOutputStream(bytes))) {
+      tar.putArchiveEntry(new TarArchiveEntry(Paths.get(name).getParent() + "/"));
+      tar.closeArchiveEntry();
+      TarArchiveEntry entry = new TarArchiveEntry(name);
+      entry.setSize(data.length);
+      tar.putArchiveEntry(entry);
+      tar.write(data);
+      tar.closeArchiveEntry();
+    }
+    return bytes.toByteArray();
+  }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.build.engine.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.facebook.buck.artifact_cache.ArtifactInfo;
+import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.artifact_cache.CacheResultType;
+import com.facebook.buck.artifact_cache.InMemoryArtifactCache;
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.core.rules.impl.FakeBuildRule;
+import com.facebook.buck.counters.Counter;
+import com.facebook.buck.counters.IntegerCounter;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class ArtifactPrefetcherTest {
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private BuildRule ruleB;
+  private BuildRule ruleA;
+  private BuildRule ruleC;
+  private BuildRule top;
+  private Map<BuildRule, RuleKey> ruleKeys;
+  private RecordingArtifactCache cache;
+
+  /**
+   * <pre>
+   *        top
+   *       /   \
+   *      a     c
+   *      |
+   *      b
+   * </pre>
+   */
+  @Before
+  public void setUp() {
+    ruleB = new FakeBuildRule("//:b");
+    ruleA = new FakeBuildRule("//:a", ruleB);
+    ruleC = new FakeBuildRule("//:c");
+    top = new FakeBuildRule("//:top", ruleA, ruleC);
+    ruleKeys = new HashMap<>();
+    int i = 0;
+    for (BuildRule rule : ImmutableList.of(top, ruleA, ruleB, ruleC)) {
+      ruleKeys.put(rule, new RuleKey(HashCode.fromInt(++i)));
+    }
+    cache = new RecordingArtifactCache();
+  }
+
+  @Test
+  public void depsOfCachedRulesAreNotFetchedInShallowBuilds() throws Exception {
+    store(ruleA, ruleB, ruleC);
+    ArtifactPrefetcher prefetcher = new ArtifactPrefetcher(true, 8);
+
+    prefetcher.prefetch(top, cache, new FakeBuildGraph());
+
+    assertEquals(ImmutableList.of(ruleKey(ruleA), ruleKey(ruleC)), cache.fetched);
+  }
+
+  @Test
+  public void allCachedRulesAreFetchedInDeepBuilds() throws Exception {
+    store(ruleA, ruleB, ruleC);
+    ArtifactPrefetcher prefetcher = new ArtifactPrefetcher(false, 8);
+
+    prefetcher.prefetch(top, cache, new FakeBuildGraph());
+
+    assertEquals(
+        ImmutableSet.of(ruleKey(ruleA), ruleKey(ruleB), ruleKey(ruleC)),
+        ImmutableSet.copyOf(cache.fetched));
+  }
+
+  @Test
+  public void upToDateRulesAreNotFetched() throws Exception {
+    store(top, ruleA, ruleB, ruleC);
+    ArtifactPrefetcher prefetcher = new ArtifactPrefetcher(true, 8);
+    FakeBuildGraph graph = new FakeBuildGraph();
+    graph.upToDate.add(top);
+
+    prefetcher.prefetch(top, cache, graph);
+
+    assertEquals(ImmutableList.of(), cache.fetched);
+  }
+
+  @Test
+  public void engineFetchesAreServedFromPrefetchedArtifacts() throws Exception {
+    store(ruleA);
+    ArtifactPrefetcher prefetcher = new ArtifactPrefetcher(true, 8);
+    prefetcher.prefetch(top, cache, new FakeBuildGraph());
+    cache.fetched.clear();
+
+    Path output = tmp.newFile("output");
+    CacheResult result =
+        prefetcher
+            .wrap(cache)
+            .fetchAsync(ruleA.getBuildTarget(), ruleKey(ruleA), LazyPath.ofInstance(output))
+            .get();
+
+    assertEquals(CacheResultType.HIT, result.getType());
+    assertEquals(ImmutableList.of(), cache.fetched);
+    assertArrayEquals(contents(ruleA), Files.readAllBytes(output));
+    prefetcher.close();
+    assertEquals(
+        ImmutableMap.of(
+            "prefetched_artifacts", 1L,
+            "useful_artifacts", 1L,
+            "useful_bytes", (long) contents(ruleA).length,
+            "wasted_bytes", 0L),
+        counters(prefetcher));
+  }
+
+  @Test
+  public void unusedArtifactsAreDeletedAndCountedAsWasted() throws Exception {
+    store(ruleA, ruleC);
+    ArtifactPrefetcher prefetcher = new ArtifactPrefetcher(true, 8);
+    prefetcher.prefetch(top, cache, new FakeBuildGraph());
+
+    prefetcher.close();
+
+    assertEquals(
+        (long) (contents(ruleA).length + contents(ruleC).length),
+        (long) counters(prefetcher).get("wasted_bytes"));
+    for (Path path : cache.outputs) {
+      assertFalse(Files.exists(path));
+    }
+  }
+
+  @Test
+  public void fetchesAreBounded() throws Exception {
+    store(ruleA, ruleC);
+    cache.holdFetches = true;
+    ArtifactPrefetcher prefetcher = new ArtifactPrefetcher(true, 1);
+
+    prefetcher.prefetch(top, cache, new FakeBuildGraph());
+    assertEquals(ImmutableList.of(ruleKey(ruleA)), cache.fetched);
+
+    cache.releaseFetches();
+    assertEquals(ImmutableList.of(ruleKey(ruleA), ruleKey(ruleC)), cache.fetched);
+  }
+
+  private RuleKey ruleKey(BuildRule rule) {
+    return ruleKeys.get(rule);
+  }
+
+  private static byte[] contents(BuildRule rule) {
+    return rule.getFullyQualifiedName().getBytes();
+  }
+
+  private void store(BuildRule... rules) {
+    for (BuildRule rule : rules) {
+      cache.store(ArtifactInfo.builder().addRuleKeys(ruleKey(rule)).build(), contents(rule));
+    }
+  }
+
+  private static Map<String, Long> counters(ArtifactPrefetcher prefetcher) {
+    Map<String, Long> values = new HashMap<>();
+    for (Counter counter : prefetcher.getCounters()) {
+      values.put(counter.getName(), ((IntegerCounter) counter).get());
+    }
+    return values;
+  }
+
+  private class FakeBuildGraph implements ArtifactPrefetcher.BuildGraph {
+    private final List<BuildRule> upToDate = new ArrayList<>();
+
+    @Override
+    public ListenableFuture<RuleKey> getDefaultRuleKey(BuildRule rule) {
+      return Futures.immediateFuture(ruleKey(rule));
+    }
+
+    @Override
+    public boolean isUpToDate(BuildRule rule, RuleKey defaultRuleKey) {
+      return upToDate.contains(rule);
+    }
+
+    @Override
+    public Iterable<BuildRule> getRuntimeDeps(BuildRule rule) {
+      return ImmutableList.of();
+    }
+  }
+
+  /** Fetches synchronously, or holds them until released, and records what was fetched. */
+  private static class RecordingArtifactCache extends InMemoryArtifactCache {
+    private final List<RuleKey> fetched = new ArrayList<>();
+    private final List<Path> outputs = new ArrayList<>();
+    private final List<Runnable> heldFetches = new ArrayList<>();
+    private boolean holdFetches;
+
+    @Override
+    public ListenableFuture<CacheResult> fetchAsync(
+        BuildTarget target, RuleKey ruleKey, LazyPath output) {
+      fetched.add(ruleKey);
+      CacheResult result = Futures.getUnchecked(super.fetchAsync(target, ruleKey, output));
+      if (result.getType() == CacheResultType.HIT) {
+        outputs.add(output.getUnchecked());
+      }
+      if (!holdFetches) {
+        return Futures.immediateFuture(result);
+      }
+      SettableFuture<CacheResult> held = SettableFuture.create();
+      heldFetches.add(() -> held.set(result));
+      return held;
+    }
+
+    void releaseFetches() {
+      holdFetches = false;
+      ImmutableList.copyOf(heldFetches).forEach(Runnable::run);
+      heldFetches.clear();
+    }
+  }
+}
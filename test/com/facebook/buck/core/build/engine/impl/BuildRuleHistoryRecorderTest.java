@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.build.engine.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.core.build.stats.BuildRuleHistoryStore;
+import com.facebook.buck.core.build.stats.RuleResourceUsage;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.core.rules.impl.FakeBuildRule;
+import com.facebook.buck.event.BuckEventBusForTests;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.facebook.buck.util.ProcessResourceConsumption;
+import com.facebook.buck.util.perf.ProcessTracker.ProcessResourceConsumptionEvent;
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class BuildRuleHistoryRecorderTest {
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  @Test
+  public void recordsLocalBuildsWithTheConsumptionOfTheirProcesses() throws IOException {
+    Path dbPath = tmp.getRoot().resolve("history.db");
+    BuildRule withProcesses = new FakeBuildRule("//fake:with_processes");
+    BuildRule withoutProcesses = new FakeBuildRule("//fake:without_processes");
+
+    BuildRuleHistoryRecorder recorder =
+        new BuildRuleHistoryRecorder(
+            BuildRuleHistoryStore.open(dbPath), BuckEventBusForTests.newInstance());
+    recorder.onRuleBuiltLocally(
+        withProcesses, TimeUnit.MILLISECONDS.toNanos(500), TimeUnit.MILLISECONDS.toNanos(20), 64);
+    recorder.onProcessResourceConsumption(processEvent(withProcesses, 100 << 20, 300));
+    recorder.onProcessResourceConsumption(processEvent(withProcesses, 200 << 20, 100));
+    recorder.onRuleBuiltLocally(
+        withoutProcesses, TimeUnit.MILLISECONDS.toNanos(30), TimeUnit.MILLISECONDS.toNanos(30), 8);
+    recorder.close();
+
+    try (BuildRuleHistoryStore store = BuildRuleHistoryStore.open(dbPath)) {
+      assertEquals(
+          Optional.of(RuleResourceUsage.of(500, 420, 200 << 20, 64)),
+          store.getTargetUsage(withProcesses.getFullyQualifiedName()));
+      assertEquals(
+          Optional.of(RuleResourceUsage.of(30, 30, 0, 8)),
+          store.getTargetUsage(withoutProcesses.getFullyQualifiedName()));
+    }
+  }
+
+  private static ProcessResourceConsumptionEvent processEvent(
+      BuildRule rule, long memResident, long cpuTotal) {
+    return new ProcessResourceConsumptionEvent(
+        "tool",
+        Optional.empty(),
+        Optional.of(
+            ImmutableMap.of(
+                CachingBuildEngine.BUILD_TARGET_CONTEXT_KEY, rule.getFullyQualifiedName())),
+        Optional.of(ProcessResourceConsumption.of(memResident, 0, 0, 0, 0, cpuTotal, 0, 0, 0)));
+  }
+}
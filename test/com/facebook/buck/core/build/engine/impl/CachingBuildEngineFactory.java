@@ -16,6 +16,7 @@
 
 package com.facebook.buck.core.build.engine.impl;
 
+import com.facebook.buck.artifact_cache.ArtifactCompression;
 import com.facebook.buck.core.build.action.resolver.BuildEngineActionToBuildRuleResolver;
 import com.facebook.buck.core.build.engine.cache.manager.BuildInfoStoreManager;
 import com.facebook.buck.core.build.engine.config.ResourceAwareSchedulingInfo;
@@ -57,6 +58,8 @@ public class CachingBuildEngineFactory {
   private BuildEngineActionToBuildRuleResolver actionToBuildRuleResolver;
   private ResourceAwareSchedulingInfo resourceAwareSchedulingInfo =
       ResourceAwareSchedulingInfo.NON_AWARE_SCHEDULING_INFO;
+  private Optional<CriticalPathScheduler> criticalPathScheduler = Optional.empty();
+  private Optional<ArtifactPrefetcher> artifactPrefetcher = Optional.empty();
   private boolean logBuildRuleFailuresInline = true;
   private BuildInfoStoreManager buildInfoStoreManager;
   private Optional<BuildRuleStrategy> customBuildRuleStrategy = Optional.empty();
@@ -115,6 +118,17 @@ public class CachingBuildEngineFactory {
     return this;
   }
 
+  public CachingBuildEngineFactory setCriticalPathScheduler(
+      CriticalPathScheduler criticalPathScheduler) {
+    this.criticalPathScheduler = Optional.of(criticalPathScheduler);
+    return this;
+  }
+
+  public CachingBuildEngineFactory setArtifactPrefetcher(ArtifactPrefetcher artifactPrefetcher) {
+    this.artifactPrefetcher = Optional.of(artifactPrefetcher);
+    return this;
+  }
+
   public CachingBuildEngineFactory setLogBuildRuleFailuresInline(
       boolean logBuildRuleFailuresInline) {
     this.logBuildRuleFailuresInline = logBuildRuleFailuresInline;
@@ -151,6 +165,11 @@ public class CachingBuildEngineFactory {
           targetConfigurationSerializer,
           ruleKeyFactories.get(),
           resourceAwareSchedulingInfo,
+          criticalPathScheduler,
+          Optional.empty(),
+          Optional.empty(),
+          artifactPrefetcher,
+          ArtifactCompression.DEFAULT,
           RuleKeyDiagnostics.nop(),
           logBuildRuleFailuresInline);
     }
@@ -168,6 +187,11 @@ public class CachingBuildEngineFactory {
         targetConfigurationSerializer,
         buildInfoStoreManager,
         resourceAwareSchedulingInfo,
+        criticalPathScheduler,
+        Optional.empty(),
+        Optional.empty(),
+        artifactPrefetcher,
+        ArtifactCompression.DEFAULT,
         logBuildRuleFailuresInline,
         RuleKeyFactories.of(
             TestRuleKeyConfigurationFactory.create(),
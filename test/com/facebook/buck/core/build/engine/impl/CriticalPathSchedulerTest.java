@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.build.engine.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.core.build.action.resolver.BuildEngineActionToBuildRuleResolver;
+import com.facebook.buck.core.build.engine.RuleDepsCache;
+import com.facebook.buck.core.build.stats.BuildRuleHistoryStore;
+import com.facebook.buck.core.build.stats.RuleResourceUsage;
+import com.facebook.buck.core.model.BuildTargetFactory;
+import com.facebook.buck.core.rules.ActionGraphBuilder;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.core.rules.impl.FakeBuildRule;
+import com.facebook.buck.core.rules.resolver.impl.TestActionGraphBuilder;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class CriticalPathSchedulerTest {
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private RuleDepsCache depsCache;
+  private BuildRule ruleA;
+  private BuildRule ruleB;
+  private BuildRule ruleC;
+  private BuildRule top;
+
+  /**
+   * <pre>
+   *        top
+   *       /   \
+   *      a     c
+   *      |
+   *      b
+   * </pre>
+   */
+  @Before
+  public void setUp() {
+    ActionGraphBuilder graphBuilder = new TestActionGraphBuilder();
+    depsCache =
+        new DefaultRuleDepsCache(graphBuilder, new BuildEngineActionToBuildRuleResolver());
+    ruleB = createRule(graphBuilder, "//:b");
+    ruleA = createRule(graphBuilder, "//:a", ruleB);
+    ruleC = createRule(graphBuilder, "//:c");
+    top = createRule(graphBuilder, "//:top", ruleA, ruleC);
+  }
+
+  private static BuildRule createRule(
+      ActionGraphBuilder graphBuilder, String target, BuildRule... deps) {
+    return graphBuilder.computeIfAbsent(
+        BuildTargetFactory.newInstance(target),
+        buildTarget -> new FakeBuildRule(buildTarget, deps));
+  }
+
+  @Test
+  public void withoutHistoryPrioritiesAreDepthsBelowTopLevelRules() {
+    CriticalPathScheduler scheduler = new CriticalPathScheduler(Optional.empty());
+    scheduler.prioritize(ImmutableList.of(top), depsCache);
+
+    assertEquals(1, scheduler.getPriority(top));
+    assertEquals(2, scheduler.getPriority(ruleA));
+    assertEquals(3, scheduler.getPriority(ruleB));
+    assertEquals(2, scheduler.getPriority(ruleC));
+    assertEquals(3, scheduler.getExpectedCriticalPathLength());
+  }
+
+  @Test
+  public void prioritiesUseRecordedDurations() throws IOException {
+    Path historyFile = tmp.getRoot().resolve("history.db");
+    try (BuildRuleHistoryStore store = BuildRuleHistoryStore.open(historyFile)) {
+      store.record(top, RuleResourceUsage.of(1, 0, 0, 0));
+      store.record(ruleA, RuleResourceUsage.of(10, 0, 0, 0));
+      store.record(ruleB, RuleResourceUsage.of(5, 0, 0, 0));
+      store.record(ruleC, RuleResourceUsage.of(100, 0, 0, 0));
+    }
+
+    try (BuildRuleHistoryStore store = BuildRuleHistoryStore.open(historyFile)) {
+      CriticalPathScheduler scheduler = new CriticalPathScheduler(Optional.of(store));
+      scheduler.prioritize(ImmutableList.of(top), depsCache);
+
+      assertEquals(1, scheduler.getPriority(top));
+      assertEquals(11, scheduler.getPriority(ruleA));
+      assertEquals(16, scheduler.getPriority(ruleB));
+      assertEquals(101, scheduler.getPriority(ruleC));
+      assertEquals(101, scheduler.getExpectedCriticalPathLength());
+    }
+  }
+
+  @Test
+  public void prioritizingAgainOnlyRaisesPriorities() {
+    CriticalPathScheduler scheduler = new CriticalPathScheduler(Optional.empty());
+    assertFalse(scheduler.isPrioritized(ruleB));
+
+    scheduler.prioritize(ImmutableList.of(top), depsCache);
+    scheduler.prioritize(ImmutableList.of(ruleB), depsCache);
+
+    assertTrue(scheduler.isPrioritized(ruleB));
+    assertEquals(3, scheduler.getPriority(ruleB));
+  }
+
+  @Test
+  public void actualCriticalPathFollowsLocalBuildDurations() {
+    CriticalPathScheduler scheduler = new CriticalPathScheduler(Optional.empty());
+    scheduler.onRuleBuiltLocally(ruleB, TimeUnit.MILLISECONDS.toNanos(30));
+    scheduler.onRuleFinished(ruleB);
+    scheduler.onRuleBuiltLocally(ruleA, TimeUnit.MILLISECONDS.toNanos(20));
+    scheduler.onRuleFinished(ruleA);
+    scheduler.onRuleBuiltLocally(ruleC, TimeUnit.MILLISECONDS.toNanos(40));
+    scheduler.onRuleFinished(ruleC);
+    scheduler.onRuleFinished(top);
+
+    assertEquals(50, scheduler.getActualCriticalPathMillis());
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.build.engine.impl;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.core.rules.impl.FakeBuildRule;
+import com.facebook.buck.util.types.Unit;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MemoryAdmissionControllerTest {
+  private static final long GB = 1L << 30;
+
+  private FakeMemorySampler sampler;
+  private MemoryAdmissionController controller;
+
+  @Before
+  public void setUp() {
+    sampler = new FakeMemorySampler();
+    controller =
+        new MemoryAdmissionController(
+            sampler, Optional.empty(), ImmutableSet.of("fake_build_rule"), 2 * GB, GB);
+  }
+
+  @Test
+  public void heavyRulesAreHeldBackUntilMemoryIsAvailable() {
+    sampler.availableBytes = 4 * GB;
+    ListenableFuture<Unit> first = controller.admit(heavyRule("//:first"), 0);
+    assertTrue(first.isDone());
+
+    // The first rule is still expected to take 2GB, which leaves only 1GB above the reserve.
+    ListenableFuture<Unit> second = controller.admit(heavyRule("//:second"), 0);
+    assertFalse(second.isDone());
+
+    // Once the first rule's processes actually take their memory, it is no longer counted twice.
+    sampler.availableBytes = 3 * GB;
+    sampler.childProcessesBytes = 2 * GB;
+    controller.admitPendingRules();
+    assertTrue(second.isDone());
+  }
+
+  @Test
+  public void heavyRuleIsAdmittedWhenNoOtherIsRunning() {
+    sampler.availableBytes = 0;
+    BuildRule first = heavyRule("//:first");
+    assertTrue(controller.admit(first, 0).isDone());
+
+    ListenableFuture<Unit> second = controller.admit(heavyRule("//:second"), 0);
+    assertFalse(second.isDone());
+
+    controller.onFinished(first);
+    assertTrue(second.isDone());
+  }
+
+  @Test
+  public void lightRulesAreNeverHeldBack() {
+    sampler.availableBytes = 0;
+    assertTrue(controller.admit(heavyRule("//:heavy"), 0).isDone());
+    assertTrue(controller.admit(new LightRule("//:light"), 0).isDone());
+  }
+
+  @Test
+  public void higherPriorityRulesAreAdmittedFirst() {
+    sampler.availableBytes = 0;
+    BuildRule running = heavyRule("//:running");
+    controller.admit(running, 0);
+    ListenableFuture<Unit> low = controller.admit(heavyRule("//:low"), 1);
+    ListenableFuture<Unit> high = controller.admit(heavyRule("//:high"), 10);
+
+    controller.onFinished(running);
+    assertTrue(high.isDone());
+    assertFalse(low.isDone());
+  }
+
+  @Test
+  public void closeReleasesHeldBackRules() {
+    sampler.availableBytes = 0;
+    controller.admit(heavyRule("//:running"), 0);
+    ListenableFuture<Unit> pending = controller.admit(heavyRule("//:pending"), 0);
+    assertFalse(pending.isDone());
+
+    controller.close();
+    assertTrue(pending.isDone());
+  }
+
+  private static BuildRule heavyRule(String target) {
+    return new FakeBuildRule(target);
+  }
+
+  private static class LightRule extends FakeBuildRule {
+    LightRule(String target) {
+      super(target);
+    }
+
+    @Override
+    public String getType() {
+      return "light_rule";
+    }
+  }
+
+  private static class FakeMemorySampler implements MemoryAdmissionController.MemorySampler {
+    private long availableBytes;
+    private long childProcessesBytes;
+
+    @Override
+    public long getAvailableMemoryBytes() {
+      return availableBytes;
+    }
+
+    @Override
+    public long getChildProcessesResidentBytes() {
+      return childProcessesBytes;
+    }
+  }
+}
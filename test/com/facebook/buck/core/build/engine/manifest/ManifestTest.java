@@ -293,6 +293,84 @@ public class ManifestTest {
         Matchers.equalTo(Optional.of(key2)));
   }
 
+  @Test
+  public void lookupOnlyHashesInputsThatDiscriminateRemainingEntries() throws IOException {
+    RuleKey key1 = new RuleKey("aa");
+    RuleKey key2 = new RuleKey("bb");
+    RuleKey key3 = new RuleKey("dd");
+    SourcePath changing = FakeSourcePath.of("changing.h");
+    SourcePath common = FakeSourcePath.of("common.h");
+    String changingPath = RESOLVER.getRelativePath(changing).toString();
+    String commonPath = RESOLVER.getRelativePath(common).toString();
+    Manifest manifest =
+        ManifestUtil.fromMap(
+            new RuleKey("cc"),
+            ImmutableMap.of(
+                key1,
+                ImmutableMap.of(
+                    commonPath, HashCode.fromInt(10), changingPath, HashCode.fromInt(1)),
+                key2,
+                ImmutableMap.of(
+                    commonPath, HashCode.fromInt(10), changingPath, HashCode.fromInt(2)),
+                key3,
+                ImmutableMap.of(
+                    commonPath, HashCode.fromInt(10), changingPath, HashCode.fromInt(3))));
+
+    FileHashLoader noMatch =
+        new FakeFileHashCache(
+            ImmutableMap.of(
+                RESOLVER.getAbsolutePath(changing),
+                HashCode.fromInt(4),
+                RESOLVER.getAbsolutePath(common),
+                HashCode.fromInt(10)));
+    assertThat(
+        manifest.lookup(noMatch, RESOLVER, ImmutableSet.of(changing, common)),
+        Matchers.equalTo(Optional.empty()));
+    assertThat(manifest.getStats().getNumLookupProbes(), Matchers.equalTo(1));
+
+    FileHashLoader match =
+        new FakeFileHashCache(
+            ImmutableMap.of(
+                RESOLVER.getAbsolutePath(changing),
+                HashCode.fromInt(2),
+                RESOLVER.getAbsolutePath(common),
+                HashCode.fromInt(10)));
+    assertThat(
+        manifest.lookup(match, RESOLVER, ImmutableSet.of(changing, common)),
+        Matchers.equalTo(Optional.of(key2)));
+    assertThat(manifest.getStats().getNumLookupProbes(), Matchers.equalTo(3));
+  }
+
+  @Test
+  public void lookupReturnsFirstMatchingEntry() throws IOException {
+    RuleKey key1 = new RuleKey("aa");
+    RuleKey key2 = new RuleKey("bb");
+    SourcePath input = FakeSourcePath.of("input.h");
+    SourcePath other = FakeSourcePath.of("other.h");
+    Manifest manifest =
+        ManifestUtil.fromMap(
+            new RuleKey("cc"),
+            ImmutableMap.of(
+                key1,
+                ImmutableMap.of(
+                    RESOLVER.getRelativePath(input).toString(),
+                    HashCode.fromInt(1),
+                    RESOLVER.getRelativePath(other).toString(),
+                    HashCode.fromInt(2)),
+                key2,
+                ImmutableMap.of(RESOLVER.getRelativePath(input).toString(), HashCode.fromInt(1))));
+    FileHashLoader fileHashLoader =
+        new FakeFileHashCache(
+            ImmutableMap.of(
+                RESOLVER.getAbsolutePath(input),
+                HashCode.fromInt(1),
+                RESOLVER.getAbsolutePath(other),
+                HashCode.fromInt(2)));
+    assertThat(
+        manifest.lookup(fileHashLoader, RESOLVER, ImmutableSet.of(input, other)),
+        Matchers.equalTo(Optional.of(key1)));
+  }
+
   @Test
   public void size() {
     assertThat(new Manifest(new RuleKey("cc")).size(), Matchers.equalTo(0));
@@ -325,6 +403,6 @@ public class ManifestTest {
                     new RuleKey("bb"),
                     ImmutableMap.of("bar.h", HashCode.fromInt(0))))
             .getStats(),
-        Matchers.equalTo(ImmutableManifestStats.of(2, 1, 2)));
+        Matchers.equalTo(ImmutableManifestStats.of(2, 1, 2, 0)));
   }
 }
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.build.stats;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.core.rules.impl.FakeBuildRule;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Optional;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class BuildRuleHistoryStoreTest {
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  @Test
+  public void recordedUsageIsAvailableAfterReopening() throws IOException {
+    Path dbPath = tmp.getRoot().resolve("history.db");
+    BuildRule rule = new FakeBuildRule("//fake:rule");
+    try (BuildRuleHistoryStore store = BuildRuleHistoryStore.open(dbPath)) {
+      assertFalse(store.getExpectedUsage(rule).isPresent());
+      assertFalse(store.getAverageUsage().isPresent());
+      store.record(rule, RuleResourceUsage.of(100, 80, 1 << 20, 4096));
+    }
+
+    try (BuildRuleHistoryStore store = BuildRuleHistoryStore.open(dbPath)) {
+      assertEquals(
+          Optional.of(RuleResourceUsage.of(100, 80, 1 << 20, 4096)),
+          store.getTargetUsage(rule.getFullyQualifiedName()));
+      assertEquals(store.getTargetUsage(rule.getFullyQualifiedName()), store.getAverageUsage());
+    }
+  }
+
+  @Test
+  public void samplesAreBlendedIntoMovingAverage() throws IOException {
+    Path dbPath = tmp.getRoot().resolve("history.db");
+    BuildRule rule = new FakeBuildRule("//fake:rule");
+    try (BuildRuleHistoryStore store = BuildRuleHistoryStore.open(dbPath)) {
+      store.record(rule, RuleResourceUsage.of(100, 100, 100, 100));
+    }
+    try (BuildRuleHistoryStore store = BuildRuleHistoryStore.open(dbPath)) {
+      store.record(rule, RuleResourceUsage.of(200, 0, 100, 1100));
+    }
+
+    try (BuildRuleHistoryStore store = BuildRuleHistoryStore.open(dbPath)) {
+      assertEquals(
+          ImmutableList.of(
+              RuleHistoryEntry.of(
+                  rule.getFullyQualifiedName(), 2, RuleResourceUsage.of(130, 70, 100, 400))),
+          store.getTopTargets(BuildRuleHistoryStore.Metric.WALL_TIME, 10));
+    }
+  }
+
+  @Test
+  public void historyIsReadWhenFirstNeededAndKept() throws IOException {
+    Path dbPath = tmp.getRoot().resolve("history.db");
+    BuildRule rule = new FakeBuildRule("//fake:rule");
+    try (BuildRuleHistoryStore reader = BuildRuleHistoryStore.open(dbPath)) {
+      try (BuildRuleHistoryStore writer = BuildRuleHistoryStore.open(dbPath)) {
+        writer.record(rule, RuleResourceUsage.of(100, 100, 100, 100));
+      }
+      assertEquals(
+          Optional.of(RuleResourceUsage.of(100, 100, 100, 100)), reader.getExpectedUsage(rule));
+
+      try (BuildRuleHistoryStore writer = BuildRuleHistoryStore.open(dbPath)) {
+        writer.record(rule, RuleResourceUsage.of(200, 200, 200, 200));
+      }
+      assertEquals(
+          Optional.of(RuleResourceUsage.of(100, 100, 100, 100)), reader.getExpectedUsage(rule));
+    }
+  }
+
+  @Test
+  public void unknownTargetsAreEstimatedFromRulesOfTheSameType() throws IOException {
+    Path dbPath = tmp.getRoot().resolve("history.db");
+    try (BuildRuleHistoryStore store = BuildRuleHistoryStore.open(dbPath)) {
+      store.record(new FakeBuildRule("//fake:a"), RuleResourceUsage.of(10, 10, 10, 10));
+      store.record(new FakeBuildRule("//fake:b"), RuleResourceUsage.of(30, 30, 30, 30));
+    }
+
+    try (BuildRuleHistoryStore store = BuildRuleHistoryStore.open(dbPath)) {
+      BuildRule unknown = new FakeBuildRule("//fake:c");
+      assertEquals(
+          Optional.of(RuleResourceUsage.of(20, 20, 20, 20)), store.getExpectedUsage(unknown));
+      assertEquals(
+          ImmutableList.of(
+              RuleHistoryEntry.of(unknown.getType(), 2, RuleResourceUsage.of(20, 20, 20, 20))),
+          store.getTopTypes(BuildRuleHistoryStore.Metric.CPU_TIME, 10));
+      assertEquals(
+          ImmutableList.of("//fake:b"),
+          store.getTopTargets(BuildRuleHistoryStore.Metric.OUTPUT_SIZE, 1).stream()
+              .map(RuleHistoryEntry::getName)
+              .collect(ImmutableList.toImmutableList()));
+    }
+  }
+}
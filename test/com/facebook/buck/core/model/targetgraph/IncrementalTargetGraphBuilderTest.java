@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.model.targetgraph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.model.BuildTargetFactory;
+import com.facebook.buck.core.util.graph.MutableDirectedGraph;
+import com.facebook.buck.jvm.java.JavaLibraryBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+
+public class IncrementalTargetGraphBuilderTest {
+
+  private final IncrementalTargetGraphBuilder builder = new IncrementalTargetGraphBuilder();
+  private final Set<String> reusedNodes = new HashSet<>();
+
+  @Test
+  public void reusesPreviousGraphWhenNoNodeChanged() {
+    TargetNode<?> nodeB = createTargetNode("B");
+    TargetNode<?> nodeA = createTargetNode("A", nodeB);
+
+    TargetGraph first = build(nodeA, nodeB);
+    TargetGraph second = build(nodeA, nodeB);
+
+    assertSame(first, second);
+  }
+
+  @Test
+  public void rebuildsGraphWhenNodeChanged() {
+    TargetNode<?> nodeC = createTargetNode("C");
+    TargetNode<?> nodeB = createTargetNode("B", nodeC);
+    TargetNode<?> nodeA = createTargetNode("A", nodeB);
+    TargetGraph first = build(nodeA, nodeB, nodeC);
+
+    TargetNode<?> changedB = createTargetNode("B");
+    TargetGraph second = build(nodeA, changedB, nodeC);
+
+    assertNotSame(first, second);
+    assertSame(changedB, second.get(changedB.getBuildTarget()));
+    assertEquals(ImmutableSet.of(changedB), second.getOutgoingNodesFor(nodeA));
+    assertEquals(ImmutableSet.of(), second.getOutgoingNodesFor(changedB));
+    assertEquals(ImmutableSet.of("C"), reusedNodes);
+  }
+
+  @Test
+  public void reusesEdgesOfUnchangedNodesWhoseDepsAreUnchanged() {
+    TargetNode<?> nodeC = createTargetNode("C");
+    TargetNode<?> nodeB = createTargetNode("B", nodeC);
+    TargetNode<?> nodeA = createTargetNode("A", nodeB);
+    TargetNode<?> nodeD = createTargetNode("D");
+    build(nodeA, nodeB, nodeC, nodeD);
+
+    TargetNode<?> changedD = createTargetNode("D", nodeA);
+    TargetGraph second = build(nodeA, nodeB, nodeC, changedD);
+
+    assertEquals(ImmutableSet.of("A", "B", "C"), reusedNodes);
+    assertEquals(ImmutableSet.of(nodeB), second.getOutgoingNodesFor(nodeA));
+    assertEquals(ImmutableSet.of(nodeC), second.getOutgoingNodesFor(nodeB));
+    assertEquals(ImmutableSet.of(nodeA), second.getOutgoingNodesFor(changedD));
+  }
+
+  @Test
+  public void rebuildsGraphWhenNodeAdded() {
+    TargetNode<?> nodeB = createTargetNode("B");
+    TargetNode<?> nodeA = createTargetNode("A", nodeB);
+    TargetGraph first = build(nodeB);
+
+    TargetGraph second = build(nodeA, nodeB);
+
+    assertNotSame(first, second);
+    assertEquals(ImmutableSet.of(nodeA, nodeB), second.getNodes());
+  }
+
+  @Test
+  public void rebuildsGraphAfterInvalidation() {
+    TargetNode<?> nodeA = createTargetNode("A");
+    TargetGraph first = build(nodeA);
+
+    builder.invalidate();
+    TargetGraph second = build(nodeA);
+
+    assertNotSame(first, second);
+    assertEquals(first, second);
+    assertEquals(ImmutableSet.of(), reusedNodes);
+  }
+
+  private TargetGraph build(TargetNode<?>... nodes) {
+    ImmutableMap.Builder<BuildTarget, TargetNode<?>> index = ImmutableMap.builder();
+    for (TargetNode<?> node : nodes) {
+      index.put(node.getBuildTarget(), node);
+    }
+    ImmutableMap<BuildTarget, TargetNode<?>> map = index.build();
+    IncrementalTargetGraphBuilder.GraphBuilder graph = builder.newGraph(Arrays.asList(nodes));
+    reusedNodes.clear();
+    for (TargetNode<?> node : nodes) {
+      graph.addNode(node);
+      if (graph.addPreviousEdges(node)) {
+        reusedNodes.add(node.getBuildTarget().getShortName());
+        continue;
+      }
+      for (BuildTarget dep : node.getParseDeps()) {
+        graph.addEdge(node, map.get(dep));
+      }
+    }
+    return graph.build(map);
+  }
+
+  private static TargetNode<?> createTargetNode(String name, TargetNode<?>... deps) {
+    JavaLibraryBuilder targetNodeBuilder =
+        JavaLibraryBuilder.createBuilder(BuildTargetFactory.newInstance("//foo:" + name));
+    for (TargetNode<?> dep : deps) {
+      targetNodeBuilder.addDep(dep.getBuildTarget());
+    }
+    return targetNodeBuilder.build();
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.util.graph;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.RunnerException;
+
+/**
+ * Compares traversals of the multimap based {@link DirectedAcyclicGraph} with the same traversals
+ * of a {@link CompactDirectedGraph} on a random DAG.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@BenchmarkMode(Mode.AverageTime)
+public class CompactDirectedGraphBenchmark {
+  @Param({"10000", "100000"})
+  private int nodeCount;
+
+  @Param({"8"})
+  private int maxOutDegree;
+
+  private DirectedAcyclicGraph<String> multimapGraph;
+  private CompactDirectedGraph<String> compactGraph;
+  private ImmutableList<String> roots;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(nodeCount);
+    MutableDirectedGraph<String> graph = new MutableDirectedGraph<>();
+    for (int i = 0; i < nodeCount; i++) {
+      String node = "//pkg" + (i / 10) + ":target" + i;
+      graph.addNode(node);
+      // Edges only go to nodes with lower ids, which keeps the graph acyclic.
+      int outDegree = i == 0 ? 0 : random.nextInt(Math.min(i, maxOutDegree) + 1);
+      for (int e = 0; e < outDegree; e++) {
+        int dep = random.nextInt(i);
+        graph.addEdge(node, "//pkg" + (dep / 10) + ":target" + dep);
+      }
+    }
+    multimapGraph = new DirectedAcyclicGraph<>(graph);
+    compactGraph = CompactDirectedGraph.copyOf(multimapGraph);
+    roots =
+        ImmutableList.of(
+            "//pkg" + ((nodeCount - 1) / 10) + ":target" + (nodeCount - 1),
+            "//pkg" + ((nodeCount / 2) / 10) + ":target" + (nodeCount / 2));
+  }
+
+  @Benchmark
+  public ImmutableList<String> topologicalSortMultimap() {
+    return TopologicalSort.sort(multimapGraph);
+  }
+
+  @Benchmark
+  public ImmutableList<String> topologicalSortCompact() {
+    return CompactGraphTraversals.topologicalSort(compactGraph);
+  }
+
+  @Benchmark
+  public Set<String> transitiveDepsMultimap() {
+    Set<String> visited = new HashSet<>();
+    new AbstractBreadthFirstTraversal<String>(roots) {
+      @Override
+      public Iterable<String> visit(String node) {
+        visited.add(node);
+        return multimapGraph.getOutgoingNodesFor(node);
+      }
+    }.start();
+    return visited;
+  }
+
+  @Benchmark
+  public ImmutableSet<String> transitiveDepsCompact() {
+    return CompactGraphTraversals.transitiveOutgoing(compactGraph, roots);
+  }
+
+  @Benchmark
+  public Iterable<String> postOrderMultimap() throws CycleException {
+    return new AcyclicDepthFirstPostOrderTraversal<String>(
+            node -> multimapGraph.getOutgoingNodesFor(node).iterator())
+        .traverse(roots);
+  }
+
+  @Benchmark
+  public ImmutableList<String> postOrderCompact() throws CycleException {
+    return CompactGraphTraversals.depthFirstPostOrder(compactGraph, roots);
+  }
+
+  public static void main(String[] args) throws IOException, RunnerException {
+    Main.main(new String[] {CompactDirectedGraphBenchmark.class.getName()});
+  }
+}
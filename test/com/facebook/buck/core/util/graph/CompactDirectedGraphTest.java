@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.util.graph;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class CompactDirectedGraphTest {
+
+  //     A
+  //    / \
+  //   B   C
+  //    \ / \
+  //     D   E
+  private static MutableDirectedGraph<String> makeGraph() {
+    MutableDirectedGraph<String> graph = new MutableDirectedGraph<>();
+    graph.addEdge("A", "B");
+    graph.addEdge("A", "C");
+    graph.addEdge("B", "D");
+    graph.addEdge("C", "D");
+    graph.addEdge("C", "E");
+    return graph;
+  }
+
+  @Test
+  public void copiesNodesAndEdges() {
+    MutableDirectedGraph<String> graph = makeGraph();
+    CompactDirectedGraph<String> compact = CompactDirectedGraph.copyOf(graph);
+
+    assertEquals(5, compact.getNodeCount());
+    assertEquals(5, compact.getEdgeCount());
+    assertEquals(graph.getNodes(), ImmutableSet.copyOf(compact.getNodes()));
+    for (String node : graph.getNodes()) {
+      assertEquals(
+          ImmutableSet.copyOf(graph.getOutgoingNodesFor(node)),
+          ImmutableSet.copyOf(compact.getOutgoingNodesFor(node)));
+      assertEquals(
+          ImmutableSet.copyOf(graph.getIncomingNodesFor(node)),
+          ImmutableSet.copyOf(compact.getIncomingNodesFor(node)));
+    }
+    assertEquals(ImmutableList.of("A"), compact.getNodesWithNoIncomingEdges());
+    assertEquals(
+        ImmutableSet.of("D", "E"), ImmutableSet.copyOf(compact.getNodesWithNoOutgoingEdges()));
+  }
+
+  @Test
+  public void exposesEdgesByNodeId() {
+    CompactDirectedGraph<String> compact = CompactDirectedGraph.copyOf(makeGraph());
+    int c = compact.getNodeId("C");
+
+    assertEquals("C", compact.getNode(c));
+    assertEquals(2, compact.getOutDegree(c));
+    assertEquals(1, compact.getInDegree(c));
+    List<String> outgoing = new ArrayList<>();
+    compact.forEachOutgoing(c, id -> outgoing.add(compact.getNode(id)));
+    assertEquals(ImmutableSet.of("D", "E"), ImmutableSet.copyOf(outgoing));
+    List<String> incoming = new ArrayList<>();
+    compact.forEachIncoming(c, id -> incoming.add(compact.getNode(id)));
+    assertEquals(ImmutableList.of("A"), incoming);
+  }
+
+  @Test
+  public void unknownNodesHaveNoEdges() {
+    CompactDirectedGraph<String> compact = CompactDirectedGraph.copyOf(makeGraph());
+
+    assertEquals(-1, compact.getNodeId("Z"));
+    assertEquals(ImmutableList.of(), compact.getOutgoingNodesFor("Z"));
+    assertEquals(ImmutableList.of(), compact.getIncomingNodesFor("Z"));
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.core.util.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+
+public class CompactGraphTraversalsTest {
+
+  //     A
+  //    / \
+  //   B   C
+  //    \ / \
+  //     D   E
+  //     |
+  //     F
+  private static CompactDirectedGraph<String> makeGraph() {
+    MutableDirectedGraph<String> graph = new MutableDirectedGraph<>();
+    graph.addEdge("A", "B");
+    graph.addEdge("A", "C");
+    graph.addEdge("B", "D");
+    graph.addEdge("C", "D");
+    graph.addEdge("C", "E");
+    graph.addEdge("D", "F");
+    return CompactDirectedGraph.copyOf(graph);
+  }
+
+  @Test
+  public void topologicalSortPlacesDependenciesFirst() {
+    CompactDirectedGraph<String> graph = makeGraph();
+    ImmutableList<String> sorted = CompactGraphTraversals.topologicalSort(graph);
+
+    assertEquals(graph.getNodeCount(), sorted.size());
+    for (String node : sorted) {
+      for (String dep : graph.getOutgoingNodesFor(node)) {
+        assertTrue(dep + " before " + node, sorted.indexOf(dep) < sorted.indexOf(node));
+      }
+    }
+  }
+
+  @Test
+  public void transitiveOutgoingFollowsOutgoingEdges() {
+    CompactDirectedGraph<String> graph = makeGraph();
+
+    assertEquals(
+        ImmutableSet.of("C", "D", "E", "F"),
+        CompactGraphTraversals.transitiveOutgoing(graph, ImmutableList.of("C")));
+    assertEquals(
+        ImmutableSet.of("C", "D", "E"),
+        CompactGraphTraversals.transitiveOutgoing(graph, ImmutableList.of("C"), 1));
+    assertEquals(
+        ImmutableSet.of("C"),
+        CompactGraphTraversals.transitiveOutgoing(graph, ImmutableList.of("C"), 0));
+  }
+
+  @Test
+  public void transitiveIncomingFollowsIncomingEdges() {
+    CompactDirectedGraph<String> graph = makeGraph();
+
+    assertEquals(
+        ImmutableSet.of("D", "B", "C", "A"),
+        CompactGraphTraversals.transitiveIncoming(graph, ImmutableList.of("D")));
+    assertEquals(
+        ImmutableSet.of("E", "C", "A"),
+        CompactGraphTraversals.transitiveIncoming(graph, ImmutableList.of("E")));
+  }
+
+  @Test
+  public void depthFirstPostOrderVisitsChildrenFirst() throws CycleException {
+    CompactDirectedGraph<String> graph = makeGraph();
+
+    assertEquals(
+        ImmutableList.of("F", "D", "B", "E", "C", "A"),
+        CompactGraphTraversals.depthFirstPostOrder(graph, ImmutableList.of("A")));
+    assertEquals(
+        ImmutableList.of("F", "D", "E", "C"),
+        CompactGraphTraversals.depthFirstPostOrder(graph, ImmutableList.of("C", "D")));
+  }
+
+  @Test
+  public void depthFirstPostOrderDetectsCycles() {
+    MutableDirectedGraph<String> mutableGraph = new MutableDirectedGraph<>();
+    mutableGraph.addEdge("A", "B");
+    mutableGraph.addEdge("B", "C");
+    mutableGraph.addEdge("C", "B");
+    CompactDirectedGraph<String> graph = CompactDirectedGraph.copyOf(mutableGraph);
+
+    try {
+      CompactGraphTraversals.depthFirstPostOrder(graph, ImmutableList.of("A"));
+      fail("Expected a CycleException");
+    } catch (CycleException e) {
+      assertEquals(ImmutableList.of("B", "C", "B"), e.getCycle());
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void topologicalSortRejectsCycles() {
+    MutableDirectedGraph<String> mutableGraph = new MutableDirectedGraph<>();
+    mutableGraph.addEdge("A", "B");
+    mutableGraph.addEdge("B", "A");
+
+    CompactGraphTraversals.topologicalSort(CompactDirectedGraph.copyOf(mutableGraph));
+  }
+
+  @Test
+  public void parallelBreadthFirstMatchesSequentialTraversal() throws InterruptedException {
+    // A wide graph so that levels are split into several chunks.
+    MutableDirectedGraph<Integer> mutableGraph = new MutableDirectedGraph<>();
+    for (int i = 1; i < 20000; i++) {
+      mutableGraph.addEdge(i, i / 2);
+      mutableGraph.addEdge(i, i / 3);
+    }
+    CompactDirectedGraph<Integer> graph = CompactDirectedGraph.copyOf(mutableGraph);
+    int[] roots = {graph.getNodeId(0)};
+
+    ListeningExecutorService executor =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+    try {
+      int[] sequential =
+          CompactGraphTraversals.parallelBreadthFirst(
+              graph,
+              roots,
+              CompactGraphTraversals.Direction.INCOMING,
+              Integer.MAX_VALUE,
+              id -> true,
+              MoreExecutors.newDirectExecutorService(),
+              1);
+      int[] parallel =
+          CompactGraphTraversals.parallelBreadthFirst(
+              graph,
+              roots,
+              CompactGraphTraversals.Direction.INCOMING,
+              Integer.MAX_VALUE,
+              id -> true,
+              executor,
+              8);
+
+      assertEquals(graph.getNodeCount(), sequential.length);
+      assertEquals(ids(graph, sequential), ids(graph, parallel));
+      assertEquals(
+          CompactGraphTraversals.transitiveIncoming(graph, ImmutableList.of(0)).asList(),
+          ids(graph, parallel));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void parallelBreadthFirstAppliesDepthAndFilter() throws InterruptedException {
+    CompactDirectedGraph<String> graph = makeGraph();
+
+    int[] visited =
+        CompactGraphTraversals.parallelBreadthFirst(
+            graph,
+            new int[] {graph.getNodeId("A")},
+            CompactGraphTraversals.Direction.OUTGOING,
+            2,
+            id -> !graph.getNode(id).equals("B"),
+            MoreExecutors.newDirectExecutorService(),
+            4);
+
+    assertEquals(ImmutableList.of("A", "C", "D", "E"), ids(graph, visited));
+  }
+
+  private static <T> List<T> ids(CompactDirectedGraph<T> graph, int[] ids) {
+    List<T> nodes = new ArrayList<>(ids.length);
+    for (int id : ids) {
+      nodes.add(graph.getNode(id));
+    }
+    return nodes;
+  }
+}
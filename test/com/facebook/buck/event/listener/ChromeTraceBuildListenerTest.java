@@ -656,7 +656,15 @@ public class ChromeTraceBuildListenerTest {
         resultListCopy,
         "artifact_compress",
         ChromeTraceEvent.Phase.END,
-        ImmutableMap.of("rule_key", "abc123", "full_size", "0", "compressed_size", "0"));
+        ImmutableMap.of(
+            "rule_key",
+            "abc123",
+            "full_size",
+            "0",
+            "compressed_size",
+            "0",
+            "compression_ratio",
+            "0.00"));
 
     // BuildRuleEvent.Started
     assertNextResult(
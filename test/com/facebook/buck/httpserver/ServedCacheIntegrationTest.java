@@ -581,7 +581,8 @@ public class ServedCacheIntegrationTest {
             managerScope,
             "test://",
             "hostname",
-            ClientCertificateHandler.fromConfiguration(buckConfig))
+            ClientCertificateHandler.fromConfiguration(buckConfig),
+            Optional.empty())
         .newInstance();
   }
 }
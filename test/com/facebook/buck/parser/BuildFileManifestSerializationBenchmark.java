@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import com.facebook.buck.parser.api.BuildFileManifest;
+import com.facebook.buck.parser.cache.binary.BinaryManifestSerializer;
+import com.facebook.buck.parser.cache.json.BuildFileManifestSerializer;
+import com.facebook.buck.skylark.io.GlobSpec;
+import com.facebook.buck.skylark.io.GlobSpecWithResult;
+import com.facebook.buck.util.json.ObjectMappers;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.RunnerException;
+
+/**
+ * Compares the JSON and binary serializations of {@link BuildFileManifest} used by the parser
+ * cache.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@BenchmarkMode(Mode.AverageTime)
+public class BuildFileManifestSerializationBenchmark {
+  @Param({"10", "1000"})
+  private int targetCount;
+
+  private BuildFileManifest manifest;
+  private byte[] jsonManifest;
+  private byte[] binaryManifest;
+  private String lastTargetName;
+
+  @Setup
+  public void setUp() throws IOException {
+    ImmutableMap.Builder<String, ImmutableMap<String, Object>> targets = ImmutableMap.builder();
+    for (int i = 0; i < targetCount; i++) {
+      String name = "target" + i;
+      targets.put(
+          name,
+          ImmutableMap.<String, Object>builder()
+              .put("buck.type", "java_library")
+              .put("buck.base_path", "foo/bar")
+              .put("name", name)
+              .put("srcs", ImmutableList.of(name + "/A.java", name + "/B.java"))
+              .put("deps", ImmutableList.of(":target" + (i + 1), "//third-party/java/guava:guava"))
+              .put("visibility", ImmutableList.of("PUBLIC"))
+              .put("exported_deps", ImmutableList.of())
+              .put("source", "8")
+              .put("target", "8")
+              .put("autodeps", false)
+              .build());
+      lastTargetName = name;
+    }
+    manifest =
+        BuildFileManifest.of(
+            targets.build(),
+            ImmutableSortedSet.of("/repo/foo/bar/BUCK", "/repo/tools/defs.bzl"),
+            ImmutableMap.of("java", ImmutableMap.of("source_level", Optional.of("8"))),
+            Optional.empty(),
+            ImmutableList.of(
+                GlobSpecWithResult.of(
+                    GlobSpec.of(ImmutableList.of("**/*.java"), ImmutableList.of(), true),
+                    ImmutableSet.of("A.java", "B.java"))),
+            ImmutableList.of());
+    jsonManifest = BuildFileManifestSerializer.serialize(manifest);
+    binaryManifest = BinaryManifestSerializer.serialize(manifest);
+  }
+
+  @Benchmark
+  public byte[] serializeJson() throws IOException {
+    return BuildFileManifestSerializer.serialize(manifest);
+  }
+
+  @Benchmark
+  public byte[] serializeBinary() throws IOException {
+    return BinaryManifestSerializer.serialize(manifest);
+  }
+
+  /**
+   * {@link BuildFileManifestSerializer#deserialize} cannot bind {@link BuildFileManifest}, so this
+   * only measures parsing the JSON into a tree, which is a lower bound of reading it back.
+   */
+  @Benchmark
+  public JsonNode deserializeJsonTree() throws IOException {
+    return ObjectMappers.READER.readTree(new ByteArrayInputStream(jsonManifest));
+  }
+
+  @Benchmark
+  public BuildFileManifest deserializeBinary() throws IOException {
+    return BinaryManifestSerializer.deserializeBuildFileManifest(binaryManifest);
+  }
+
+  @Benchmark
+  public Optional<ImmutableMap<String, Object>> deserializeSingleTargetBinary() throws IOException {
+    return BinaryManifestSerializer.openBuildFileManifest(binaryManifest).getTarget(lastTargetName);
+  }
+
+  public static void main(String[] args) throws IOException, RunnerException {
+    Main.main(new String[] {BuildFileManifestSerializationBenchmark.class.getName()});
+  }
+}
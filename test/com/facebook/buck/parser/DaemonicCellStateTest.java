@@ -262,4 +262,27 @@ public class DaemonicCellStateTest {
     lookupManifest = state.lookupPackageFileManifest(packageFile);
     assertFalse(lookupManifest.isPresent());
   }
+
+  @Test
+  public void includeInvalidatesIndividuallyCachedTargets() throws BuildTargetException {
+    Cache<UnconfiguredBuildTarget, UnconfiguredTargetNode> cache =
+        state.getCache(DaemonicCellState.RAW_TARGET_NODE_CACHE_TYPE);
+    BuildTarget target = BuildTargetFactory.newInstance("//path/to:target");
+    AbsPath buildFile = AbsPath.of(filesystem.resolve("path/to/BUCK"));
+    AbsPath include = AbsPath.of(filesystem.resolve("path/to/defs.bzl"));
+
+    state.putIndividuallyCachedTargets(
+        buildFile,
+        BuildFileManifestFactory.create(
+            ImmutableMap.of(
+                "target", ImmutableMap.of("buck.base_path", "path/to", "name", "target"))),
+        ImmutableSet.of(include),
+        ImmutableMap.of());
+    UnconfiguredTargetNode node = rawTargetNode("target");
+    cache.putComputedNodeIfNotPresent(target.getUnconfiguredBuildTarget(), node);
+    assertFalse(state.lookupBuildFileManifest(buildFile).isPresent());
+
+    assertEquals(1, state.invalidatePath(include));
+    assertEquals(Optional.empty(), cache.lookupComputedNode(target.getUnconfiguredBuildTarget()));
+  }
 }
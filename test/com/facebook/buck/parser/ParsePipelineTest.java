@@ -565,7 +565,8 @@ public class ParsePipelineTest {
               projectBuildFileParserPool,
               executorService,
               eventBus,
-              WatchmanFactory.NULL_WATCHMAN);
+              WatchmanFactory.NULL_WATCHMAN,
+              daemonicParserState);
 
       BuildTargetRawNodeParsePipeline buildTargetRawNodeParsePipeline =
           new BuildTargetRawNodeParsePipeline(executorService, buildFileRawNodeParsePipeline);
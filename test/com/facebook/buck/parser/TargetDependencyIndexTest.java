@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.buck.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.facebook.buck.core.cell.Cell;
+import com.facebook.buck.core.cell.TestCellBuilder;
+import com.facebook.buck.core.config.FakeBuckConfig;
+import com.facebook.buck.core.filesystems.AbsPath;
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.model.BuildTargetFactory;
+import com.facebook.buck.core.model.InternalFlavor;
+import com.facebook.buck.core.model.targetgraph.TargetNode;
+import com.facebook.buck.core.path.ForwardRelativePath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.impl.FakeProjectFilesystem;
+import com.facebook.buck.jvm.java.JavaLibraryBuilder;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class TargetDependencyIndexTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private ProjectFilesystem filesystem;
+  private Cell cell;
+  private TargetDependencyIndex index;
+
+  @Before
+  public void setUp() {
+    filesystem = FakeProjectFilesystem.createJavaOnlyFilesystem();
+    cell = new TestCellBuilder().setFilesystem(filesystem).build().getRootCell();
+    index = new TargetDependencyIndex();
+  }
+
+  private AbsPath buildFile(String basePath) {
+    return cell.getRoot().resolve(basePath).resolve("BUCK");
+  }
+
+  private void record(String basePath, ImmutableSet<AbsPath> dependents, TargetNode<?>... nodes) {
+    index.recordTargetNodes(
+        cell,
+        buildFile(basePath),
+        dependents,
+        ImmutableMap.of(),
+        Optional.empty(),
+        ImmutableList.copyOf(nodes));
+  }
+
+  private TargetNode<?> library(BuildTarget target, BuildTarget... deps) {
+    JavaLibraryBuilder builder =
+        JavaLibraryBuilder.createBuilder(target, filesystem)
+            .addSrc(
+                Paths.get(
+                    target.getCellRelativeBasePath().getPath().toString(),
+                    target.getShortName() + ".java"));
+    for (BuildTarget dep : deps) {
+      builder.addDep(dep);
+    }
+    return builder.build();
+  }
+
+  private Optional<ImmutableSet<String>> getOwners(String basePath, String file) {
+    return index.getOwners(
+        cell, buildFile(basePath), Optional.empty(), ForwardRelativePath.of(file));
+  }
+
+  @Test
+  public void ownersAreLookedUpInIndexedPackages() {
+    BuildTarget target = BuildTargetFactory.newInstance("//a:lib");
+    record("a", ImmutableSet.of(), library(target));
+
+    assertEquals(
+        Optional.of(ImmutableSet.of(target.toStringWithConfiguration())),
+        getOwners("a", "a/lib.java"));
+    assertEquals(Optional.of(ImmutableSet.of()), getOwners("a", "a/Other.java"));
+    assertEquals(Optional.empty(), getOwners("b", "b/lib.java"));
+  }
+
+  @Test
+  public void rootsThatCannotReachTargetsAreFilteredOut() {
+    BuildTarget a = BuildTargetFactory.newInstance("//a:a");
+    BuildTarget b = BuildTargetFactory.newInstance("//b:b");
+    BuildTarget c = BuildTargetFactory.newInstance("//c:c");
+    BuildTarget d = BuildTargetFactory.newInstance("//d:d");
+    record("a", ImmutableSet.of(), library(a, b));
+    record("b", ImmutableSet.of(), library(b, c));
+    record("c", ImmutableSet.of(), library(c));
+    record("d", ImmutableSet.of(), library(d));
+
+    assertEquals(
+        ImmutableSet.of(a),
+        index.getTargetsThatMayReach(
+            ImmutableList.of(a, d), ImmutableList.of(c), ImmutableMap.of()));
+    assertEquals(
+        ImmutableSet.of(a, d),
+        index.getTargetsThatMayReach(
+            ImmutableList.of(a, d), ImmutableList.of(a, d), ImmutableMap.of()));
+  }
+
+  @Test
+  public void rootsReachingUnindexedTargetsAreKept() {
+    BuildTarget a = BuildTargetFactory.newInstance("//a:a");
+    BuildTarget c = BuildTargetFactory.newInstance("//c:c");
+    BuildTarget d = BuildTargetFactory.newInstance("//d:d");
+    BuildTarget unindexed = BuildTargetFactory.newInstance("//x:x");
+    record("a", ImmutableSet.of(), library(a, unindexed));
+    record("c", ImmutableSet.of(), library(c));
+    record("d", ImmutableSet.of(), library(d));
+
+    assertEquals(
+        ImmutableSet.of(a, unindexed),
+        index.getTargetsThatMayReach(
+            ImmutableList.of(a, d, unindexed), ImmutableList.of(c), ImmutableMap.of()));
+  }
+
+  @Test
+  public void flavoredTargetsStandForTheirUnflavoredTargets() {
+    BuildTarget a = BuildTargetFactory.newInstance("//a:a");
+    BuildTarget b = BuildTargetFactory.newInstance("//b:b");
+    BuildTarget c = BuildTargetFactory.newInstance("//c:c");
+    BuildTarget d = BuildTargetFactory.newInstance("//d:d");
+    record("a", ImmutableSet.of(), library(a, b.withFlavors(InternalFlavor.of("headers"))));
+    record("b", ImmutableSet.of(), library(b, c));
+    record("c", ImmutableSet.of(), library(c));
+    record("d", ImmutableSet.of(), library(d));
+
+    BuildTarget flavoredD = d.withFlavors(InternalFlavor.of("src"));
+    assertEquals(
+        ImmutableSet.of(a),
+        index.getTargetsThatMayReach(
+            ImmutableList.of(a, d, flavoredD), ImmutableList.of(c), ImmutableMap.of()));
+    assertEquals(
+        ImmutableSet.of(a, flavoredD),
+        index.getTargetsThatMayReach(
+            ImmutableList.of(a, flavoredD),
+            ImmutableList.of(c.withFlavors(InternalFlavor.of("headers")), d),
+            ImmutableMap.of()));
+  }
+
+  @Test
+  public void indexingPreviouslyUnindexedTargetsUpdatesReachability() {
+    BuildTarget a = BuildTargetFactory.newInstance("//a:a");
+    BuildTarget c = BuildTargetFactory.newInstance("//c:c");
+    BuildTarget x = BuildTargetFactory.newInstance("//x:x");
+    record("a", ImmutableSet.of(), library(a, x));
+    record("c", ImmutableSet.of(), library(c));
+
+    assertEquals(
+        ImmutableSet.of(a),
+        index.getTargetsThatMayReach(ImmutableList.of(a), ImmutableList.of(c), ImmutableMap.of()));
+
+    record("x", ImmutableSet.of(), library(x));
+    assertEquals(
+        ImmutableSet.of(),
+        index.getTargetsThatMayReach(ImmutableList.of(a), ImmutableList.of(c), ImmutableMap.of()));
+  }
+
+  @Test
+  public void changedFilesInvalidatePackages() {
+    BuildTarget a = BuildTargetFactory.newInstance("//a:a");
+    BuildTarget b = BuildTargetFactory.newInstance("//b:b");
+    BuildTarget c = BuildTargetFactory.newInstance("//c:c");
+    AbsPath include = cell.getRoot().resolve("defs.bzl");
+    record("a", ImmutableSet.of(include), library(a));
+    record("b", ImmutableSet.of(), library(b));
+    record("c", ImmutableSet.of(), library(c));
+
+    index.invalidatePath(include);
+    assertFalse(getOwners("a", "a/a.java").isPresent());
+
+    index.invalidatePath(buildFile("b"));
+    assertFalse(getOwners("b", "b/b.java").isPresent());
+
+    index.invalidateContainingPackages(cell.getRoot().resolve("c/sub/New.java"));
+    assertFalse(getOwners("c", "c/c.java").isPresent());
+  }
+
+  @Test
+  public void packagesReadingChangedEnvironmentVariablesAreDropped() {
+    BuildTarget a = BuildTargetFactory.newInstance("//a:a");
+    BuildTarget b = BuildTargetFactory.newInstance("//b:b");
+    index.recordTargetNodes(
+        cell,
+        buildFile("a"),
+        ImmutableSet.of(),
+        ImmutableMap.of("FOO", Optional.of("1")),
+        Optional.empty(),
+        ImmutableList.of(library(a)));
+    record("b", ImmutableSet.of(), library(b));
+
+    assertEquals(
+        ImmutableSet.of(b),
+        index.getTargetsThatMayReach(
+            ImmutableList.of(a, b), ImmutableList.of(b), ImmutableMap.of("FOO", "1")));
+    assertEquals(
+        ImmutableSet.of(a, b),
+        index.getTargetsThatMayReach(
+            ImmutableList.of(a, b), ImmutableList.of(b), ImmutableMap.of("FOO", "2")));
+    assertFalse(getOwners("a", "a/a.java").isPresent());
+  }
+
+  @Test
+  public void snapshotRestoresPackagesOfUnchangedCells() throws IOException {
+    BuildTarget a = BuildTargetFactory.newInstance("//a:a");
+    BuildTarget b = BuildTargetFactory.newInstance("//b:b");
+    record("a", ImmutableSet.of(cell.getRoot().resolve("defs.bzl")), library(a, b));
+    record("b", ImmutableSet.of(), library(b));
+    Path snapshot = tmp.getRoot().resolve("index.snapshot");
+    index.writeSnapshot(snapshot, ImmutableMap.of(cell.getRoot(), "c:1:2"));
+
+    index = new TargetDependencyIndex();
+    assertEquals(
+        ImmutableMap.of(cell.getRoot(), "c:1:2"),
+        index.restoreSnapshot(snapshot, ImmutableList.of(cell)));
+    assertEquals(
+        Optional.of(ImmutableSet.of(a.toStringWithConfiguration())), getOwners("a", "a/a.java"));
+    assertEquals(
+        ImmutableSet.of(a),
+        index.getTargetsThatMayReach(ImmutableList.of(a), ImmutableList.of(b), ImmutableMap.of()));
+    index.invalidatePath(cell.getRoot().resolve("defs.bzl"));
+    assertFalse(getOwners("a", "a/a.java").isPresent());
+
+    Cell reconfiguredCell =
+        new TestCellBuilder()
+            .setFilesystem(filesystem)
+            .setBuckConfig(
+                FakeBuckConfig.builder()
+                    .setFilesystem(filesystem)
+                    .setSections("[parser]", "default_build_file_syntax = SKYLARK")
+                    .build())
+            .build()
+            .getRootCell();
+    index = new TargetDependencyIndex();
+    assertEquals(
+        ImmutableMap.of(), index.restoreSnapshot(snapshot, ImmutableList.of(reconfiguredCell)));
+    assertFalse(getOwners("b", "b/b.java").isPresent());
+  }
+
+  @Test
+  public void snapshotStoresStringsLongerThan64Kb() throws IOException {
+    BuildTarget a = BuildTargetFactory.newInstance("//a:a");
+    BuildTarget b = BuildTargetFactory.newInstance("//b:b");
+    String value = Strings.repeat("v", 70 * 1024);
+    index.recordTargetNodes(
+        cell,
+        buildFile("a"),
+        ImmutableSet.of(),
+        ImmutableMap.of("FOO", Optional.of(value)),
+        Optional.empty(),
+        ImmutableList.of(library(a)));
+    Path snapshot = tmp.getRoot().resolve("index.snapshot");
+    index.writeSnapshot(snapshot, ImmutableMap.of(cell.getRoot(), "c:1:2"));
+
+    index = new TargetDependencyIndex();
+    index.restoreSnapshot(snapshot, ImmutableList.of(cell));
+    assertEquals(
+        ImmutableSet.of(),
+        index.getTargetsThatMayReach(
+            ImmutableList.of(a), ImmutableList.of(b), ImmutableMap.of("FOO", value)));
+    assertFalse(Files.exists(snapshot.resolveSibling(snapshot.getFileName() + ".tmp")));
+  }
+}
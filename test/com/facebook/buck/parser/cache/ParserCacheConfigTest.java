@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.parser.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.core.config.BuckConfig;
+import com.facebook.buck.core.config.FakeBuckConfig;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.impl.FakeProjectFilesystem;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+public class ParserCacheConfigTest {
+
+  @Test
+  public void cacheIsDisabledByDefault() {
+    ParserCacheConfig config = FakeBuckConfig.builder().build().getView(ParserCacheConfig.class);
+
+    assertEquals(ParserCacheAccessMode.NONE, config.getDirCacheAccessMode());
+    assertFalse(config.isDirParserCacheEnabled());
+  }
+
+  @Test
+  public void cacheModeAndLocationAreConfigurable() {
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+    BuckConfig buckConfig =
+        FakeBuckConfig.builder()
+            .setFilesystem(filesystem)
+            .setSections(
+                ImmutableMap.of(
+                    ParserCacheConfig.PARSER_CACHE_SECTION_NAME,
+                    ImmutableMap.of("dir_mode", "readonly", "dir", "parser-cache")))
+            .build();
+    ParserCacheConfig config = buckConfig.getView(ParserCacheConfig.class);
+
+    assertEquals(ParserCacheAccessMode.READONLY, config.getDirCacheAccessMode());
+    assertTrue(config.isDirParserCacheEnabled());
+    assertEquals(filesystem.resolve("parser-cache"), config.getDirCacheLocation());
+  }
+
+  @Test
+  public void defaultLocationIsInBuckOut() {
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+    ParserCacheConfig config =
+        FakeBuckConfig.builder()
+            .setFilesystem(filesystem)
+            .build()
+            .getView(ParserCacheConfig.class);
+
+    assertEquals(
+        filesystem.resolve(filesystem.getBuckPaths().getBuckOut().resolve("parser_cache")),
+        config.getDirCacheLocation());
+  }
+}
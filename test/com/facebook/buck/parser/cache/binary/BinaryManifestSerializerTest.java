@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.parser.cache.binary;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.facebook.buck.parser.api.BuildFileManifest;
+import com.facebook.buck.parser.api.PackageFileManifest;
+import com.facebook.buck.parser.api.PackageMetadata;
+import com.facebook.buck.parser.exceptions.ParsingError;
+import com.facebook.buck.parser.syntax.ListWithSelects;
+import com.facebook.buck.parser.syntax.SelectorValue;
+import com.facebook.buck.skylark.io.GlobSpec;
+import com.facebook.buck.skylark.io.GlobSpecWithResult;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Optional;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class BinaryManifestSerializerTest {
+  @Rule public ExpectedException expectedException = ExpectedException.none();
+
+  private static BuildFileManifest createManifest() {
+    ImmutableMap<String, Object> library =
+        ImmutableMap.<String, Object>builder()
+            .put("buck.type", "java_library")
+            .put("name", "lib")
+            .put("srcs", ImmutableList.of("A.java", "B.java"))
+            .put("labels", ImmutableSortedSet.of("b", "a"))
+            .put("exported", true)
+            .put("version", 42)
+            .put("big_number", -5_000_000_000L)
+            .put("ratio", 0.5)
+            .put("env", ImmutableSortedMap.of("K", "V"))
+            .put("extra", ImmutableMap.of("nested", ImmutableList.of(1, ImmutableSet.of("x"))))
+            .put("maybe", Optional.empty())
+            .put(
+                "deps",
+                ListWithSelects.of(
+                    ImmutableList.of(
+                        ImmutableList.of(":base"),
+                        SelectorValue.of(
+                            ImmutableMap.of(
+                                "//config:linux", ImmutableList.of(":linux"),
+                                "DEFAULT", ImmutableList.of()),
+                            "no match")),
+                    ImmutableList.class))
+            .build();
+    ImmutableMap<String, Object> binary =
+        ImmutableMap.of(
+            "buck.type", "java_binary", "name", "bin", "deps", ImmutableList.of(":lib"));
+
+    return BuildFileManifest.of(
+        ImmutableMap.of("lib", library, "bin", binary),
+        ImmutableSortedSet.of("/repo/BUCK", "/repo/defs.bzl"),
+        ImmutableMap.of("section", ImmutableMap.of("key", Optional.of("value"))),
+        Optional.of(ImmutableMap.of("HOME", Optional.of("/home"), "UNSET", Optional.empty())),
+        ImmutableList.of(
+            GlobSpecWithResult.of(
+                GlobSpec.of(ImmutableList.of("*.java"), ImmutableList.of("Test*.java"), true),
+                ImmutableSet.of("A.java", "B.java"))),
+        ImmutableList.of(ParsingError.of("error", ImmutableList.of("frame"))));
+  }
+
+  @Test
+  public void buildFileManifestRoundTrips() throws Exception {
+    BuildFileManifest manifest = createManifest();
+
+    BuildFileManifest deserialized =
+        BinaryManifestSerializer.deserializeBuildFileManifest(
+            BinaryManifestSerializer.serialize(manifest));
+
+    assertEquals(manifest, deserialized);
+    assertEquals(
+        ImmutableList.copyOf(manifest.getTargets().keySet()),
+        ImmutableList.copyOf(deserialized.getTargets().keySet()));
+  }
+
+  @Test
+  public void targetsCanBeDecodedIndividually() throws Exception {
+    BuildFileManifest manifest = createManifest();
+
+    LazyBuildFileManifest lazyManifest =
+        BinaryManifestSerializer.openBuildFileManifest(
+            BinaryManifestSerializer.serialize(manifest));
+
+    assertEquals(ImmutableSet.of("lib", "bin"), lazyManifest.getTargetNames());
+    assertEquals(manifest.getTargets().get("bin"), lazyManifest.getTarget("bin").get());
+    assertFalse(lazyManifest.getTarget("missing").isPresent());
+    assertEquals(manifest.getIncludes(), lazyManifest.getIncludes());
+    assertEquals(manifest.getConfigs(), lazyManifest.getConfigs());
+    assertEquals(manifest.getEnv(), lazyManifest.getEnv());
+    assertEquals(manifest.getGlobManifest(), lazyManifest.getGlobManifest());
+    assertEquals(manifest.getErrors(), lazyManifest.getErrors());
+    assertEquals(manifest, lazyManifest.toBuildFileManifest());
+  }
+
+  @Test
+  public void packageFileManifestRoundTrips() throws Exception {
+    PackageFileManifest manifest =
+        PackageFileManifest.of(
+            PackageMetadata.of(ImmutableList.of("PUBLIC"), ImmutableList.of("//foo/...")),
+            ImmutableSortedSet.of("/repo/PACKAGE"),
+            ImmutableMap.of(),
+            Optional.empty(),
+            ImmutableList.of());
+
+    assertEquals(
+        manifest,
+        BinaryManifestSerializer.deserializePackageFileManifest(
+            BinaryManifestSerializer.serialize(manifest)));
+  }
+
+  @Test
+  public void repeatedStringsAreStoredOnce() throws Exception {
+    ImmutableMap.Builder<String, ImmutableMap<String, Object>> targets = ImmutableMap.builder();
+    for (int i = 0; i < 100; i++) {
+      targets.put(
+          "target" + i,
+          ImmutableMap.of(
+              "buck.type", "java_library", "visibility", ImmutableList.of("PUBLIC_VISIBILITY")));
+    }
+    BuildFileManifest manifest =
+        BuildFileManifest.of(
+            targets.build(),
+            ImmutableSortedSet.of(),
+            ImmutableMap.of(),
+            Optional.empty(),
+            ImmutableList.of(),
+            ImmutableList.of());
+
+    String serialized =
+        new String(BinaryManifestSerializer.serialize(manifest), StandardCharsets.ISO_8859_1);
+
+    assertEquals(serialized.indexOf("java_library"), serialized.lastIndexOf("java_library"));
+    assertEquals(
+        serialized.indexOf("PUBLIC_VISIBILITY"), serialized.lastIndexOf("PUBLIC_VISIBILITY"));
+  }
+
+  @Test
+  public void truncatedInputIsRejected() throws Exception {
+    byte[] serialized = BinaryManifestSerializer.serialize(createManifest());
+
+    expectedException.expect(IOException.class);
+    BinaryManifestSerializer.deserializeBuildFileManifest(
+        Arrays.copyOf(serialized, serialized.length - 1));
+  }
+
+  @Test
+  public void packageManifestIsNotReadAsBuildFileManifest() throws Exception {
+    byte[] serialized = BinaryManifestSerializer.serialize(PackageFileManifest.EMPTY_SINGLETON);
+
+    expectedException.expect(IOException.class);
+    BinaryManifestSerializer.openBuildFileManifest(serialized);
+  }
+
+  @Test
+  public void unsupportedValuesAreRejected() throws Exception {
+    BuildFileManifest manifest =
+        BuildFileManifest.of(
+            ImmutableMap.of("t", ImmutableMap.of("attr", new Object())),
+            ImmutableSortedSet.of(),
+            ImmutableMap.of(),
+            Optional.empty(),
+            ImmutableList.of(),
+            ImmutableList.of());
+
+    expectedException.expect(IOException.class);
+    BinaryManifestSerializer.serialize(manifest);
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.parser.cache.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import com.facebook.buck.core.cell.Cell;
+import com.facebook.buck.core.cell.TestCellBuilder;
+import com.facebook.buck.core.config.FakeBuckConfig;
+import com.facebook.buck.core.filesystems.AbsPath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.hash.HashCode;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class FingerprinterTest {
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private ProjectFilesystem filesystem;
+
+  @Before
+  public void setUp() {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+  }
+
+  @Test
+  public void strongFingerprintChangesWithIncludeContents() throws Exception {
+    Path buildFile = filesystem.resolve("BUCK");
+    Path include = filesystem.resolve("defs.bzl");
+    filesystem.writeContentsToPath("java_library(name = 'a')", buildFile);
+    filesystem.writeContentsToPath("A = 1", include);
+    ImmutableSortedSet<String> includes =
+        ImmutableSortedSet.of(buildFile.toString(), include.toString());
+
+    HashCode before = Fingerprinter.getStrongFingerprint(filesystem, includes);
+    assertEquals(before, Fingerprinter.getStrongFingerprint(filesystem, includes));
+
+    filesystem.writeContentsToPath("A = 2", include);
+    assertNotEquals(before, Fingerprinter.getStrongFingerprint(filesystem, includes));
+  }
+
+  @Test
+  public void weakFingerprintDependsOnParserConfig() {
+    AbsPath buildFile = AbsPath.of(filesystem.resolve("foo/BUCK"));
+    Cell cell = new TestCellBuilder().setFilesystem(filesystem).build().getRootCell();
+    Cell cellWithOtherConfig =
+        new TestCellBuilder()
+            .setFilesystem(filesystem)
+            .setBuckConfig(
+                FakeBuckConfig.builder()
+                    .setFilesystem(filesystem)
+                    .setSections(ImmutableMap.of("buildfile", ImmutableMap.of("name", "TARGETS")))
+                    .build())
+            .build()
+            .getRootCell();
+
+    assertEquals(
+        Fingerprinter.getWeakFingerprint(cell, buildFile),
+        Fingerprinter.getWeakFingerprint(cell, buildFile));
+    assertNotEquals(
+        Fingerprinter.getWeakFingerprint(cell, buildFile),
+        Fingerprinter.getWeakFingerprint(cell, AbsPath.of(filesystem.resolve("bar/BUCK"))));
+    assertNotEquals(
+        Fingerprinter.getWeakFingerprint(cell, buildFile),
+        Fingerprinter.getWeakFingerprint(cellWithOtherConfig, buildFile));
+  }
+}
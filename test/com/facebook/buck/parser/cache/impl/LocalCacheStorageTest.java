@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.parser.cache.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.parser.cache.ParserCacheAccessMode;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class LocalCacheStorageTest {
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private static final HashCode WEAK_FINGERPRINT =
+      Hashing.sha1().hashString("weak", StandardCharsets.UTF_8);
+  private static final HashCode STRONG_FINGERPRINT =
+      Hashing.sha1().hashString("strong", StandardCharsets.UTF_8);
+  private static final byte[] MANIFEST = "manifest".getBytes(StandardCharsets.UTF_8);
+
+  private ProjectFilesystem filesystem;
+  private Path cacheDir;
+
+  @Before
+  public void setUp() {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    cacheDir = tmp.getRoot().resolve("buck-out").resolve("parser_cache");
+  }
+
+  @Test
+  public void storedManifestCanBeRetrieved() throws Exception {
+    LocalCacheStorage storage =
+        LocalCacheStorage.of(cacheDir, ParserCacheAccessMode.READWRITE, filesystem);
+
+    storage.storeBuildFileManifest(WEAK_FINGERPRINT, STRONG_FINGERPRINT, MANIFEST);
+
+    Optional<byte[]> manifest = storage.getBuildFileManifest(WEAK_FINGERPRINT, STRONG_FINGERPRINT);
+    assertTrue(manifest.isPresent());
+    assertArrayEquals(MANIFEST, manifest.get());
+  }
+
+  @Test
+  public void differentStrongFingerprintIsAMiss() throws Exception {
+    LocalCacheStorage storage =
+        LocalCacheStorage.of(cacheDir, ParserCacheAccessMode.READWRITE, filesystem);
+
+    storage.storeBuildFileManifest(WEAK_FINGERPRINT, STRONG_FINGERPRINT, MANIFEST);
+
+    assertFalse(
+        storage
+            .getBuildFileManifest(
+                WEAK_FINGERPRINT, Hashing.sha1().hashString("other", StandardCharsets.UTF_8))
+            .isPresent());
+  }
+
+  @Test
+  public void readOnlyCacheDoesNotStore() throws Exception {
+    LocalCacheStorage storage =
+        LocalCacheStorage.of(cacheDir, ParserCacheAccessMode.READONLY, filesystem);
+
+    storage.storeBuildFileManifest(WEAK_FINGERPRINT, STRONG_FINGERPRINT, MANIFEST);
+
+    assertFalse(storage.getBuildFileManifest(WEAK_FINGERPRINT, STRONG_FINGERPRINT).isPresent());
+  }
+
+  @Test
+  public void deletedEntryIsAMiss() throws Exception {
+    LocalCacheStorage storage =
+        LocalCacheStorage.of(cacheDir, ParserCacheAccessMode.READWRITE, filesystem);
+
+    storage.storeBuildFileManifest(WEAK_FINGERPRINT, STRONG_FINGERPRINT, MANIFEST);
+    storage.deleteCacheEntries(WEAK_FINGERPRINT, STRONG_FINGERPRINT);
+
+    assertFalse(storage.getBuildFileManifest(WEAK_FINGERPRINT, STRONG_FINGERPRINT).isPresent());
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.buck.parser.cache.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.core.cell.Cell;
+import com.facebook.buck.core.cell.TestCellBuilder;
+import com.facebook.buck.core.config.FakeBuckConfig;
+import com.facebook.buck.core.filesystems.AbsPath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.parser.api.BuildFileManifest;
+import com.facebook.buck.parser.api.ProjectBuildFileParser;
+import com.facebook.buck.skylark.io.GlobSpecWithResult;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedSet;
+import java.nio.file.Path;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class ParserCacheTest {
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private ProjectFilesystem filesystem;
+  private AbsPath buildFile;
+
+  @Before
+  public void setUp() throws Exception {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    buildFile = AbsPath.of(filesystem.resolve("BUCK"));
+    filesystem.writeContentsToPath("java_library(name = 'a')", buildFile.getPath());
+  }
+
+  @Test
+  public void cacheIsDisabledForPythonDslCells() {
+    ParserCache parserCache = new ParserCache();
+
+    assertFalse(parserCache.isEnabled(createCell("PYTHON_DSL", false)));
+    assertFalse(parserCache.isEnabled(createCell("SKYLARK", true)));
+    assertTrue(parserCache.isEnabled(createCell("SKYLARK", false)));
+  }
+
+  @Test
+  public void missParsesBuildFileOnceAndStoresManifest() throws Exception {
+    Cell cell = createCell("SKYLARK", false);
+    FakeParser parser = new FakeParser();
+
+    BuildFileManifest manifest = new ParserCache().getOrParse(cell, buildFile, parser);
+
+    assertEquals(parser.manifest, manifest);
+    assertEquals(1, parser.manifestRequests);
+    assertEquals(0, parser.globChecks);
+  }
+
+  @Test
+  public void hitValidatesGlobsWithoutParsing() throws Exception {
+    Cell cell = createCell("SKYLARK", false);
+    ParserCache parserCache = new ParserCache();
+    parserCache.getOrParse(cell, buildFile, new FakeParser());
+    FakeParser parser = new FakeParser();
+
+    BuildFileManifest manifest = parserCache.getOrParse(cell, buildFile, parser);
+
+    assertEquals(parser.manifest.getTargets(), manifest.getTargets());
+    assertEquals(0, parser.manifestRequests);
+    assertEquals(1, parser.globChecks);
+  }
+
+  @Test
+  public void staleGlobsAreAMiss() throws Exception {
+    Cell cell = createCell("SKYLARK", false);
+    ParserCache parserCache = new ParserCache();
+    parserCache.getOrParse(cell, buildFile, new FakeParser());
+    FakeParser parser = new FakeParser();
+    parser.globsMatch = false;
+
+    parserCache.getOrParse(cell, buildFile, parser);
+
+    assertEquals(1, parser.manifestRequests);
+    assertEquals(1, parser.globChecks);
+  }
+
+  @Test
+  public void singleTargetIsReadFromCacheWithoutParsing() throws Exception {
+    Cell cell = createCell("SKYLARK", false);
+    ParserCache parserCache = new ParserCache();
+    parserCache.getOrParse(cell, buildFile, new FakeParser());
+    FakeParser parser = new FakeParser();
+
+    ParserCache.TargetLookup lookup = parserCache.getCachedTarget(cell, buildFile, "a", parser);
+
+    assertTrue(lookup.wasLookedUp());
+    assertEquals(
+        ImmutableMap.of("a", parser.manifest.getTargets().get("a")),
+        lookup.getManifest().get().getTargets());
+    assertEquals(parser.manifest.getIncludes(), lookup.getManifest().get().getIncludes());
+    assertEquals(parser.manifest.getEnv(), lookup.getManifest().get().getEnv());
+    assertFalse(
+        parserCache.getCachedTarget(cell, buildFile, "missing", parser).getManifest().isPresent());
+    assertEquals(0, parser.manifestRequests);
+  }
+
+  @Test
+  public void fallbackAfterMissedTargetDoesNotListIncludesAgain() throws Exception {
+    Cell cell = createCell("SKYLARK", false);
+    ParserCache parserCache = new ParserCache();
+    FakeParser parser = new FakeParser();
+
+    ParserCache.TargetLookup lookup = parserCache.getCachedTarget(cell, buildFile, "a", parser);
+    assertFalse(lookup.getManifest().isPresent());
+    BuildFileManifest manifest = parserCache.getOrParse(cell, buildFile, lookup, parser);
+
+    assertEquals(parser.manifest, manifest);
+    assertEquals(1, parser.includedFilesRequests);
+    assertEquals(1, parser.manifestRequests);
+  }
+
+  @Test
+  public void staleGlobsDoNotServeSingleTarget() throws Exception {
+    Cell cell = createCell("SKYLARK", false);
+    ParserCache parserCache = new ParserCache();
+    parserCache.getOrParse(cell, buildFile, new FakeParser());
+    FakeParser parser = new FakeParser();
+    parser.globsMatch = false;
+
+    assertFalse(
+        parserCache.getCachedTarget(cell, buildFile, "a", parser).getManifest().isPresent());
+    assertEquals(0, parser.manifestRequests);
+  }
+
+  private Cell createCell(String syntax, boolean polyglot) {
+    return new TestCellBuilder()
+        .setFilesystem(filesystem)
+        .setBuckConfig(
+            FakeBuckConfig.builder()
+                .setFilesystem(filesystem)
+                .setSections(
+                    ImmutableMap.of(
+                        "parser",
+                        ImmutableMap.of(
+                            "default_build_file_syntax",
+                            syntax,
+                            "polyglot_parsing_enabled",
+                            Boolean.toString(polyglot)),
+                        "parser_cache",
+                        ImmutableMap.of("dir_mode", "readwrite")))
+                .build())
+        .build()
+        .getRootCell();
+  }
+
+  private class FakeParser implements ProjectBuildFileParser {
+    private final BuildFileManifest manifest =
+        BuildFileManifest.of(
+            ImmutableMap.of("a", ImmutableMap.of("name", "a", "buck.type", "java_library")),
+            ImmutableSortedSet.of(buildFile.toString()),
+            ImmutableMap.of(),
+            Optional.empty(),
+            ImmutableList.of(),
+            ImmutableList.of());
+    private int manifestRequests;
+    private int includedFilesRequests;
+    private int globChecks;
+    private boolean globsMatch = true;
+
+    @Override
+    public BuildFileManifest getManifest(Path buildFile) {
+      manifestRequests++;
+      return manifest;
+    }
+
+    @Override
+    public ImmutableSortedSet<String> getIncludedFiles(Path buildFile) {
+      includedFilesRequests++;
+      return manifest.getIncludes();
+    }
+
+    @Override
+    public boolean globResultsMatchCurrentState(
+        Path buildFile, ImmutableList<GlobSpecWithResult> existingGlobsWithResults) {
+      globChecks++;
+      return globsMatch;
+    }
+
+    @Override
+    public void reportProfile() {}
+
+    @Override
+    public void close() {}
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.query;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.core.model.BuildTargetFactory;
+import com.facebook.buck.core.model.QueryTarget;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+
+public class ProfilingQueryEvaluatorTest {
+
+  private static final QueryBuildTarget A = target("//:a");
+  private static final QueryBuildTarget B = target("//:b");
+  private static final QueryBuildTarget C = target("//:c");
+  private static final QueryBuildTarget D = target("//:d");
+
+  // a -> b -> c <- d
+  private static final ImmutableSetMultimap<QueryBuildTarget, QueryBuildTarget> DEPS =
+      ImmutableSetMultimap.of(A, B, B, C, D, C);
+
+  @Test
+  public void recordsFunctionsAndOperators() throws QueryException {
+    GraphQueryEnvironment env = new GraphQueryEnvironment();
+    ProfilingQueryEvaluator<QueryBuildTarget> evaluator = new ProfilingQueryEvaluator<>();
+
+    Set<QueryTarget> result =
+        evaluator.eval(
+            QueryExpression.parse("deps(//:a) intersect rdeps(set(//:a //:d), //:c)", env), env);
+
+    assertEquals(ImmutableSet.of(A, B, C), result);
+    List<ProfilingQueryEvaluator.OperatorProfile> profiles = evaluator.getProfiles();
+    assertEquals(3, profiles.size());
+    for (ProfilingQueryEvaluator.OperatorProfile profile : profiles) {
+      assertEquals(1, profile.getInvocations());
+      switch (profile.getOperator()) {
+        case "deps":
+          assertEquals(3, profile.getTotalTargets());
+          break;
+        case "rdeps":
+          assertEquals(4, profile.getTotalTargets());
+          break;
+        case "intersect":
+          assertEquals(3, profile.getTotalTargets());
+          break;
+        default:
+          throw new AssertionError("Unexpected operator " + profile.getOperator());
+      }
+    }
+  }
+
+  @Test
+  public void defaultTraversalsRespectDepthAndUniverse() throws QueryException {
+    GraphQueryEnvironment env = new GraphQueryEnvironment();
+
+    assertEquals(
+        ImmutableList.of(A, B),
+        ImmutableList.copyOf(env.getTransitiveFwdDeps(ImmutableSet.of(A), 1)));
+    assertEquals(
+        ImmutableList.of(C, B, D, A),
+        ImmutableList.copyOf(
+            env.getTransitiveReverseDeps(
+                ImmutableSet.of(C), Integer.MAX_VALUE, ImmutableSet.of(A, B, C, D))));
+    assertEquals(
+        ImmutableList.of(C, D),
+        ImmutableList.copyOf(
+            env.getTransitiveReverseDeps(
+                ImmutableSet.of(C), Integer.MAX_VALUE, ImmutableSet.of(C, D))));
+  }
+
+  private static QueryBuildTarget target(String name) {
+    return QueryBuildTarget.of(BuildTargetFactory.newInstance(name));
+  }
+
+  private static class GraphQueryEnvironment extends BaseTestQueryEnvironment<QueryBuildTarget> {
+
+    @Override
+    public Set<QueryTarget> getTargetsMatchingPattern(String pattern) {
+      return ImmutableSet.of(target(pattern));
+    }
+
+    @Override
+    public TargetEvaluator getTargetEvaluator() {
+      return new TargetEvaluator() {
+        @Override
+        public Set<QueryTarget> evaluateTarget(String target) {
+          return getTargetsMatchingPattern(target);
+        }
+
+        @Override
+        public Type getType() {
+          return Type.IMMEDIATE;
+        }
+      };
+    }
+
+    @Override
+    public Set<QueryBuildTarget> getFwdDeps(Iterable<QueryBuildTarget> targets) {
+      Set<QueryBuildTarget> result = new LinkedHashSet<>();
+      targets.forEach(target -> result.addAll(DEPS.get(target)));
+      return result;
+    }
+
+    @Override
+    public Set<QueryBuildTarget> getReverseDeps(Iterable<QueryBuildTarget> targets) {
+      Set<QueryBuildTarget> result = new LinkedHashSet<>();
+      targets.forEach(target -> result.addAll(DEPS.inverse().get(target)));
+      return result;
+    }
+
+    @Override
+    public void buildTransitiveClosure(Set<? extends QueryTarget> targetNodes, int maxDepth) {}
+
+    @Override
+    public Set<QueryBuildTarget> getTransitiveClosure(Set<QueryBuildTarget> targets)
+        throws QueryException {
+      return getTransitiveFwdDeps(targets, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public Iterable<QueryFunction<? extends QueryTarget, QueryBuildTarget>> getFunctions() {
+      return ImmutableList.of(new DepsFunction<>(), new RdepsFunction<>());
+    }
+  }
+}
@@ -21,6 +21,7 @@ import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.core.model.BuildTargetFactory;
+import com.facebook.buck.core.rulekey.AddsToRuleKey;
 import com.facebook.buck.core.rules.TestBuildRuleParams;
 import com.facebook.buck.core.rules.actions.ActionExecutionResult;
 import com.facebook.buck.core.rules.actions.ActionRegistryForTests;
@@ -203,6 +204,50 @@ public class DefaultRuleKeyCacheTest {
     assertThat(cache.getStats().getTotalLoadTime().get(), Matchers.equalTo(1L));
   }
 
+  @Test
+  public void retainActionsKeepsCarriedOverRulesAndDropsDependentsOfRemovedOnes() {
+    DefaultRuleKeyCache<String> internalCache = new DefaultRuleKeyCache<>();
+    TrackedRuleKeyCache<String> cache =
+        new TrackedRuleKeyCache<>(internalCache, new InstrumentingCacheStatsTracker());
+    TestRule unchanged = new TestRule();
+    cache.get(unchanged, r -> new RuleKeyResult<>("", ImmutableList.of(), ImmutableList.of()));
+    TestRule removed = new TestRule();
+    cache.get(removed, r -> new RuleKeyResult<>("", ImmutableList.of(), ImmutableList.of()));
+    TestRule dependent = new TestRule();
+    cache.get(
+        dependent, r -> new RuleKeyResult<>("", ImmutableList.of(removed), ImmutableList.of()));
+
+    cache.retainActions(ImmutableList.of(unchanged, dependent));
+
+    assertTrue(internalCache.isCached(unchanged));
+    assertFalse(internalCache.isCached(removed));
+    assertFalse(internalCache.isCached(dependent));
+  }
+
+  @Test
+  public void retainActionsSweepsAppendablesOnlyReachableFromRemovedRules() {
+    DefaultRuleKeyCache<String> internalCache = new DefaultRuleKeyCache<>();
+    TrackedRuleKeyCache<String> cache =
+        new TrackedRuleKeyCache<>(internalCache, new InstrumentingCacheStatsTracker());
+    AddsToRuleKey shared = new AddsToRuleKey() {};
+    cache.get(shared, a -> new RuleKeyResult<>("", ImmutableList.of(), ImmutableList.of()));
+    AddsToRuleKey orphaned = new AddsToRuleKey() {};
+    cache.get(orphaned, a -> new RuleKeyResult<>("", ImmutableList.of(), ImmutableList.of()));
+    TestRule kept = new TestRule();
+    cache.get(kept, r -> new RuleKeyResult<>("", ImmutableList.of(shared), ImmutableList.of()));
+    TestRule removed = new TestRule();
+    cache.get(
+        removed,
+        r -> new RuleKeyResult<>("", ImmutableList.of(shared, orphaned), ImmutableList.of()));
+
+    cache.retainActions(ImmutableList.of(kept));
+
+    assertTrue(internalCache.isCached(kept));
+    assertTrue(internalCache.isCached(shared));
+    assertFalse(internalCache.isCached(removed));
+    assertFalse(internalCache.isCached(orphaned));
+  }
+
   private static class TestRule extends NoopBuildRuleWithDeclaredAndExtraDeps {
 
     private TestRule() {
@@ -16,9 +16,17 @@
 
 package com.facebook.buck.rules.keys;
 
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.core.rulekey.RuleKey;
 import com.facebook.buck.rules.keys.hasher.GuavaRuleKeyHasher;
+import com.facebook.buck.rules.keys.hasher.RuleKeyHasherTypes;
+import com.google.common.base.Strings;
 import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
 import org.junit.experimental.runners.Enclosed;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
@@ -44,6 +52,29 @@ public class GuavaRuleKeyHasherTest {
     }
   }
 
+  public static class EncodingTest {
+
+    @Test
+    public void stringsHashAsTheirUtf8Bytes() {
+      String longString = Strings.repeat("abcdefgh", 40);
+      for (String value : new String[] {"", "ascii", "caf\u00e9", "\ud83d\ude00", longString}) {
+        Hasher expected = Hashing.sha1().newHasher();
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        expected.putBytes(bytes).putInt(bytes.length).putByte(RuleKeyHasherTypes.STRING);
+        assertEquals(value, expected.hash(), newHasher().putString(value).hash());
+      }
+    }
+
+    @Test
+    public void ruleKeysHashAsTheirBytes() {
+      RuleKey ruleKey = new RuleKey("a002b39af204cdfaa5fdb67816b13867c32ac52c");
+      Hasher expected = Hashing.sha1().newHasher();
+      byte[] bytes = ruleKey.getHashCode().asBytes();
+      expected.putBytes(bytes).putInt(bytes.length).putByte(RuleKeyHasherTypes.RULE_KEY);
+      assertEquals(expected.hash(), newHasher().putRuleKey(ruleKey).hash());
+    }
+  }
+
   public static GuavaRuleKeyHasher newHasher() {
     return new GuavaRuleKeyHasher(Hashing.sha1().newHasher());
   }
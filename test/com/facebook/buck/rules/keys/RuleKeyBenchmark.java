@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.core.model.BuildTarget;
+import com.facebook.buck.core.model.BuildTargetFactory;
+import com.facebook.buck.core.rulekey.AddToRuleKey;
+import com.facebook.buck.core.rulekey.AddsToRuleKey;
+import com.facebook.buck.core.rulekey.RuleKey;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.core.rules.resolver.impl.TestActionGraphBuilder;
+import com.facebook.buck.core.sourcepath.PathSourcePath;
+import com.facebook.buck.core.sourcepath.SourcePath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.impl.FakeProjectFilesystem;
+import com.facebook.buck.testutil.FakeFileHashCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.RunnerException;
+
+/**
+ * Computes default rule keys from scratch over a layered graph of rules whose fields look like
+ * those of typical library rules (flags, sources, a tool, and deps). Run with {@code -prof gc} to
+ * see the allocation rate of the rule key builders.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RuleKeyBenchmark {
+
+  @Param({"2000"})
+  private int ruleCount = 2000;
+
+  private static final int RULES_PER_LAYER = 100;
+  private static final int DEPS_PER_RULE = 5;
+  private static final int SRCS_PER_RULE = 8;
+
+  private final ProjectFilesystem filesystem = new FakeProjectFilesystem();
+  private final List<BuildRule> rules = new ArrayList<>();
+  private TestActionGraphBuilder graphBuilder;
+  private FakeFileHashCache hashCache;
+
+  @Setup
+  public void setUpGraph() {
+    graphBuilder = new TestActionGraphBuilder();
+    Map<Path, HashCode> hashes = new HashMap<>();
+    rules.clear();
+    for (int i = 0; i < ruleCount; i++) {
+      BuildTarget target = BuildTargetFactory.newInstance("//lib" + i / RULES_PER_LAYER + ":r" + i);
+      ImmutableSortedSet.Builder<SourcePath> srcs = ImmutableSortedSet.naturalOrder();
+      for (int j = 0; j < SRCS_PER_RULE; j++) {
+        Path path = Paths.get("lib" + i / RULES_PER_LAYER, "r" + i, "Src" + j + ".java");
+        srcs.add(PathSourcePath.of(filesystem, path));
+        hashes.put(
+            filesystem.resolve(path),
+            Hashing.sha1().hashString(path.toString(), StandardCharsets.UTF_8));
+      }
+      ImmutableList.Builder<BuildRule> deps = ImmutableList.builder();
+      int layerStart = (i / RULES_PER_LAYER - 1) * RULES_PER_LAYER;
+      if (layerStart >= 0) {
+        for (int j = 0; j < DEPS_PER_RULE; j++) {
+          deps.add(rules.get(layerStart + (i * 7 + j * 13) % RULES_PER_LAYER));
+        }
+      }
+      BenchmarkRule rule = new BenchmarkRule(target, srcs.build(), deps.build(), i);
+      graphBuilder.addToIndex(rule);
+      rules.add(rule);
+    }
+    hashCache = new FakeFileHashCache(hashes);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  public void buildRuleKeys(Blackhole blackhole) {
+    DefaultRuleKeyFactory factory = new TestDefaultRuleKeyFactory(hashCache, graphBuilder);
+    for (BuildRule rule : rules) {
+      RuleKey ruleKey = factory.build(rule);
+      blackhole.consume(ruleKey);
+    }
+  }
+
+  public static void main(String[] args) throws IOException, RunnerException {
+    Main.main(new String[] {RuleKeyBenchmark.class.getName()});
+  }
+
+  private static class BenchmarkTool implements AddsToRuleKey {
+    @AddToRuleKey private final String name = "javac";
+    @AddToRuleKey private final String version = "1.8.0_392";
+    @AddToRuleKey private final ImmutableList<String> extraArguments;
+
+    private BenchmarkTool(ImmutableList<String> extraArguments) {
+      this.extraArguments = extraArguments;
+    }
+  }
+
+  private static class BenchmarkRule extends EmptyFakeBuildRule {
+    @AddToRuleKey private final ImmutableSortedSet<SourcePath> srcs;
+    @AddToRuleKey private final ImmutableList<BuildRule> deps;
+    @AddToRuleKey private final ImmutableList<String> flags;
+    @AddToRuleKey private final ImmutableSortedMap<String, String> env;
+    @AddToRuleKey private final Optional<String> mainClass;
+    @AddToRuleKey private final BenchmarkTool tool;
+    @AddToRuleKey private final int optimizationLevel;
+    @AddToRuleKey private final boolean debug;
+
+    private BenchmarkRule(
+        BuildTarget target,
+        ImmutableSortedSet<SourcePath> srcs,
+        ImmutableList<BuildRule> deps,
+        int index) {
+      super(target);
+      this.srcs = srcs;
+      this.deps = deps;
+      this.flags = ImmutableList.of("-g", "-O" + index % 3, "-Xlint:all", "-source", "8");
+      this.env = ImmutableSortedMap.of("LANG", "C", "TZ", "UTC");
+      this.mainClass = index % 2 == 0 ? Optional.of("com.example.Main" + index) : Optional.empty();
+      this.tool = new BenchmarkTool(ImmutableList.of("-encoding", "UTF-8"));
+      this.optimizationLevel = index % 3;
+      this.debug = index % 2 == 0;
+    }
+  }
+}
@@ -23,6 +23,8 @@ import com.facebook.buck.core.filesystems.RelPath;
 import com.facebook.buck.core.model.BuildId;
 import com.facebook.buck.core.model.actiongraph.ActionGraph;
 import com.facebook.buck.core.rulekey.AddsToRuleKey;
+import com.facebook.buck.core.rules.BuildRule;
+import com.facebook.buck.core.rules.impl.FakeBuildRule;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.DefaultBuckEventBus;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
@@ -188,4 +190,33 @@ public class RuleKeyCacheRecyclerTest {
         c -> {});
     assertFalse(cache.isCached(appendable));
   }
+
+  @Test
+  public void getCacheWithIncrementallyRegeneratedActionGraphKeepsCarriedOverRules() {
+    DefaultRuleKeyCache<String> cache = new DefaultRuleKeyCache<>();
+    RuleKeyCacheRecycler<String> recycler =
+        RuleKeyCacheRecycler.createAndRegister(EVENT_BUS, cache, ImmutableSet.of(FILESYSTEM));
+    BuildRule unchanged = new FakeBuildRule("//:unchanged");
+    BuildRule changed = new FakeBuildRule("//:changed");
+    recycler.withRecycledCache(
+        BUCK_EVENT_BUS,
+        new RuleKeyCacheRecycler.SettingsAffectingCache(
+            RULE_KEY_SEED, new ActionGraph(ImmutableList.of(unchanged, changed))),
+        c -> {
+          for (BuildRule rule : ImmutableList.of(unchanged, changed)) {
+            cache.get(
+                rule,
+                r -> new RuleKeyResult<>("", ImmutableList.of(), ImmutableList.of()),
+                new NoOpCacheStatsTracker());
+          }
+        });
+    recycler.withRecycledCache(
+        BUCK_EVENT_BUS,
+        new RuleKeyCacheRecycler.SettingsAffectingCache(
+            RULE_KEY_SEED,
+            new ActionGraph(ImmutableList.of(unchanged, new FakeBuildRule("//:changed")))),
+        c -> {});
+    assertTrue(cache.isCached(unchanged));
+    assertFalse(cache.isCached(changed));
+  }
 }
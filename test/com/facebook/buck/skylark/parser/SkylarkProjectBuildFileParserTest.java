@@ -116,6 +116,17 @@ public class SkylarkProjectBuildFileParserTest {
     return createParserWithOptions(eventHandler, getDefaultParserOptions().build());
   }
 
+  private SkylarkProjectBuildFileParser createParserWithSharedCache(
+      SkylarkExtensionCache sharedCache) {
+    return SkylarkProjectBuildFileParserTestUtils.createParserWithOptions(
+        skylarkFilesystem,
+        new PrintingEventHandler(EventKind.ALL_EVENTS),
+        getDefaultParserOptions().build(),
+        knownRuleTypesProvider,
+        cell.getRootCell(),
+        Optional.of(sharedCache));
+  }
+
   private com.google.devtools.build.lib.vfs.Path vfs_path(Path p) {
     return skylarkFilesystem.getPath(p.toString());
   }
@@ -567,6 +578,42 @@ public class SkylarkProjectBuildFileParserTest {
         equalTo(recordingParser.expectedCounts(vfs_path(ext1), 1, vfs_path(ext2), 1)));
   }
 
+  @Test
+  public void reusesExtensionsFromSharedCacheUntilInvalidated() throws Exception {
+    Path buildFile = projectFilesystem.resolve("BUCK");
+    Files.write(buildFile, Arrays.asList("load('//:ext_1.bzl', 'ext_1')"));
+    Path ext1 = projectFilesystem.resolve("ext_1.bzl");
+    Files.write(ext1, Arrays.asList("load(':ext_2.bzl', 'ext_2')", "ext_1 = ext_2"));
+    Path ext2 = projectFilesystem.resolve("ext_2.bzl");
+    Files.write(ext2, Arrays.asList("ext_2 = 'hello'"));
+
+    SkylarkExtensionCache sharedCache = new SkylarkExtensionCache();
+    RecordingParser firstParser = new RecordingParser(createParserWithSharedCache(sharedCache));
+    firstParser.getManifest(buildFile);
+    assertThat(
+        firstParser.buildCounts,
+        equalTo(firstParser.expectedCounts(vfs_path(ext1), 1, vfs_path(ext2), 1)));
+    assertEquals(2, sharedCache.size());
+
+    RecordingParser secondParser = new RecordingParser(createParserWithSharedCache(sharedCache));
+    secondParser.getManifest(buildFile);
+    assertThat(secondParser.buildCounts, equalTo(secondParser.expectedCounts()));
+
+    sharedCache.invalidatePath(AbsPath.of(projectFilesystem.resolve("unrelated.bzl")));
+    assertEquals(2, sharedCache.size());
+
+    // ext_1.bzl loads ext_2.bzl, so changing the latter invalidates both.
+    Files.write(ext2, Arrays.asList("ext_2 = 'goodbye'"));
+    sharedCache.invalidatePath(AbsPath.of(ext2));
+    assertEquals(0, sharedCache.size());
+
+    RecordingParser thirdParser = new RecordingParser(createParserWithSharedCache(sharedCache));
+    thirdParser.getManifest(buildFile);
+    assertThat(
+        thirdParser.buildCounts,
+        equalTo(thirdParser.expectedCounts(vfs_path(ext1), 1, vfs_path(ext2), 1)));
+  }
+
   @Test
   public void doesNotReadSameBuildFileMultipleTimes() throws Exception {
     // Verifies BUILD file is accessed for IO and AST construction only once.
@@ -38,6 +38,9 @@ public class CacheBenchmark {
   @Param({"10000", "100000", "250000"})
   private int leavesCount = 100;
 
+  @Param({"LOADING_CACHE", "PREFIX_TREE", "OFF_HEAP"})
+  private FileHashCacheMode fileHashCacheMode = FileHashCacheMode.DEFAULT;
+
   private static final Random random = new Random(123);
   private List<String> folders = Lists.newArrayList("");
   private List<String> leaves = Lists.newArrayList();
@@ -48,8 +51,6 @@ public class CacheBenchmark {
   @Before
   public void setUpTest() {
     setUpBenchmark();
-    projectFilesystem = new FakeProjectFilesystem();
-    cache = new WatchedFileHashCache(projectFilesystem, FileHashCacheMode.DEFAULT);
   }
 
   private static String generateRandomString() {
@@ -63,6 +64,8 @@ public class CacheBenchmark {
 
   @BeforeExperiment
   public void setUpBenchmark() {
+    projectFilesystem = new FakeProjectFilesystem();
+    cache = new WatchedFileHashCache(projectFilesystem, fileHashCacheMode);
     while (leaves.size() < leavesCount) {
       String path = folders.get(random.nextInt(folders.size()));
       // create a folder? 25% chance of doing so.
@@ -115,4 +118,21 @@ public class CacheBenchmark {
                     Kind.CREATE,
                     RelPath.of(Paths.get(leaf)))));
   }
+
+  @Test
+  public void lookupMultipleEntries() {
+    addEntries();
+    lookupEntries();
+  }
+
+  @Benchmark
+  public int lookupEntries() {
+    int hits = 0;
+    for (String leaf : leaves) {
+      if (cache.getIfPresent(Paths.get(leaf)).isPresent()) {
+        hits++;
+      }
+    }
+    return hits;
+  }
 }
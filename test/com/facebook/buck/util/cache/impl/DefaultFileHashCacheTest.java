@@ -40,11 +40,16 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collection;
 import java.util.EnumSet;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
@@ -370,4 +375,76 @@ public class DefaultFileHashCacheTest {
         buckOutCacheClassDelegate.get(buckOutCache.getFilesystem())
             instanceof DefaultProjectFilesystemDelegate);
   }
+
+  @Test
+  public void largeFilesHashTheSameAsSmallOnes() throws IOException {
+    ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    DefaultFileHashCache cache =
+        DefaultFileHashCache.createDefaultFileHashCache(filesystem, fileHashCacheMode);
+    byte[] contents = new byte[9 * 1024 * 1024 + 17];
+    new Random(42).nextBytes(contents);
+    Path path = Paths.get("large.so");
+    Files.write(filesystem.resolve(path), contents);
+
+    assertEquals(Hashing.sha1().hashBytes(contents), cache.get(path));
+  }
+
+  @Test
+  public void directoryHashDoesNotDependOnWhichFilesWereAlreadyHashed() throws IOException {
+    ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    Path dir = Paths.get("dir");
+    filesystem.mkdirs(dir.resolve("sub"));
+    for (int i = 0; i < 32; i++) {
+      filesystem.writeContentsToPath(
+          "contents " + i, dir.resolve(i % 2 == 0 ? "file" + i : "sub/file" + i));
+    }
+
+    DefaultFileHashCache warmCache =
+        DefaultFileHashCache.createDefaultFileHashCache(filesystem, fileHashCacheMode);
+    for (Path file : filesystem.getFilesUnderPath(dir)) {
+      warmCache.get(file);
+    }
+    ExecutorService prefetchExecutor = Executors.newFixedThreadPool(4);
+    try {
+      DefaultFileHashCache coldCache =
+          new DefaultFileHashCache(
+              filesystem,
+              DefaultFileHashCache.getDefaultPathPredicate(filesystem),
+              fileHashCacheMode,
+              Optional.of(prefetchExecutor));
+
+      assertEquals(warmCache.get(dir), coldCache.get(dir));
+
+      // Prefetches never outlive the directory hash, so they cannot repopulate invalidated files.
+      coldCache.invalidate(dir.resolve("sub"));
+      coldCache.invalidate(dir);
+      for (Path file : filesystem.getFilesUnderPath(dir)) {
+        assertFalse(coldCache.getIfPresent(file).isPresent());
+      }
+    } finally {
+      prefetchExecutor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void jarMemberHashesAreReadFromManifestOnDisk() throws IOException {
+    ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    DefaultFileHashCache cache =
+        DefaultFileHashCache.createDefaultFileHashCache(filesystem, fileHashCacheMode);
+
+    Path jarPath = Paths.get("lib.jar");
+    Path memberPath = Paths.get("SomeClass.class");
+    String memberContents = "Some contents";
+    try (CustomJarOutputStream jar =
+        ZipOutputStreams.newJarOutputStream(filesystem.newFileOutputStream(jarPath))) {
+      jar.setEntryHashingEnabled(true);
+      jar.writeEntry(
+          memberPath.toString(),
+          new ByteArrayInputStream(memberContents.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    assertEquals(
+        Hashing.murmur3_128().hashString(memberContents, StandardCharsets.UTF_8),
+        cache.getForArchiveMember(jarPath, memberPath));
+  }
 }
@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) Facebook, Inc. and its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.facebook.buck.util.cache.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.facebook.buck.util.cache.HashCodeAndFileType;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class OffHeapFileHashCacheEngineTest {
+
+  private static OffHeapFileHashCacheEngine newEngine() {
+    return new OffHeapFileHashCacheEngine(
+        path -> HashCodeAndFileType.ofFile(sha1(path.toString())), path -> 42L);
+  }
+
+  private static HashCode sha1(String contents) {
+    return Hashing.sha1().hashString(contents, StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void entriesSurviveTableGrowth() {
+    OffHeapFileHashCacheEngine engine = newEngine();
+    long initialBytes = engine.getOffHeapBytes();
+    for (int i = 0; i < 10000; i++) {
+      Path path = Paths.get("dir" + (i % 37), "file" + i);
+      engine.put(path, HashCodeAndFileType.ofFile(sha1(path.toString())));
+      engine.putSize(path, i);
+    }
+
+    assertTrue(engine.getOffHeapBytes() > initialBytes);
+    assertEquals(10000, engine.asMap().size());
+    for (int i = 0; i < 10000; i++) {
+      Path path = Paths.get("dir" + (i % 37), "file" + i);
+      assertEquals(HashCodeAndFileType.ofFile(sha1(path.toString())), engine.getIfPresent(path));
+      assertEquals(Long.valueOf(i), engine.getSizeIfPresent(path));
+    }
+  }
+
+  @Test
+  public void valuesThatDoNotFitTheSlotLayoutAreKeptOnHeap() {
+    OffHeapFileHashCacheEngine engine = newEngine();
+    Path path = Paths.get("SomeClass.java");
+    HashCodeAndFileType shortHash = HashCodeAndFileType.ofFile(HashCode.fromInt(42));
+    engine.put(path, shortHash);
+    assertSame(shortHash, engine.getIfPresent(path));
+
+    HashCodeAndFileType directory = HashCodeAndFileType.ofDirectory(sha1("dir"));
+    engine.put(path, directory);
+    assertEquals(directory, engine.getIfPresent(path));
+    assertEquals(1, engine.asMap().size());
+  }
+
+  @Test
+  public void invalidationDropsDescendantsAndInvalidationWithParentsDropsAncestors() {
+    OffHeapFileHashCacheEngine engine = newEngine();
+    Path root = Paths.get("foo");
+    Path dir = Paths.get("foo/bar");
+    Path file = Paths.get("foo/bar/baz.txt");
+    Path sibling = Paths.get("foo/qux.txt");
+    for (Path path : new Path[] {root, dir, file, sibling}) {
+      engine.put(path, HashCodeAndFileType.ofFile(sha1(path.toString())));
+    }
+
+    engine.invalidate(dir);
+    assertNull(engine.getIfPresent(dir));
+    assertNull(engine.getIfPresent(file));
+    assertEquals(HashCodeAndFileType.ofFile(sha1("foo")), engine.getIfPresent(root));
+
+    engine.put(file, HashCodeAndFileType.ofFile(sha1("new")));
+    engine.invalidateWithParents(Paths.get("foo/bar/unknown.txt"));
+    assertNull(engine.getIfPresent(root));
+    assertEquals(HashCodeAndFileType.ofFile(sha1("new")), engine.getIfPresent(file));
+    assertEquals(HashCodeAndFileType.ofFile(sha1("foo/qux.txt")), engine.getIfPresent(sibling));
+  }
+
+  @Test
+  public void repeatedInvalidationDoesNotGrowTheTable() {
+    OffHeapFileHashCacheEngine engine = newEngine();
+    long initialBytes = engine.getOffHeapBytes();
+    for (int i = 0; i < 100000; i++) {
+      Path path = Paths.get("file" + (i % 100));
+      engine.put(path, HashCodeAndFileType.ofFile(sha1(path.toString())));
+      engine.invalidate(path);
+    }
+    assertEquals(initialBytes, engine.getOffHeapBytes());
+    assertEquals(0, engine.asMap().size());
+  }
+
+  @Test
+  public void invalidatedPathsReleaseTheirIds() {
+    OffHeapFileHashCacheEngine engine = newEngine();
+    Path kept = Paths.get("foo/kept.txt");
+    engine.put(kept, HashCodeAndFileType.ofFile(sha1(kept.toString())));
+    int internedPaths = engine.getInternedPathCount();
+
+    for (int i = 0; i < 10000; i++) {
+      Path path = Paths.get("foo/gen" + i, "dir" + (i % 7), "file" + i);
+      engine.put(path, HashCodeAndFileType.ofFile(sha1(path.toString())));
+      engine.putSize(path.getParent(), i);
+      if (i % 2 == 0) {
+        engine.invalidate(path);
+      } else {
+        engine.invalidateWithParents(path);
+      }
+      engine.invalidate(Paths.get("foo/gen" + i));
+    }
+
+    assertEquals(internedPaths, engine.getInternedPathCount());
+    assertEquals(HashCodeAndFileType.ofFile(sha1("foo/kept.txt")), engine.getIfPresent(kept));
+    assertEquals(1, engine.asMap().size());
+  }
+
+  @Test
+  public void invalidationOnlyDropsTheSubtree() {
+    OffHeapFileHashCacheEngine engine = newEngine();
+    for (int i = 0; i < 1000; i++) {
+      Path path = Paths.get("dir" + (i % 10), "sub" + (i % 3), "file" + i);
+      engine.put(path, HashCodeAndFileType.ofFile(sha1(path.toString())));
+    }
+
+    engine.invalidate(Paths.get("dir3"));
+    engine.invalidate(Paths.get("dir4/sub1"));
+
+    for (int i = 0; i < 1000; i++) {
+      Path path = Paths.get("dir" + (i % 10), "sub" + (i % 3), "file" + i);
+      boolean invalidated = i % 10 == 3 || (i % 10 == 4 && i % 3 == 1);
+      assertEquals(
+          path.toString(),
+          invalidated ? null : HashCodeAndFileType.ofFile(sha1(path.toString())),
+          engine.getIfPresent(path));
+    }
+  }
+
+  @Test
+  public void missingEntriesAreLoadedOnce() throws IOException {
+    AtomicInteger loads = new AtomicInteger();
+    OffHeapFileHashCacheEngine engine =
+        new OffHeapFileHashCacheEngine(
+            path -> {
+              loads.incrementAndGet();
+              return HashCodeAndFileType.ofFile(sha1(path.toString()));
+            },
+            path -> 7L);
+    Path path = Paths.get("a/./b.txt");
+
+    assertEquals(sha1("a/b.txt"), engine.get(path));
+    assertEquals(sha1("a/b.txt"), engine.get(path));
+    assertEquals(7L, engine.getSize(path));
+    assertEquals(1, loads.get());
+  }
+
+  @Test
+  public void loadsRacingWithInvalidationAreNotCached() throws IOException {
+    AtomicReference<OffHeapFileHashCacheEngine> engine = new AtomicReference<>();
+    engine.set(
+        new OffHeapFileHashCacheEngine(
+            path -> {
+              // The file changes while it is being hashed.
+              engine.get().invalidate(path);
+              return HashCodeAndFileType.ofFile(sha1("stale"));
+            },
+            path -> {
+              engine.get().invalidateWithParents(path);
+              return 1L;
+            }));
+    Path path = Paths.get("a/b.txt");
+
+    assertEquals(sha1("stale"), engine.get().get(path));
+    assertNull(engine.get().getIfPresent(path));
+    assertEquals(1L, engine.get().getSize(path));
+    assertNull(engine.get().getSizeIfPresent(path));
+    assertEquals(0, engine.get().getInternedPathCount());
+  }
+
+  @Test
+  public void loadsDoNotOverwriteNewerPuts() throws IOException {
+    AtomicReference<OffHeapFileHashCacheEngine> engine = new AtomicReference<>();
+    engine.set(
+        new OffHeapFileHashCacheEngine(
+            path -> {
+              engine.get().put(path, HashCodeAndFileType.ofFile(sha1("new")));
+              return HashCodeAndFileType.ofFile(sha1("old"));
+            },
+            path -> 1L));
+    Path path = Paths.get("a/b.txt");
+
+    engine.get().get(path);
+    assertEquals(HashCodeAndFileType.ofFile(sha1("new")), engine.get().getIfPresent(path));
+  }
+
+  @Test
+  public void failedLoadsReleaseTheirReservation() {
+    OffHeapFileHashCacheEngine engine =
+        new OffHeapFileHashCacheEngine(
+            path -> {
+              throw new IllegalStateException();
+            },
+            path -> 1L);
+
+    try {
+      engine.get(Paths.get("a/b.txt"));
+      fail("The load should have failed.");
+    } catch (IllegalStateException | IOException e) {
+      assertEquals(0, engine.getInternedPathCount());
+    }
+  }
+
+  @Test
+  public void concurrentAccessFromManyThreads() throws Exception {
+    OffHeapFileHashCacheEngine engine = newEngine();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int thread = 0; thread < 8; thread++) {
+        int seed = thread;
+        futures.add(
+            executor.submit(
+                () -> {
+                  for (int i = 0; i < 5000; i++) {
+                    Path path = Paths.get("dir" + (i % 13), "file" + ((i * 7 + seed) % 2000));
+                    assertEquals(sha1(path.toString()), engine.get(path));
+                    if (i % 100 == seed) {
+                      engine.invalidateWithParents(path);
+                    }
+                  }
+                  return null;
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    for (Map.Entry<Path, HashCodeAndFileType> entry : engine.asMap().entrySet()) {
+      assertEquals(HashCodeAndFileType.ofFile(sha1(entry.getKey().toString())), entry.getValue());
+    }
+  }
+}
@@ -17,6 +17,7 @@
 package com.facebook.buck.util.cache.impl;
 
 import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertThat;
@@ -42,6 +43,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collection;
 import java.util.EnumSet;
+import java.util.Optional;
 import org.hamcrest.junit.ExpectedException;
 import org.junit.Rule;
 import org.junit.Test;
@@ -242,4 +244,46 @@ public class WatchedFileHashCacheTest {
     assertFalse(cache.willGet(filesystem.getPath("buck-out/file.txt")));
     assertTrue(cache.willGet(filesystem.getPath("file.txt")));
   }
+
+  @Test
+  public void snapshotRestoresFileHashesAndClockButNotDirectories() throws IOException {
+    ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    Path file = Paths.get("foo/Bar.java");
+    Path dir = Paths.get("foo");
+    filesystem.mkdirs(dir);
+    filesystem.writeContentsToPath("class Bar {}", file);
+    WatchedFileHashCache cache = new WatchedFileHashCache(filesystem, fileHashCacheMode);
+    HashCode fileHash = cache.get(file);
+    cache.get(dir);
+
+    Path snapshot = tmp.getRoot().resolve("snapshot");
+    cache.writeSnapshot(snapshot, "c:123:456");
+
+    WatchedFileHashCache restored = new WatchedFileHashCache(filesystem, fileHashCacheMode);
+    assertEquals(Optional.of("c:123:456"), restored.restoreSnapshot(snapshot));
+    assertEquals(Optional.of(fileHash), restored.getIfPresent(file));
+    assertFalse(restored.getIfPresent(dir).isPresent());
+
+    restored.onFileSystemChange(
+        WatchmanPathEvent.of(filesystem.getRootPath(), Kind.MODIFY, RelPath.of(file)));
+    assertFalse(restored.getIfPresent(file).isPresent());
+  }
+
+  @Test
+  public void snapshotOfAnotherProjectIsIgnored() throws IOException {
+    ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    Path file = Paths.get("Bar.java");
+    filesystem.writeContentsToPath("class Bar {}", file);
+    WatchedFileHashCache cache = new WatchedFileHashCache(filesystem, fileHashCacheMode);
+    cache.get(file);
+    Path snapshot = tmp.getRoot().resolve("snapshot");
+    cache.writeSnapshot(snapshot, "c:123:456");
+
+    WatchedFileHashCache other =
+        new WatchedFileHashCache(new FakeProjectFilesystem(), fileHashCacheMode);
+    assertEquals(Optional.empty(), other.restoreSnapshot(snapshot));
+    assertEquals(
+        Optional.empty(),
+        other.restoreSnapshot(tmp.getRoot().resolve("missing-snapshot")));
+  }
 }
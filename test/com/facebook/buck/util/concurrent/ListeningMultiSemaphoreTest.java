@@ -204,6 +204,30 @@ public class ListeningMultiSemaphoreTest {
     assertThat(second.isDone(), Matchers.equalTo(true));
   }
 
+  @Test
+  public void pendingItemsAreGrantedByPriorityThenInOrder() {
+    ListeningMultiSemaphore semaphore = getFairListeningMultiSemaphore(amountsOfCpu(1));
+    semaphore.acquire(amountsOfCpu(1));
+
+    ListenableFuture<Unit> low = semaphore.acquire(amountsOfCpu(1), 1);
+    ListenableFuture<Unit> firstHigh = semaphore.acquire(amountsOfCpu(1), 5);
+    ListenableFuture<Unit> secondHigh = semaphore.acquire(amountsOfCpu(1), 5);
+    assertThat(semaphore.getQueueLength(), Matchers.equalTo(3));
+
+    semaphore.release(amountsOfCpu(1));
+    assertThat(firstHigh.isDone(), Matchers.equalTo(true));
+    assertThat(secondHigh.isDone(), Matchers.equalTo(false));
+    assertThat(low.isDone(), Matchers.equalTo(false));
+
+    semaphore.release(amountsOfCpu(1));
+    assertThat(secondHigh.isDone(), Matchers.equalTo(true));
+    assertThat(low.isDone(), Matchers.equalTo(false));
+
+    semaphore.release(amountsOfCpu(1));
+    assertThat(low.isDone(), Matchers.equalTo(true));
+    assertThat(semaphore.getQueueLength(), Matchers.equalTo(0));
+  }
+
   private ListeningMultiSemaphore getFairListeningMultiSemaphore(ResourceAmounts values) {
     return new ListeningMultiSemaphore(values, ResourceAllocationFairness.FAIR);
   }
@@ -31,16 +31,21 @@ import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.FileTime;
 import java.nio.file.attribute.PosixFilePermission;
 import java.time.Instant;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.hamcrest.Matchers;
@@ -763,4 +768,33 @@ public class UntarTest {
 
     Assert.assertFalse(testFilesystem.exists(pycPath));
   }
+
+  @Test
+  public void extractsFromStreamAndRecordsDirectories() throws Exception {
+    ByteArrayOutputStream archive = new ByteArrayOutputStream();
+    try (TarArchiveOutputStream stream = new TarArchiveOutputStream(archive)) {
+      stream.putArchiveEntry(new TarArchiveEntry("out/"));
+      byte[] contents = "contents".getBytes(StandardCharsets.UTF_8);
+      TarArchiveEntry file = new TarArchiveEntry("out/file");
+      file.setSize(contents.length);
+      stream.putArchiveEntry(file);
+      stream.write(contents);
+      stream.closeArchiveEntry();
+    }
+
+    Set<Path> extractedDirectories = new HashSet<>();
+    ImmutableSet<Path> extractedFiles =
+        Untar.tarUnarchiver()
+            .extractArchive(
+                new ByteArrayInputStream(archive.toByteArray()),
+                filesystem,
+                Paths.get("staging"),
+                ExistingFileMode.OVERWRITE,
+                extractedDirectories);
+
+    Path expected = Paths.get("staging", "out", "file");
+    Assert.assertEquals(ImmutableSet.of(expected), extractedFiles);
+    Assert.assertEquals(ImmutableSet.of(Paths.get("staging", "out")), extractedDirectories);
+    assertOutputFileExists(expected, "contents");
+  }
 }